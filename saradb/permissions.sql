@@ -5,6 +5,7 @@ GRANT SELECT, INSERT, UPDATE, DELETE ON fe_temp_authors TO __USERNAME__;
 GRANT SELECT, INSERT, UPDATE, DELETE ON fe_temp_actions TO __USERNAME__;
 GRANT SELECT, INSERT, UPDATE, DELETE ON fe_temp_licenses TO __USERNAME__;
 GRANT SELECT, INSERT, UPDATE, DELETE ON fe_temp_archive TO __USERNAME__;
+GRANT SELECT, INSERT ON license_cache TO __USERNAME__;
 
 GRANT SELECT ON supported_licenses TO __USERNAME__;
 GRANT SELECT ON source TO __USERNAME__;
@@ -20,3 +21,4 @@ GRANT SELECT, INSERT ON metadatavalue TO __USERNAME__;
 GRANT SELECT, INSERT ON item TO __USERNAME__;
 GRANT SELECT, INSERT ON item_authors TO __USERNAME__;
 GRANT SELECT, INSERT, UPDATE ON item_publication TO __USERNAME__;
+GRANT SELECT, INSERT, UPDATE, DELETE ON push_job TO __USERNAME__;
@@ -136,6 +136,30 @@ CREATE TABLE item_publication(
 -- index to allow fast join by item_uuid when listing publication per user
 CREATE INDEX ON item_publication(item_uuid);
 
+-- Table: push_job
+-- pushes that are still running, so that pushes interrupted by a restart can
+-- be rolled back or completed on startup. rows are deleted once done.
+CREATE TABLE push_job(
+	uuid UUID PRIMARY KEY DEFAULT gen_random_uuid(),
+
+	-- archive project being created
+	archive_uuid UUID NOT NULL REFERENCES archive(uuid) ON DELETE RESTRICT,
+	project_id text NOT NULL, -- ID passed to ArchiveRepo.createProject()
+	is_public boolean NOT NULL,
+
+	-- progress
+	state text NOT NULL,
+	pushed_refs text, -- space-separated list of refs, once pushed
+	item_uuid UUID REFERENCES item(uuid) ON DELETE RESTRICT,
+
+	-- state tracking
+	date_created timestamp with time zone NOT NULL,
+	date_last_modified timestamp with time zone NOT NULL,
+
+	CHECK (state IN ('STARTED', 'CREATED', 'PUSHED', 'RECORDED')),
+	CHECK (state <> 'RECORDED' OR item_uuid IS NOT NULL)
+);
+
 -- Table: metadatamapping
 CREATE TABLE metadatamapping(
 	uuid UUID PRIMARY KEY DEFAULT gen_random_uuid(),
@@ -166,7 +190,8 @@ CREATE TABLE fe_temp_actions(
 	ref text NOT NULL,
 	action text NOT NULL,
 	start text NOT NULL,
-	CHECK (action IN ('FULL', 'ABBREV', 'LATEST')),
+	CHECK (action IN ('FULL', 'ABBREV', 'LATEST', 'DAILY', 'WEEKLY',
+		'MONTHLY')),
 	PRIMARY KEY (repo, project, uid, ref)
 );
 
@@ -216,6 +241,16 @@ CREATE TABLE fe_temp_archive(
 	PRIMARY KEY (repo, project, uid)
 );
 
+-- licenses detected by Licensee or the built-in matcher, by SHA-1 of the
+-- license file. purely a cache; the table can be emptied at any time.
+CREATE TABLE license_cache(
+	hash text NOT NULL,
+	detector text NOT NULL, -- license detector and version that detected it
+	license text, -- SPDX ID, NULL if the license wasn't recognized
+	score real, -- confidence (0.0 … 1.0), NULL if not recognized
+	PRIMARY KEY (hash, detector)
+);
+
 -- list of licenses shown on license selection pages
 CREATE TABLE supported_licenses(
 	id text PRIMARY KEY,
@@ -8,6 +8,7 @@ import javax.annotation.PostConstruct;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
@@ -46,21 +47,18 @@ public class Application extends SpringBootServletInitializer {
 		app.run(args);
 	}
 
+	@Autowired
+	private Config config;
+
 	/**
-	 * {@link LicenseeExtractor#getInstance()} does lazy-init so it doesn't slow
-	 * down servlet startup, but that massively slows down the first license
-	 * detection. Thus we just initialize it in the background at low priority
-	 * so it will hopefully be ready once we first need it.
+	 * {@link LicenseeExtractor} loads Licensee in the background so it doesn't
+	 * slow down servlet startup, but it only starts once it is first used.
+	 * Thus we create it right away so it will hopefully be ready once we first
+	 * need it. The Java license extractor builds its index right here, which
+	 * is quick.
 	 */
 	@PostConstruct
-	public static void initializeLicenseeInBackground() {
-		final Thread bginit = new Thread("LicenseeExtractor background init") {
-			@Override
-			public void run() {
-				LicenseeExtractor.getInstance();
-			};
-		};
-		bginit.setPriority(Thread.MIN_PRIORITY);
-		bginit.start();
+	public void initializeLicenseeInBackground() {
+		config.getLicenseExtractor();
 	}
 }
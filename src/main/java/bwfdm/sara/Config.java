@@ -8,7 +8,10 @@ import java.nio.charset.Charset;
 import java.security.SecureRandom;
 import java.sql.Driver;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.servlet.ServletContext;
 import javax.sql.DataSource;
 
@@ -24,7 +27,21 @@ import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import bwfdm.sara.db.ConfigDatabase;
+import bwfdm.sara.extractor.LicenseCache;
+import bwfdm.sara.extractor.LicenseExtractor;
+import bwfdm.sara.extractor.dice.DiceExtractor;
+import bwfdm.sara.extractor.licensee.LicenseeExtractor;
 import bwfdm.sara.publication.db.PublicationDatabase;
+import bwfdm.sara.transfer.CloneTask;
+import bwfdm.sara.transfer.ExportStore;
+import bwfdm.sara.transfer.MemoryBudget;
+import bwfdm.sara.transfer.MirrorStore;
+import bwfdm.sara.transfer.PushTask;
+import bwfdm.sara.transfer.SnapshotExporter;
+import bwfdm.sara.transfer.TaskScheduler;
+import bwfdm.sara.transfer.TempStore;
+import bwfdm.sara.transfer.TransferRepo;
+import bwfdm.sara.transfer.rewrite.BlobFilter;
 
 /**
  * Catch-all global resource holder. Use
@@ -51,6 +68,8 @@ public class Config implements ServletContextAware {
 	// operations (50% chance), which in practice is the same as "never".
 	// we use 82 to fill as much of the 16-digit radix-36 space as possible.
 	private static final int RANDOM_ID_BITS = 80;
+	/** regex matching exactly the IDs returned by {@link #getRandomID()}. */
+	public static final String RANDOM_ID_REGEX = "[0-9a-z]{1,16}";
 
 	/**
 	 * Name of the properties file that Spring loads on startup. Use for calling
@@ -60,6 +79,26 @@ public class Config implements ServletContextAware {
 
 	private static final String WEBROOT_ATTR = "sara.webroot";
 	private static final String TEMPDIR_ATTR = "temp.dir";
+	private static final String MIRROR_BUDGET_ATTR = "mirror.budget";
+	private static final String DEFAULT_MIRROR_BUDGET = "10240"; // MiB
+	private static final String TEMP_BUDGET_ATTR = "temp.budget";
+	private static final String DEFAULT_TEMP_BUDGET = "10240"; // MiB
+	private static final String REWRITE_BUDGET_ATTR = "rewrite.memory.budget";
+	private static final String DEFAULT_REWRITE_BUDGET = "1024"; // MiB
+	private static final String EXPORT_FORMAT_ATTR = "export.format";
+	private static final String EXPORT_BUDGET_ATTR = "export.budget";
+	private static final String DEFAULT_EXPORT_BUDGET = "10240"; // MiB
+	private static final String EXPORT_MAX_AGE_ATTR = "export.maxage";
+	private static final String DEFAULT_EXPORT_MAX_AGE = "30"; // days
+	private static final String EXCLUDE_SIZE_ATTR = "archive.exclude.size";
+	private static final String EXCLUDE_PATHS_ATTR = "archive.exclude.paths";
+	private static final String LICENSE_CACHE_ATTR = "license.cache.size";
+	private static final String LICENSE_DETECTOR_ATTR = "license.detector";
+	private static final String LICENSEE_POOL_ATTR = "licensee.pool.size";
+	private static final String TASK_WORKERS_ATTR = "tasks.workers";
+	private static final String CLONE_WORKERS_ATTR = "tasks.clone.workers";
+	private static final String PUSH_WORKERS_ATTR = "tasks.push.workers";
+	private static final String TASKS_PER_USER_ATTR = "tasks.per.user";
 	private static final String DATASOURCE_PREFIX = "spring.datasource.";
 
 	private static final SecureRandom RNG = new SecureRandom();
@@ -74,6 +113,13 @@ public class Config implements ServletContextAware {
 	private PublicationDatabase pubDB;
 	private JavaMailSender sender;
 	private SARAVersion versionInfo;
+	private MirrorStore mirrors;
+	private TaskScheduler scheduler;
+	private TempStore tempStore;
+	private ExportStore exports;
+	private BlobFilter blobFilter;
+	private LicenseCache licenseCache;
+	private LicenseExtractor licenseExtractor;
 
 	/**
 	 * Constructor used by Spring, along with
@@ -142,6 +188,19 @@ public class Config implements ServletContextAware {
 		return attr;
 	}
 
+	/**
+	 * @return the value of the given context parameter, or the default value
+	 *         if the parameter isn't set
+	 */
+	protected String getContextParam(final String name,
+			final String defaultValue) {
+		try {
+			return getContextParam(name);
+		} catch (final ConfigurationException e) {
+			return defaultValue;
+		}
+	}
+
 	protected File getTempRoot() {
 		final File servletTemp = (File) context
 				.getAttribute(ServletContext.TEMPDIR);
@@ -169,22 +228,6 @@ public class Config implements ServletContextAware {
 		return webroot;
 	}
 
-	/**
-	 * Creates a randomly-named temporary directory. The same directory is never
-	 * returned twice. The directory will exists on return; delete it after use.
-	 * 
-	 * @return a unique temp directory
-	 */
-	public File getRandomTempDir() {
-		final String name = "r" + getRandomID();
-		final File temp = new File(temproot, name);
-		temp.mkdirs(); // ignore errors; we only need it to exist afterwards
-		if (!temp.isDirectory())
-			throw new RuntimeException(
-					"failed to create directory " + temp.getAbsolutePath());
-		return temp;
-	}
-
 	/**
 	 * Creates a new random identifier. The same string is never returned twice.
 	 * 
@@ -253,6 +296,135 @@ public class Config implements ServletContextAware {
 		return temp;
 	}
 
+	/**
+	 * @return the global {@link TempStore}, which creates and manages all
+	 *         {@link TransferRepo TransferRepos}
+	 */
+	public synchronized TempStore getTempStore() {
+		if (tempStore == null) {
+			final long budget = Long.parseLong(
+					getContextParam(TEMP_BUDGET_ATTR, DEFAULT_TEMP_BUDGET));
+			final long memory = Long.parseLong(getContextParam(
+					REWRITE_BUDGET_ATTR, DEFAULT_REWRITE_BUDGET));
+			tempStore = new TempStore(getTempDir("repos"),
+					budget * 1024 * 1024,
+					new MemoryBudget(memory * 1024 * 1024));
+		}
+		return tempStore;
+	}
+
+	/**
+	 * @return the global {@link MirrorStore}, which keeps persistent mirrors of
+	 *         the projects that have been cloned
+	 */
+	public synchronized MirrorStore getMirrorStore() {
+		if (mirrors == null) {
+			final long budget = Long.parseLong(
+					getContextParam(MIRROR_BUDGET_ATTR, DEFAULT_MIRROR_BUDGET));
+			mirrors = new MirrorStore(getTempDir("mirrors"),
+					budget * 1024 * 1024);
+		}
+		return mirrors;
+	}
+
+	/**
+	 * @return the global {@link ExportStore}, which keeps the snapshots of
+	 *         archived items until they are published
+	 */
+	public synchronized ExportStore getExportStore() {
+		if (exports == null) {
+			final long budget = Long.parseLong(
+					getContextParam(EXPORT_BUDGET_ATTR, DEFAULT_EXPORT_BUDGET));
+			final long maxAge = Long.parseLong(getContextParam(
+					EXPORT_MAX_AGE_ATTR, DEFAULT_EXPORT_MAX_AGE));
+			exports = new ExportStore(getTempDir("exports"),
+					SnapshotExporter.Format.forExtension(
+							getContextParam(EXPORT_FORMAT_ATTR, "zip")),
+					budget * 1024 * 1024, TimeUnit.DAYS.toMillis(maxAge));
+		}
+		return exports;
+	}
+
+	/**
+	 * @return the {@link BlobFilter} deciding which files to leave out of all
+	 *         archives; keeps all files unless configured
+	 */
+	public synchronized BlobFilter getBlobFilter() {
+		if (blobFilter == null)
+			blobFilter = BlobFilter.parse(
+					getContextParam(EXCLUDE_SIZE_ATTR, "0"),
+					getContextParam(EXCLUDE_PATHS_ATTR, ""));
+		return blobFilter;
+	}
+
+	/**
+	 * @return the global {@link LicenseCache}, which remembers the licenses
+	 *         detected in all license files ever seen
+	 */
+	public synchronized LicenseCache getLicenseCache() {
+		if (licenseCache == null)
+			licenseCache = new LicenseCache(db, Integer.parseInt(
+					getContextParam(LICENSE_CACHE_ATTR, "1000")));
+		return licenseCache;
+	}
+
+	/**
+	 * @return the global {@link LicenseExtractor}: either Licensee, which the
+	 *         first call starts loading in the background, or the
+	 *         {@link DiceExtractor} built from the supported licenses
+	 */
+	public synchronized LicenseExtractor getLicenseExtractor() {
+		if (licenseExtractor == null) {
+			final String type = getContextParam(LICENSE_DETECTOR_ATTR,
+					"licensee");
+			if (type.equals("licensee"))
+				licenseExtractor = new LicenseeExtractor(Integer.parseInt(
+						getContextParam(LICENSEE_POOL_ATTR, "3")));
+			else if (type.equals("dice"))
+				licenseExtractor = new DiceExtractor(
+						configDB.getLicenseTexts());
+			else
+				throw new ConfigurationException(
+						"unknown license detector " + type);
+		}
+		return licenseExtractor;
+	}
+
+	/**
+	 * @return the global {@link TaskScheduler} that runs all
+	 *         {@link CloneTask CloneTasks} and {@link PushTask PushTasks}
+	 */
+	public synchronized TaskScheduler getTaskScheduler() {
+		if (scheduler == null) {
+			scheduler = new TaskScheduler(
+					Integer.parseInt(getContextParam(TASK_WORKERS_ATTR, "4")),
+					Integer.parseInt(getContextParam(TASKS_PER_USER_ATTR, "2")));
+			scheduler.setWorkers(CloneTask.class,
+					Integer.parseInt(getContextParam(CLONE_WORKERS_ATTR, "3")));
+			scheduler.setWorkers(PushTask.class,
+					Integer.parseInt(getContextParam(PUSH_WORKERS_ATTR, "2")));
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Creates the {@link TempStore} on startup, so that it deletes the
+	 * leftovers of the previous run right away instead of on the first clone.
+	 * Also deletes those that older versions left directly in the temp root.
+	 */
+	@PostConstruct
+	public void cleanupTempStore() {
+		TempStore.deleteLegacyOrphans(temproot);
+		getTempStore();
+	}
+
+	/** Stops all running tasks on shutdown. */
+	@PreDestroy
+	public synchronized void shutdown() {
+		if (scheduler != null)
+			scheduler.shutdown();
+	}
+
 	/** @return webapp version info as a {@link SARAVersion} instance */
 	public SARAVersion getVersion() {
 		if (versionInfo == null)
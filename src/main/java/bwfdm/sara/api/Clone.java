@@ -2,10 +2,12 @@ package bwfdm.sara.api;
 
 import javax.servlet.http.HttpSession;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.springframework.web.servlet.view.RedirectView;
 
 import bwfdm.sara.project.Project;
@@ -15,6 +17,9 @@ import bwfdm.sara.transfer.Task.TaskStatus;
 @RestController
 @RequestMapping("/api/clone")
 public class Clone {
+	@Autowired
+	private StatusStream statusStream;
+
 	@GetMapping("cancel")
 	public RedirectView abortClone(final HttpSession session) {
 		Project.getInstance(session).resetTransferRepo();
@@ -26,6 +31,12 @@ public class Clone {
 		return Project.getInstance(session).getInitStatus();
 	}
 
+	@GetMapping("events")
+	public SseEmitter getStatusEvents(final HttpSession session) {
+		return statusStream
+				.subscribe(Project.getInstance(session).getCloneTask());
+	}
+
 	@PostMapping("trigger")
 	public TaskStatus triggerClone(final HttpSession session) {
 		final CloneTask clone = Project.getInstance(session)
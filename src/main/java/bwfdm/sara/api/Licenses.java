@@ -1,5 +1,6 @@
 package bwfdm.sara.api;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -16,6 +17,8 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
+
 import bwfdm.sara.Config;
 import bwfdm.sara.db.FrontendDatabase;
 import bwfdm.sara.db.License;
@@ -65,6 +68,23 @@ public class Licenses {
 		project.invalidateMetadata();
 	}
 
+	/**
+	 * Lists the licenses declared in the headers of individual files, for
+	 * each selected ref. These can differ from the main license, eg. in
+	 * vendored code.
+	 */
+	@GetMapping("inventory")
+	public List<LicenseHeaders> getLicenseInventory(final HttpSession session) {
+		final Project project = Project.getInstance(session);
+		final Map<Ref, Map<String, Integer>> headers = project
+				.getMetadataExtractor().getLicenseHeaders();
+		final List<LicenseHeaders> inventory = new ArrayList<>();
+		for (final Ref ref : project.getFrontendDatabase().getSelectedRefs())
+			if (headers.containsKey(ref))
+				inventory.add(new LicenseHeaders(ref, headers.get(ref)));
+		return inventory;
+	}
+
 	@GetMapping("supported")
 	public List<License> getLicenseList() {
 		return config.getConfigDatabase().getLicenses();
@@ -82,4 +102,18 @@ public class Licenses {
 			return null;
 		return license;
 	}
+
+	public static class LicenseHeaders {
+		@JsonProperty("ref")
+		public final Ref ref;
+		/** number of files declaring each license expression */
+		@JsonProperty("licenses")
+		public final Map<String, Integer> licenses;
+
+		public LicenseHeaders(final Ref ref,
+				final Map<String, Integer> licenses) {
+			this.ref = ref;
+			this.licenses = licenses;
+		}
+	}
 }
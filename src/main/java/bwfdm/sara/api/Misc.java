@@ -14,6 +14,8 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 
 import bwfdm.sara.Config;
 import bwfdm.sara.SARAVersion;
+import bwfdm.sara.extractor.LicenseExtractor;
+import bwfdm.sara.extractor.licensee.LicenseeExtractor;
 import bwfdm.sara.git.GitRepoFactory;
 import bwfdm.sara.git.ProjectInfo;
 import bwfdm.sara.project.Project;
@@ -75,6 +77,15 @@ public class Misc {
 		}
 	}
 
+	/** @return Licensee statistics, or nothing if Licensee isn't used */
+	@GetMapping("licensee-stats")
+	public LicenseeExtractor.Stats getLicenseeStats() {
+		final LicenseExtractor extractor = config.getLicenseExtractor();
+		if (!(extractor instanceof LicenseeExtractor))
+			return null;
+		return ((LicenseeExtractor) extractor).getStats();
+	}
+
 	@GetMapping("webapp-version")
 	public SARAVersion getVersionInfo() {
 		return config.getVersion();
@@ -1,6 +1,12 @@
 package bwfdm.sara.api;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.EnumMap;
@@ -10,11 +16,14 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.UUID;
 
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.mail.SimpleMailMessage;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
@@ -22,6 +31,7 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
@@ -42,6 +52,7 @@ import bwfdm.sara.publication.PublicationRepository.SubmissionInfo;
 import bwfdm.sara.publication.Repository;
 import bwfdm.sara.publication.SaraMetaDataField;
 import bwfdm.sara.publication.db.PublicationField;
+import bwfdm.sara.transfer.ExportStore;
 
 @RestController
 @RequestMapping("/api/publish")
@@ -245,8 +256,9 @@ public class Publication {
 		i.repository_uuid = repository_uuid;
 		i.collection_id = collectionURL;
 
-		// TODO obtain ZIP-file from Matthias
-		File file = null;
+		// may be null if creating the snapshot failed. the repo then just
+		// deposits the metadata.
+		final File file = config.getExportStore().get(project.getItemUUID());
 		final SubmissionInfo submissionInfo = repo.publish(userLogin,
 				collectionURL, file, metadataMap);
 
@@ -266,6 +278,9 @@ public class Publication {
 
 		i = project.getPublicationDatabase().insertInDB(i);
 		project.setDone();
+		// the snapshot has been deposited (or rejected as too large), so it
+		// isn't needed anymore
+		config.getExportStore().remove(project.getItemUUID());
 
 		Map<PublicationField, String> m = new EnumMap<>(PublicationField.class);
 		m.put(PublicationField.REPOSITORY_URL, i.repository_url);
@@ -280,6 +295,64 @@ public class Publication {
 		return new RedirectView(redirectionUrl);
 	}
 
+	/**
+	 * Downloads the snapshot that will be deposited in the publication
+	 * repository. Supports single-range requests so that interrupted
+	 * downloads of large snapshots can be resumed.
+	 */
+	@GetMapping("export")
+	public void downloadExport(
+			@RequestHeader(value = HttpHeaders.RANGE, required = false) final String range,
+			final HttpSession session, final HttpServletResponse response)
+			throws IOException {
+		final PublicationSession project = PublicationSession
+				.getInstance(session);
+		final File file = config.getExportStore().get(project.getItemUUID());
+		if (file == null)
+			throw new NoSuchElementException(
+					"no snapshot for item " + project.getItemUUID());
+
+		try (final RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			final long length = raf.length();
+			long start = 0, end = length - 1;
+			final List<HttpRange> ranges = range != null
+					? HttpRange.parseRanges(range)
+					: null;
+			// multiple ranges are permitted to be answered with the full
+			// content, and no download client ever uses them
+			if (ranges != null && ranges.size() == 1) {
+				final HttpRange r = ranges.get(0);
+				try {
+					start = r.getRangeStart(length);
+					end = r.getRangeEnd(length);
+				} catch (final IllegalArgumentException e) {
+					response.setStatus(
+							HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+					response.setHeader(HttpHeaders.CONTENT_RANGE,
+							"bytes */" + length);
+					return;
+				}
+				response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				response.setHeader(HttpHeaders.CONTENT_RANGE,
+						"bytes " + start + "-" + end + "/" + length);
+			}
+
+			response.setContentType(ExportStore.getFormat(file).mimeType);
+			response.setHeader(HttpHeaders.CONTENT_DISPOSITION,
+					"attachment; filename=\"" + file.getName() + "\"");
+			response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+			response.setHeader(HttpHeaders.CONTENT_LENGTH,
+					Long.toString(end - start + 1));
+			final OutputStream out = response.getOutputStream();
+			final WritableByteChannel target = Channels.newChannel(out);
+			final FileChannel channel = raf.getChannel();
+			long pos = start;
+			while (pos <= end)
+				pos += channel.transferTo(pos, end + 1 - pos, target);
+			out.flush();
+		}
+	}
+
 	@PostMapping("query-hierarchy")
 	public CollectionList queryHierarchy(
 			@RequestParam("user_email") final String user_email,
@@ -2,11 +2,13 @@ package bwfdm.sara.api;
 
 import javax.servlet.http.HttpSession;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 import org.springframework.web.servlet.view.RedirectView;
 
@@ -18,6 +20,9 @@ import bwfdm.sara.transfer.Task.TaskStatus;
 @RestController
 @RequestMapping("/api/push")
 public class Push {
+	@Autowired
+	private StatusStream statusStream;
+
 	@GetMapping("cancel")
 	public RedirectView abortPush(final HttpSession session) {
 		Project.getInstance(session).cancelPush();
@@ -31,6 +36,13 @@ public class Push {
 		return Project.getCompletedInstance(session).getPushTask().getStatus();
 	}
 
+	@GetMapping("events")
+	public SseEmitter getStatusEvents(final HttpSession session) {
+		// getCompletedInstance() for the same reason as above
+		return statusStream.subscribe(
+				Project.getCompletedInstance(session).getPushTask());
+	}
+
 	@PostMapping("trigger")
 	public TaskStatus triggerPush(@RequestParam("token") final String hash,
 			final HttpSession session) {
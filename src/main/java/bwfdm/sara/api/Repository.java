@@ -26,6 +26,7 @@ import bwfdm.sara.project.Project;
 import bwfdm.sara.project.Ref;
 import bwfdm.sara.project.RefAction;
 import bwfdm.sara.project.RefAction.PublicationMethod;
+import bwfdm.sara.transfer.HistoryEstimator.EstimateStatus;
 
 @RestController
 @RequestMapping("/api/repo")
@@ -71,7 +72,7 @@ public class Repository {
 			db.setRefActions(actionList);
 			// the user didn't change the list of branches, but we did. he will
 			// still have to clone this again
-			project.invalidateTransferRepo();
+			project.invalidateRefSelection();
 		}
 
 		final Map<Ref, RefAction> actions = new HashMap<Ref, RefAction>();
@@ -86,7 +87,12 @@ public class Repository {
 			final HttpSession session) {
 		final Project project = Project.getInstance(session);
 		project.getFrontendDatabase().setRefActions(actions);
-		project.invalidateTransferRepo();
+		project.invalidateRefSelection();
+	}
+
+	@GetMapping("estimate")
+	public EstimateStatus getEstimate(final HttpSession session) {
+		return Project.getInstance(session).estimateHistory();
 	}
 
 	@GetMapping("commits")
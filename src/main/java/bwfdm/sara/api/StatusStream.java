@@ -0,0 +1,157 @@
+package bwfdm.sara.api;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import bwfdm.sara.transfer.Task;
+import bwfdm.sara.transfer.Task.TaskStatus;
+
+/**
+ * Pushes {@link TaskStatus} updates to the browser as server-sent events. A
+ * single thread checks all subscribed {@link Task Tasks} at a fixed rate and
+ * sends a new status only if the task has actually made progress, so a fast
+ * clone doesn't flood the client with updates and an idle one doesn't cost
+ * anything but a version check.
+ */
+@Component
+public class StatusStream {
+	private static final Log logger = LogFactory.getLog(StatusStream.class);
+	/** maximum update rate, as interval in milliseconds. */
+	private static final long UPDATE_INTERVAL = 500;
+	/**
+	 * interval for sending keepalive comments even if nothing has changed, in
+	 * milliseconds. detects closed connections, and keeps proxies from timing
+	 * out the connection.
+	 */
+	private static final long KEEPALIVE_INTERVAL = 30 * 1000;
+	/**
+	 * lifetime of a single connection, in milliseconds. the browser
+	 * automatically reconnects after that.
+	 */
+	private static final long TIMEOUT = 10 * 60 * 1000;
+
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+	private final ScheduledExecutorService timer;
+
+	public StatusStream() {
+		timer = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable r) {
+						final Thread thread = new Thread(r, "status stream");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				for (final Subscription s : subscriptions)
+					s.update();
+			}
+		}, UPDATE_INTERVAL, UPDATE_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Creates an event stream for the given task. The stream starts with the
+	 * current status and is closed after sending the final status.
+	 *
+	 * @param task
+	 *            the {@link Task} to monitor
+	 * @return an {@link SseEmitter} to return from the controller method
+	 */
+	public SseEmitter subscribe(final Task task) {
+		if (task == null)
+			throw new IllegalStateException("no task running");
+
+		final SseEmitter emitter = new SseEmitter(TIMEOUT);
+		final Subscription sub = new Subscription(task, emitter);
+		final Runnable remove = new Runnable() {
+			@Override
+			public void run() {
+				subscriptions.remove(sub);
+			}
+		};
+		emitter.onCompletion(remove);
+		emitter.onTimeout(remove);
+		subscriptions.add(sub);
+		// send initial status immediately so the page doesn't stay empty
+		sub.update();
+		return emitter;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		timer.shutdownNow();
+		for (final Subscription s : subscriptions)
+			s.close();
+	}
+
+	private class Subscription {
+		private final Task task;
+		private final SseEmitter emitter;
+		private long version = -1;
+		private int queuePosition = -1;
+		private long lastSent;
+
+		private Subscription(final Task task, final SseEmitter emitter) {
+			this.task = task;
+			this.emitter = emitter;
+		}
+
+		private synchronized void update() {
+			try {
+				// read version before building the status, so that changes
+				// made while building it aren't lost
+				final long version = task.getVersion();
+				final int queuePosition = task.getQueuePosition();
+				final long now = System.currentTimeMillis();
+				if (version == this.version
+						&& queuePosition == this.queuePosition) {
+					if (now - lastSent >= KEEPALIVE_INTERVAL) {
+						emitter.send(SseEmitter.event().comment("keepalive"));
+						lastSent = now;
+					}
+					return;
+				}
+
+				final boolean finished = task.isFinished();
+				emitter.send(task.getStatus(), MediaType.APPLICATION_JSON);
+				this.version = version;
+				this.queuePosition = queuePosition;
+				lastSent = now;
+				if (finished)
+					close();
+			} catch (final IOException | IllegalStateException e) {
+				// client went away, or emitter already completed
+				close();
+			} catch (final RuntimeException e) {
+				// must not propagate; it would kill the timer for everyone
+				logger.warn("cannot send status of " + task, e);
+				close();
+			}
+		}
+
+		private void close() {
+			subscriptions.remove(this);
+			try {
+				emitter.complete();
+			} catch (final RuntimeException e) {
+				// connection already broken; nothing left to clean up
+			}
+		}
+	}
+}
@@ -46,6 +46,16 @@ public class ConfigDatabase {
 				+ " order by preference asc, id asc", License.class);
 	}
 
+	/**
+	 * @return the full text of every license, including hidden ones, by
+	 *         license ID
+	 */
+	public Map<String, String> getLicenseTexts() {
+		return db.queryToMap(
+				"select id, full_text from " + LICENSES_TABLE, "id",
+				String.class, String.class);
+	}
+
 	public String getLicenseText(final String id) {
 		return db.querySingleToObject(
 				"select full_text from " + LICENSES_TABLE + " where id = ?",
@@ -0,0 +1,146 @@
+package bwfdm.sara.extractor;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.jgit.lib.ObjectId;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import bwfdm.sara.transfer.RepoFile;
+
+/**
+ * Remembers the detected license of each license file by its SHA-1, so that
+ * the {@link LicenseExtractor} only has to run on files it has never seen
+ * before. License files
+ * are identical across branches and re-clones of the same project, and often
+ * across thousands of projects that ship the unmodified text of a common
+ * license.
+ * <p>
+ * The cache has two levels: a small LRU map in memory, and the
+ * {@value #CACHE_TABLE} table in the database, which survives restarts. Both
+ * are keyed by the {@link LicenseExtractor#getVersion() detector version} as
+ * well, so that switching detectors, upgrading Licensee or changing the
+ * license templates detects all licenses again.
+ * <p>
+ * The cache is just an optimization, so database errors are logged but
+ * otherwise ignored; the license is then detected again.
+ */
+public class LicenseCache {
+	private static final Log logger = LogFactory.getLog(LicenseCache.class);
+	private static final String CACHE_TABLE = "license_cache";
+
+	private final JdbcTemplate db;
+	private final Map<ObjectId, Entry> memory;
+
+	/**
+	 * @param db
+	 *            the {@link DataSource} holding the {@value #CACHE_TABLE}
+	 *            table
+	 * @param size
+	 *            number of licenses to keep in memory
+	 */
+	public LicenseCache(final DataSource db, final int size) {
+		this.db = new JdbcTemplate(db);
+		memory = new LinkedHashMap<ObjectId, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<ObjectId, Entry> eldest) {
+				return size() > size;
+			}
+		};
+	}
+
+	/**
+	 * Looks up the license of a file.
+	 *
+	 * @param file
+	 *            the license file
+	 * @param version
+	 *            version of the detector that would detect the license
+	 * @return the license detected earlier by the same detector version, or
+	 *         <code>null</code> if it has never seen that file
+	 */
+	public LicenseFile get(final RepoFile file, final String version) {
+		final ObjectId hash = file.getHash();
+		Entry entry;
+		synchronized (memory) {
+			entry = memory.get(hash);
+		}
+		if (entry == null || !entry.version.equals(version)) {
+			entry = load(hash, version);
+			if (entry == null)
+				return null;
+			synchronized (memory) {
+				memory.put(hash.copy(), entry);
+			}
+		}
+		return new LicenseFile(file, entry.licenseID, entry.score);
+	}
+
+	private Entry load(final ObjectId hash, final String version) {
+		final List<Map<String, Object>> rows;
+		try {
+			rows = db.queryForList("select license, score from "
+					+ CACHE_TABLE + " where hash = ? and detector = ?",
+					hash.name(), version);
+		} catch (final DataAccessException e) {
+			logger.warn("cannot read license cache", e);
+			return null;
+		}
+		if (rows.isEmpty())
+			return null;
+		final Map<String, Object> row = rows.get(0);
+		final Number score = (Number) row.get("score");
+		return new Entry(version, (String) row.get("license"),
+				score != null ? score.floatValue() : Float.NaN);
+	}
+
+	/**
+	 * Records the license of a file.
+	 *
+	 * @param license
+	 *            the license detected for the file. its
+	 *            {@link LicenseFile#licenseID} can be <code>null</code> if
+	 *            the license wasn't recognized.
+	 * @param version
+	 *            version of the detector that detected the license
+	 */
+	public void put(final LicenseFile license, final String version) {
+		final Entry entry = new Entry(version, license.licenseID,
+				license.score);
+		synchronized (memory) {
+			memory.put(license.hash.copy(), entry);
+		}
+		try {
+			db.update("insert into " + CACHE_TABLE
+					+ "(hash, detector, license, score) values(?, ?, ?, ?)",
+					license.hash.name(), version, license.licenseID,
+					Float.isNaN(license.score) ? null : license.score);
+		} catch (final DuplicateKeyException e) {
+			// another clone detected the same license at the same time. it
+			// got the same result, so that's fine.
+		} catch (final DataAccessException e) {
+			logger.warn("cannot write license cache", e);
+		}
+	}
+
+	private static class Entry {
+		private final String version;
+		private final String licenseID;
+		private final float score;
+
+		private Entry(final String version, final String licenseID,
+				final float score) {
+			this.version = version;
+			this.licenseID = licenseID;
+			this.score = score;
+		}
+	}
+}
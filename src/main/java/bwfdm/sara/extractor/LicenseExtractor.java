@@ -1,5 +1,6 @@
 package bwfdm.sara.extractor;
 
+import java.io.IOException;
 import java.util.List;
 
 import bwfdm.sara.transfer.RepoFile;
@@ -7,5 +8,11 @@ import bwfdm.sara.transfer.TransferRepo;
 
 public interface LicenseExtractor {
 	public List<LicenseFile> detectLicenses(TransferRepo repo,
-			List<RepoFile> files);
+			List<RepoFile> files) throws IOException;
+
+	/**
+	 * @return identifies the implementation and version, so that cached
+	 *         results of other versions aren't reused
+	 */
+	public String getVersion();
 }
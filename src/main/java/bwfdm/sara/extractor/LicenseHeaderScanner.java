@@ -0,0 +1,463 @@
+package bwfdm.sara.extractor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdOwnerMap;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+
+/**
+ * Finds license declarations in the headers of all files, not just in
+ * top-level license files, so that vendored code under a different license
+ * doesn't go unnoticed. Recognizes {@code SPDX-License-Identifier} tags and,
+ * in files without one, the standard notices recommended by the most common
+ * licenses.
+ * <p>
+ * Only the first {@value #HEADER_SIZE} bytes of each file are read, because
+ * that's where these notices are. Even so, reading every file is expensive in
+ * large repositories, so results are memoized: per blob, and per tree for the
+ * aggregated counts. Files larger than {@value #MAX_FILE_SIZE} bytes are
+ * skipped without reading them at all: they are data rather than source code,
+ * and even opening a stream can mean resolving a long delta chain. Different refs usually share most of their directories,
+ * so every additional ref only costs as much as the directories it changes.
+ * New blobs are scanned in parallel.
+ * <p>
+ * Not thread-safe; {@link #scan(Repository, Map)} must not be called
+ * concurrently.
+ */
+public class LicenseHeaderScanner {
+	private static final Log logger = LogFactory
+			.getLog(LicenseHeaderScanner.class);
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	/** the license notice has to be within this many bytes of the start. */
+	static final int HEADER_SIZE = 4096;
+	/** larger files are assumed not to have a license header. */
+	static final int MAX_FILE_SIZE = 1024 * 1024;
+	/** number of blobs per parallel task. */
+	private static final int BATCH_SIZE = 256;
+	private static final String SPDX_TAG = "spdx-license-identifier:";
+	private static final String[] NO_LICENSES = new String[0];
+	private static final Map<String, Integer> NO_COUNTS = Collections
+			.emptyMap();
+
+	/**
+	 * Notices which identify a license by themselves, as found in the
+	 * normalized header. Keep in sync with {@link #NOTICE_IDS}.
+	 */
+	private static final String[] NOTICES = {
+			"licensed under the apache license version 2.0",
+			"permission is hereby granted free of charge to any person "
+					+ "obtaining a copy",
+			"permission to use copy modify and or distribute this software "
+					+ "for any purpose with or without fee is hereby granted",
+			"subject to the terms of the mozilla public license v 2.0",
+			"this is free and unencumbered software released into the "
+					+ "public domain", };
+	private static final String[] NOTICE_IDS = { "Apache-2.0", "MIT", "ISC",
+			"MPL-2.0", "Unlicense" };
+	/** the GNU licenses all use the same notice, just with different names. */
+	private static final Pattern GNU_NOTICE = Pattern
+			.compile("gnu (lesser |library |affero )?general public license "
+					+ "(?:as published by the free software foundation )?"
+					+ "(?:either )?version (\\d(?:\\.\\d)?)");
+	private static final String ANY_LATER_VERSION = "any later version";
+	private static final Pattern EPL_NOTICE = Pattern
+			.compile("eclipse public license (?:v |v|version )?(\\d\\.\\d)");
+	private static final String BSD_NOTICE = "redistribution and use in "
+			+ "source and binary forms with or without modification are "
+			+ "permitted";
+	private static final String BSD_3_CLAUSE = "neither the name";
+	/** words that every notice contains one of, to skip normalization. */
+	private static final String[] NOTICE_WORDS = { "licen", "permission",
+			"redistribution", "unencumbered" };
+
+	private final ObjectIdOwnerMap<ScannedBlob> blobs = new ObjectIdOwnerMap<>();
+	private final ObjectIdOwnerMap<ScannedTree> trees = new ObjectIdOwnerMap<>();
+
+	/**
+	 * Scans all files in the given trees, recursively.
+	 *
+	 * @param repo
+	 *            the repository containing the trees
+	 * @param roots
+	 *            root tree for each key, usually for each ref
+	 * @return for each key, the number of files declaring each license
+	 *         expression, sorted by license. files that don't declare any
+	 *         license aren't counted.
+	 * @throws IOException
+	 *             if repo access fails
+	 */
+	public <K> Map<K, Map<String, Integer>> scan(final Repository repo,
+			final Map<K, ObjectId> roots) throws IOException {
+		final long start = System.currentTimeMillis();
+		final Map<ObjectId, TreeNode> nodes = new HashMap<>();
+		final List<ObjectId> unknown = new ArrayList<>();
+		try (final ObjectReader reader = repo.newObjectReader()) {
+			listTrees(reader, roots.values(), nodes, unknown);
+		}
+		for (final ScannedBlob blob : scanParallel(repo, unknown))
+			blobs.addIfAbsent(blob);
+
+		final Map<K, Map<String, Integer>> inventory = new HashMap<>();
+		for (final Map.Entry<K, ObjectId> e : roots.entrySet())
+			inventory.put(e.getKey(), summarize(e.getValue(), nodes));
+		logger.info("scanned " + nodes.size() + " new directories and "
+				+ unknown.size() + " new files for license headers in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		return inventory;
+	}
+
+	/**
+	 * Lists the entries of every tree that hasn't been summarized before, and
+	 * collects the blobs in them that haven't been scanned yet.
+	 */
+	private void listTrees(final ObjectReader reader,
+			final Iterable<ObjectId> roots, final Map<ObjectId, TreeNode> nodes,
+			final List<ObjectId> unknown) throws IOException {
+		final Deque<ObjectId> pending = new ArrayDeque<>();
+		for (final ObjectId root : roots)
+			pending.push(root);
+		final Set<ObjectId> queued = new HashSet<>();
+		while (!pending.isEmpty()) {
+			final ObjectId tree = pending.pop();
+			if (trees.contains(tree) || nodes.containsKey(tree))
+				continue;
+
+			final TreeNode node = new TreeNode();
+			for (final CanonicalTreeParser parser = new CanonicalTreeParser(
+					null, reader, tree); !parser.eof(); parser.next()) {
+				final FileMode mode = parser.getEntryFileMode();
+				if (FileMode.TREE.equals(mode)) {
+					final ObjectId id = parser.getEntryObjectId();
+					node.trees.add(id);
+					pending.push(id);
+				} else if (FileMode.REGULAR_FILE.equals(mode)
+						|| FileMode.EXECUTABLE_FILE.equals(mode)) {
+					final ObjectId id = parser.getEntryObjectId();
+					node.blobs.add(id);
+					if (!blobs.contains(id) && queued.add(id))
+						unknown.add(id);
+				}
+				// symlinks and submodules don't have a license of their own
+			}
+			nodes.put(tree, node);
+		}
+	}
+
+	/**
+	 * Scans the blobs in batches, on as many threads as there are processors.
+	 */
+	private static List<ScannedBlob> scanParallel(final Repository repo,
+			final List<ObjectId> unknown) throws IOException {
+		final int batches = (unknown.size() + BATCH_SIZE - 1) / BATCH_SIZE;
+		final int threads = Math.min(batches, Runtime.getRuntime()
+				.availableProcessors());
+		if (threads <= 1)
+			return scanBlobs(repo, unknown);
+
+		final ExecutorService pool = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable r) {
+						final Thread thread = new Thread(r,
+								"license header scanner");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		try {
+			final List<Future<List<ScannedBlob>>> tasks = new ArrayList<>();
+			for (int i = 0; i < unknown.size(); i += BATCH_SIZE) {
+				final List<ObjectId> batch = unknown.subList(i,
+						Math.min(i + BATCH_SIZE, unknown.size()));
+				tasks.add(pool.submit(new Callable<List<ScannedBlob>>() {
+					@Override
+					public List<ScannedBlob> call() throws IOException {
+						return scanBlobs(repo, batch);
+					}
+				}));
+			}
+
+			// wait for all of them even after a failure; the others are still
+			// reading from the repo
+			final List<ScannedBlob> scanned = new ArrayList<>(unknown.size());
+			Throwable failure = null;
+			for (final Future<List<ScannedBlob>> task : tasks) {
+				try {
+					scanned.addAll(task.get());
+				} catch (final ExecutionException e) {
+					if (failure == null)
+						failure = e.getCause();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(
+							"license header scan interrupted");
+				}
+			}
+			if (failure instanceof IOException)
+				throw (IOException) failure;
+			if (failure instanceof RuntimeException)
+				throw (RuntimeException) failure;
+			if (failure instanceof Error)
+				throw (Error) failure;
+			return scanned;
+		} finally {
+			// interrupting the threads could break the reader's pack files
+			pool.shutdown();
+		}
+	}
+
+	/** Scans some blobs, with an {@link ObjectReader} of its own. */
+	private static List<ScannedBlob> scanBlobs(final Repository repo,
+			final List<ObjectId> ids) throws IOException {
+		final List<ScannedBlob> scanned = new ArrayList<>(ids.size());
+		final byte[] buffer = new byte[HEADER_SIZE];
+		try (final ObjectReader reader = repo.newObjectReader()) {
+			for (final ObjectId id : ids) {
+				final int length = readHeader(reader, id, buffer);
+				if (length < 0 || RawText.isBinary(buffer, length)) {
+					scanned.add(new ScannedBlob(id, NO_LICENSES));
+					continue;
+				}
+				final Set<String> licenses = detectLicenses(new String(buffer,
+						0, length, ISO_8859_1));
+				scanned.add(new ScannedBlob(id, licenses.isEmpty()
+						? NO_LICENSES
+						: licenses.toArray(new String[licenses.size()])));
+			}
+		}
+		return scanned;
+	}
+
+	/**
+	 * Reads the start of a blob through its stream, so that large blobs are
+	 * never loaded completely.
+	 *
+	 * @return number of bytes read into the buffer, or -1 if the blob is
+	 *         larger than {@link #MAX_FILE_SIZE} and wasn't read
+	 */
+	private static int readHeader(final ObjectReader reader,
+			final AnyObjectId id, final byte[] buffer) throws IOException {
+		// only needs the object header, even for deltas
+		if (reader.getObjectSize(id, Constants.OBJ_BLOB) > MAX_FILE_SIZE)
+			return -1;
+		try (final InputStream in = reader.open(id, Constants.OBJ_BLOB)
+				.openStream()) {
+			int length = 0;
+			while (length < buffer.length) {
+				final int n = in.read(buffer, length, buffer.length - length);
+				if (n < 0)
+					break;
+				length += n;
+			}
+			return length;
+		}
+	}
+
+	/**
+	 * Detects the licenses declared in the start of a file.
+	 *
+	 * @param header
+	 *            start of the file, decoded as ISO-8859-1, which is good
+	 *            enough for the ASCII text we're looking for
+	 * @return the SPDX license expressions of all
+	 *         {@code SPDX-License-Identifier} tags, or if there aren't any,
+	 *         the SPDX license ID of the license notice, if recognized
+	 */
+	static Set<String> detectLicenses(final String header) {
+		final Set<String> licenses = new LinkedHashSet<>();
+		// ISO-8859-1 stays the same length in lower case, so positions match
+		final String lower = header.toLowerCase(Locale.ROOT);
+		for (int pos = lower.indexOf(SPDX_TAG); pos >= 0; pos = lower.indexOf(
+				SPDX_TAG, pos + 1)) {
+			final String expression = parseExpression(header,
+					pos + SPDX_TAG.length());
+			if (!expression.isEmpty())
+				licenses.add(expression);
+		}
+		if (!licenses.isEmpty() || !containsNoticeWord(lower))
+			return licenses;
+
+		final String text = normalize(lower);
+		for (int i = 0; i < NOTICES.length; i++)
+			if (text.contains(NOTICES[i]))
+				licenses.add(NOTICE_IDS[i]);
+		final Matcher gnu = GNU_NOTICE.matcher(text);
+		if (gnu.find())
+			licenses.add(getGnuLicense(gnu.group(1), gnu.group(2),
+					text.contains(ANY_LATER_VERSION)));
+		final Matcher epl = EPL_NOTICE.matcher(text);
+		if (epl.find())
+			licenses.add("EPL-" + epl.group(1));
+		if (text.contains(BSD_NOTICE))
+			licenses.add(text.contains(BSD_3_CLAUSE) ? "BSD-3-Clause"
+					: "BSD-2-Clause");
+		return licenses;
+	}
+
+	/**
+	 * Parses the license expression after an {@code SPDX-License-Identifier}
+	 * tag. It ends at the end of the line or at anything that isn't part of a
+	 * license expression, such as the end of a comment.
+	 */
+	private static String parseExpression(final String header,
+			final int start) {
+		int end = start;
+		while (end < header.length()) {
+			final char ch = header.charAt(end);
+			if (!(ch >= 'a' && ch <= 'z') && !(ch >= 'A' && ch <= 'Z')
+					&& !(ch >= '0' && ch <= '9') && ch != '.' && ch != '-'
+					&& ch != '+' && ch != ':' && ch != '(' && ch != ')'
+					&& ch != ' ' && ch != '\t')
+				break;
+			end++;
+		}
+		// an expression ends in an ID, "+" or ")"; anything else is part of
+		// the comment, like the "--" of "-->"
+		while (end > start && " \t-.:".indexOf(header.charAt(end - 1)) >= 0)
+			end--;
+		return header.substring(start, end).trim();
+	}
+
+	private static boolean containsNoticeWord(final String lower) {
+		for (final String word : NOTICE_WORDS)
+			if (lower.contains(word))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Reduces the text to words separated by single spaces, so that comment
+	 * markers and line breaks don't matter. Dots are kept between digits,
+	 * because they are part of version numbers.
+	 */
+	private static String normalize(final String lower) {
+		final StringBuilder buffer = new StringBuilder(lower.length());
+		boolean space = false;
+		for (int i = 0; i < lower.length(); i++) {
+			final char ch = lower.charAt(i);
+			final boolean digit = ch >= '0' && ch <= '9';
+			if ((ch >= 'a' && ch <= 'z') || digit
+					|| (ch == '.' && isDigitAt(lower, i - 1)
+							&& isDigitAt(lower, i + 1))) {
+				if (space)
+					buffer.append(' ');
+				buffer.append(ch);
+				space = false;
+			} else
+				space = buffer.length() > 0;
+		}
+		return buffer.toString();
+	}
+
+	private static boolean isDigitAt(final String text, final int pos) {
+		return pos >= 0 && pos < text.length() && text.charAt(pos) >= '0'
+				&& text.charAt(pos) <= '9';
+	}
+
+	/**
+	 * @return the SPDX license ID, using the {@code +} suffix for "or any later
+	 *         version" like the {@code supported_licenses} table does
+	 */
+	private static String getGnuLicense(final String variant,
+			final String version, final boolean orLater) {
+		final String name;
+		if (variant == null)
+			name = "GPL";
+		else if (variant.startsWith("affero"))
+			name = "AGPL";
+		else
+			name = "LGPL";
+		return name + "-" + (version.contains(".") ? version : version + ".0")
+				+ (orLater ? "+" : "");
+	}
+
+	/**
+	 * Adds up the licenses of all files in a tree, recursively, reusing the
+	 * result for trees seen before.
+	 */
+	private Map<String, Integer> summarize(final ObjectId tree,
+			final Map<ObjectId, TreeNode> nodes) {
+		final ScannedTree known = trees.get(tree);
+		if (known != null)
+			return known.licenses;
+
+		final TreeNode node = nodes.get(tree);
+		final Map<String, Integer> licenses = new TreeMap<>();
+		for (final ObjectId id : node.blobs)
+			for (final String license : blobs.get(id).licenses)
+				add(licenses, license, 1);
+		for (final ObjectId id : node.trees)
+			for (final Map.Entry<String, Integer> e : summarize(id, nodes)
+					.entrySet())
+				add(licenses, e.getKey(), e.getValue());
+
+		// most trees don't contain any license headers, so share the map
+		final Map<String, Integer> result = licenses.isEmpty() ? NO_COUNTS
+				: Collections.unmodifiableMap(licenses);
+		trees.add(new ScannedTree(tree, result));
+		return result;
+	}
+
+	private static void add(final Map<String, Integer> licenses,
+			final String license, final int count) {
+		final Integer old = licenses.get(license);
+		licenses.put(license, old != null ? old + count : count);
+	}
+
+	/** entries of a tree, until its licenses have been summarized. */
+	private static class TreeNode {
+		private final List<ObjectId> trees = new ArrayList<>();
+		private final List<ObjectId> blobs = new ArrayList<>();
+	}
+
+	private static class ScannedBlob extends ObjectIdOwnerMap.Entry {
+		private final String[] licenses;
+
+		private ScannedBlob(final AnyObjectId id, final String[] licenses) {
+			super(id);
+			this.licenses = licenses;
+		}
+	}
+
+	private static class ScannedTree extends ObjectIdOwnerMap.Entry {
+		private final Map<String, Integer> licenses;
+
+		private ScannedTree(final AnyObjectId id,
+				final Map<String, Integer> licenses) {
+			super(id);
+			this.licenses = licenses;
+		}
+	}
+}
@@ -1,19 +1,27 @@
 package bwfdm.sara.extractor;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.eclipse.jgit.lib.ObjectId;
+
 import bwfdm.sara.auth.AuthProvider.UserInfo;
-import bwfdm.sara.extractor.licensee.LicenseeExtractor;
 import bwfdm.sara.git.GitProject;
 import bwfdm.sara.git.GitRepo;
 import bwfdm.sara.git.ProjectInfo;
@@ -60,15 +68,25 @@ public class MetadataExtractor {
 	private final TransferRepo clone;
 	private final GitProject project;
 	private final GitRepo repo;
+	private final LicenseExtractor licenseExtractor;
+	private final LicenseCache licenseCache;
 	private final Map<Ref, LicenseFile> licenses = new HashMap<>();
+	/** root tree of each ref when its license was last detected. */
+	private final Map<Ref, ObjectId> licenseTrees = new HashMap<>();
 	private final Set<LicenseFile> licenseSet = new HashSet<>();
+	private final LicenseHeaderScanner headerScanner = new LicenseHeaderScanner();
+	private Map<Ref, Map<String, Integer>> licenseHeaders = Collections
+			.emptyMap();
 	private UserInfo userInfo;
 
 	public MetadataExtractor(final TransferRepo clone, final GitRepo repo,
-			final GitProject project) {
+			final GitProject project, final LicenseExtractor licenseExtractor,
+			final LicenseCache licenseCache) {
 		this.clone = clone;
 		this.repo = repo;
 		this.project = project;
+		this.licenseExtractor = licenseExtractor;
+		this.licenseCache = licenseCache;
 	}
 
 	/** Get autodetected metadata values. */
@@ -144,7 +162,7 @@ public class MetadataExtractor {
 		long bestDate = Long.MIN_VALUE;
 		for (final Ref ref : refs) {
 			// FIXME 32-bit timestamp in an API! in 2017!!! wtf????
-			final long date = clone.getCommit(ref).getCommitTime();
+			final long date = clone.getCommitTime(ref);
 			if ((best.type == RefType.TAG && ref.type == RefType.BRANCH)
 					|| (date > bestDate)) {
 				best = ref;
@@ -180,7 +198,7 @@ public class MetadataExtractor {
 	}
 
 	private Version parseCommit(final Ref ref) throws IOException {
-		final long date = clone.getCommit(ref).getCommitTime();
+		final long date = clone.getCommitTime(ref);
 		final String data = clone.readString(ref, VERSION_FILE);
 		if (data == null)
 			return NO_VERSION_FOUND;
@@ -188,7 +206,7 @@ public class MetadataExtractor {
 	}
 
 	private Version parseTag(final Ref ref) throws IOException {
-		final long date = clone.getCommit(ref).getCommitTime();
+		final long date = clone.getCommitTime(ref);
 		final Matcher m = VERSION_REGEX.matcher(ref.name);
 		if (!m.matches())
 			return new Version(ref.name, date, VersionSource.OTHER_TAG);
@@ -269,6 +287,16 @@ public class MetadataExtractor {
 	/**
 	 * Runs the license detection. After this method, {@link #getLicenses()} and
 	 * {@link #getLicenseSet()} return valid information.
+	 * <p>
+	 * Refs whose root tree hasn't changed since the last call keep their
+	 * previous result, so after the selection of refs has changed, only new and
+	 * changed refs are analyzed again.
+	 * <p>
+	 * Detection runs in two phases, because projects with many tags usually
+	 * have just one or two distinct license files. The first phase collects
+	 * the candidate license files, listing each distinct root tree only once.
+	 * The second phase then detects the license of each distinct file once, in
+	 * parallel.
 	 * 
 	 * @param refs
 	 *            set of refs to analyze
@@ -276,26 +304,59 @@ public class MetadataExtractor {
 	 *             if repo access fails
 	 */
 	public void detectLicenses(final Collection<Ref> refs) throws IOException {
-		licenses.clear();
-		licenseSet.clear();
+		licenses.keySet().retainAll(refs);
+		licenseTrees.keySet().retainAll(refs);
+
+		// phase 1: candidate files per tree. tags often point to the same tree
+		// as a branch, or to a tree that only differs in some subdirectory.
+		final Map<Ref, ObjectId> changed = new HashMap<>();
+		final Map<ObjectId, List<RepoFile>> candidates = new HashMap<>();
+		final Map<ObjectId, RepoFile> blobs = new HashMap<>();
 		for (final Ref ref : refs) {
-			final LicenseFile license = detectLicenses(ref);
-			if (license != null) {
+			final ObjectId tree = clone.getCommit(ref).getTree().copy();
+			if (tree.equals(licenseTrees.get(ref)))
+				continue;
+			changed.put(ref, tree);
+			if (candidates.containsKey(tree))
+				continue;
+
+			final List<RepoFile> files = findLicenseFiles(clone.getFiles(tree));
+			candidates.put(tree, files);
+			// with several license files, the license counts as unrecognized
+			// anyway, so there is no point in detecting them
+			if (files.size() == 1 && !blobs.containsKey(files.get(0).getHash()))
+				blobs.put(files.get(0).getHash(), files.get(0));
+		}
+
+		// phase 2: detect each distinct file once
+		final Map<ObjectId, LicenseFile> detected = detectCachedLicenses(blobs
+				.values());
+		for (final Map.Entry<Ref, ObjectId> e : changed.entrySet()) {
+			final Ref ref = e.getKey();
+			final LicenseFile license = pickLicense(
+					candidates.get(e.getValue()), detected);
+			if (license != null)
 				licenses.put(ref, license);
-				licenseSet.add(license);
-			}
+			else
+				licenses.remove(ref);
+			licenseTrees.put(ref, e.getValue());
 		}
+
+		licenseSet.clear();
+		licenseSet.addAll(licenses.values());
 	}
 
-	private LicenseFile detectLicenses(final LicenseeExtractor extractor,
-			final List<RepoFile> files) {
-		final List<LicenseFile> licenses = extractor.detectLicenses(clone,
-				files);
+	private LicenseFile pickLicense(final List<RepoFile> files,
+			final Map<ObjectId, LicenseFile> detected) {
 		// trivial case: only one license file, or missing license
-		if (licenses.size() == 0)
+		if (files.size() == 0)
 			return null;
-		if (licenses.size() == 1)
-			return licenses.get(0);
+		if (files.size() == 1) {
+			// the same file can have a different name in other refs
+			final RepoFile file = files.get(0);
+			final LicenseFile license = detected.get(file.getHash());
+			return new LicenseFile(file, license.licenseID, license.score);
+		}
 
 		// multiple license files. even if only one of them matches, the others
 		// could contain licenses we just don't know. treat as unrecognized
@@ -306,14 +367,135 @@ public class MetadataExtractor {
 		return new LicenseFile(file, null, Float.NaN);
 	}
 
-	private LicenseFile detectLicenses(final Ref ref) throws IOException {
+	/**
+	 * Detects the license in each file, running the {@link LicenseExtractor}
+	 * only for files that aren't in the {@link LicenseCache} yet.
+	 * 
+	 * @return the license of each file, by hash
+	 */
+	private Map<ObjectId, LicenseFile> detectCachedLicenses(
+			final Collection<RepoFile> files) throws IOException {
+		final String version = licenseExtractor.getVersion();
+		final Map<ObjectId, LicenseFile> licenses = new HashMap<>();
+		final List<RepoFile> unknown = new ArrayList<>();
+		for (final RepoFile file : files) {
+			final LicenseFile license = licenseCache.get(file, version);
+			if (license != null)
+				licenses.put(file.getHash(), license);
+			else
+				unknown.add(file);
+		}
+
+		for (final LicenseFile license : detectParallel(unknown)) {
+			licenseCache.put(license, version);
+			licenses.put(license.hash, license);
+		}
+		return licenses;
+	}
+
+	/**
+	 * Runs the {@link LicenseExtractor} on each file separately, on as many
+	 * threads as there are processors. The {@link LicenseExtractor} may
+	 * limit concurrency further; Licensee only has a few runtimes.
+	 */
+	private List<LicenseFile> detectParallel(final List<RepoFile> files)
+			throws IOException {
+		final int threads = Math.min(files.size(), Runtime.getRuntime()
+				.availableProcessors());
+		if (threads <= 1)
+			return licenseExtractor.detectLicenses(clone, files);
+
+		final ExecutorService pool = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable r) {
+						final Thread thread = new Thread(r,
+								"license detection");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		try {
+			final List<Future<LicenseFile>> tasks = new ArrayList<>();
+			for (final RepoFile file : files)
+				tasks.add(pool.submit(new Callable<LicenseFile>() {
+					@Override
+					public LicenseFile call() throws IOException {
+						return licenseExtractor.detectLicenses(clone,
+								Collections.singletonList(file)).get(0);
+					}
+				}));
+
+			// wait for all of them even after a failure; the others are still
+			// reading from the repo
+			final List<LicenseFile> licenses = new ArrayList<>(files.size());
+			Throwable failure = null;
+			for (final Future<LicenseFile> task : tasks) {
+				try {
+					licenses.add(task.get());
+				} catch (final ExecutionException e) {
+					if (failure == null)
+						failure = e.getCause();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(
+							"license detection interrupted");
+				}
+			}
+			if (failure instanceof IOException)
+				throw (IOException) failure;
+			if (failure instanceof RuntimeException)
+				throw (RuntimeException) failure;
+			if (failure instanceof Error)
+				throw (Error) failure;
+			return licenses;
+		} finally {
+			// interrupting the threads could break the reader's pack files
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Gets the licenses declared in the headers of individual files, such as
+	 * vendored code under a different license.
+	 * 
+	 * @return for each ref, the number of files declaring each license
+	 *         expression. files without declaration aren't counted.
+	 */
+	public Map<Ref, Map<String, Integer>> getLicenseHeaders() {
+		return licenseHeaders;
+	}
+
+	/**
+	 * Scans all files for license declarations in their headers. After this
+	 * method, {@link #getLicenseHeaders()} returns valid information.
+	 * <p>
+	 * Results are kept per file and directory, so after the selection of refs
+	 * has changed, only new files and directories are scanned again.
+	 * 
+	 * @param refs
+	 *            set of refs to analyze
+	 * @throws IOException
+	 *             if repo access fails
+	 */
+	public void detectLicenseHeaders(final Collection<Ref> refs)
+			throws IOException {
+		final Map<Ref, ObjectId> roots = new HashMap<>();
+		for (final Ref ref : refs)
+			roots.put(ref, clone.getCommit(ref).getTree().copy());
+		licenseHeaders = headerScanner.scan(clone.getRepo(), roots);
+	}
+
+	/**
+	 * @return the files that contain the license of the whole project, in
+	 *         order of preference, or an empty list if there is no license
+	 *         file
+	 */
+	private static List<RepoFile> findLicenseFiles(final List<RepoFile> files) {
 		final List<RepoFile> obvious = new ArrayList<>();
 		final List<RepoFile> likely = new ArrayList<>();
 		// final List<RepoFile> possible = new ArrayList<>();
-		final List<RepoFile> files = clone.getFiles(ref);
-		for (final Iterator<RepoFile> iter = files.iterator(); iter
-				.hasNext();) {
-			final RepoFile file = iter.next();
+		for (final RepoFile file : files) {
 			if (file.getType() != FileType.FILE)
 				continue;
 
@@ -326,14 +508,13 @@ public class MetadataExtractor {
 			// possible.add(file);
 		}
 
-		final LicenseeExtractor extractor = LicenseeExtractor.getInstance();
 		if (!obvious.isEmpty())
-			return detectLicenses(extractor, obvious);
+			return obvious;
 		if (!likely.isEmpty())
-			return detectLicenses(extractor, likely);
+			return likely;
 		// if (!possible.isEmpty())
-		// return detectLicenses(extractor, possible);
+		// return possible;
 		// there really isn't any license file in this branch
-		return null;
+		return obvious;
 	}
 }
@@ -0,0 +1,191 @@
+package bwfdm.sara.extractor.dice;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+
+import bwfdm.sara.extractor.LicenseExtractor;
+import bwfdm.sara.extractor.LicenseFile;
+import bwfdm.sara.transfer.RepoFile;
+import bwfdm.sara.transfer.TransferRepo;
+
+/**
+ * Detects licenses in pure Java, by essentially the same similarity measure
+ * that Licensee uses: the Dice coefficient of the sets of words in the
+ * normalized texts, with a penalty for differences in length. Unlike
+ * Licensee, it needs neither JRuby nor its startup time, and a match takes
+ * microseconds.
+ * <p>
+ * The license templates are indexed once, in the constructor: for each word,
+ * the index lists the templates that contain it. A file is then compared to
+ * all templates at once, by counting the common words in a single pass over
+ * the file's words.
+ * <p>
+ * Thread-safe; the index is never modified after construction.
+ */
+public class DiceExtractor implements LicenseExtractor {
+	private static final Log logger = LogFactory.getLog(DiceExtractor.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/**
+	 * Minimum similarity for a match. Same as Licensee's
+	 * {@code CONFIDENCE_THRESHOLD}.
+	 */
+	static final float THRESHOLD = 0.98f;
+	/**
+	 * Version of the algorithm, for {@link #getVersion()}. Increment whenever
+	 * a change can affect which license is detected.
+	 */
+	private static final int ALGORITHM_VERSION = 1;
+	/**
+	 * Placeholders in choosealicense.com templates. Licensee ignores them when
+	 * comparing, because files contain the actual values instead.
+	 */
+	private static final Pattern FIELDS = Pattern.compile("\\[(year|fullname"
+			+ "|login|email|project|description|projecturl)\\]");
+
+	private final String[] ids;
+	private final int[] wordCounts;
+	private final int[] lengths;
+	private final Map<String, int[]> index = new HashMap<>();
+	private final Map<String, String> exact = new HashMap<>();
+	private final String version;
+
+	/**
+	 * @param texts
+	 *            full text of each license template, by SPDX license ID
+	 */
+	public DiceExtractor(final Map<String, String> texts) {
+		final long start = System.currentTimeMillis();
+		// sorted so the version doesn't depend on hash map order
+		final TreeMap<String, String> sorted = new TreeMap<>(texts);
+		ids = sorted.keySet().toArray(new String[sorted.size()]);
+		wordCounts = new int[ids.length];
+		lengths = new int[ids.length];
+
+		final Map<String, List<Integer>> postings = new HashMap<>();
+		for (int i = 0; i < ids.length; i++) {
+			final String normalized = LicenseText.normalize(FIELDS
+					.matcher(sorted.get(ids[i])).replaceAll(""));
+			final Set<String> words = LicenseText.words(normalized);
+			wordCounts[i] = words.size();
+			lengths[i] = normalized.length();
+			exact.put(normalized, ids[i]);
+			for (final String word : words) {
+				List<Integer> list = postings.get(word);
+				if (list == null) {
+					list = new ArrayList<>();
+					postings.put(word, list);
+				}
+				list.add(i);
+			}
+		}
+		for (final Map.Entry<String, List<Integer>> e : postings.entrySet()) {
+			final List<Integer> list = e.getValue();
+			final int[] array = new int[list.size()];
+			for (int i = 0; i < array.length; i++)
+				array[i] = list.get(i);
+			index.put(e.getKey(), array);
+		}
+
+		version = "dice-" + ALGORITHM_VERSION + "-"
+				+ hashTemplates(sorted).abbreviate(10).name();
+		logger.info("indexed " + ids.length + " licenses with "
+				+ index.size() + " distinct words in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Hashes all templates, so that the {@link #getVersion() version} changes
+	 * whenever the set of licenses changes.
+	 */
+	private static ObjectId hashTemplates(final Map<String, String> sorted) {
+		final StringBuilder buffer = new StringBuilder();
+		for (final Map.Entry<String, String> e : sorted.entrySet())
+			buffer.append(e.getKey()).append('\0').append(e.getValue())
+					.append('\0');
+		try (final ObjectInserter.Formatter fmt = new ObjectInserter.Formatter()) {
+			return fmt.idFor(Constants.OBJ_BLOB,
+					buffer.toString().getBytes(UTF8));
+		}
+	}
+
+	/**
+	 * @return algorithm version plus a hash of all license templates, so that
+	 *         cached results become invalid when either changes
+	 */
+	@Override
+	public String getVersion() {
+		return version;
+	}
+
+	@Override
+	public List<LicenseFile> detectLicenses(final TransferRepo repo,
+			final List<RepoFile> files) throws IOException {
+		final List<LicenseFile> licenses = new ArrayList<>(files.size());
+		for (final RepoFile file : files)
+			licenses.add(detectLicense(file.getName(), file.getHash(),
+					repo.readString(file.getHash())));
+		return licenses;
+	}
+
+	/**
+	 * Detects the license in a single file.
+	 *
+	 * @param name
+	 *            name of the file
+	 * @param hash
+	 *            SHA-1 of the file
+	 * @param content
+	 *            contents of the file
+	 * @return the detected license. its {@link LicenseFile#licenseID} is
+	 *         <code>null</code> if no template is similar enough.
+	 */
+	LicenseFile detectLicense(final String name, final ObjectId hash,
+			final String content) {
+		final String normalized = LicenseText.normalize(content);
+		final String match = exact.get(normalized);
+		if (match != null)
+			return new LicenseFile(name, hash, match, 1);
+
+		final Set<String> words = LicenseText.words(normalized);
+		final int[] overlap = new int[ids.length];
+		for (final String word : words) {
+			final int[] templates = index.get(word);
+			if (templates != null)
+				for (final int t : templates)
+					overlap[t]++;
+		}
+
+		int best = -1;
+		float bestScore = 0;
+		for (int t = 0; t < ids.length; t++) {
+			if (overlap[t] == 0)
+				continue;
+			// the length penalty keeps a license from matching a file that
+			// contains it plus lots of other text. a character of difference
+			// counts as a quarter of a word.
+			final int delta = Math.abs(normalized.length() - lengths[t]);
+			final float score = 2f * overlap[t]
+					/ (words.size() + wordCounts[t] + delta / 4f);
+			if (score > bestScore) {
+				best = t;
+				bestScore = score;
+			}
+		}
+		if (best < 0 || bestScore < THRESHOLD)
+			return new LicenseFile(name, hash, null, Float.NaN);
+		return new LicenseFile(name, hash, ids[best], bestScore);
+	}
+}
@@ -0,0 +1,156 @@
+package bwfdm.sara.extractor.dice;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Normalizes license texts the way Licensee does before comparing them, so
+ * that formatting, copyright lines and the like don't affect the result.
+ * <p>
+ * Not an exact port; Licensee has many more special cases. But these steps
+ * cover the differences that actually occur between a template and a
+ * project's {@code LICENSE} file: title and version lines, copyright notices,
+ * Markdown markup, bullets, quotes, line wrapping, http vs https and
+ * British spelling.
+ */
+final class LicenseText {
+	/** license name like "MIT License" or "GNU GENERAL PUBLIC LICENSE". */
+	private static final Pattern TITLE = Pattern
+			.compile("^(the )?[\\w .,/+-]*licen[sc]e[\\w .,/+-]*$");
+	private static final Pattern VERSION = Pattern
+			.compile("^version \\d[\\w .,/-]*$");
+	private static final Pattern COPYRIGHT = Pattern
+			.compile("^(copyright|\\(c\\)|\\u00a9).*$");
+	private static final int MAX_TITLE_WORDS = 10;
+	private static final Pattern ALL_RIGHTS_RESERVED = Pattern
+			.compile("all rights reserved\\.?");
+	/** start of the appendix in GPL and Apache licenses. */
+	private static final String END_OF_TERMS = "end of terms and conditions";
+	private static final Pattern MARKUP = Pattern
+			.compile("[#_*=~\\[\\]()`|>]+");
+	private static final String MARKUP_CHARS = "#_*=~[]()`|>";
+	private static final Pattern BULLET = Pattern.compile(
+			"^[ \\t]*(?:[*-]|\\(?[\\da-z]{1,2}[).])[ \\t]+", Pattern.MULTILINE);
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+	private static final Pattern LICENCE = Pattern
+			.compile("\\blicenc(e|es)\\b");
+
+	private LicenseText() {
+	}
+
+	/**
+	 * @param text
+	 *            a license text, as written by a human
+	 * @return the text with everything removed that doesn't affect its
+	 *         meaning, all on one line and in lower case
+	 */
+	static String normalize(final String text) {
+		String string = text.toLowerCase(Locale.ROOT)
+				.replace("\r\n", "\n").replace('\r', '\n');
+		string = stripHeader(string);
+		string = ALL_RIGHTS_RESERVED.matcher(string).replaceAll("");
+		final int end = string.indexOf(END_OF_TERMS);
+		if (end >= 0)
+			string = string.substring(0, end);
+		string = BULLET.matcher(string).replaceAll("");
+		string = clean(string).replace("http:", "https:");
+		if (string.contains("licenc"))
+			string = LICENCE.matcher(string).replaceAll("licens$1");
+		return string;
+	}
+
+	/**
+	 * Removes markup, normalizes quotes and dashes, and collapses whitespace,
+	 * all in a single pass because regexes are comparatively slow.
+	 */
+	private static String clean(final String text) {
+		final StringBuilder buffer = new StringBuilder(text.length());
+		boolean space = false;
+		for (int i = 0; i < text.length(); i++) {
+			char ch = text.charAt(i);
+			if (Character.isWhitespace(ch) || MARKUP_CHARS.indexOf(ch) >= 0) {
+				space = buffer.length() > 0;
+				continue;
+			}
+			if (ch == '\u2018' || ch == '\u2019' || ch == '\u00b4')
+				ch = '\'';
+			else if (ch == '\u201c' || ch == '\u201d')
+				ch = '"';
+			else if (ch == '\u2013' || ch == '\u2014')
+				ch = '-';
+			if (space)
+				buffer.append(' ');
+			buffer.append(ch);
+			space = false;
+		}
+		return buffer.toString();
+	}
+
+	/**
+	 * Strips the title, version and copyright lines from the start of the
+	 * text. Licensee only strips them at the start as well, because further
+	 * down, such lines are usually part of the license.
+	 */
+	private static String stripHeader(final String text) {
+		int pos = 0;
+		while (pos < text.length()) {
+			int end = text.indexOf('\n', pos);
+			if (end < 0)
+				end = text.length();
+			final String line = MARKUP.matcher(text.substring(pos, end))
+					.replaceAll(" ").trim();
+			if (!line.isEmpty() && !isTitle(line)
+					&& !VERSION.matcher(line).matches()
+					&& !COPYRIGHT.matcher(line).matches())
+				break;
+			pos = end + 1;
+		}
+		return pos < text.length() ? text.substring(pos) : "";
+	}
+
+	private static boolean isTitle(final String line) {
+		return TITLE.matcher(line).matches()
+				&& WHITESPACE.split(line).length <= MAX_TITLE_WORDS;
+	}
+
+	/**
+	 * Splits a text into words, like the regex
+	 * {@code (?:\w(?:'s|(?<=s)')?)+} in {@code Licensee::ContentHelper}: runs
+	 * of letters, digits and underscores, including possessive {@code 's} and
+	 * {@code s'}. Written out because the regex is slow.
+	 *
+	 * @param normalized
+	 *            a text returned by {@link #normalize(String)}
+	 * @return the set of distinct words in the text
+	 */
+	static Set<String> words(final String normalized) {
+		final Set<String> words = new HashSet<>();
+		final int length = normalized.length();
+		int pos = 0;
+		while (pos < length) {
+			if (!isWordChar(normalized.charAt(pos))) {
+				pos++;
+				continue;
+			}
+			final int start = pos;
+			while (pos < length && isWordChar(normalized.charAt(pos))) {
+				pos++;
+				if (pos < length && normalized.charAt(pos) == '\'')
+					if (pos + 1 < length && normalized.charAt(pos + 1) == 's')
+						pos += 2;
+					else if (normalized.charAt(pos - 1) == 's')
+						pos++;
+			}
+			words.add(normalized.substring(start, pos));
+		}
+		return words;
+	}
+
+	/** same as {@code \w} in Java and Ruby regexes. */
+	private static boolean isWordChar(final char ch) {
+		return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z')
+				|| (ch >= '0' && ch <= '9') || ch == '_';
+	}
+}
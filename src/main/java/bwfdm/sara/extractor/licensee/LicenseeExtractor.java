@@ -3,63 +3,248 @@ package bwfdm.sara.extractor.licensee;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jruby.embed.LocalContextScope;
 import org.jruby.embed.ScriptingContainer;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
+
 import bwfdm.sara.extractor.LicenseExtractor;
 import bwfdm.sara.extractor.LicenseFile;
 import bwfdm.sara.transfer.RepoFile;
 import bwfdm.sara.transfer.TransferRepo;
 
+/**
+ * Runs Licensee in a pool of JRuby {@link ScriptingContainer
+ * ScriptingContainers}, so that concurrent clones can detect licenses in
+ * parallel. Each container has its own Ruby runtime and is used by one thread
+ * at a time, because nobody guarantees that Licensee is thread-safe.
+ * <p>
+ * Loading Licensee takes several seconds per container, so the containers are
+ * created one after the other by a low-priority background thread, starting
+ * in the constructor. Callers just wait until the first one is ready.
+ */
 public class LicenseeExtractor implements LicenseExtractor {
 	private static final Log logger = LogFactory
 			.getLog(LicenseeExtractor.class);
-	private static LicenseeExtractor instance;
 
-	private final ScriptingContainer container;
-	private final Object extractor;
+	private final BlockingQueue<Container> idle = new LinkedBlockingQueue<>();
+	private final CountDownLatch ready = new CountDownLatch(1);
+	private final AtomicInteger containers = new AtomicInteger();
+	private final Stats stats = new Stats();
+	private volatile String version;
+	private volatile RuntimeException failure;
 
-	private LicenseeExtractor() {
-		logger.info("Licensee initialization started");
-		final long start = System.currentTimeMillis();
+	/**
+	 * @param size
+	 *            number of containers, ie. maximum number of threads detecting
+	 *            licenses at the same time
+	 */
+	public LicenseeExtractor(final int size) {
+		final Thread init = new Thread("LicenseeExtractor background init") {
+			@Override
+			public void run() {
+				for (int i = 0; i < size; i++)
+					if (!startContainer())
+						break;
+			}
+		};
+		init.setDaemon(true);
+		init.setPriority(Thread.MIN_PRIORITY);
+		init.start();
+	}
 
-		container = new ScriptingContainer(LocalContextScope.CONCURRENT);
-		container.setLoadPaths(Arrays.asList(
-				"uri:classloader:/bwfdm/sara/extractor/licensee/ruby/lib",
-				"uri:classloader:/bwfdm/sara/extractor/licensee"));
-		container.runScriptlet("require 'license_extractor'");
-		extractor = container.runScriptlet("LicenseExtractor");
+	private boolean startContainer() {
+		final Container container;
+		try {
+			container = new Container();
+		} catch (final RuntimeException e) {
+			logger.error("Licensee initialization failed", e);
+			// if there is a container already, just keep using that
+			if (containers.get() == 0)
+				failure = e;
+			ready.countDown();
+			return false;
+		}
+		version = container.version;
+		containers.incrementAndGet();
+		idle.add(container);
+		ready.countDown();
+		return true;
+	}
 
-		logger.info("Licensee initialization completed in "
-				+ (System.currentTimeMillis() - start) + " ms");
+	/**
+	 * @return version of the Licensee gem, which determines what it detects
+	 *         for a given file. waits for Licensee to be loaded.
+	 */
+	@Override
+	public String getVersion() {
+		awaitReady();
+		return version;
 	}
 
-	public static synchronized LicenseeExtractor getInstance() {
-		if (instance == null)
-			instance = new LicenseeExtractor();
-		return instance;
+	/** @return statistics about the containers and their use */
+	public Stats getStats() {
+		return stats;
 	}
 
 	@Override
 	public List<LicenseFile> detectLicenses(final TransferRepo repo,
 			final List<RepoFile> files) {
-		final List<LicenseFile> licenses = new ArrayList<>();
-		for (final RepoFile file : files)
-			licenses.add(detectLicense(repo, file));
-		return licenses;
+		final Container container = acquire();
+		try {
+			final long start = System.nanoTime();
+			final List<LicenseFile> licenses = new ArrayList<>();
+			for (final RepoFile file : files)
+				licenses.add(container.detectLicense(repo, file));
+			stats.called(files.size(), System.nanoTime() - start);
+			return licenses;
+		} finally {
+			idle.add(container);
+		}
+	}
+
+	private Container acquire() {
+		final long start = System.nanoTime();
+		awaitReady();
+		final Container container;
+		try {
+			container = idle.take();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(
+					"interrupted while waiting for Licensee", e);
+		}
+		stats.waited(System.nanoTime() - start);
+		return container;
+	}
+
+	private void awaitReady() {
+		try {
+			ready.await();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(
+					"interrupted while waiting for Licensee", e);
+		}
+		if (failure != null)
+			throw new IllegalStateException("Licensee failed to initialize",
+					failure);
+	}
+
+	private static class Container {
+		private final ScriptingContainer container;
+		private final Object extractor;
+		private final String version;
+
+		private Container() {
+			logger.info("Licensee initialization started");
+			final long start = System.currentTimeMillis();
+
+			container = new ScriptingContainer(LocalContextScope.SINGLETHREAD);
+			container.setLoadPaths(Arrays.asList(
+					"uri:classloader:/bwfdm/sara/extractor/licensee/ruby/lib",
+					"uri:classloader:/bwfdm/sara/extractor/licensee"));
+			container.runScriptlet("require 'license_extractor'");
+			extractor = container.runScriptlet("LicenseExtractor");
+			version = container.runScriptlet("Licensee::VERSION").toString();
+
+			logger.info("Licensee " + version + " initialization completed in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		}
+
+		private LicenseFile detectLicense(final TransferRepo repo,
+				final RepoFile file) {
+			// results are cached by MetadataExtractor, which calls us only for
+			// files it hasn't seen before
+			final LicenseeFile license = container.callMethod(extractor,
+					"detect_license",
+					new Object[] { repo, Arrays.asList(file) },
+					LicenseeFile.class);
+			if (license == null)
+				return new LicenseFile(file, null, Float.NaN);
+			return new LicenseFile(file, license.getID(), license.getScore());
+		}
 	}
 
-	private LicenseFile detectLicense(final TransferRepo repo,
-			final RepoFile file) {
-		// TODO should probably cache by SHA-1 here!
-		final LicenseeFile license = container.callMethod(extractor,
-				"detect_license", new Object[] { repo, Arrays.asList(file) },
-				LicenseeFile.class);
-		if (license == null)
-			return new LicenseFile(file, null, Float.NaN);
-		return new LicenseFile(file, license.getID(), license.getScore());
+	/**
+	 * Statistics for monitoring whether there are enough containers: time
+	 * spent waiting for a container, including the wait for the first one to
+	 * be loaded, and time spent in Licensee itself.
+	 */
+	public class Stats {
+		private long calls;
+		private long files;
+		private long waitNanos;
+		private long maxWaitNanos;
+		private long callNanos;
+		private long maxCallNanos;
+
+		private synchronized void waited(final long nanos) {
+			calls++;
+			waitNanos += nanos;
+			maxWaitNanos = Math.max(maxWaitNanos, nanos);
+		}
+
+		private synchronized void called(final int count, final long nanos) {
+			files += count;
+			callNanos += nanos;
+			maxCallNanos = Math.max(maxCallNanos, nanos);
+		}
+
+		/** @return number of containers loaded so far */
+		@JsonProperty("containers")
+		public int getContainers() {
+			return containers.get();
+		}
+
+		/** @return number of containers currently not in use */
+		@JsonProperty("idle")
+		public int getIdle() {
+			return idle.size();
+		}
+
+		/** @return number of times a container was used */
+		@JsonProperty("calls")
+		public synchronized long getCalls() {
+			return calls;
+		}
+
+		/** @return number of files passed to Licensee */
+		@JsonProperty("files")
+		public synchronized long getFiles() {
+			return files;
+		}
+
+		/** @return total time spent waiting for a container, in ms */
+		@JsonProperty("wait_ms")
+		public synchronized long getWaitMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(waitNanos);
+		}
+
+		/** @return longest wait for a container, in ms */
+		@JsonProperty("max_wait_ms")
+		public synchronized long getMaxWaitMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
+		}
+
+		/** @return total time spent in Licensee, in ms */
+		@JsonProperty("call_ms")
+		public synchronized long getCallMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(callNanos);
+		}
+
+		/** @return longest time spent in Licensee for a single call, in ms */
+		@JsonProperty("max_call_ms")
+		public synchronized long getMaxCallMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(maxCallNanos);
+		}
 	}
 }
@@ -27,6 +27,24 @@ public interface ArchiveRepo {
 	public ArchiveProject createProject(String id, boolean visible,
 			ArchiveMetadata meta) throws ProjectExistsException;
 
+	/**
+	 * Looks up a project previously created by
+	 * {@link #createProject(String, boolean, ArchiveMetadata)}, to clean up or
+	 * complete it after the push was interrupted by a restart.
+	 * 
+	 * @param id
+	 *            unique name of the project, as passed to
+	 *            {@link #createProject(String, boolean, ArchiveMetadata)}
+	 * @param visible
+	 *            visibility as passed to
+	 *            {@link #createProject(String, boolean, ArchiveMetadata)}
+	 * @return the {@link ArchiveProject}, which is already
+	 *         {@link ArchiveProject#isCommitted() committed} if
+	 *         {@link ArchiveProject#commit()} has completed, or
+	 *         <code>null</code> if the project doesn't exist (anymore)
+	 */
+	public ArchiveProject getProject(String id, boolean visible);
+
 	/**
 	 * Determines the committer identity to be used when SARA commits it
 	 * metadata to the archive repo.
@@ -9,6 +9,9 @@ class GLUserInfo {
 	/** internal user ID (unchangeable) */
 	@JsonProperty("id")
 	String userID;
+	/** user's login name, which is also the name of the user's namespace */
+	@JsonProperty("username")
+	String username;
 	/** user's primary email address (verified and guranteed unique) */
 	@JsonProperty("email")
 	String email;
@@ -19,10 +19,11 @@ public class GitLabArchiveProject implements ArchiveProject {
 
 	GitLabArchiveProject(final GitLabArchiveRESTv4 archive,
 			final AuthenticatedREST authRest, final GLProjectInfo project,
-			final boolean visible) {
+			final boolean visible, final boolean committed) {
 		this.archive = archive;
 		this.project = project;
 		this.visible = visible;
+		this.committed = committed;
 		finalProjectPath = archive.finalNamespace + "/" + project.name;
 		rest = new RESTHelper(authRest,
 				"/projects/" + UrlEncode.encodePathSegment(project.path));
@@ -6,6 +6,8 @@ import java.util.regex.Pattern;
 
 import org.eclipse.jgit.lib.PersonIdent;
 import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
@@ -14,6 +16,7 @@ import bwfdm.sara.auth.AuthenticatedREST;
 import bwfdm.sara.git.ArchiveProject;
 import bwfdm.sara.git.ArchiveRepo;
 import bwfdm.sara.project.ArchiveMetadata;
+import bwfdm.sara.utils.UrlEncode;
 
 public class GitLabArchiveRESTv4 implements ArchiveRepo {
 	// "Name is too long (maximum is 255 characters)"
@@ -129,7 +132,7 @@ public class GitLabArchiveRESTv4 implements ArchiveRepo {
 			name = "\uD83D\uDCBE" + name;
 
 		final Map<String, String> args = new HashMap<>();
-		args.put("path", "p" + id);
+		args.put("path", getProjectName(id));
 		args.put("name", name);
 		args.put("description", meta.description);
 		for (final String feature : UNUSED_FEATURES)
@@ -141,7 +144,44 @@ public class GitLabArchiveRESTv4 implements ArchiveRepo {
 				new ParameterizedTypeReference<GLProjectInfo>() {
 				});
 		return new GitLabArchiveProject(this, authRest, project,
-				visible);
+				visible, false);
+	}
+
+	private static String getProjectName(final String id) {
+		return "p" + id;
+	}
+
+	@Override
+	public ArchiveProject getProject(final String id, final boolean visible) {
+		// uncommitted projects are still in the sara user's namespace
+		final GLUserInfo user = rest.get(rest.uri("/user"),
+				new ParameterizedTypeReference<GLUserInfo>() {
+				});
+		final GLProjectInfo temp = getProjectInfo(
+				user.username + "/" + getProjectName(id));
+		if (temp != null)
+			return new GitLabArchiveProject(this, authRest, temp, visible,
+					false);
+		// if commit() has moved it already, it's in the final namespace
+		final GLProjectInfo committed = getProjectInfo(
+				finalNamespace + "/" + getProjectName(id));
+		if (committed != null)
+			return new GitLabArchiveProject(this, authRest, committed,
+					visible, true);
+		return null;
+	}
+
+	private GLProjectInfo getProjectInfo(final String path) {
+		try {
+			return rest.get(
+					rest.uri("/projects/" + UrlEncode.encodePathSegment(path)),
+					new ParameterizedTypeReference<GLProjectInfo>() {
+					});
+		} catch (final HttpClientErrorException e) {
+			if (e.getStatusCode() == HttpStatus.NOT_FOUND)
+				return null; // project just doesn't exist
+			throw e; // something serious
+		}
 	}
 
 	private String filter(final String raw, final int maxLength) {
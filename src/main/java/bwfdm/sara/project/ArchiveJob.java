@@ -21,6 +21,7 @@ import bwfdm.sara.extractor.MetadataExtractor;
 import bwfdm.sara.git.ArchiveRepoFactory;
 import bwfdm.sara.project.LicensesInfo.LicenseInfo;
 import bwfdm.sara.transfer.TransferRepo;
+import bwfdm.sara.transfer.rewrite.ExcludedFiles;
 
 /** Data class containing all the information needed to archive an item. */
 public class ArchiveJob {
@@ -151,6 +152,15 @@ public class ArchiveJob {
 		return res;
 	}
 
+	/**
+	 * @return the files that the archive will leave out, or <code>null</code>
+	 *         if all files are kept
+	 */
+	@JsonProperty("excluded")
+	public ExcludedFiles getExcludedFiles() {
+		return clone.getExcludedFiles();
+	}
+
 	@JsonProperty("licenses")
 	public List<LicenseInfo> getLicensesPerBranch() {
 		return licensesInfo.branches;
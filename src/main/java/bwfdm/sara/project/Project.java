@@ -1,5 +1,6 @@
 package bwfdm.sara.project;
 
+import java.util.List;
 import java.util.UUID;
 
 import javax.servlet.http.HttpSession;
@@ -16,6 +17,7 @@ import bwfdm.sara.git.GitProject;
 import bwfdm.sara.git.GitRepo;
 import bwfdm.sara.publication.db.PublicationDatabase;
 import bwfdm.sara.transfer.CloneTask;
+import bwfdm.sara.transfer.HistoryEstimator.EstimateStatus;
 import bwfdm.sara.transfer.PushTask;
 import bwfdm.sara.transfer.Task.TaskStatus;
 import bwfdm.sara.transfer.TransferRepo;
@@ -32,7 +34,9 @@ public class Project {
 	private FrontendDatabase db;
 	private GitProject project;
 	private String projectPath;
+	private String taskOwner;
 	private CloneTask clone;
+	private CloneTask superseded;
 	private PushTask push;
 
 	private Project(final String gitRepo, final GitRepo repo,
@@ -74,8 +78,10 @@ public class Project {
 
 	public void initializeProject() {
 		project = repo.getGitProject(projectPath);
+		final String userID = repo.getUserInfo().userID;
 		db = new FrontendDatabase(config.getDatabase(), gitRepo, projectPath,
-				repo.getUserInfo().userID);
+				userID);
+		taskOwner = gitRepo + ":" + userID;
 		// if the project changes, the transferRepo doesn't just become
 		// outdated, it becomes completely invalid, and we'll have to recreate
 		// it completely.
@@ -116,9 +122,26 @@ public class Project {
 
 	public TransferRepo getTransferRepo() {
 		checkHaveTransferRepo();
+		transferRepo.touch();
 		return transferRepo;
 	}
 
+	/**
+	 * Estimates the archive size of the selected refs for every
+	 * {@link RefAction.PublicationMethod}. Works as long as the project has
+	 * been cloned once, even if the selection has changed since; refs that
+	 * haven't been cloned yet are left out. Before that, there is nothing to
+	 * estimate, and the list is empty. The estimate is computed in the
+	 * background, so the first call after a change only reports it pending.
+	 */
+	public EstimateStatus estimateHistory() {
+		if (transferRepo == null || transferRepo.isDisposed())
+			return EstimateStatus.NONE;
+		transferRepo.touch();
+		return transferRepo.getHistoryEstimator().estimate(db.getRefActions(),
+				config.getBlobFilter());
+	}
+
 	public MetadataExtractor getMetadataExtractor() {
 		checkHaveTransferRepo();
 		return metadataExtractor;
@@ -126,13 +149,16 @@ public class Project {
 
 	public CloneTask createTransferRepo() {
 		if (transferRepo == null || transferRepo.isDisposed()
-				|| clone.isCancelled()) {
+				|| (clone != null && clone.isCancelled())) {
 			// TransferRepo is invalid or nonexistent and cannot be reused.
 			// create a new one.
-			transferRepo = new TransferRepo(config.getRandomTempDir());
+			transferRepo = config.getTempStore().createTransferRepo(
+					config.getMirrorStore().lease(gitRepo, projectPath));
 			metadataExtractor = new MetadataExtractor(transferRepo, repo,
-					project);
+					project, config.getLicenseExtractor(),
+					config.getLicenseCache());
 			clone = null;
+			superseded = null;
 		}
 
 		if (clone == null || clone.isDone()) {
@@ -140,9 +166,13 @@ public class Project {
 			// perform another clone in the same directory. the repo might have
 			// changed and the user almost certainly wants to see this change in
 			// the archived data.
+			if (transferRepo.isUpToDate())
+				transferRepo.markOutdated();
 			clone = new CloneTask(transferRepo, metadataExtractor,
-					getGitProject(), db.getRefActions());
-			clone.start();
+					getGitProject(), db.getRefActions(),
+					config.getBlobFilter(), superseded);
+			superseded = null;
+			clone.start(config.getTaskScheduler(), taskOwner);
 		}
 		return clone;
 	}
@@ -151,30 +181,44 @@ public class Project {
 	 * Called when the list of branches has changed, ie. after
 	 * {@link FrontendDatabase#setRefAction(Ref, bwfdm.sara.project.RefAction.PublicationMethod, String)}
 	 * . Needs to be called only once for multiple changes.
+	 * <p>
+	 * Refs that have been fetched already are reused by the next clone; only
+	 * newly selected refs are fetched from the source repository.
+	 */
+	public void invalidateRefSelection() {
+		invalidateTransferRepo(true);
+	}
+
+	/**
+	 * Called when the contents of the source repository may have changed, ie.
+	 * after sending the user off to edit a file. The next clone will fetch all
+	 * refs again, but still reuses the objects fetched so far.
 	 */
 	public void invalidateTransferRepo() {
+		invalidateTransferRepo(false);
+	}
+
+	private void invalidateTransferRepo(final boolean keepFetchedRefs) {
 		if (clone != null && !clone.isDone()) {
 			// clone is still running, but will be outdated once it finishes.
-			// for now, just zap the TransferRepo completely. that way, we don't
-			// have to worry about a previous clone still shutting down when the
-			// next one starts
-			// TODO we should try to keep at least the objects, they're big
-			// this may not actually be necessary but the background thread may
-			// still be removing the old directory. some steps block for several
-			// seconds, so this is not a difficult race to trigger at all.
-			clone.cancel();
-			transferRepo = null;
-			metadataExtractor = null;
+			// let it finish fetching (so the objects don't go to waste) but
+			// stop it before it does anything else. the next clone waits for
+			// it before touching the TransferRepo.
+			clone.supersede(keepFetchedRefs);
+			superseded = clone;
 			clone = null;
-			return;
 		}
 
-		if (transferRepo != null)
-			// CloneTask has finished, so the TransferRepo is outdated but
-			// consistent. we can just "git pull" it.
+		if (transferRepo == null)
+			// the user has never performed a clone. nothing to do in that
+			// case.
+			return;
+		// the TransferRepo is outdated but consistent. we can just "git pull"
+		// it.
+		if (keepFetchedRefs)
+			transferRepo.markSelectionOutdated();
+		else
 			transferRepo.markOutdated();
-		// or the user has never performed a clone anyway. nothing to do in that
-		// case.
 	}
 
 	/**
@@ -188,6 +232,9 @@ public class Project {
 		if (clone != null)
 			clone.cancel();
 		clone = null;
+		if (superseded != null)
+			superseded.cancel();
+		superseded = null;
 		disposeTransferRepo();
 		transferRepo = null;
 		metadataExtractor = null;
@@ -203,6 +250,10 @@ public class Project {
 			transferRepo.dispose();
 	}
 
+	public CloneTask getCloneTask() {
+		return clone;
+	}
+
 	public TaskStatus getInitStatus() {
 		if (clone == null)
 			return null;
@@ -220,9 +271,10 @@ public class Project {
 			final ArchiveRepo archive = config.getConfigDatabase()
 					.newGitArchive(job.archive);
 			final PublicationDatabase pubDB = config.getPublicationDatabase();
-			push = new PushTask(job, archive, pubDB);
+			push = new PushTask(job, archive, pubDB,
+					config.getExportStore());
 		}
-		push.start();
+		push.start(config.getTaskScheduler(), taskOwner);
 	}
 
 	public ArchiveJob getArchiveJob() {
@@ -32,7 +32,13 @@ public class RefAction {
 	}
 
 	public enum PublicationMethod {
-		FULL, ABBREV, LATEST
+		FULL, ABBREV, LATEST,
+		/** heads, tags and the last commit of each day. */
+		DAILY,
+		/** heads, tags and the last commit of each week. */
+		WEEKLY,
+		/** heads, tags and the last commit of each month. */
+		MONTHLY
 	}
 
 	@Override
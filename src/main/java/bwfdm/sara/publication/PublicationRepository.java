@@ -18,6 +18,9 @@ public interface PublicationRepository {
 		// link for submitters to edit their items metadata
 		// may be "null" which means they can't make changes afterwards!
 		public String edit_ref = null;
+		// link for adding files to the item; may be "null" if the IR doesn't
+		// support that
+		public String media_ref = null;
 		// true: the user will edit their submission in a subsequent step
 		// login in the IR is required
 		// false: the user submits the metadata 'as is' to the IR
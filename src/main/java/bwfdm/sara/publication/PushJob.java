@@ -0,0 +1,60 @@
+package bwfdm.sara.publication;
+
+import java.util.Date;
+import java.util.UUID;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import bwfdm.sara.publication.db.DAO;
+import bwfdm.sara.publication.db.DatabaseField;
+import bwfdm.sara.publication.db.PrimaryKey;
+import bwfdm.sara.publication.db.TableName;
+
+/**
+ * State of a running push, so that pushes interrupted by a restart can be
+ * cleaned up or completed. The row is deleted once the push has either been
+ * committed or rolled back.
+ */
+@TableName("push_job")
+public class PushJob implements DAO {
+	@PrimaryKey
+	public final UUID uuid;
+
+	// what to roll back
+	@DatabaseField
+	public UUID archive_uuid;
+	@DatabaseField
+	public String project_id;
+	@DatabaseField
+	public boolean is_public;
+
+	// progress
+	@DatabaseField
+	public String state;
+	@DatabaseField
+	public String pushed_refs;
+	@DatabaseField
+	public UUID item_uuid;
+
+	// state tracking
+	@DatabaseField
+	public Date date_created;
+	@DatabaseField
+	public Date date_last_modified;
+
+	public PushJob(@JsonProperty("uuid") UUID uuid) {
+		this.uuid = uuid;
+	}
+
+	public PushJob() {
+		uuid = null;
+	}
+
+	public PushJobState getState() {
+		return PushJobState.valueOf(state);
+	}
+
+	public void setState(final PushJobState state) {
+		this.state = state.name();
+	}
+}
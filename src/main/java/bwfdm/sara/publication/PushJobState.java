@@ -0,0 +1,21 @@
+package bwfdm.sara.publication;
+
+/**
+ * Progress of a {@link PushJob}, in the order the states are reached.
+ */
+public enum PushJobState {
+	/**
+	 * Project ID has been chosen, but the project may or may not have been
+	 * created in the archive yet.
+	 */
+	STARTED,
+	/** Project has been created in the archive, but is still empty. */
+	CREATED,
+	/** All refs have been pushed to the archive project. */
+	PUSHED,
+	/**
+	 * Item has been created in the SARA-service database. The archive
+	 * project just needs to be moved to permanent storage.
+	 */
+	RECORDED;
+}
@@ -26,6 +26,8 @@ import bwfdm.sara.publication.Item;
 import bwfdm.sara.publication.ItemAuthor;
 import bwfdm.sara.publication.PublicationRepository;
 import bwfdm.sara.publication.PublicationRepositoryFactory;
+import bwfdm.sara.publication.PushJob;
+import bwfdm.sara.publication.PushJobState;
 import bwfdm.sara.publication.Repository;
 
 public class PublicationDatabase {
@@ -267,6 +269,33 @@ public class PublicationDatabase {
 		});
 	}
 
+	/**
+	 * Inserts an item and marks the {@link PushJob} that created it as
+	 * {@link PushJobState#RECORDED} in a single transaction, so that a restart
+	 * can never see the item without the job pointing to it. If the
+	 * transaction fails, the job is left as it was.
+	 */
+	public Item insert(final Item item, final PushJob job) {
+		final String state = job.state;
+		final UUID itemUUID = job.item_uuid;
+		try {
+			return transaction.execute(new TransactionCallback<Item>() {
+				@Override
+				public Item doInTransaction(final TransactionStatus status) {
+					final Item i = insertItem(item);
+					job.item_uuid = i.uuid;
+					job.setState(PushJobState.RECORDED);
+					updateInDB(job);
+					return i;
+				}
+			});
+		} catch (final RuntimeException e) {
+			job.state = state;
+			job.item_uuid = itemUUID;
+			throw e;
+		}
+	}
+
 	private Item insertItem(final Item item) {
 		final Item i = insertInDB(item);
 		int seq = 0;
@@ -3,6 +3,8 @@ package bwfdm.sara.publication.dspace;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -43,6 +45,7 @@ import bwfdm.sara.publication.dspace.dto.v6.CollectionObject;
 import bwfdm.sara.publication.dspace.dto.v6.HierarchyObject;
 import bwfdm.sara.utils.JsonUtils;
 import bwfdm.sara.utils.WebUtils;
+import bwfdm.sara.transfer.ExportStore;
 
 public class DSpace_v6 implements PublicationRepository {
 	protected static final Logger logger = LoggerFactory
@@ -355,23 +358,53 @@ public class DSpace_v6 implements PublicationRepository {
 		String mimeFormat = "application/atom+xml";
 		String packageFormat = UriRegistry.PACKAGE_BINARY;
 
-		// TODO do some zip file upload handling magic...
-		if (limit_upload_size == 0) {
-			// TODO don't upload no file
-			logger.info("ZIP file deposit disabled");
-		} else {
-			// TODO
-			// 1)check whether ZIP file has a size<=limit
-			// if yes: upload file
-			// if no: don't upload no file
-			// logger.info("File size limit okay - ZIP file will be
-			// deposited!");
-			logger.info(
-					"File size limit exceeded - ZIP file will not be deposited!");
+		File file = fileFullPath;
+		if (file != null) {
+			if (limit_upload_size == 0) {
+				logger.info("ZIP file deposit disabled");
+				file = null;
+			} else if (file.length() > limit_upload_size) {
+				logger.info(
+						"File size limit exceeded - ZIP file will not be deposited!");
+				file = null;
+			} else
+				logger.info("File size limit okay - ZIP file will be deposited!");
+		}
+
+		// multipart is not supported, so deposit the metadata first and then
+		// add the file to the item just created
+		final SubmissionInfo submissionInfo = publishElement(userLogin,
+				collectionURL, mimeFormat, packageFormat, null, metadataMap);
+		if (submissionInfo != null && file != null)
+			addFile(userLogin, submissionInfo, file);
+		return submissionInfo;
+	}
+
+	private void addFile(final String userLogin,
+			final SubmissionInfo submissionInfo, final File file) {
+		if (submissionInfo.media_ref == null) {
+			logger.error("No edit-media link for item "
+					+ submissionInfo.item_ref + " - ZIP file not deposited!");
+			return;
 		}
 
-		return publishElement(userLogin, collectionURL, mimeFormat,
-				packageFormat, fileFullPath, metadataMap);
+		final Deposit deposit = new Deposit();
+		try (final InputStream in = new FileInputStream(file)) {
+			deposit.setFile(in);
+			deposit.setFilename(file.getName());
+			deposit.setMimeType(ExportStore.getFormat(file).mimeType);
+			deposit.setPackaging(UriRegistry.PACKAGE_BINARY);
+			sword_client.addToMediaResource(submissionInfo.media_ref, deposit,
+					new AuthCredentials(sword_user, sword_pwd, userLogin));
+		} catch (IOException e) {
+			logger.error("Exception by accessing a file: "
+					+ e.getClass().getSimpleName() + ": " + e.getMessage());
+		} catch (SWORDClientException | SWORDError
+				| ProtocolViolationException e) {
+			// metadata is already deposited; the item just lacks the file
+			logger.error("Exception by adding file: "
+					+ e.getClass().getSimpleName() + ": " + e.getMessage());
+		}
 	}
 
 	private SubmissionInfo publishElement(String userLogin,
@@ -450,6 +483,10 @@ public class DSpace_v6 implements PublicationRepository {
 			if (receipt.getSplashPageLink() != null) {
 				submissionInfo.edit_ref = receipt.getSplashPageLink().getHref();
 			}
+			if (receipt.getEditMediaLink() != null) {
+				submissionInfo.media_ref = receipt.getEditMediaLink()
+						.getHref();
+			}
 			submissionInfo.item_ref = parts[parts.length - 1];
 			return submissionInfo;
 
@@ -3,8 +3,13 @@ package bwfdm.sara.transfer;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.eclipse.jgit.api.FetchCommand;
 import org.eclipse.jgit.api.Git;
@@ -13,12 +18,12 @@ import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.lib.ConfigConstants;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
-import org.eclipse.jgit.lib.RefUpdate;
-import org.eclipse.jgit.lib.RefUpdate.Result;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.StoredConfig;
 import org.eclipse.jgit.lib.SubmoduleConfig.FetchRecurseSubmodulesMode;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.RemoteConfig;
 import org.eclipse.jgit.transport.TagOpt;
@@ -29,35 +34,67 @@ import bwfdm.sara.git.GitProject;
 import bwfdm.sara.project.Ref;
 import bwfdm.sara.project.RefAction;
 import bwfdm.sara.project.RefAction.PublicationMethod;
+import bwfdm.sara.transfer.MirrorStore.Mirror;
+import bwfdm.sara.transfer.rewrite.BlobFilter;
 import bwfdm.sara.transfer.rewrite.HistoryRewriter;
 
 public class CloneTask extends Task {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
 	private static final String EXTRACT_META = "Extracting metadata";
 	private static final String ABBREV_HISTORY = "Abbreviating history";
 	private static final String INIT_REPO = "Initializing temporary repository";
 	private final MetadataExtractor extractor;
 	private final GitProject project;
 	private final List<RefAction> actions;
+	private final BlobFilter filter;
 	private final List<Ref> refs;
 	private final File root;
 	private final TransferRepo transferRepo;
 	private final boolean abbrev;
+	private final boolean shallow;
+	private final List<RefSpec> spec;
+	private volatile CloneTask previous;
+	private boolean superseded, keepFetchedRefs;
+	private boolean inUse;
 	private Git git;
 	private Repository repo;
 
+	/**
+	 * @param transferRepo
+	 *            the {@link TransferRepo} to clone into. if it has been cloned
+	 *            before, refs that were already fetched are reused.
+	 * @param filter
+	 *            {@link BlobFilter} for files to leave out of the archive
+	 * @param previous
+	 *            a {@link #supersede(boolean) superseded} {@link CloneTask}
+	 *            still working on the same {@link TransferRepo}, or
+	 *            <code>null</code>. the new task waits for it to finish.
+	 */
 	public CloneTask(final TransferRepo transferRepo,
 			final MetadataExtractor extractor, final GitProject project,
-			final List<RefAction> actions) {
+			final List<RefAction> actions, final BlobFilter filter,
+			final CloneTask previous) {
 		this.transferRepo = transferRepo;
+		// protect the repo from eviction while we're queued, too
+		transferRepo.beginUse();
+		inUse = true;
+		this.previous = previous;
 		this.extractor = extractor;
 		this.project = project;
 		this.actions = actions;
+		this.filter = filter;
 		refs = new ArrayList<>(actions.size());
-		boolean abbrev = false;
+		// filtering files changes the trees, so even full history needs to
+		// be rewritten
+		boolean abbrev = !filter.isEmpty();
+		boolean history = false;
 		for (final RefAction a : actions) {
 			refs.add(a.ref);
 			if (a.publicationMethod != PublicationMethod.FULL)
 				abbrev = true;
+			if (a.publicationMethod != PublicationMethod.LATEST
+					|| !a.firstCommit.equals(RefAction.HEAD_COMMIT))
+				history = true;
 		}
 		root = transferRepo.getRoot();
 		declareSteps(INIT_REPO);
@@ -65,28 +102,122 @@ public class CloneTask extends Task {
 			declareSteps(ABBREV_HISTORY);
 		declareSteps(EXTRACT_META);
 		this.abbrev = abbrev;
+		// if only the head commits are published, fetching their history is
+		// a waste of time and disk space
+		shallow = !history;
+
+		// only fetch branches and tags that we actually want.
+		// due to limitations in the git clone protocol, we have to always
+		// fetch the HEAD, even if we actually want to start archiving a few
+		// commits back.
+		spec = new ArrayList<RefSpec>(refs.size());
+		for (final Ref r : refs) {
+			final String path = Constants.R_REFS + r.path;
+			spec.add(new RefSpec().setSourceDestination(path, path)
+					.setForceUpdate(true));
+		}
+	}
+
+	/**
+	 * Stops the task once it has finished fetching, but keeps the
+	 * {@link TransferRepo}. This avoids wasting the fetch when the selection
+	 * changes while the clone is still running; the next {@link CloneTask}
+	 * will reuse what has been fetched so far.
+	 *
+	 * @param keepFetchedRefs
+	 *            <code>true</code> if the next {@link CloneTask} can reuse the
+	 *            fetched refs, <code>false</code> if it has to fetch them
+	 *            again because they may have changed in the meantime
+	 */
+	public synchronized void supersede(final boolean keepFetchedRefs) {
+		superseded = true;
+		this.keepFetchedRefs = keepFetchedRefs;
+	}
+
+	private synchronized boolean isSuperseded() {
+		return superseded;
+	}
+
+	@Override
+	protected boolean isReady() {
+		// the previous task is still using the TransferRepo. it stops right
+		// after fetching, so this doesn't usually take long.
+		return previous == null || previous.isFinished();
+	}
+
+	private void endUse() {
+		synchronized (this) {
+			if (!inUse)
+				return;
+			inUse = false;
+		}
+		transferRepo.endUse();
 	}
 
 	@Override
 	protected void cleanup() {
+		if (previous != null)
+			previous.cancel();
+		endUse();
 		transferRepo.dispose();
 		git = null;
 		repo = null;
 	}
 
 	@Override
-	protected void execute()
-			throws GitAPIException, URISyntaxException, IOException {
+	protected void execute() throws GitAPIException, URISyntaxException,
+			IOException, InterruptedException {
+		try {
+			cloneRepo();
+		} finally {
+			endUse();
+		}
+	}
+
+	private void cloneRepo() throws GitAPIException, URISyntaxException,
+			IOException, InterruptedException {
+		if (isSuperseded())
+			return; // superseded before it even started
+		if (previous != null) {
+			// the scheduler only starts us once the previous task has
+			// finished, so this doesn't actually wait
+			previous.waitUntilDone();
+			if (previous.isCancelled())
+				throw new IOException("previous clone failed",
+						previous.getException());
+			previous = null;
+		}
+
 		beginTask(INIT_REPO, 1);
 		initRepo();
-		deleteAllTags();
-		fetchHeads();
+		deleteAllTags(repo);
+		// refs fetched the other way cannot be reused: shallow ones lack the
+		// history in the mirror, and complete ones would make the shallow
+		// repo walk their entire history.
+		final List<RefSpec> missing = transferRepo.isShallow() == shallow
+				? restoreFetchedRefs() : spec;
+		if (!missing.isEmpty())
+			fetchHeads(missing);
+		updateCommitGraph();
+		pruneTags();
+		recordFetchedRefs();
+		if (isSuperseded())
+			return;
 		pushBackHeads();
 
 		if (abbrev)
 			rewriteHistory();
+		else
+			transferRepo.setExcludedFiles(null);
 
-		transferRepo.setRepo(repo);
+		synchronized (this) {
+			// Project calls supersede() before marking the TransferRepo
+			// outdated. checking under the same lock thus guarantees that a
+			// superseded task never marks it up to date again afterwards.
+			if (superseded)
+				return;
+			transferRepo.setRepo(repo);
+		}
 		extractMetaData();
 		endTask();
 	}
@@ -101,16 +232,8 @@ public class CloneTask extends Task {
 		add.setUri(new URIish(project.getCloneURI()));
 		final RemoteConfig remote = add.call();
 		// change remote config to only fetch branches and tags that we actually
-		// want.
-		// due to limitations in the git clone protocol, we have to always
-		// fetch the HEAD, even if we actually want to start archiving a few
-		// commits back.
-		final ArrayList<RefSpec> spec = new ArrayList<RefSpec>(actions.size());
-		for (final Ref r : refs) {
-			final String path = Constants.R_REFS + r.path;
-			spec.add(new RefSpec().setSourceDestination(path, path)
-					.setForceUpdate(true));
-		}
+		// want. we don't actually fetch from there (see fetchHeads()), but it
+		// documents where the repo came from.
 		remote.setFetchRefSpecs(spec);
 		final StoredConfig config = repo.getConfig();
 		remote.update(config);
@@ -118,6 +241,16 @@ public class CloneTask extends Task {
 				ConfigConstants.CONFIG_KEY_LOGALLREFUPDATES, true);
 		config.save();
 
+		// borrow all objects from the mirror, so that fetching from the mirror
+		// doesn't have to copy them. the object database loads alternates only
+		// once, so close it to make it pick up the new ones.
+		final File alternates = new File(root, "objects/info/alternates");
+		alternates.getParentFile().mkdirs(); // error caught by write below
+		Files.write(alternates.toPath(),
+				(transferRepo.getMirror().getObjectDirectory()
+						.getAbsolutePath() + "\n").getBytes(UTF8));
+		repo.getObjectDatabase().close();
+
 		// deliberately not calling endTask() here: JGit will take a while until
 		// it starts reporting the first step of the actual clone, and having a
 		// checkmark sitting there with nothing happening is confusing.
@@ -126,7 +259,8 @@ public class CloneTask extends Task {
 		update(1);
 	}
 
-	private void deleteAllTags() throws IOException {
+	private static void deleteAllTags(final Repository repo)
+			throws IOException {
 		// this method deletes all tags so that a subsequent fetchHeads() will
 		// pick up on tags that have been deleted remotely. if we wouldn't
 		// delete them here, they would stick around – which is bad since we're
@@ -137,22 +271,204 @@ public class CloneTask extends Task {
 		// a single packfile, so GC will try to avoid repacking that. also, tags
 		// are usually along the history, and thus their objects are still
 		// reachable anyway.
-		for (final org.eclipse.jgit.lib.Ref tag : repo.getTags().values()) {
-			final RefUpdate update = repo.updateRef(tag.getName());
-			update.setCheckConflicting(false);
-			update.setForceUpdate(true);
-			// it would be nice if that would actually log the tag update,
-			// keeping the objects reachable. unfortunately it doesn't, neither
-			// in jgit nor in cgit. it doesn't harm, though, so we might as well
-			// keep it in.
-			update.setRefLogMessage("SARA pre-commit cleanup", true);
-			update.delete();
-			checkUpdate(update);
+		// it would be nice if deleting would log the tag update, keeping the
+		// objects reachable. unfortunately it doesn't, neither in jgit nor in
+		// cgit.
+		final RefBatch batch = new RefBatch(repo, "SARA pre-commit cleanup");
+		for (final org.eclipse.jgit.lib.Ref tag : repo.getTags().values())
+			batch.delete(tag.getName());
+		// the mirror can have tens of thousands of packed tags, so this has to
+		// rewrite packed-refs only once for all of them
+		batch.execute();
+	}
+
+	/**
+	 * Restores the refs that a previous clone has already fetched, so that
+	 * they don't have to be fetched again. Also restores all tags;
+	 * {@link #pruneTags()} removes those that no longer belong.
+	 *
+	 * @return {@link RefSpec RefSpecs} for the refs that still need fetching
+	 */
+	private List<RefSpec> restoreFetchedRefs() throws IOException {
+		final Map<String, ObjectId> fetched = transferRepo.getFetchedRefs();
+		if (fetched == null)
+			return spec;
+
+		final List<RefSpec> missing = new ArrayList<>();
+		for (int i = 0; i < refs.size(); i++)
+			if (!fetched.containsKey(Constants.R_REFS + refs.get(i).path))
+				missing.add(spec.get(i));
+		// tags have been deleted, so they are recreated here
+		final RefBatch batch = new RefBatch(repo, "SARA restore");
+		for (final Map.Entry<String, ObjectId> e : fetched.entrySet())
+			if (e.getKey().startsWith(Constants.R_TAGS))
+				batch.update(e.getKey(), e.getValue());
+		for (final Ref r : refs) {
+			final String path = Constants.R_REFS + r.path;
+			final ObjectId id = fetched.get(path);
+			if (id != null)
+				batch.update(path, id);
 		}
+		batch.execute();
+		return missing;
+	}
+
+	/**
+	 * Adds the history of all selected refs to the mirror's
+	 * {@link CommitGraph}. Only commits fetched for the first time are
+	 * actually parsed.
+	 */
+	private void updateCommitGraph() throws IOException {
+		final List<ObjectId> heads = new ArrayList<>(refs.size());
+		for (final Ref r : refs)
+			heads.add(TransferRepo.resolve(repo, Constants.R_REFS + r.path));
+		if (transferRepo.isShallow())
+			// the mirror's graph is persistent and shared, so it must never
+			// see commits whose parents have been cut off
+			transferRepo.setCommitGraph(CommitGraph.EMPTY.extend(repo,
+					heads));
+		else
+			transferRepo.setCommitGraph(transferRepo.getMirror()
+					.updateCommitGraph(repo, heads));
 	}
 
-	private void fetchHeads() throws GitAPIException {
-		final FetchCommand fetch = git.fetch();
+	/**
+	 * Deletes all tags that aren't along the history of a selected ref.
+	 * {@link TagOpt#AUTO_FOLLOW} follows every tag whose target is present
+	 * locally, and with the mirror as an alternate, that includes all history
+	 * that any clone of the project has ever fetched.
+	 */
+	private void pruneTags() throws IOException {
+		if (repo.getTags().isEmpty())
+			return; // avoid walking the history for nothing
+		final CommitGraph graph = transferRepo.getCommitGraph();
+		final int[] heads = new int[refs.size()];
+		for (int i = 0; i < heads.length; i++)
+			heads[i] = graph.find(TransferRepo.resolve(repo,
+					Constants.R_REFS + refs.get(i).path));
+		// marks the entire history, so we can check tags with just a lookup
+		final BitSet history = graph.getReachable(heads);
+
+		final RefBatch batch = new RefBatch(repo, "SARA prune");
+		try (final RevWalk walk = new RevWalk(repo)) {
+			for (final org.eclipse.jgit.lib.Ref tag : repo.getTags()
+					.values()) {
+				final RevObject target = walk
+						.peel(walk.parseAny(tag.getObjectId()));
+				final int pos = graph.find(target);
+				if (pos < 0 || !history.get(pos))
+					batch.delete(tag.getName());
+			}
+		}
+		batch.execute();
+	}
+
+	/**
+	 * Records the state of all refs as fetched, for use by the next
+	 * {@link CloneTask} on the same {@link TransferRepo}. Refs that are no
+	 * longer selected are kept as well, in case the user selects them again.
+	 */
+	private void recordFetchedRefs() throws IOException {
+		final Map<String, ObjectId> fetched = new HashMap<>();
+		final Map<String, ObjectId> old = transferRepo.getFetchedRefs();
+		if (old != null)
+			fetched.putAll(old);
+		for (final Ref r : refs) {
+			final String path = Constants.R_REFS + r.path;
+			fetched.put(path, repo.exactRef(path).getObjectId());
+		}
+		for (final org.eclipse.jgit.lib.Ref tag : repo.getTags().values())
+			fetched.put(tag.getName(), tag.getObjectId());
+
+		synchronized (this) {
+			if (!superseded || keepFetchedRefs)
+				transferRepo.setFetchedRefs(fetched);
+		}
+	}
+
+	private void fetchHeads(final List<RefSpec> spec)
+			throws GitAPIException, IOException, InterruptedException {
+		if (shallow && fetchShallow(spec))
+			return;
+		// the objects end up in the mirror, so the repo is complete again
+		transferRepo.clearShallow();
+
+		// the mirror is shared with all other clones of the same project, so
+		// we have to lock it for the entire fetch: others would otherwise
+		// change its refs while we're copying them.
+		final Mirror mirror = transferRepo.getMirror();
+		final List<String> refs = new ArrayList<>(spec.size());
+		for (final RefSpec s : spec)
+			refs.add(s.getSource());
+		final long requested = System.currentTimeMillis();
+		final Git mirrorGit = mirror.lock();
+		try {
+			final Repository mirrorRepo = mirrorGit.getRepository();
+			// if another clone of the same project has fetched the same refs
+			// while we were waiting for the lock, the mirror is as fresh as
+			// our own fetch would make it. this avoids a burst of identical
+			// fetches when a whole course archives the same project at once.
+			if (mirror.hasFetchedSince(requested, refs, true))
+				logger.info("reusing concurrent fetch of " + refs + " from "
+						+ project.getCloneURI());
+			else {
+				// in the mirror, tags need to be deleted as well to pick up
+				// on deleted tags, so that AUTO_FOLLOW doesn't pick them up
+				// below
+				deleteAllTags(mirrorRepo);
+				fetchIntoMirror(mirrorGit, spec);
+				mirror.recordFetch(refs, true);
+			}
+
+			// all objects are in the mirror now, and thus also in the
+			// TransferRepo via alternates. this fetch therefore just copies
+			// the refs.
+			final FetchCommand fetch = git.fetch();
+			fetch.setRemote(mirrorRepo.getDirectory().getAbsolutePath());
+			fetch.setRefSpecs(spec);
+			fetch.setRecurseSubmodules(FetchRecurseSubmodulesMode.NO);
+			fetch.setTagOpt(TagOpt.AUTO_FOLLOW);
+			fetch.call();
+		} finally {
+			mirrorGit.close();
+			mirror.unlock();
+		}
+	}
+
+	/**
+	 * Fetches only the head commits, directly into the {@link TransferRepo}.
+	 * The mirror has to keep complete history for all other clones, and JGit
+	 * couldn't fetch into it correctly anymore once it is shallow.
+	 *
+	 * @return <code>false</code> if the shallow fetch isn't possible, and the
+	 *         complete history has to be fetched instead
+	 */
+	private boolean fetchShallow(final List<RefSpec> spec) {
+		final String uri = project.getCloneURI();
+		if (!ShallowFetchCommand.isSupported(uri))
+			return false;
+
+		final ShallowFetchCommand fetch = new ShallowFetchCommand(repo);
+		fetch.setRemote(uri);
+		fetch.setRefSpecs(spec);
+		project.enableClone(true);
+		try {
+			project.setCredentials(fetch);
+			fetch.call();
+			return true;
+		} catch (final GitAPIException e) {
+			logger.warn("shallow fetch failed, fetching complete history", e);
+			return false;
+		} finally {
+			project.enableClone(false);
+		}
+	}
+
+	private void fetchIntoMirror(final Git mirrorGit,
+			final List<RefSpec> spec) throws GitAPIException {
+		final FetchCommand fetch = mirrorGit.fetch();
+		fetch.setRemote(project.getCloneURI());
+		fetch.setRefSpecs(spec);
 		// to guard against corruption
 		fetch.setCheckFetchedObjects(true);
 		// TODO should we download submodules as well? if so, where do they go??
@@ -185,6 +501,11 @@ public class CloneTask extends Task {
 			return; // nothing to do
 
 		beginTask("Rewinding branches", pushBacks);
+		// log ref update to keep the old objects around. this can make
+		// re-cloning the repo much faster because less objects have to be
+		// transferred.
+		// this silently does nothing for tags.
+		final RefBatch batch = new RefBatch(repo, "SARA rewind");
 		for (final RefAction e : actions) {
 			if (e.firstCommit.equals(RefAction.HEAD_COMMIT))
 				continue;
@@ -198,86 +519,80 @@ public class CloneTask extends Task {
 			// - people who do probably don't push them backwards
 			// - pointing signed annotated tags at a different commit would
 			//   invalidate the signature so isn't advisable anyway
-			final RefUpdate update = repo
-					.updateRef(Constants.R_REFS + e.ref.path);
-			update.setNewObjectId(ObjectId.fromString(e.firstCommit));
-			update.setCheckConflicting(false);
-			// log ref update to keep the old objects around. this can make
-			// re-cloning the repo much faster because less objects have to be
-			// transferred.
-			// this silently does nothing for tags.
-			update.setRefLogMessage("SARA rewind", true);
-			update.forceUpdate();
-			checkUpdate(update);
+			final String path = Constants.R_REFS + e.ref.path;
+			final ObjectId first = ObjectId.fromString(e.firstCommit);
+			// otherwise the archive would contain some arbitrary commit that
+			// happens to be in the mirror
+			if (!transferRepo.getCommitGraph().isAncestor(first,
+					TransferRepo.resolve(repo, path)))
+				throw new IOException("commit " + e.firstCommit
+						+ " is not in the history of " + e.ref.path);
+			batch.update(path, first);
 			update(1);
 		}
+		batch.execute();
 	}
 
 	private void rewriteHistory() throws IOException {
-		final HistoryRewriter rewriter = new HistoryRewriter(repo);
+		// rewriting reuses the results of earlier clones of the project, so
+		// re-archiving only has to rewrite the new commits
+		// without parents, shallow commits rewrite differently, so their
+		// results must not end up in the store
+		try (final HistoryRewriter rewriter = transferRepo.isShallow()
+				? new HistoryRewriter(repo)
+				: new HistoryRewriter(repo,
+						transferRepo.getMirror().getRewriteStore())) {
+			rewriteHistory(rewriter);
+		}
+	}
+
+	private void rewriteHistory(final HistoryRewriter rewriter)
+			throws IOException {
 		for (final RefAction action : actions)
 			rewriter.addHead(Constants.R_REFS + action.ref.path,
 					action.publicationMethod);
 
+		rewriter.setBlobFilter(filter);
+		// large results spill into the transfer repo, which is deleted along
+		// with them anyway
+		rewriter.setMemoryBudget(transferRepo.getMemoryBudget(),
+				transferRepo.getRoot());
+		rewriter.setParallel(transferRepo.getCommitGraph(), Runtime
+				.getRuntime().availableProcessors());
+
 		beginTask(ABBREV_HISTORY, rewriter.getTotalSteps());
 		rewriter.execute(this);
+		transferRepo.setExcludedFiles(filter.isEmpty() ? null
+				: rewriter.getExcludedFiles());
 
+		// log ref update to keep the old objects around. this can make
+		// re-cloning the repo much faster because less objects have to be
+		// transferred.
+		// this doesn't work for tags, but tags should be along the history.
+		// also, the objects will stick around anyway, unless the GC happens
+		// to run in between...
+		final RefBatch batch = new RefBatch(repo, "SARA rewrite");
 		for (final RefAction action : actions) {
 			final String refPath = Constants.R_REFS + action.ref.path;
 			if (rewriter.isUnchanged(refPath))
 				continue;
 
-			final RefUpdate update = repo
-					.updateRef(Constants.R_REFS + action.ref.path);
-			update.setCheckConflicting(false);
-			update.setForceUpdate(true);
-			// log ref update to keep the old objects around. this can make
-			// re-cloning the repo much faster because less objects have to be
-			// transferred.
-			// this doesn't work for tags, but tags should be along the history.
-			// also, the objects will stick around anyway, unless the GC happens
-			// to run in between...
-			update.setRefLogMessage("SARA rewrite", true);
-
 			final RevCommit newCommit = rewriter.getRewrittenCommit(refPath);
-			if (newCommit != null) {
-				update.setNewObjectId(newCommit);
-				update.update();
-			} else
-				update.delete();
-			checkUpdate(update);
+			if (newCommit != null)
+				batch.update(refPath, newCommit);
+			else
+				batch.delete(refPath);
 		}
-	}
-
-	static void checkUpdate(RefUpdate update) throws IOException {
-		final Result res = update.getResult();
-		switch (res) {
-		case NO_CHANGE:
-		case FAST_FORWARD:
-		case FORCED:
-			return;
-		case NEW: // impossible if not creating new refs
-		case RENAMED: // impossible if not renaming
-		case REJECTED: // impossible if update forced
-		case REJECTED_CURRENT_BRANCH: // impossible in bare repo
-		case NOT_ATTEMPTED: // impossible if update() / delete() ever called
-			throw new IllegalStateException(
-					"'impossible' ref update/delete result " + res
-							+ " updating " + update.getName());
-		case IO_FAILURE:
-		case LOCK_FAILURE:
-			throw new IOException(
-					"IO error " + res + " updating " + update.getName());
-		}
-		throw new UnsupportedOperationException(
-				"ref update/delete result " + res);
+		batch.execute();
 	}
 
 	private void extractMetaData() throws IOException {
-		beginTask(EXTRACT_META, 2);
+		beginTask(EXTRACT_META, 3);
 		extractor.detectMetaData(refs);
 		update(1);
 		extractor.detectLicenses(refs);
 		update(1);
+		extractor.detectLicenseHeaders(refs);
+		update(1);
 	}
 }
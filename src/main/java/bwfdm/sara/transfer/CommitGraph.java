@@ -0,0 +1,455 @@
+package bwfdm.sara.transfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdOwnerMap;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+
+/**
+ * Compact index of the commit graph, in the spirit of git's
+ * {@code commit-graph} file: each commit has a position, and the index stores
+ * the positions of its parents, its commit time and its generation number.
+ * Ancestry queries then only touch a few {@code int} arrays instead of parsing
+ * commit objects.
+ * <p>
+ * Commits are stored in topological order, parents first, so a commit can
+ * only be an ancestor of commits at higher positions. The generation number
+ * is 1 for root commits and one more than the highest generation of the
+ * parents otherwise; an ancestor always has a lower generation than its
+ * descendants, which cuts ancestry walks short long before the root.
+ * <p>
+ * Immutable and thus thread-safe. {@link #extend(Repository, Collection)}
+ * returns a new graph instead of modifying this one.
+ */
+public class CommitGraph {
+	private static final Log logger = LogFactory.getLog(CommitGraph.class);
+	private static final int MAGIC = 0x53524347; // "SRCG"
+	private static final int VERSION = 1;
+	/** number of {@code int}s in an object ID. */
+	private static final int WORDS = Constants.OBJECT_ID_LENGTH / 4;
+	/** graph without any commits. */
+	public static final CommitGraph EMPTY = new Builder(0).build();
+
+	/** raw words of all commit IDs, {@link #WORDS} per commit. */
+	private final int[] ids;
+	private final int[] times;
+	private final int[] generations;
+	/**
+	 * parents of the commit at position {@code i} are at
+	 * {@code parents[parentStart[i]]} up to, but excluding,
+	 * {@code parents[parentStart[i + 1]]}.
+	 */
+	private final int[] parentStart;
+	private final int[] parents;
+	/**
+	 * open-addressing hash table, holding {@code position + 1} for each
+	 * commit, or 0 for empty slots. always at most half full.
+	 */
+	private final int[] table;
+	private final int count;
+
+	private CommitGraph(final Builder builder) {
+		count = builder.count;
+		ids = Arrays.copyOf(builder.ids, count * WORDS);
+		times = Arrays.copyOf(builder.times, count);
+		parentStart = Arrays.copyOf(builder.parentStart, count + 1);
+		parents = Arrays.copyOf(builder.parents, parentStart[count]);
+
+		generations = new int[count];
+		for (int pos = 0; pos < count; pos++) {
+			int generation = 0;
+			for (int i = parentStart[pos]; i < parentStart[pos + 1]; i++)
+				generation = Math.max(generation, generations[parents[i]]);
+			generations[pos] = generation + 1;
+		}
+
+		int size = 2;
+		while (size < 2 * count)
+			size *= 2;
+		table = new int[size];
+		final int mask = size - 1;
+		for (int pos = 0; pos < count; pos++) {
+			int slot = ids[pos * WORDS + 1] & mask;
+			while (table[slot] != 0)
+				slot = (slot + 1) & mask;
+			table[slot] = pos + 1;
+		}
+	}
+
+	/** @return number of commits in the graph */
+	public int size() {
+		return count;
+	}
+
+	/** @return position of the commit, or -1 if it isn't in the graph */
+	public int find(final AnyObjectId id) {
+		final int[] raw = new int[WORDS];
+		id.copyRawTo(raw, 0);
+		final int mask = table.length - 1;
+		// the second word is what AnyObjectId.hashCode() uses
+		for (int slot = raw[1] & mask;; slot = (slot + 1) & mask) {
+			final int entry = table[slot];
+			if (entry == 0)
+				return -1;
+			if (equals(entry - 1, raw))
+				return entry - 1;
+		}
+	}
+
+	private boolean equals(final int pos, final int[] raw) {
+		final int base = pos * WORDS;
+		for (int i = 0; i < WORDS; i++)
+			if (ids[base + i] != raw[i])
+				return false;
+		return true;
+	}
+
+	public boolean contains(final AnyObjectId id) {
+		return find(id) >= 0;
+	}
+
+	public ObjectId getId(final int pos) {
+		return ObjectId.fromRaw(ids, pos * WORDS);
+	}
+
+	/** @return commit time, in seconds since the epoch */
+	public int getCommitTime(final int pos) {
+		return times[pos];
+	}
+
+	public int getGeneration(final int pos) {
+		return generations[pos];
+	}
+
+	public int getParentCount(final int pos) {
+		return parentStart[pos + 1] - parentStart[pos];
+	}
+
+	/** @return position of the commit's <code>n</code>th parent */
+	public int getParent(final int pos, final int n) {
+		return parents[parentStart[pos] + n];
+	}
+
+	/**
+	 * @return <code>true</code> if <code>ancestor</code> is in the history of
+	 *         <code>commit</code>, including the commit itself.
+	 *         <code>false</code> if it isn't, or if either commit isn't in the
+	 *         graph.
+	 */
+	public boolean isAncestor(final AnyObjectId ancestor,
+			final AnyObjectId commit) {
+		final int a = find(ancestor);
+		final int c = find(commit);
+		return a >= 0 && c >= 0 && isAncestor(a, c);
+	}
+
+	/** @see #isAncestor(AnyObjectId, AnyObjectId) */
+	public boolean isAncestor(final int ancestor, final int commit) {
+		if (ancestor == commit)
+			return true;
+		// everything at or below the ancestor's generation, or before it in
+		// topological order, cannot lead to it
+		final int limit = generations[ancestor];
+		if (ancestor > commit || limit >= generations[commit])
+			return false;
+
+		final BitSet seen = new BitSet(commit + 1);
+		int[] stack = new int[16];
+		int top = 0;
+		stack[top++] = commit;
+		while (top > 0) {
+			final int pos = stack[--top];
+			for (int i = parentStart[pos]; i < parentStart[pos + 1]; i++) {
+				final int parent = parents[i];
+				if (parent == ancestor)
+					return true;
+				if (parent < ancestor || generations[parent] <= limit
+						|| seen.get(parent))
+					continue;
+				seen.set(parent);
+				if (top == stack.length)
+					stack = Arrays.copyOf(stack, 2 * top);
+				stack[top++] = parent;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param heads
+	 *            positions of the commits to start at
+	 * @return positions of all commits in the history of any of the heads,
+	 *         including the heads themselves
+	 */
+	public BitSet getReachable(final int... heads) {
+		final BitSet reachable = new BitSet(count);
+		int[] stack = new int[Math.max(16, heads.length)];
+		int top = 0;
+		for (final int head : heads)
+			if (!reachable.get(head)) {
+				reachable.set(head);
+				stack[top++] = head;
+			}
+		while (top > 0) {
+			final int pos = stack[--top];
+			for (int i = parentStart[pos]; i < parentStart[pos + 1]; i++) {
+				final int parent = parents[i];
+				if (reachable.get(parent))
+					continue;
+				reachable.set(parent);
+				if (top == stack.length)
+					stack = Arrays.copyOf(stack, 2 * top);
+				stack[top++] = parent;
+			}
+		}
+		return reachable;
+	}
+
+	/**
+	 * Adds the history of some heads. Only commits that aren't in the graph
+	 * yet are parsed; the walk stops at the first known commit on every path,
+	 * because all of its history is already known as well.
+	 *
+	 * @param repo
+	 *            repository containing the heads' history
+	 * @param heads
+	 *            commits to add, along with their history
+	 * @return a graph containing all these commits, or this graph if it
+	 *         already contained them all
+	 */
+	public CommitGraph extend(final Repository repo,
+			final Collection<? extends AnyObjectId> heads) throws IOException {
+		Builder builder = null;
+		try (final RevWalk walk = new RevWalk(repo)) {
+			assumeShallow(walk);
+			walk.setRetainBody(false);
+			walk.setRevFilter(new SkipKnown());
+			for (final AnyObjectId head : heads)
+				if (!contains(head))
+					walk.markStart(walk.parseCommit(head));
+			walk.sort(RevSort.TOPO);
+			walk.sort(RevSort.REVERSE, true);
+			for (RevCommit commit = walk.next(); commit != null; commit = walk
+					.next()) {
+				if (builder == null)
+					builder = new Builder(this);
+				builder.add(commit);
+			}
+		}
+		if (builder == null)
+			return this;
+		return builder.build();
+	}
+
+	/**
+	 * Prunes the walk at commits already in the graph. Marking them
+	 * uninteresting carries that mark to their parents, so the walk never
+	 * looks at the history behind them.
+	 */
+	private class SkipKnown extends RevFilter {
+		@Override
+		public boolean include(final RevWalk walker, final RevCommit commit) {
+			if (!contains(commit))
+				return true;
+			commit.add(RevFlag.UNINTERESTING);
+			return false;
+		}
+
+		@Override
+		public RevFilter clone() {
+			return this; // stateless
+		}
+
+		@Override
+		public boolean requiresCommitBody() {
+			return false;
+		}
+	}
+
+	/**
+	 * Makes a walk stop at the commits where a shallow repository's history
+	 * ends. JGit reads the list of these commits, but fails to cut off the
+	 * parents of the first commit it parses, which after a depth-1 fetch is
+	 * always one of the shallow heads.
+	 *
+	 * @param walk
+	 *            a newly created walk
+	 */
+	public static void assumeShallow(final RevWalk walk) throws IOException {
+		walk.assumeShallow(walk.getObjectReader().getShallowCommits());
+	}
+
+	/**
+	 * Reads a graph written by {@link #save(File)}.
+	 *
+	 * @return the graph, or {@link #EMPTY} if the file doesn't exist or
+	 *         cannot be read
+	 */
+	public static CommitGraph load(final File file) {
+		try (final DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("not a commit graph");
+			final int n = in.readInt();
+			final Builder builder = new Builder(n);
+			final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+			for (int pos = 0; pos < n; pos++) {
+				in.readFully(raw);
+				final int time = in.readInt();
+				final int[] parents = new int[in.readInt()];
+				for (int i = 0; i < parents.length; i++) {
+					parents[i] = in.readInt();
+					if (parents[i] < 0 || parents[i] >= pos)
+						throw new IOException("commit graph out of order");
+				}
+				builder.add(ObjectId.fromRaw(raw), time, parents);
+			}
+			return builder.build();
+		} catch (final FileNotFoundException e) {
+			return EMPTY;
+		} catch (final IOException e) {
+			// it is just an index; it will be built again from scratch
+			logger.warn("cannot read " + file + ", ignoring it", e);
+			return EMPTY;
+		}
+	}
+
+	/**
+	 * Writes the graph to a file, replacing it atomically so that concurrent
+	 * readers never see a partial graph.
+	 */
+	public void save(final File file) throws IOException {
+		final File temp = File.createTempFile("tmp_", ".graph",
+				file.getParentFile());
+		try {
+			try (final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(count);
+				final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+				for (int pos = 0; pos < count; pos++) {
+					getId(pos).copyRawTo(raw, 0);
+					out.write(raw);
+					out.writeInt(times[pos]);
+					out.writeInt(getParentCount(pos));
+					for (int i = parentStart[pos]; i < parentStart[pos
+							+ 1]; i++)
+						out.writeInt(parents[i]);
+				}
+			}
+			if (!temp.renameTo(file))
+				throw new IOException("cannot rename " + temp);
+		} finally {
+			temp.delete(); // no-op after renaming
+		}
+	}
+
+	/** Collects commits in growable arrays until the graph is built. */
+	private static class Builder {
+		private int[] ids;
+		private int[] times;
+		private int[] parentStart;
+		private int[] parents;
+		private int count;
+		/** the graph being extended, for looking up its commits. */
+		private CommitGraph lookup;
+		/** positions of the commits added from a walk. */
+		private final ObjectIdOwnerMap<Added> added = new ObjectIdOwnerMap<>();
+
+		private Builder(final int capacity) {
+			ids = new int[Math.max(capacity, 16) * WORDS];
+			times = new int[Math.max(capacity, 16)];
+			parentStart = new int[Math.max(capacity, 16) + 1];
+			parents = new int[Math.max(capacity, 16)];
+		}
+
+		private Builder(final CommitGraph graph) {
+			ids = Arrays.copyOf(graph.ids, 2 * graph.ids.length + 16 * WORDS);
+			times = Arrays.copyOf(graph.times, 2 * graph.count + 16);
+			parentStart = Arrays.copyOf(graph.parentStart,
+					2 * graph.count + 17);
+			parents = Arrays.copyOf(graph.parents,
+					2 * graph.parents.length + 16);
+			count = graph.count;
+			lookup = graph;
+		}
+
+		/**
+		 * Adds a commit from a walk. Its parents must already be in the
+		 * original graph, or have been added before.
+		 */
+		private void add(final RevCommit commit) {
+			final int[] positions = new int[commit.getParentCount()];
+			for (int i = 0; i < positions.length; i++)
+				positions[i] = find(commit.getParent(i));
+			add(commit, commit.getCommitTime(), positions);
+			added.add(new Added(commit, count - 1));
+		}
+
+		/** @return position of a commit in the graph being built */
+		private int find(final AnyObjectId id) {
+			final int pos = lookup.find(id);
+			if (pos >= 0)
+				return pos;
+			final Added added = this.added.get(id);
+			if (added == null)
+				throw new IllegalStateException("parent " + id.name()
+						+ " not added before its child");
+			return added.pos;
+		}
+
+		private void add(final AnyObjectId id, final int time,
+				final int[] positions) {
+			if (count == times.length) {
+				final int capacity = 2 * count;
+				ids = Arrays.copyOf(ids, capacity * WORDS);
+				times = Arrays.copyOf(times, capacity);
+				parentStart = Arrays.copyOf(parentStart, capacity + 1);
+			}
+			final int start = parentStart[count];
+			if (start + positions.length > parents.length)
+				parents = Arrays.copyOf(parents,
+						Math.max(2 * parents.length, start + positions.length));
+			id.copyRawTo(ids, count * WORDS);
+			times[count] = time;
+			System.arraycopy(positions, 0, parents, start, positions.length);
+			parentStart[count + 1] = start + positions.length;
+			count++;
+		}
+
+		private CommitGraph build() {
+			return new CommitGraph(this);
+		}
+	}
+
+	private static class Added extends ObjectIdOwnerMap.Entry {
+		private final int pos;
+
+		private Added(final AnyObjectId id, final int pos) {
+			super(id);
+			this.pos = pos;
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package bwfdm.sara.transfer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Repository;
+
+import bwfdm.sara.transfer.SnapshotExporter.Format;
+
+/**
+ * Keeps the snapshot archive of each archived item until it has been
+ * deposited in a publication repository. The snapshot is created by the
+ * {@link PushTask} while the {@link TransferRepo} still exists.
+ * <p>
+ * Many items are never published, so snapshots are also deleted once they
+ * exceed a maximum age, and oldest first when all snapshots together exceed
+ * the disk budget. Publication works without a snapshot, so this just loses
+ * the deposit of the snapshot, not the item.
+ */
+public class ExportStore {
+	private static final Log logger = LogFactory.getLog(ExportStore.class);
+	private static final String PART_SUFFIX = ".part";
+
+	private final File root;
+	private final Format format;
+	private final long budget;
+	private final long maxAge;
+
+	/**
+	 * @param root
+	 *            directory to keep the snapshots in. half-written snapshots
+	 *            from a previous run are deleted.
+	 * @param format
+	 *            format for new snapshots
+	 * @param budget
+	 *            maximum disk space to use for snapshots, in bytes
+	 * @param maxAge
+	 *            time after which unpublished snapshots are deleted, in ms
+	 */
+	public ExportStore(final File root, final Format format, final long budget,
+			final long maxAge) {
+		this.root = root;
+		this.format = format;
+		this.budget = budget;
+		this.maxAge = maxAge;
+
+		final File[] files = root.listFiles();
+		if (files == null)
+			throw new RuntimeException(
+					"cannot list export directory " + root.getAbsolutePath());
+		for (final File f : files)
+			if (f.getName().endsWith(PART_SUFFIX))
+				f.delete(); // failure harmless; it's just a leftover
+		evict();
+	}
+
+	/**
+	 * Creates the snapshot for an item. The snapshot only becomes visible to
+	 * {@link #get(UUID)} once it is complete.
+	 *
+	 * @param item
+	 *            UUID of the item
+	 * @param repo
+	 *            repository containing the commits
+	 * @param commits
+	 *            map from top-level directory name to commit, as in
+	 *            {@link SnapshotExporter#write(Map, Format, OutputStream, ProgressMonitor)}
+	 * @param pm
+	 *            {@link ProgressMonitor} to report progress to
+	 */
+	public void create(final UUID item, final Repository repo,
+			final Map<String, ObjectId> commits, final ProgressMonitor pm)
+			throws IOException {
+		final File part = new File(root, item + PART_SUFFIX);
+		try (final OutputStream out = new BufferedOutputStream(
+				new FileOutputStream(part))) {
+			new SnapshotExporter(repo).write(commits, format, out, pm);
+		}
+		if (!part.renameTo(getFile(item, format))) {
+			part.delete();
+			throw new IOException("cannot rename snapshot " + part);
+		}
+		evict();
+	}
+
+	/**
+	 * Deletes snapshots older than the maximum age, then the oldest ones until
+	 * the rest fit into the disk budget. Snapshots still being written aren't
+	 * counted.
+	 */
+	public synchronized void evict() {
+		final File[] files = root.listFiles();
+		if (files == null) {
+			logger.warn("cannot list export directory " + root);
+			return;
+		}
+		final long cutoff = System.currentTimeMillis() - maxAge;
+		final List<File> snapshots = new ArrayList<>();
+		long total = 0;
+		for (final File f : files) {
+			if (f.getName().endsWith(PART_SUFFIX))
+				continue;
+			if (f.lastModified() < cutoff)
+				delete(f, "expired");
+			else {
+				snapshots.add(f);
+				total += f.length();
+			}
+		}
+		if (total <= budget)
+			return;
+
+		Collections.sort(snapshots, new Comparator<File>() {
+			@Override
+			public int compare(final File a, final File b) {
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+		for (final File f : snapshots) {
+			if (total <= budget)
+				break;
+			final long size = f.length();
+			if (delete(f, "over budget"))
+				total -= size;
+		}
+	}
+
+	private static boolean delete(final File file, final String reason) {
+		if (!file.delete()) {
+			logger.warn("cannot delete snapshot " + file);
+			return false;
+		}
+		logger.info("deleted unpublished snapshot " + file.getName() + " ("
+				+ reason + ")");
+		return true;
+	}
+
+	/**
+	 * @param item
+	 *            UUID of the item
+	 * @return the snapshot of that item, or <code>null</code> if there is none
+	 */
+	public File get(final UUID item) {
+		// look for all formats; the configured format may have changed
+		for (final Format f : Format.values()) {
+			final File file = getFile(item, f);
+			if (file.isFile())
+				return file;
+		}
+		return null;
+	}
+
+	/**
+	 * @param file
+	 *            a file returned by {@link #get(UUID)}
+	 * @return the {@link Format} of that file
+	 */
+	public static Format getFormat(final File file) {
+		final String name = file.getName();
+		return Format.forExtension(name.substring(name.indexOf('.') + 1));
+	}
+
+	/**
+	 * Deletes the snapshot of an item once it is no longer needed.
+	 *
+	 * @param item
+	 *            UUID of the item
+	 */
+	public void remove(final UUID item) {
+		final File file = get(item);
+		if (file != null)
+			file.delete();
+	}
+
+	private File getFile(final UUID item, final Format format) {
+		return new File(root, item + "." + format.extension);
+	}
+}
@@ -0,0 +1,359 @@
+package bwfdm.sara.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevBlob;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
+import org.eclipse.jgit.revwalk.RevFlagSet;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import bwfdm.sara.project.Ref;
+import bwfdm.sara.project.RefAction;
+import bwfdm.sara.project.RefAction.PublicationMethod;
+import bwfdm.sara.transfer.rewrite.BlobFilter;
+import bwfdm.sara.transfer.rewrite.HistoryRewriter;
+
+/**
+ * Estimates how large the archive of each selected ref would be for every
+ * {@link PublicationMethod}, so the user can choose before cloning and
+ * pushing. Runs {@link HistoryRewriter} as a
+ * {@link HistoryRewriter#setDryRun() dry run} on the refs as originally
+ * fetched, then adds up the commits it keeps and every tree and file they
+ * reference, counting each object only once.
+ * <p>
+ * Estimating walks the whole history several times, so it runs in the
+ * background and the result is cached until the refs or their starting points
+ * change. Until then, {@link #estimate(List, BlobFilter)} just reports that
+ * the estimate is pending.
+ */
+public class HistoryEstimator {
+	private static final Log logger = LogFactory.getLog(HistoryEstimator.class);
+	/**
+	 * runs one estimate at a time, so that estimates don't starve clones and
+	 * pushes of CPU.
+	 */
+	private static final ExecutorService ESTIMATOR = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread thread = new Thread(r, "history estimator");
+					// don't block shutdown; estimates are only a hint
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final TransferRepo transferRepo;
+	/** heads and filter that {@link #estimates} was computed for. */
+	private String cachedKey;
+	private List<RefEstimate> estimates;
+	/** heads and filter of the estimate being computed, if any. */
+	private String pendingKey;
+
+	HistoryEstimator(final TransferRepo transferRepo) {
+		this.transferRepo = transferRepo;
+	}
+
+	/**
+	 * Returns the cached estimate, or starts computing it in the background
+	 * if the selection has changed since.
+	 * 
+	 * @param actions
+	 *            the selected refs. refs that haven't been fetched yet are
+	 *            left out of the result.
+	 * @param filter
+	 *            {@link BlobFilter} deciding which files are left out
+	 * @return the estimate for every ref that has been fetched, or a pending
+	 *         {@link EstimateStatus} if it is still being computed
+	 */
+	public synchronized EstimateStatus estimate(final List<RefAction> actions,
+			final BlobFilter filter) {
+		final Map<String, ObjectId> fetched = transferRepo.getFetchedRefs();
+		if (transferRepo.getRepo() == null || fetched == null)
+			return EstimateStatus.NONE;
+		if (transferRepo.isShallow())
+			// without history, every method would seem to publish just the
+			// head commits
+			return EstimateStatus.NONE;
+
+		// sorted so that the key doesn't depend on the order of actions
+		final Map<String, RefAction> selected = new TreeMap<>();
+		final Map<String, ObjectId> heads = new TreeMap<>();
+		for (final RefAction action : actions) {
+			final String path = Constants.R_REFS + action.ref.path;
+			final ObjectId head = fetched.get(path);
+			if (head == null)
+				continue;
+			selected.put(path, action);
+			heads.put(path, action.firstCommit.equals(RefAction.HEAD_COMMIT)
+					? head : ObjectId.fromString(action.firstCommit));
+		}
+		final String key = heads.toString() + filter.getKey();
+		if (key.equals(cachedKey))
+			return new EstimateStatus(false, estimates);
+
+		if (!key.equals(pendingKey)) {
+			pendingKey = key;
+			ESTIMATOR.execute(new Runnable() {
+				@Override
+				public void run() {
+					estimateInBackground(key, selected, heads, filter);
+				}
+			});
+		}
+		return new EstimateStatus(true,
+				Collections.<RefEstimate> emptyList());
+	}
+
+	private void estimateInBackground(final String key,
+			final Map<String, RefAction> selected,
+			final Map<String, ObjectId> heads, final BlobFilter filter) {
+		synchronized (this) {
+			// superseded by a different selection while queued
+			if (!key.equals(pendingKey))
+				return;
+		}
+		List<RefEstimate> res;
+		transferRepo.beginUse();
+		try {
+			final Repository repo = transferRepo.getRepo();
+			if (repo == null)
+				return; // disposed while queued; nobody is asking anymore
+			res = estimate(repo, transferRepo.getCommitGraph(),
+					transferRepo.getMemoryBudget(), transferRepo.getRoot(),
+					selected, heads, filter);
+		} catch (final IOException | RuntimeException e) {
+			// report an empty estimate instead of retrying on every request
+			logger.warn("cannot estimate archive size of "
+					+ transferRepo.getRoot(), e);
+			res = new ArrayList<>();
+		} finally {
+			transferRepo.endUse();
+		}
+		synchronized (this) {
+			if (!key.equals(pendingKey))
+				return;
+			pendingKey = null;
+			cachedKey = key;
+			estimates = res;
+		}
+	}
+
+	private static List<RefEstimate> estimate(final Repository repo,
+			final CommitGraph graph, final MemoryBudget budget,
+			final File spillDir, final Map<String, RefAction> selected,
+			final Map<String, ObjectId> heads, final BlobFilter filter)
+			throws IOException {
+		// significance depends on the other heads, so the rewrite has to
+		// include all of them, as if they were published the same way
+		final Map<PublicationMethod, HistoryRewriter> rewrites = new EnumMap<>(
+				PublicationMethod.class);
+		try {
+			for (final PublicationMethod method : PublicationMethod.values()) {
+				final HistoryRewriter rewriter = new HistoryRewriter(repo);
+				rewrites.put(method, rewriter);
+				rewriter.setDryRun();
+				rewriter.setMemoryBudget(budget, spillDir);
+				rewriter.setParallel(graph, Runtime.getRuntime()
+						.availableProcessors());
+				for (final Map.Entry<String, ObjectId> head : heads
+						.entrySet())
+					rewriter.addHead(head.getKey(), head.getValue(), method);
+				rewriter.execute(null);
+			}
+			final List<RefEstimate> res = new ArrayList<>(heads.size());
+			try (final ObjectReader reader = repo.newObjectReader()) {
+				for (final Map.Entry<String, ObjectId> head : heads.entrySet())
+					res.add(measure(reader, selected.get(head.getKey()).ref,
+							head.getValue(), filter, rewrites));
+			}
+			return res;
+		} finally {
+			for (final HistoryRewriter rewriter : rewrites.values())
+				rewriter.close();
+		}
+	}
+
+	/**
+	 * Measures all {@link PublicationMethod PublicationMethods} in a single
+	 * pass over the history. Every tree and file is tagged with a
+	 * {@link RevFlag} for each method that publishes a commit referencing it,
+	 * and counted for that method when it first gets the flag. Thus each
+	 * object is read only once, and subtrees are skipped once they have all
+	 * flags of the commit being walked.
+	 */
+	private static RefEstimate measure(final ObjectReader reader, final Ref ref,
+			final ObjectId head, final BlobFilter filter,
+			final Map<PublicationMethod, HistoryRewriter> rewrites)
+			throws IOException {
+		final PublicationMethod[] methods = PublicationMethod.values();
+		final int[] commits = new int[methods.length];
+		final long[] bytes = new long[methods.length];
+		try (final RevWalk walk = new RevWalk(reader)) {
+			final RevFlag[] flags = new RevFlag[methods.length];
+			for (int i = 0; i < methods.length; i++)
+				flags[i] = walk.newFlag(methods[i].name());
+			walk.setRetainBody(false);
+			walk.markStart(walk.parseCommit(head));
+			for (RevCommit commit = walk.next(); commit != null; commit = walk
+					.next()) {
+				final RevFlagSet published = new RevFlagSet();
+				for (int i = 0; i < methods.length; i++)
+					if (rewrites.get(methods[i]).isPublished(commit)) {
+						published.add(flags[i]);
+						commits[i]++;
+					}
+				if (published.isEmpty())
+					continue;
+				// rewritten commits only differ in their parents, so the
+				// original is a good approximation
+				add(bytes, flags, published,
+						reader.getObjectSize(commit, Constants.OBJ_COMMIT));
+				addTree(reader, walk, commit.getTree(), "", published, flags,
+						filter, bytes);
+			}
+		}
+
+		final RefEstimate estimate = new RefEstimate(ref);
+		for (int i = 0; i < methods.length; i++)
+			estimate.methods.put(methods[i],
+					new Estimate(commits[i], bytes[i]));
+		return estimate;
+	}
+
+	private static void addTree(final ObjectReader reader, final RevWalk walk,
+			final RevTree tree, final String path, final RevFlagSet published,
+			final RevFlag[] flags, final BlobFilter filter, final long[] bytes)
+			throws IOException {
+		final RevFlagSet missing = getMissing(tree, published, flags);
+		if (missing == null)
+			return;
+		tree.add(missing);
+		add(bytes, flags, missing,
+				reader.getObjectSize(tree, Constants.OBJ_TREE));
+
+		final CanonicalTreeParser entries = new CanonicalTreeParser(null,
+				reader, tree);
+		for (; !entries.eof(); entries.next()) {
+			final String name = path + entries.getEntryPathString();
+			final FileMode mode = entries.getEntryFileMode();
+			if (FileMode.TREE.equals(mode))
+				addTree(reader, walk,
+						walk.lookupTree(entries.getEntryObjectId()),
+						name + "/", missing, flags, filter, bytes);
+			else if (mode.getObjectType() == Constants.OBJ_BLOB) {
+				final RevBlob blob = walk.lookupBlob(entries
+						.getEntryObjectId());
+				final RevFlagSet blobMissing = getMissing(blob, missing,
+						flags);
+				if (blobMissing == null)
+					continue;
+				blob.add(blobMissing);
+				final long size = reader.getObjectSize(blob,
+						Constants.OBJ_BLOB);
+				if (!filter.isExcluded(name, size))
+					add(bytes, flags, blobMissing, size);
+			}
+			// submodules aren't archived
+		}
+	}
+
+	/**
+	 * @return the flags in <code>published</code> that the object doesn't
+	 *         have yet, or <code>null</code> if it already has all of them
+	 */
+	private static RevFlagSet getMissing(final RevObject obj,
+			final RevFlagSet published, final RevFlag[] flags) {
+		if (obj.hasAll(published))
+			return null;
+		final RevFlagSet missing = new RevFlagSet();
+		for (final RevFlag flag : flags)
+			if (published.contains(flag) && !obj.has(flag))
+				missing.add(flag);
+		return missing;
+	}
+
+	private static void add(final long[] bytes, final RevFlag[] flags,
+			final RevFlagSet methods, final long size) {
+		for (int i = 0; i < flags.length; i++)
+			if (methods.contains(flags[i]))
+				bytes[i] += size;
+	}
+
+	/**
+	 * Result of {@link HistoryEstimator#estimate(List, BlobFilter)}: either
+	 * the estimates, or the information that they're still being computed.
+	 */
+	public static class EstimateStatus {
+		/** nothing to estimate because the project hasn't been cloned. */
+		public static final EstimateStatus NONE = new EstimateStatus(false,
+				Collections.<RefEstimate> emptyList());
+
+		/** <code>true</code> while the estimate is computed; ask again. */
+		@JsonProperty("pending")
+		public final boolean pending;
+		/** estimates for all refs that have been fetched. */
+		@JsonProperty("refs")
+		public final List<RefEstimate> refs;
+
+		private EstimateStatus(final boolean pending,
+				final List<RefEstimate> refs) {
+			this.pending = pending;
+			this.refs = refs;
+		}
+	}
+
+	/** All estimates for a single ref. */
+	public static class RefEstimate {
+		@JsonProperty("ref")
+		public final Ref ref;
+		@JsonProperty("methods")
+		public final Map<PublicationMethod, Estimate> methods = new EnumMap<>(
+				PublicationMethod.class);
+
+		private RefEstimate(final Ref ref) {
+			this.ref = ref;
+		}
+	}
+
+	/** Size of the archive for a single ref and {@link PublicationMethod}. */
+	public static class Estimate {
+		/** number of commits published. */
+		@JsonProperty("commits")
+		public final int commits;
+		/**
+		 * total size of all commits, trees and files, counting each one only
+		 * once, before compression.
+		 */
+		@JsonProperty("bytes")
+		public final long bytes;
+
+		private Estimate(final int commits, final long bytes) {
+			this.commits = commits;
+			this.bytes = bytes;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package bwfdm.sara.transfer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the heap used by large per-task structures, such as the
+ * {@link bwfdm.sara.transfer.rewrite.RewriteCache RewriteCaches} of all
+ * rewrites running at the same time. Structures reserve memory before growing;
+ * once the budget is used up, they have to make do without, eg. by moving
+ * their data into a memory-mapped file.
+ * <p>
+ * This only accounts for the memory that structures reserve explicitly, so it
+ * cannot prevent an {@link OutOfMemoryError}. It just keeps the big
+ * structures from competing for the heap, which lets many large tasks run
+ * with a fixed heap size.
+ */
+public class MemoryBudget {
+	/** budget that never runs out, for code that doesn't care. */
+	public static final MemoryBudget UNLIMITED = new MemoryBudget(
+			Long.MAX_VALUE);
+
+	private final long limit;
+	private final AtomicLong used = new AtomicLong();
+
+	/**
+	 * @param limit
+	 *            maximum number of bytes reserved at the same time
+	 */
+	public MemoryBudget(final long limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Reserves memory, if there is enough left. Call {@link #release(long)}
+	 * once it is no longer used.
+	 *
+	 * @param bytes
+	 *            amount of memory to reserve
+	 * @return <code>true</code> if the memory has been reserved,
+	 *         <code>false</code> if that would exceed the budget. nothing is
+	 *         reserved in that case.
+	 */
+	public boolean reserve(final long bytes) {
+		for (;;) {
+			final long current = used.get();
+			if (current + bytes > limit)
+				return false;
+			if (used.compareAndSet(current, current + bytes))
+				return true;
+		}
+	}
+
+	/**
+	 * Returns memory that has been {@link #reserve(long) reserved}.
+	 *
+	 * @param bytes
+	 *            amount of memory no longer used
+	 */
+	public void release(final long bytes) {
+		used.addAndGet(-bytes);
+	}
+
+	/** @return number of bytes currently reserved */
+	public long getUsed() {
+		return used.get();
+	}
+
+	/** @return maximum number of bytes that can be reserved */
+	public long getLimit() {
+		return limit;
+	}
+}
@@ -0,0 +1,400 @@
+package bwfdm.sara.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.springframework.util.DigestUtils;
+
+import bwfdm.sara.Config;
+import bwfdm.sara.transfer.rewrite.RewriteStore;
+
+/**
+ * Keeps a persistent bare mirror for each (source, project) pair. The
+ * {@link CloneTask} fetches into the mirror first and then uses the mirror's
+ * object database as an alternate for the {@link TransferRepo}, so that
+ * repeated clones of the same project only transfer what has changed since
+ * the last clone, even if they come from different users.
+ * <p>
+ * Mirrors are leased by {@link TransferRepo TransferRepos} for as long as they
+ * exist because the {@link TransferRepo} cannot work without the mirror's
+ * objects. Mirrors without leases are evicted, least recently used first, once
+ * the mirrors in total use more than the configured disk budget.
+ */
+public class MirrorStore {
+	private static final Log logger = LogFactory.getLog(MirrorStore.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** prefix for mirrors that have been evicted but not yet deleted. */
+	private static final String DELETED_PREFIX = "deleted-";
+	/** {@link CommitGraph} file, inside the mirror's git directory. */
+	private static final String GRAPH_FILE = "sara-commit-graph";
+
+	private final File root;
+	private final long budget;
+	private final Map<String, Mirror> mirrors = new HashMap<>();
+
+	/**
+	 * @param root
+	 *            directory to keep mirrors in. mirrors from previous runs are
+	 *            picked up from there.
+	 * @param budget
+	 *            maximum disk space to use for mirrors, in bytes. this can be
+	 *            exceeded temporarily if many mirrors are in use.
+	 */
+	public MirrorStore(final File root, final long budget) {
+		this.root = root;
+		this.budget = budget;
+
+		final File[] dirs = root.listFiles();
+		if (dirs == null)
+			throw new RuntimeException(
+					"cannot list mirror directory " + root.getAbsolutePath());
+		for (final File dir : dirs) {
+			if (dir.getName().startsWith(DELETED_PREFIX)) {
+				// leftover from an eviction that was interrupted by shutdown
+				TempStore.deleteInBackground(dir);
+				continue;
+			}
+			final Mirror mirror = new Mirror(dir.getName());
+			mirror.lastUsed = dir.lastModified();
+			mirror.size = -1; // determined lazily on first eviction
+			mirrors.put(mirror.name, mirror);
+		}
+	}
+
+	/**
+	 * Obtains the mirror for a given project and leases it, so that it won't
+	 * be evicted until {@link #release(Mirror)} is called.
+	 *
+	 * @param source
+	 *            ID of the git repo the project lives on
+	 * @param projectPath
+	 *            path of the project within that git repo
+	 * @return the mirror for that project, newly created if necessary
+	 */
+	public synchronized Mirror lease(final String source,
+			final String projectPath) {
+		// same MD5-based naming as Config.getTempDir(), because project paths
+		// contain slashes
+		final StringBuilder hash = new StringBuilder();
+		DigestUtils.appendMd5DigestAsHex(source.getBytes(UTF8), hash);
+		hash.append('.');
+		DigestUtils.appendMd5DigestAsHex(projectPath.getBytes(UTF8), hash);
+		final String name = hash.toString();
+
+		Mirror mirror = mirrors.get(name);
+		if (mirror == null) {
+			mirror = new Mirror(name);
+			mirrors.put(name, mirror);
+		}
+		mirror.leases++;
+		mirror.touch();
+		return mirror;
+	}
+
+	/**
+	 * Releases a lease obtained from {@link #lease(String, String)}. Once all
+	 * leases have been released, the mirror becomes a candidate for eviction.
+	 */
+	public void release(final Mirror mirror) {
+		synchronized (this) {
+			if (mirror.leases <= 0)
+				throw new IllegalStateException(
+						"mirror " + mirror.name + " not leased");
+			mirror.leases--;
+			mirror.touch();
+		}
+		evict();
+	}
+
+	/**
+	 * Evicts idle mirrors, least recently used first, until the mirrors fit
+	 * into the disk budget again. Mirrors that are leased or locked are never
+	 * evicted.
+	 */
+	public void evict() {
+		final List<Mirror> candidates;
+		synchronized (this) {
+			candidates = new ArrayList<>(mirrors.values());
+			Collections.sort(candidates, new Comparator<Mirror>() {
+				@Override
+				public int compare(final Mirror a, final Mirror b) {
+					return Long.compare(a.lastUsed, b.lastUsed);
+				}
+			});
+		}
+		// measure sizes outside the lock; walking a big mirror can take a
+		// while. mirrors that are in use are measured after each fetch.
+		long total = 0;
+		for (final Mirror m : candidates) {
+			if (m.size < 0)
+				m.size = getDiskUsage(m.dir);
+			total += m.size;
+		}
+		if (total <= budget)
+			return;
+
+		for (final Mirror m : candidates) {
+			if (total <= budget)
+				break;
+			if (remove(m))
+				total -= m.size;
+		}
+		if (total > budget)
+			logger.warn("mirrors use " + total + " bytes but budget is "
+					+ budget + "; all other mirrors are in use");
+	}
+
+	private synchronized boolean remove(final Mirror mirror) {
+		if (mirror.leases > 0 || mirrors.get(mirror.name) != mirror)
+			return false;
+		// if the lock is held, a CloneTask that has just been cancelled is
+		// still fetching. leave it alone for now; it will be evicted next
+		// time.
+		if (!mirror.lock.tryLock())
+			return false;
+		try {
+			mirrors.remove(mirror.name);
+			mirror.evicted = true;
+			// rename first so that a new mirror can be created immediately,
+			// without waiting for the slow recursive delete
+			final File trash = new File(root,
+					DELETED_PREFIX + Config.getRandomID());
+			if (!mirror.dir.renameTo(trash)) {
+				logger.warn("cannot rename " + mirror.dir + " for deletion");
+				TempStore.deleteInBackground(mirror.dir);
+			} else
+				TempStore.deleteInBackground(trash);
+			logger.info("evicted mirror " + mirror.name + " (" + mirror.size
+					+ " bytes)");
+			return true;
+		} finally {
+			mirror.lock.unlock();
+		}
+	}
+
+	static long getDiskUsage(final File dir) {
+		final long[] total = new long[1];
+		if (!dir.exists())
+			return 0; // mirror not created yet
+		try {
+			Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(final Path file,
+						final BasicFileAttributes attrs) {
+					total[0] += attrs.size();
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(final Path file,
+						final IOException exc) {
+					// file deleted while walking, probably by git
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (final IOException e) {
+			logger.warn("cannot determine size of " + dir, e);
+		}
+		return total[0];
+	}
+
+	/**
+	 * A single bare mirror. All access to the repository must be bracketed in
+	 * {@link #lock()} and {@link #unlock()}, because concurrent fetches would
+	 * fight over the refs.
+	 */
+	public class Mirror {
+		private final String name;
+		private final File dir;
+		private final ReentrantLock lock = new ReentrantLock();
+		private int leases;
+		private long lastUsed;
+		private volatile long size;
+		private boolean evicted;
+		/** completion time of the last fetch of each ref. */
+		private final Map<String, Long> fetchedAt = new HashMap<>();
+		/**
+		 * same, but only for fetches that also followed tags. cleared by every
+		 * fetch because fetching deletes all tags first.
+		 */
+		private final Map<String, Long> followedAt = new HashMap<>();
+		/** loaded on first use, then kept in memory. */
+		private CommitGraph commitGraph;
+
+		private Mirror(final String name) {
+			this.name = name;
+			dir = new File(root, name);
+		}
+
+		private void touch() {
+			lastUsed = System.currentTimeMillis();
+			// persist LRU information across restarts. failure is harmless;
+			// the mirror just looks older than it is.
+			dir.setLastModified(lastUsed);
+		}
+
+		/**
+		 * Releases the lease on this mirror.
+		 *
+		 * @see MirrorStore#release(Mirror)
+		 */
+		public void release() {
+			MirrorStore.this.release(this);
+		}
+
+		/** @return the mirror's {@code objects} directory */
+		public File getObjectDirectory() {
+			return new File(dir, "objects");
+		}
+
+		/**
+		 * @return a {@link RewriteStore} keeping history rewriting results in
+		 *         this mirror. it only ever adds objects, so it doesn't need
+		 *         the {@link #lock()}, but the mirror must stay leased while
+		 *         it is used.
+		 */
+		public RewriteStore getRewriteStore() {
+			return new RewriteStore(dir, getCommitGraph());
+		}
+
+		/**
+		 * @return the {@link CommitGraph} of everything fetched into this
+		 *         mirror so far, as of the last
+		 *         {@link #updateCommitGraph(Repository, Collection)}
+		 */
+		public synchronized CommitGraph getCommitGraph() {
+			if (commitGraph == null)
+				commitGraph = CommitGraph.load(new File(dir, GRAPH_FILE));
+			return commitGraph;
+		}
+
+		/**
+		 * Adds the history of some heads to the {@link CommitGraph} and
+		 * persists it, so that it only has to be built once per commit, even
+		 * across restarts.
+		 *
+		 * @param repo
+		 *            a repository that contains the heads and borrows this
+		 *            mirror's objects
+		 * @param heads
+		 *            commits that have just been fetched
+		 * @return the updated {@link CommitGraph}
+		 */
+		public synchronized CommitGraph updateCommitGraph(
+				final Repository repo, final Collection<ObjectId> heads)
+				throws IOException {
+			final CommitGraph graph = getCommitGraph();
+			commitGraph = graph.extend(repo, heads);
+			if (commitGraph != graph)
+				commitGraph.save(new File(dir, GRAPH_FILE));
+			return commitGraph;
+		}
+
+		/**
+		 * Locks the mirror for exclusive access, waiting for other users to
+		 * finish first.
+		 *
+		 * @return a {@link Git} for the mirror repo, created if necessary
+		 */
+		public Git lock() throws InterruptedException, GitAPIException {
+			lock.lockInterruptibly();
+			boolean locked = false;
+			try {
+				synchronized (MirrorStore.this) {
+					if (evicted)
+						// can only happen if a lease was released too early
+						throw new IllegalStateException(
+								"mirror " + name + " already evicted");
+				}
+				// init is a no-op if the repo already exists
+				final Git git = Git.init().setBare(true).setGitDir(dir).call();
+				locked = true;
+				return git;
+			} finally {
+				if (!locked)
+					lock.unlock();
+			}
+		}
+
+		/**
+		 * Checks whether all the given refs have been fetched by a fetch that
+		 * completed after the given time. If so, that fetch was still running
+		 * (or started later) when the caller decided it needed the refs, so
+		 * the caller can just use its result instead of fetching again. Must
+		 * be called while {@link #lock() locked}.
+		 *
+		 * @param since
+		 *            time the caller started waiting for the lock, as returned
+		 *            by {@link System#currentTimeMillis()}
+		 * @param refs
+		 *            full names of the refs the caller wants to fetch
+		 * @param tags
+		 *            <code>true</code> if the caller needs the tags pointing
+		 *            into these refs as well
+		 * @return <code>true</code> if the fetch can be skipped
+		 */
+		public boolean hasFetchedSince(final long since,
+				final Collection<String> refs, final boolean tags) {
+			final Map<String, Long> times = tags ? followedAt : fetchedAt;
+			for (final String ref : refs) {
+				final Long time = times.get(ref);
+				if (time == null || time < since)
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Records a completed fetch for {@link #hasFetchedSince(long,
+		 * Collection, boolean)}. Must be called while {@link #lock() locked}.
+		 *
+		 * @param refs
+		 *            full names of the refs that were fetched
+		 * @param tags
+		 *            <code>true</code> if tags were followed, ie. all tags
+		 *            pointing into these refs are now in the mirror
+		 */
+		public void recordFetch(final Collection<String> refs,
+				final boolean tags) {
+			final long now = System.currentTimeMillis();
+			followedAt.clear();
+			for (final String ref : refs) {
+				fetchedAt.put(ref, now);
+				if (tags)
+					followedAt.put(ref, now);
+			}
+		}
+
+		/**
+		 * Unlocks a mirror locked by {@link #lock()}, recording its new size
+		 * for eviction.
+		 */
+		public void unlock() {
+			try {
+				size = getDiskUsage(dir);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
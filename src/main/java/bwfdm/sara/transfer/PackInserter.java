@@ -0,0 +1,422 @@
+package bwfdm.sara.transfer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.internal.storage.file.ObjectDirectory;
+import org.eclipse.jgit.internal.storage.file.PackIndexWriter;
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.CoreConfig;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdOwnerMap;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.PackParser;
+import org.eclipse.jgit.transport.PackedObjectInfo;
+import org.eclipse.jgit.util.IO;
+import org.eclipse.jgit.util.NB;
+
+/**
+ * {@link ObjectInserter} that writes all objects into a single pack (with
+ * index) on {@link #flush()}, instead of creating a loose object file for each
+ * of them. For thousands of small objects, such as rewritten commits, this
+ * avoids a lot of file creation and fsync overhead, and the objects don't have
+ * to be packed again for pushing.
+ * <p>
+ * Objects are only visible to the repository after {@link #flush()}, but can
+ * be read back before that through {@link #newReader()}. Objects that are
+ * never flushed are discarded on {@link #close()}. Very large objects are
+ * written as loose objects right away because buffering them isn't worth it.
+ */
+public class PackInserter extends ObjectInserter {
+	/** objects larger than this are written as loose objects. */
+	private static final long MAX_PACKED_SIZE = 16 * 1024 * 1024;
+	private static final int PACK_VERSION = 2;
+	private static final int INDEX_VERSION = 2;
+	/** size of pack header: signature, version, object count. */
+	private static final int HEADER_SIZE = 12;
+
+	private final Repository repo;
+	private final ObjectDirectory db;
+	private final boolean inMemory;
+	private final int compression;
+	private final ObjectIdOwnerMap<Entry> objects = new ObjectIdOwnerMap<>();
+	private final File packDir;
+	private ObjectReader dbReader;
+	private Deflater deflater;
+	/** pack data without header, if {@link #inMemory}. */
+	private Buffer buffer;
+	/** temp file for pack data without header, if not {@link #inMemory}. */
+	private File tempFile;
+	private OutputStream tempOut;
+	private long length;
+
+	/**
+	 * Creates an {@link ObjectInserter} that writes objects into a single
+	 * pack if possible. For repositories that don't use a plain object
+	 * directory (ie. DFS repositories, which always write packs anyway), this
+	 * is just their normal inserter.
+	 *
+	 * @param repo
+	 *            the repository to insert into
+	 * @param inMemory
+	 *            <code>true</code> to keep objects in memory until they are
+	 *            {@link #flush() flushed}. this is faster, but only
+	 *            appropriate if there won't be too many of them. otherwise
+	 *            they are kept in a temporary file.
+	 * @return an {@link ObjectInserter}, which must be flushed for the objects
+	 *         to become visible
+	 */
+	public static ObjectInserter create(final Repository repo,
+			final boolean inMemory) {
+		if (!(repo.getObjectDatabase() instanceof ObjectDirectory))
+			return repo.newObjectInserter();
+		return new PackInserter(repo, inMemory);
+	}
+
+	private PackInserter(final Repository repo, final boolean inMemory) {
+		this.repo = repo;
+		this.db = (ObjectDirectory) repo.getObjectDatabase();
+		this.inMemory = inMemory;
+		packDir = new File(db.getDirectory(), "pack");
+		compression = repo.getConfig().get(CoreConfig.KEY).getCompression();
+	}
+
+	@Override
+	public ObjectId insert(final int type, final byte[] data, final int off,
+			final int len) throws IOException {
+		final ObjectId id = idFor(type, data, off, len);
+		if (objects.contains(id) || getDbReader().has(id))
+			return id;
+		write(id, type, data, off, len);
+		return id;
+	}
+
+	@Override
+	public ObjectId insert(final int type, final long len,
+			final InputStream in) throws IOException {
+		if (len > MAX_PACKED_SIZE)
+			try (final ObjectInserter loose = db.newInserter()) {
+				final ObjectId id = loose.insert(type, len, in);
+				loose.flush();
+				return id;
+			}
+
+		final byte[] data = new byte[(int) len];
+		IO.readFully(in, data, 0, data.length);
+		return insert(type, data, 0, data.length);
+	}
+
+	private void write(final ObjectId id, final int type, final byte[] data,
+			final int off, final int len) throws IOException {
+		// deflate separately first; the index needs the CRC of the compressed
+		// object
+		final ByteArrayOutputStream obj = new ByteArrayOutputStream(
+				len / 2 + 16);
+		writeObjectHeader(obj, type, len);
+		final Deflater def = getDeflater();
+		def.reset();
+		try (final DeflaterOutputStream dos = new DeflaterOutputStream(obj,
+				def)) {
+			dos.write(data, off, len);
+		}
+		final byte[] packed = obj.toByteArray();
+		final CRC32 crc = new CRC32();
+		crc.update(packed);
+
+		final Entry e = new Entry(id, type, len);
+		e.setOffset(HEADER_SIZE + length);
+		e.setCRC((int) crc.getValue());
+		e.packedLength = packed.length;
+		getOutput().write(packed);
+		length += packed.length;
+		objects.add(e);
+	}
+
+	private static void writeObjectHeader(final OutputStream out,
+			final int type, final long size) throws IOException {
+		// type and lowest 4 bits of size, then the rest of the size in 7-bit
+		// groups, little-endian, with the MSB indicating continuation
+		long rest = size >>> 4;
+		int b = (type << 4) | (int) (size & 0x0f);
+		while (rest != 0) {
+			out.write(b | 0x80);
+			b = (int) (rest & 0x7f);
+			rest >>>= 7;
+		}
+		out.write(b);
+	}
+
+	private OutputStream getOutput() throws IOException {
+		if (inMemory) {
+			if (buffer == null)
+				buffer = new Buffer();
+			return buffer;
+		}
+		if (tempOut == null) {
+			tempFile = File.createTempFile("tmp_pack_", ".tmp", packDir);
+			tempOut = new BufferedOutputStream(new FileOutputStream(tempFile));
+		}
+		return tempOut;
+	}
+
+	private ObjectReader getDbReader() {
+		if (dbReader == null)
+			dbReader = db.newReader();
+		return dbReader;
+	}
+
+	private Deflater getDeflater() {
+		if (deflater == null)
+			deflater = new Deflater(compression);
+		return deflater;
+	}
+
+	/**
+	 * Writes all objects inserted so far into a new pack and makes it
+	 * available to the repository. Does nothing if there are no objects.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (objects.isEmpty())
+			return;
+
+		final File tmpPack = File.createTempFile("tmp_pack_", ".pack",
+				packDir);
+		final File tmpIndex = new File(packDir,
+				tmpPack.getName().replaceFirst("\\.pack$", ".idx"));
+		try {
+			final byte[] checksum = writePack(tmpPack);
+			final List<Entry> sorted = new ArrayList<>(objects.size());
+			for (final Entry e : objects)
+				sorted.add(e);
+			Collections.sort(sorted);
+			try (final OutputStream out = new BufferedOutputStream(
+					new FileOutputStream(tmpIndex))) {
+				PackIndexWriter.createVersion(out, INDEX_VERSION)
+						.write(sorted, checksum);
+			}
+
+			// git expects the index to exist before the pack does
+			final String name = "pack-" + ObjectId.fromRaw(checksum).name();
+			final File pack = new File(packDir, name + ".pack");
+			final File index = new File(packDir, name + ".idx");
+			if (!tmpIndex.renameTo(index) || !tmpPack.renameTo(pack))
+				throw new IOException("cannot rename " + tmpPack + " to "
+						+ pack.getName());
+			pack.setReadOnly();
+			index.setReadOnly();
+			db.openPack(pack);
+		} finally {
+			tmpPack.delete();
+			tmpIndex.delete();
+		}
+		discard();
+	}
+
+	private byte[] writePack(final File file) throws IOException {
+		final MessageDigest md = Constants.newMessageDigest();
+		try (final OutputStream out = new BufferedOutputStream(
+				new FileOutputStream(file))) {
+			final byte[] header = new byte[HEADER_SIZE];
+			System.arraycopy(Constants.PACK_SIGNATURE, 0, header, 0, 4);
+			NB.encodeInt32(header, 4, PACK_VERSION);
+			NB.encodeInt32(header, 8, objects.size());
+			out.write(header);
+			md.update(header);
+
+			if (inMemory) {
+				out.write(buffer.array(), 0, buffer.size());
+				md.update(buffer.array(), 0, buffer.size());
+			} else {
+				tempOut.flush();
+				try (final InputStream in = new FileInputStream(tempFile)) {
+					final byte[] buf = new byte[64 * 1024];
+					int n;
+					while ((n = in.read(buf)) > 0) {
+						out.write(buf, 0, n);
+						md.update(buf, 0, n);
+					}
+				}
+			}
+
+			final byte[] checksum = md.digest();
+			out.write(checksum);
+			return checksum;
+		}
+	}
+
+	/** Throws away all objects that haven't been flushed. */
+	private void discard() {
+		objects.clear();
+		length = 0;
+		buffer = null;
+		if (tempOut != null) {
+			try {
+				tempOut.close();
+			} catch (final IOException e) {
+				// we're deleting it anyway
+			}
+			tempOut = null;
+		}
+		if (tempFile != null) {
+			tempFile.delete();
+			tempFile = null;
+		}
+	}
+
+	@Override
+	public void close() {
+		discard();
+		if (dbReader != null) {
+			dbReader.close();
+			dbReader = null;
+		}
+		if (deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+	}
+
+	@Override
+	public PackParser newPackParser(final InputStream in) throws IOException {
+		// incoming packs are already packs; nothing to gain here
+		return repo.newObjectInserter().newPackParser(in);
+	}
+
+	@Override
+	public ObjectReader newReader() {
+		return new Reader();
+	}
+
+	private byte[] readBack(final Entry e) throws IOException {
+		final byte[] packed = new byte[e.packedLength];
+		final long offset = e.getOffset() - HEADER_SIZE;
+		if (inMemory)
+			System.arraycopy(buffer.array(), (int) offset, packed, 0,
+					packed.length);
+		else {
+			tempOut.flush();
+			try (final RandomAccessFile raf = new RandomAccessFile(tempFile,
+					"r")) {
+				raf.seek(offset);
+				raf.readFully(packed);
+			}
+		}
+
+		// skip the variable-length object header, then inflate the rest
+		int pos = 0;
+		while ((packed[pos] & 0x80) != 0)
+			pos++;
+		pos++;
+		final Inflater inf = new Inflater();
+		try {
+			inf.setInput(packed, pos, packed.length - pos);
+			final byte[] data = new byte[(int) e.size];
+			final int n = inf.inflate(data);
+			if (n != data.length || !inf.finished())
+				throw new IOException("corrupt object " + e.name());
+			return data;
+		} catch (final DataFormatException ex) {
+			throw new IOException("corrupt object " + e.name(), ex);
+		} finally {
+			inf.end();
+		}
+	}
+
+	private static class Entry extends PackedObjectInfo {
+		private final int type;
+		private final long size;
+		private int packedLength;
+
+		private Entry(final AnyObjectId id, final int type, final long size) {
+			super(id);
+			this.type = type;
+			this.size = size;
+		}
+	}
+
+	/** {@link ByteArrayOutputStream} that gives access to its buffer. */
+	private static class Buffer extends ByteArrayOutputStream {
+		private Buffer() {
+			super(64 * 1024);
+		}
+
+		private byte[] array() {
+			return buf;
+		}
+	}
+
+	/** Reads objects that haven't been flushed yet, and the repo's objects. */
+	private class Reader extends ObjectReader {
+		private final ObjectReader delegate = db.newReader();
+
+		@Override
+		public ObjectReader newReader() {
+			return new Reader();
+		}
+
+		@Override
+		public Collection<ObjectId> resolve(final AbbreviatedObjectId id)
+				throws IOException {
+			final Collection<ObjectId> res = new HashSet<>(
+					delegate.resolve(id));
+			for (final ObjectId o : objects)
+				if (id.prefixCompare(o) == 0 && !res.contains(o))
+					res.add(o);
+			return res;
+		}
+
+		@Override
+		public ObjectLoader open(final AnyObjectId id, final int typeHint)
+				throws MissingObjectException, IncorrectObjectTypeException,
+				IOException {
+			final Entry e = objects.get(id);
+			if (e == null)
+				return delegate.open(id, typeHint);
+			if (typeHint != OBJ_ANY && e.type != typeHint)
+				throw new IncorrectObjectTypeException(id.copy(), typeHint);
+			return new ObjectLoader.SmallObject(e.type, readBack(e));
+		}
+
+		@Override
+		public Set<ObjectId> getShallowCommits() throws IOException {
+			return delegate.getShallowCommits();
+		}
+
+		@Override
+		public ObjectInserter getCreatedFromInserter() {
+			return PackInserter.this;
+		}
+
+		@Override
+		public void close() {
+			delegate.close();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package bwfdm.sara.transfer;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import bwfdm.sara.Config;
+import bwfdm.sara.db.ConfigDatabase;
+import bwfdm.sara.git.ArchiveProject;
+import bwfdm.sara.git.ArchiveRepo;
+import bwfdm.sara.publication.PushJob;
+import bwfdm.sara.publication.PushJobState;
+import bwfdm.sara.publication.db.PublicationDatabase;
+
+/**
+ * Cleans up after {@link PushTask PushTasks} that were killed by a restart,
+ * using the {@link PushJob} records they leave in the database. Pushes that
+ * had already recorded their item are completed by committing the archive
+ * project; all others are rolled back by deleting the half-created project.
+ * The temporary clone is gone after a restart, so pushing can never be
+ * resumed halfway through.
+ * <p>
+ * Both operations are idempotent, so a recovery that is itself interrupted
+ * just continues on the next startup.
+ */
+@Component
+public class PushJobRecovery {
+	private static final Log logger = LogFactory.getLog(PushJobRecovery.class);
+
+	@Autowired
+	private Config config;
+
+	/**
+	 * Collects the interrupted pushes during startup, before any new
+	 * {@link PushTask} can start, but recovers them in the background so that
+	 * an unreachable archive doesn't delay startup.
+	 */
+	@PostConstruct
+	public void recoverInBackground() {
+		final List<PushJob> jobs;
+		try {
+			jobs = config.getPublicationDatabase().getList(PushJob.class);
+		} catch (final RuntimeException e) {
+			logger.error("cannot list interrupted pushes", e);
+			return;
+		}
+		if (jobs.isEmpty())
+			return;
+
+		final Thread recovery = new Thread("push job recovery") {
+			@Override
+			public void run() {
+				recover(jobs);
+			};
+		};
+		recovery.setDaemon(true);
+		recovery.start();
+	}
+
+	/** Rolls back or completes the given interrupted pushes. */
+	void recover(final List<PushJob> jobs) {
+		final PublicationDatabase pubDB = config.getPublicationDatabase();
+		final ConfigDatabase configDB = config.getConfigDatabase();
+		final Map<UUID, ArchiveRepo> archives = new HashMap<>();
+		for (final PushJob job : jobs) {
+			try {
+				ArchiveRepo archive = archives.get(job.archive_uuid);
+				if (archive == null) {
+					archive = configDB.newGitArchive(configDB
+							.getGitArchive(job.archive_uuid.toString()));
+					archives.put(job.archive_uuid, archive);
+				}
+				recover(job, archive);
+				pubDB.deleteFromDB(job);
+			} catch (final RuntimeException e) {
+				// keep the record, so we try again next time
+				logger.error("cannot recover interrupted push of project "
+						+ job.project_id, e);
+			}
+		}
+	}
+
+	private static void recover(final PushJob job, final ArchiveRepo archive) {
+		final ArchiveProject project = archive.getProject(job.project_id,
+				job.is_public);
+		if (project == null) {
+			if (job.getState() == PushJobState.RECORDED)
+				// the item exists and points to the project, so losing the
+				// project loses the archived data
+				logger.error("item " + job.item_uuid + " points to project "
+						+ job.project_id + ", which doesn't exist");
+			else
+				// never created, or already deleted by a previous recovery
+				logger.info("interrupted push of project " + job.project_id
+						+ " left nothing to clean up");
+			return;
+		}
+
+		if (job.getState() == PushJobState.RECORDED) {
+			// item already points to the project, so keep it. commit() is a
+			// no-op if it has already completed.
+			project.commit();
+			logger.info("completed interrupted push of project "
+					+ job.project_id + " for item " + job.item_uuid);
+		} else if (!project.isCommitted()) {
+			project.rollback();
+			logger.info("rolled back interrupted push of project "
+					+ job.project_id + " in state " + job.state);
+		}
+	}
+}
@@ -5,6 +5,7 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
 
@@ -16,8 +17,9 @@ import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.lib.CommitBuilder;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.lib.PersonIdent;
-import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.URIish;
 
@@ -39,6 +41,8 @@ import bwfdm.sara.project.LicensesInfo.LicenseInfo;
 import bwfdm.sara.project.Name;
 import bwfdm.sara.project.Ref;
 import bwfdm.sara.publication.Item;
+import bwfdm.sara.publication.PushJob;
+import bwfdm.sara.publication.PushJobState;
 import bwfdm.sara.publication.db.PublicationDatabase;
 
 /** Pushes a repository to a git archive. */
@@ -47,6 +51,7 @@ public class PushTask extends Task {
 	private static final String CREATE_PROJECT = "Creating project in archive";
 	private static final String COMMIT_META = "Committing metadata to git archive";
 	private static final String CREATE_METADATA = "Recording metadata for publication";
+	private static final String EXPORT_SNAPSHOT = "Creating snapshot for publication";
 	private static final ISO8601DateFormat ISO8601 = new ISO8601DateFormat();
 	private static final String METADATA_FILENAME = "submitted_metadata.xml";
 	private static final String TARGET_REMOTE = "target";
@@ -58,12 +63,15 @@ public class PushTask extends Task {
 	private final ArchiveJob job;
 	private final ArchiveRepo archive;
 	private final PublicationDatabase pubDB;
+	private final ExportStore exports;
 
 	private ArchiveProject project;
 	private UUID itemUUID;
 	private Map<Ref, String> heads;
 	private Date now;
 	private Item item;
+	private PushJob pushJob;
+	private boolean inUse;
 
 	/**
 	 * @param job
@@ -74,114 +82,222 @@ public class PushTask extends Task {
 	 * @param pubDB
 	 *            handle to the publication database for storing the metadata of
 	 *            the archived item
+	 * @param exports
+	 *            {@link ExportStore} for the snapshot that will later be
+	 *            deposited in the publication repository
 	 */
 	public PushTask(final ArchiveJob job, final ArchiveRepo archive,
-			final PublicationDatabase pubDB) {
+			final PublicationDatabase pubDB, final ExportStore exports) {
 		this.job = job;
 		this.archive = archive;
 		this.pubDB = pubDB;
-		declareSteps(COMMIT_META, CREATE_PROJECT, PUSH_REPO, CREATE_METADATA);
+		this.exports = exports;
+		// protect the repo from eviction while we're queued, too
+		job.clone.beginUse();
+		inUse = true;
+		declareSteps(COMMIT_META, CREATE_PROJECT, PUSH_REPO, CREATE_METADATA,
+				EXPORT_SNAPSHOT);
+	}
+
+	@Override
+	protected int getPriority() {
+		// a push is the last step before the user is done, so it should run
+		// before clones, which are the first step
+		return 1;
+	}
+
+	private void endUse() {
+		synchronized (this) {
+			if (!inUse)
+				return;
+			inUse = false;
+		}
+		job.clone.endUse();
 	}
 
 	@Override
 	protected void cleanup() {
-		if (project == null)
+		endUse();
+		if (pushJob != null && pushJob.getState() == PushJobState.RECORDED) {
+			// the item already points to the project, so it has to stay. if
+			// commit fails again, keep the job so that PushJobRecovery
+			// completes it on next startup.
+			try {
+				if (!project.isCommitted())
+					project.commit();
+			} catch (final RuntimeException e) {
+				logger.error("cannot commit project " + pushJob.project_id
+						+ " of item " + itemUUID
+						+ "; leaving it for recovery", e);
+				project = null;
+				pushJob = null;
+				return;
+			}
+			project = null;
+			finishJob();
 			return;
-		if (!project.isCommitted())
-			project.rollback();
-		project = null;
+		}
+
+		if (project != null) {
+			if (!project.isCommitted())
+				project.rollback();
+			project = null;
+		}
+		// only forget the job once the project is really gone. if rollback
+		// fails, PushJobRecovery retries on next startup.
+		finishJob();
 	}
 
 	@Override
 	protected void execute() throws GitAPIException, URISyntaxException,
 			IOException, ProjectExistsException {
+		try {
+			pushRepo();
+		} finally {
+			endUse();
+		}
+	}
+
+	private void pushRepo() throws GitAPIException, URISyntaxException,
+			IOException, ProjectExistsException {
 		now = new Date();
 		beginTask(COMMIT_META, job.selectedRefs.size());
 		commitMetadataToRepo();
 
 		final String id = Config.getRandomID();
 		beginTask(CREATE_PROJECT, 1);
+		// record the ID before creating the project, so that it can be found
+		// and deleted if we get killed while creating it
+		startJob(id);
 		project = archive.createProject(id, job.access == ArchiveAccess.PUBLIC,
 				job.meta);
+		updateJob(PushJobState.CREATED);
 
 		beginTask(PUSH_REPO, 1);
 		pushRepoToArchive();
+		updateJob(PushJobState.PUSHED);
 
 		// record metadata first in case commit() fails. metadata without an
 		// item is better than an item we don't even know exists. archive
 		// projects may be visible publicly, metadata items aren't.
 		beginTask(CREATE_METADATA, 1);
+		// marks the job RECORDED in the same transaction. from then on, a
+		// restart completes the push instead of rolling it back: the item is
+		// permanent, so the project should be too.
 		itemUUID = createItemInDB(project.getWebURL(), job.meta,
 				job.access == ArchiveAccess.PUBLIC);
 
-		// move to permanent storage
-		// FIXME what should we do if this fails?
+		// move to permanent storage. if this fails, cleanup() retries, and
+		// failing that, PushJobRecovery on next startup.
 		project.commit();
+		finishJob();
+
+		// the snapshot is only needed for publication, which works without
+		// it as well. thus failing to create it doesn't fail the push.
+		beginTask(EXPORT_SNAPSHOT, heads.size());
+		try {
+			exportSnapshot();
+		} catch (final IOException e) {
+			logger.warn("cannot create snapshot of item " + itemUUID, e);
+		}
 		// now that we're done, get rid of the temporary clone
-		// TODO when implementing ZIP file creation, don't dispose repo here!
-		// instead, dispose the Project after transferring the item, and make
-		// sure disposing calls Project.disposeTransferRepo().
 		job.clone.dispose();
 	}
 
+	private void exportSnapshot() throws IOException {
+		final Repository repo = job.clone.getRepo();
+		final Map<String, ObjectId> commits = new LinkedHashMap<>();
+		for (final Ref r : job.selectedRefs)
+			commits.put(r.path, repo.exactRef(heads.get(r)).getObjectId());
+		exports.create(itemUUID, repo, commits, this);
+	}
+
+	private void startJob(final String projectID) {
+		final PushJob pj = new PushJob();
+		pj.archive_uuid = UUID.fromString(job.archive.id);
+		pj.project_id = projectID;
+		pj.is_public = job.access == ArchiveAccess.PUBLIC;
+		pj.setState(PushJobState.STARTED);
+		pj.date_created = now;
+		pj.date_last_modified = now;
+		pushJob = pubDB.insertInDB(pj);
+	}
+
+	private void updateJob(final PushJobState state) {
+		pushJob.setState(state);
+		pubDB.updateInDB(pushJob);
+	}
+
+	private void finishJob() {
+		if (pushJob == null)
+			return;
+		pubDB.deleteFromDB(pushJob);
+		pushJob = null;
+	}
+
 	private void commitMetadataToRepo() throws IOException {
 		final TransferRepo repo = job.clone;
 		final String version = job.meta.version;
-		final ObjectId versionFile = repo.insertBlob(version);
 		final PersonIdent sara = archive.getMetadataCommitter();
 
+		// all metadata commits go into a single pack. the refs can only be
+		// updated once that pack has been flushed.
+		final Map<Ref, ObjectId> commits = new HashMap<>();
+		try (final ObjectInserter ins = repo.newObjectInserter()) {
+			final ObjectId versionFile = repo.insertBlob(ins, version);
+			for (Ref ref : job.selectedRefs) {
+				final LicenseInfo license = job.licensesInfo.getLicense(ref);
+				final License replace = license.getReplacementLicense();
+				final ObjectId licenseFile;
+				if (replace != null) {
+					final String data = job.config.getLicenseText(replace.id);
+					// TODO replace placeholders in license text
+					licenseFile = repo.insertBlob(ins, data);
+				} else
+					licenseFile = license.getLicenseFileToKeep().hash;
+				final String metaXML = getMetadataXML(
+						license.getEffectiveLicense().id);
+
+				final Map<String, ObjectId> metaFiles = new HashMap<>(4);
+				// FIXME version should probably go into meta.xml instead
+				metaFiles.put(MetadataExtractor.VERSION_FILE, versionFile);
+				metaFiles.put(METADATA_FILENAME, repo.insertBlob(ins, metaXML));
+				// canonicalize license filename. that is, delete the existing
+				// license file if we don't like its name, and always create one
+				// with the proper name.
+				final LicenseFile existingLicense = job.getDetectedLicense(ref);
+				if (existingLicense != null && !existingLicense.path
+						.equals(MetadataExtractor.PREFERRED_LICENSE_FILE))
+					metaFiles.put(existingLicense.path, null);
+				metaFiles.put(MetadataExtractor.PREFERRED_LICENSE_FILE,
+						licenseFile);
+
+				final CommitBuilder commit = new CommitBuilder();
+				commit.setCommitter(sara);
+				commit.setAuthor(sara);
+				commit.setMessage("archive version " + version);
+				commit.addParentId(repo.getCommit(ref).getId());
+				commit.setTreeId(repo.updateFiles(ins, ref, metaFiles));
+				commits.put(ref, repo.insertCommit(ins, commit));
+			}
+			ins.flush();
+		}
+
 		heads = new HashMap<Ref, String>();
+		// log ref update to keep the old objects around (faster clone, though
+		// at this point another clone is fairly unlikely. in fact, we're
+		// usually about to delete the entire repo here.)
+		final RefBatch batch = new RefBatch(repo.getRepo(),
+				"SARA metadata commit");
 		for (Ref ref : job.selectedRefs) {
-			final LicenseInfo license = job.licensesInfo.getLicense(ref);
-			final License replace = license.getReplacementLicense();
-			final ObjectId licenseFile;
-			if (replace != null) {
-				final String data = job.config.getLicenseText(replace.id);
-				// TODO replace placeholders in license text
-				licenseFile = repo.insertBlob(data);
-			} else
-				licenseFile = license.getLicenseFileToKeep().hash;
-			final String metaXML = getMetadataXML(
-					license.getEffectiveLicense().id);
-
-			final Map<String, ObjectId> metaFiles = new HashMap<>(4);
-			// FIXME version should probably go into meta.xml instead
-			metaFiles.put(MetadataExtractor.VERSION_FILE, versionFile);
-			metaFiles.put(METADATA_FILENAME, repo.insertBlob(metaXML));
-			// canonicalize license filename. that is, delete the existing
-			// license file if we don't like its name, and always create one
-			// with the proper name.
-			final LicenseFile existingLicense = job.getDetectedLicense(ref);
-			if (existingLicense != null && !existingLicense.path
-					.equals(MetadataExtractor.PREFERRED_LICENSE_FILE))
-				metaFiles.put(existingLicense.path, null);
-			metaFiles.put(MetadataExtractor.PREFERRED_LICENSE_FILE,
-					licenseFile);
-
-			final CommitBuilder commit = new CommitBuilder();
-			commit.setCommitter(sara);
-			commit.setAuthor(sara);
-			commit.setMessage("archive version " + version);
-			commit.addParentId(repo.getCommit(ref).getId());
-			commit.setTreeId(repo.updateFiles(ref, metaFiles));
-			final ObjectId commitId = repo.insertCommit(commit);
-
 			// this also kills annotated refs. see CloneTask.pushBackHeads() why
 			// that's probably ok. also note that this will NOT affect tags
 			// unless they have been added explicitly.
-			final RefUpdate ru = repo.getRepo()
-					.updateRef(Constants.R_REFS + ref.path);
-			ru.setCheckConflicting(false);
-			ru.setNewObjectId(commitId);
-			// log ref update to keep the old objects around (faster clone,
-			// though at this point another clone is fairly unlikely. in fact,
-			// we're usually about to delete the entire repo here.)
-			ru.setRefLogMessage("SARA metadata commit", true);
-			ru.forceUpdate();
-			CloneTask.checkUpdate(ru);
-
-			heads.put(ref, ru.getName());
+			final String path = Constants.R_REFS + ref.path;
+			batch.update(path, commits.get(ref));
+			heads.put(ref, path);
 		}
+		batch.execute();
 	}
 
 	private String getMetadataXML(final String licenseID) {
@@ -227,16 +343,24 @@ public class PushTask extends Task {
 		// add all tags, but only those that haven't been explicitly added
 		// already. setPushTags() adds all tags, even those that have already
 		// been added explicitly, and thus causes "Duplicate remote ref update
-		// is illegal" exceptions
-		for (final Ref r : job.clone.getTags())
-			if (!heads.containsKey(r))
-				spec.add(new RefSpec(Constants.R_REFS + r.path)
-						.setForceUpdate(true));
+		// is illegal" exceptions.
+		// in a shallow clone, the only tags point to head commits whose
+		// parents are missing, so the archive would reject them.
+		if (!job.clone.isShallow())
+			for (final Ref r : job.clone.getTags())
+				if (!heads.containsKey(r))
+					spec.add(new RefSpec(Constants.R_REFS + r.path)
+							.setForceUpdate(true));
 		push.setRefSpecs(spec);
 		push.setRemote(TARGET_REMOTE);
 
 		project.configureCredentials(push);
 		push.setProgressMonitor(this).call();
+
+		final StringBuilder pushed = new StringBuilder();
+		for (final RefSpec s : spec)
+			pushed.append(' ').append(s.getDestination());
+		pushJob.pushed_refs = pushed.toString().trim();
 	}
 
 	private UUID createItemInDB(final String webURL, final ArchiveMetadata meta,
@@ -265,7 +389,7 @@ public class PushTask extends Task {
 		i.date_created = now;
 		// TODO store the archive license in item to record consent?
 
-		this.item = pubDB.insert(i);
+		this.item = pubDB.insert(i, pushJob);
 		logger.info("Item submission succeeded with item uuid "
 				+ item.uuid.toString());
 		return item.uuid;
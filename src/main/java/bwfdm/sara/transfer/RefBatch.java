@@ -0,0 +1,217 @@
+package bwfdm.sara.transfer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jgit.internal.storage.file.LockFile;
+import org.eclipse.jgit.internal.storage.file.RefDirectory;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
+
+/**
+ * Collects forced ref updates and deletions, and applies them all at once.
+ * Updates go through a single {@link BatchRefUpdate}, which checks for name
+ * conflicts only once for all refs instead of once per ref.
+ * <p>
+ * JGit executes a batch as one {@link RefUpdate} per ref, though, and deleting
+ * a packed ref locks and rewrites the entire packed-refs file. Deleting
+ * thousands of packed tags that way takes minutes. In plain ref directories,
+ * deleted refs are therefore removed from packed-refs in a single write, and
+ * then their loose files and logs are deleted directly. This needs exclusive
+ * access to the refs, which the {@link TransferRepo} and the locked mirror
+ * have anyway.
+ * <p>
+ * Deletions are applied before updates, so a batch can replace a ref by
+ * another one below it, eg. {@code refs/tags/a} by {@code refs/tags/a/b}.
+ */
+class RefBatch {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Repository repo;
+	private final String message;
+	private final List<ReceiveCommand> updates = new ArrayList<>();
+	private final Set<String> deletes = new LinkedHashSet<>();
+
+	/**
+	 * @param repo
+	 *            the repository whose refs to change
+	 * @param message
+	 *            message for the reflog of each updated ref
+	 */
+	RefBatch(final Repository repo, final String message) {
+		this.repo = repo;
+		this.message = message;
+	}
+
+	/**
+	 * Points a ref to a different object, creating it if necessary. The update
+	 * is forced; the new object doesn't have to be a descendant.
+	 *
+	 * @param path
+	 *            full ref path, including {@link Constants#R_REFS} prefix
+	 */
+	void update(final String path, final ObjectId id) throws IOException {
+		final Ref ref = repo.exactRef(path);
+		final ObjectId old = ref != null && ref.getObjectId() != null ? ref
+				.getObjectId() : ObjectId.zeroId();
+		if (!old.equals(id))
+			updates.add(new ReceiveCommand(old, id, path,
+					old.equals(ObjectId.zeroId()) ? ReceiveCommand.Type.CREATE
+							: ReceiveCommand.Type.UPDATE_NONFASTFORWARD));
+	}
+
+	/**
+	 * Deletes a ref, no matter what it points to.
+	 *
+	 * @param path
+	 *            full ref path, including {@link Constants#R_REFS} prefix
+	 */
+	void delete(final String path) {
+		deletes.add(path);
+	}
+
+	/** @return <code>true</code> if there is nothing to do */
+	boolean isEmpty() {
+		return updates.isEmpty() && deletes.isEmpty();
+	}
+
+	/**
+	 * Applies all updates and deletions.
+	 *
+	 * @throws IOException
+	 *             if any of them fails. the others may have been applied
+	 *             anyway.
+	 */
+	void execute() throws IOException {
+		if (!deletes.isEmpty()) {
+			if (repo.getRefDatabase() instanceof RefDirectory)
+				deleteFromRefDirectory();
+			else
+				executeBatch(getDeleteCommands());
+		}
+		if (!updates.isEmpty())
+			executeBatch(updates);
+	}
+
+	private List<ReceiveCommand> getDeleteCommands() throws IOException {
+		final List<ReceiveCommand> commands = new ArrayList<>(deletes.size());
+		for (final String path : deletes) {
+			final Ref ref = repo.exactRef(path);
+			if (ref != null && ref.getObjectId() != null)
+				commands.add(new ReceiveCommand(ref.getObjectId(),
+						ObjectId.zeroId(), path, ReceiveCommand.Type.DELETE));
+		}
+		return commands;
+	}
+
+	private void executeBatch(final List<ReceiveCommand> commands)
+			throws IOException {
+		final BatchRefUpdate batch = repo.getRefDatabase().newBatchUpdate();
+		batch.setAllowNonFastForwards(true);
+		// file repositories don't support atomic updates, and then JGit
+		// refuses to do anything at all if asked to be atomic
+		batch.setAtomic(false);
+		// log ref update to keep the old objects around. this silently does
+		// nothing for tags.
+		batch.setRefLogMessage(message, true);
+		batch.addCommand(commands);
+		try (final RevWalk walk = new RevWalk(repo)) {
+			// checks whether the update is a fast-forward
+			CommitGraph.assumeShallow(walk);
+			batch.execute(walk, NullProgressMonitor.INSTANCE);
+		}
+		for (final ReceiveCommand cmd : commands)
+			if (cmd.getResult() != ReceiveCommand.Result.OK)
+				throw new IOException("error " + cmd.getResult() + " updating "
+						+ cmd.getRefName()
+						+ (cmd.getMessage() != null ? ": " + cmd.getMessage()
+								: ""));
+	}
+
+	private void deleteFromRefDirectory() throws IOException {
+		final File gitDir = repo.getDirectory();
+		removePacked(new File(gitDir, Constants.PACKED_REFS));
+		final File logs = new File(gitDir, Constants.LOGS);
+		for (final String path : deletes) {
+			deleteFile(gitDir, path);
+			deleteFile(logs, path);
+		}
+		// the ref directory caches both, and doesn't expect others to modify
+		// them
+		repo.getRefDatabase().refresh();
+	}
+
+	/**
+	 * Rewrites packed-refs without the deleted refs, keeping everything else
+	 * exactly as it is. Each packed ref is a line {@code <id> <name>},
+	 * optionally followed by a line {@code ^<peeled id>} for annotated tags.
+	 */
+	private void removePacked(final File packed) throws IOException {
+		final LockFile lock = new LockFile(packed);
+		if (!lock.lock())
+			throw new IOException("cannot lock " + packed);
+		try {
+			boolean changed = false;
+			try (final BufferedReader in = new BufferedReader(
+					new InputStreamReader(new FileInputStream(packed), UTF8));
+					final Writer out = new OutputStreamWriter(
+							lock.getOutputStream(), UTF8)) {
+				boolean skip = false;
+				for (String line = in.readLine(); line != null; line = in
+						.readLine()) {
+					if (!line.startsWith("#") && !line.startsWith("^")) {
+						skip = deletes.contains(line.substring(line
+								.indexOf(' ') + 1));
+						changed |= skip;
+					}
+					if (!skip || line.startsWith("#")) {
+						out.write(line);
+						out.write('\n');
+					}
+				}
+			} catch (final FileNotFoundException e) {
+				return; // nothing packed at all
+			}
+			if (changed && !lock.commit())
+				throw new IOException("cannot write " + packed);
+		} finally {
+			lock.unlock(); // does nothing after commit
+		}
+	}
+
+	/**
+	 * Deletes a loose ref or log, and any directories that become empty
+	 * because of that.
+	 */
+	private static void deleteFile(final File base, final String path)
+			throws IOException {
+		final File file = new File(base, path);
+		if (!file.delete() && file.exists())
+			throw new IOException("cannot delete " + file);
+		// refs/ itself must stay, even if empty
+		final File top = new File(base, Constants.R_REFS);
+		for (File dir = file.getParentFile(); !dir.equals(top)
+				&& dir.getPath().startsWith(top.getPath()); dir = dir
+				.getParentFile())
+			if (!dir.delete())
+				break; // not empty, or already gone
+	}
+}
@@ -0,0 +1,158 @@
+package bwfdm.sara.transfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.jgit.api.TransportCommand;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.api.errors.TransportException;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.CredentialItem;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.URIish;
+import org.springframework.util.StreamUtils;
+
+/**
+ * Fetches refs with depth 1, ie. only their head commits, using the git
+ * command line client. JGit only supports shallow fetches from 6.3 on, which
+ * needs Java 11. It can read the resulting shallow repository, though: walks
+ * stop at the commits listed in its {@code shallow} file.
+ * <p>
+ * Credentials are set like for any other {@link TransportCommand}. They are
+ * passed to git in environment variables, so that they never appear on the
+ * command line. Tags pointing to the fetched commits are followed, as git does
+ * by default.
+ */
+class ShallowFetchCommand
+		extends TransportCommand<ShallowFetchCommand, Void> {
+	private static final Log logger = LogFactory
+			.getLog(ShallowFetchCommand.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String GIT = "git";
+	private static final String USERNAME_VAR = "SARA_GIT_USERNAME";
+	private static final String PASSWORD_VAR = "SARA_GIT_PASSWORD";
+	/** answers git's credential requests from the environment variables. */
+	private static final String CREDENTIAL_HELPER = "!f() { test \"$1\" = get"
+			+ " && echo \"username=$" + USERNAME_VAR + "\""
+			+ " && echo \"password=$" + PASSWORD_VAR + "\"; }; f";
+
+	private String remote;
+	private List<RefSpec> refSpecs = new ArrayList<>();
+
+	ShallowFetchCommand(final Repository repo) {
+		super(repo);
+	}
+
+	/**
+	 * @param uri
+	 *            URI of the repository to fetch from
+	 * @return <code>true</code> if the URI can be fetched from shallowly.
+	 *         git and JGit handle SSH authentication differently, so only
+	 *         HTTP(S) and local repositories are supported.
+	 */
+	static boolean isSupported(final String uri) {
+		final String scheme;
+		try {
+			scheme = new URIish(uri).getScheme();
+		} catch (final URISyntaxException e) {
+			return false;
+		}
+		return "https".equals(scheme) || "http".equals(scheme)
+				|| "file".equals(scheme);
+	}
+
+	/**
+	 * @param remote
+	 *            URI of the repository to fetch from, which must be
+	 *            {@link #isSupported(String) supported}
+	 */
+	public ShallowFetchCommand setRemote(final String remote) {
+		checkCallable();
+		this.remote = remote;
+		return this;
+	}
+
+	public ShallowFetchCommand setRefSpecs(final List<RefSpec> specs) {
+		checkCallable();
+		refSpecs = new ArrayList<>(specs);
+		return this;
+	}
+
+	@Override
+	public Void call() throws GitAPIException {
+		checkCallable();
+		final List<String> cmd = new ArrayList<>();
+		cmd.add(GIT);
+		cmd.add("--git-dir=" + repo.getDirectory().getAbsolutePath());
+		// the empty helper discards any helpers configured system-wide
+		cmd.add("-c");
+		cmd.add("credential.helper=");
+		cmd.add("-c");
+		cmd.add("credential.helper=" + CREDENTIAL_HELPER);
+		// GC would delete the objects of earlier rewrites
+		cmd.add("-c");
+		cmd.add("gc.auto=0");
+		cmd.add("fetch");
+		cmd.add("--depth=1");
+		cmd.add("--no-recurse-submodules");
+		cmd.add("--quiet");
+		cmd.add(remote);
+		for (final RefSpec spec : refSpecs)
+			cmd.add(spec.toString());
+
+		final ProcessBuilder builder = new ProcessBuilder(cmd);
+		builder.redirectErrorStream(true);
+		final Map<String, String> env = builder.environment();
+		env.put("GIT_TERMINAL_PROMPT", "0");
+		setCredentials(env);
+
+		final String output;
+		final int status;
+		try {
+			final Process git = builder.start();
+			try (final InputStream out = git.getInputStream()) {
+				git.getOutputStream().close();
+				output = StreamUtils.copyToString(out, UTF8).trim();
+				status = git.waitFor();
+			} catch (final InterruptedException e) {
+				git.destroy();
+				Thread.currentThread().interrupt();
+				throw new TransportException("shallow fetch interrupted", e);
+			}
+		} catch (final IOException e) {
+			throw new TransportException("cannot run " + GIT, e);
+		}
+		if (status != 0)
+			throw new TransportException("shallow fetch from " + remote
+					+ " failed with status " + status + ": " + output);
+		if (!output.isEmpty())
+			logger.info("shallow fetch from " + remote + ": " + output);
+		setCallable(false);
+		return null;
+	}
+
+	private void setCredentials(final Map<String, String> env)
+			throws TransportException {
+		if (credentialsProvider == null)
+			return;
+		final CredentialItem.Username user = new CredentialItem.Username();
+		final CredentialItem.Password password = new CredentialItem.Password();
+		try {
+			if (!credentialsProvider.supports(user, password)
+					|| !credentialsProvider.get(new URIish(remote), user,
+							password))
+				return;
+		} catch (final URISyntaxException e) {
+			throw new TransportException("invalid URI " + remote, e);
+		}
+		env.put(USERNAME_VAR, user.getValue());
+		env.put(PASSWORD_VAR, new String(password.getValue()));
+	}
+}
@@ -0,0 +1,313 @@
+package bwfdm.sara.transfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+/**
+ * Writes the trees of a set of commits into a ZIP or tar.gz archive, reading
+ * all files straight from the object database. Nothing is checked out, and
+ * file contents are streamed so that huge files never have to fit into memory.
+ * <p>
+ * The output only depends on the commits, so exporting the same commits twice
+ * gives exactly the same bytes.
+ */
+public class SnapshotExporter {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	public enum Format {
+		ZIP("zip", "application/zip"), //
+		TAR_GZ("tar.gz", "application/gzip");
+
+		/** filename extension, without the leading dot */
+		public final String extension;
+		/** MIME type for downloads and deposits */
+		public final String mimeType;
+
+		private Format(final String extension, final String mimeType) {
+			this.extension = extension;
+			this.mimeType = mimeType;
+		}
+
+		/**
+		 * @param extension
+		 *            a filename extension as in {@link #extension}
+		 * @return the corresponding {@link Format}
+		 */
+		public static Format forExtension(final String extension) {
+			for (final Format f : values())
+				if (f.extension.equals(extension))
+					return f;
+			throw new IllegalArgumentException(
+					"unsupported export format " + extension);
+		}
+	}
+
+	private final Repository repo;
+
+	/**
+	 * @param repo
+	 *            the repository to read all objects from
+	 */
+	public SnapshotExporter(final Repository repo) {
+		this.repo = repo;
+	}
+
+	/**
+	 * Writes the archive. Each commit's tree goes into its own top-level
+	 * directory.
+	 *
+	 * @param commits
+	 *            map from directory name to the commit whose tree goes into
+	 *            that directory
+	 * @param format
+	 *            archive format to write
+	 * @param out
+	 *            stream to write the archive to. it is finished but not
+	 *            closed.
+	 * @param pm
+	 *            {@link ProgressMonitor} to report progress to, one unit per
+	 *            commit
+	 */
+	public void write(final Map<String, ObjectId> commits, final Format format,
+			final OutputStream out, final ProgressMonitor pm)
+			throws IOException {
+		final Archive archive = format == Format.ZIP ? new Zip(out)
+				: new TarGz(out);
+		try (final ObjectReader reader = repo.newObjectReader();
+				final RevWalk rw = new RevWalk(reader)) {
+			for (final Entry<String, ObjectId> c : commits.entrySet()) {
+				final RevCommit commit = rw.parseCommit(c.getValue());
+				// commit time instead of current time, for reproducibility
+				final long time = commit.getCommitTime() * 1000L;
+				writeTree(reader, commit, c.getKey() + "/", time, archive);
+				pm.update(1);
+			}
+		}
+		archive.finish();
+	}
+
+	private static void writeTree(final ObjectReader reader,
+			final RevCommit commit, final String prefix, final long time,
+			final Archive archive) throws IOException {
+		try (final TreeWalk walk = new TreeWalk(reader)) {
+			walk.addTree(commit.getTree());
+			walk.setRecursive(true);
+			while (walk.next()) {
+				final FileMode mode = walk.getFileMode(0);
+				if (mode == FileMode.GITLINK)
+					continue; // submodule; nothing we could put there
+				final ObjectLoader loader = reader.open(walk.getObjectId(0),
+						Constants.OBJ_BLOB);
+				final String path = prefix + walk.getPathString();
+				if (mode == FileMode.SYMLINK)
+					archive.writeSymlink(path,
+							new String(loader.getCachedBytes(), UTF8), time);
+				else
+					archive.writeFile(path,
+							mode == FileMode.EXECUTABLE_FILE, loader, time);
+			}
+		}
+	}
+
+	private static void copy(final ObjectLoader loader, final OutputStream out)
+			throws IOException {
+		// openStream() streams large objects instead of loading them
+		try (final InputStream in = loader.openStream()) {
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			int n;
+			while ((n = in.read(buffer)) >= 0)
+				out.write(buffer, 0, n);
+		}
+	}
+
+	private interface Archive {
+		void writeFile(String path, boolean executable, ObjectLoader loader,
+				long time) throws IOException;
+
+		void writeSymlink(String path, String target, long time)
+				throws IOException;
+
+		void finish() throws IOException;
+	}
+
+	private static class Zip implements Archive {
+		private final ZipOutputStream zip;
+
+		private Zip(final OutputStream out) {
+			zip = new ZipOutputStream(out, UTF8);
+		}
+
+		@Override
+		public void writeFile(final String path, final boolean executable,
+				final ObjectLoader loader, final long time) throws IOException {
+			// java.util.zip cannot record unix permissions, so the executable
+			// bit is lost. sizes beyond 4 GiB automatically use ZIP64.
+			final ZipEntry entry = new ZipEntry(path);
+			entry.setTime(time);
+			zip.putNextEntry(entry);
+			copy(loader, zip);
+			zip.closeEntry();
+		}
+
+		@Override
+		public void writeSymlink(final String path, final String target,
+				final long time) throws IOException {
+			// no symlinks either. store the link target as file contents,
+			// which is what git itself does on filesystems without symlinks.
+			final ZipEntry entry = new ZipEntry(path);
+			entry.setTime(time);
+			zip.putNextEntry(entry);
+			zip.write(target.getBytes(UTF8));
+			zip.closeEntry();
+		}
+
+		@Override
+		public void finish() throws IOException {
+			zip.finish();
+		}
+	}
+
+	/** Minimal POSIX (pax) tar writer. */
+	private static class TarGz implements Archive {
+		private static final int BLOCK = 512;
+		private static final int NAME_LENGTH = 100;
+		/** largest size that fits into the 11-digit octal size field */
+		private static final long MAX_OCTAL_SIZE = 077777777777L;
+		private static final byte TYPE_FILE = '0';
+		private static final byte TYPE_SYMLINK = '2';
+		private static final byte TYPE_PAX = 'x';
+
+		private final GZIPOutputStream gz;
+
+		private TarGz(final OutputStream out) throws IOException {
+			gz = new GZIPOutputStream(out, BUFFER_SIZE);
+		}
+
+		@Override
+		public void writeFile(final String path, final boolean executable,
+				final ObjectLoader loader, final long time) throws IOException {
+			final long size = loader.getSize();
+			writeHeader(path, null, size, executable ? 0755 : 0644, TYPE_FILE,
+					time);
+			copy(loader, gz);
+			pad(size);
+		}
+
+		@Override
+		public void writeSymlink(final String path, final String target,
+				final long time) throws IOException {
+			writeHeader(path, target, 0, 0777, TYPE_SYMLINK, time);
+		}
+
+		private void writeHeader(final String path, final String link,
+				final long size, final int mode, final byte type,
+				final long time) throws IOException {
+			final byte[] name = path.getBytes(UTF8);
+			final byte[] target = link != null ? link.getBytes(UTF8)
+					: new byte[0];
+			// anything that doesn't fit into the fixed fields goes into a pax
+			// extended header, which takes precedence when extracting
+			final StringBuilder pax = new StringBuilder();
+			if (name.length > NAME_LENGTH)
+				appendPaxRecord(pax, "path", path);
+			if (target.length > NAME_LENGTH)
+				appendPaxRecord(pax, "linkpath", link);
+			if (size > MAX_OCTAL_SIZE)
+				appendPaxRecord(pax, "size", Long.toString(size));
+			if (pax.length() > 0) {
+				final byte[] data = pax.toString().getBytes(UTF8);
+				gz.write(header(truncate(("PaxHeader/" + path).getBytes(UTF8)),
+						new byte[0], data.length, 0644, TYPE_PAX, time));
+				gz.write(data);
+				pad(data.length);
+			}
+			gz.write(header(truncate(name), truncate(target),
+					Math.min(size, MAX_OCTAL_SIZE), mode, type, time));
+		}
+
+		private static void appendPaxRecord(final StringBuilder pax,
+				final String key, final String value) {
+			// "<length> <key>=<value>\n", where length includes itself
+			final int payload = (" " + key + "=" + value + "\n")
+					.getBytes(UTF8).length;
+			int length = payload + 1;
+			while (Integer.toString(length).length() + payload != length)
+				length++;
+			pax.append(length).append(' ').append(key).append('=')
+					.append(value).append('\n');
+		}
+
+		private static byte[] truncate(final byte[] name) {
+			if (name.length <= NAME_LENGTH)
+				return name;
+			return Arrays.copyOf(name, NAME_LENGTH);
+		}
+
+		private static byte[] header(final byte[] name, final byte[] link,
+				final long size, final int mode, final byte type,
+				final long time) {
+			final byte[] h = new byte[BLOCK];
+			System.arraycopy(name, 0, h, 0, name.length);
+			octal(h, 100, 8, mode);
+			octal(h, 108, 8, 0); // uid
+			octal(h, 116, 8, 0); // gid
+			octal(h, 124, 12, size);
+			octal(h, 136, 12, time / 1000);
+			h[156] = type;
+			System.arraycopy(link, 0, h, 157, link.length);
+			System.arraycopy("ustar\00000".getBytes(UTF8), 0, h, 257, 8);
+			// checksum is computed with the checksum field set to spaces
+			Arrays.fill(h, 148, 156, (byte) ' ');
+			long sum = 0;
+			for (final byte b : h)
+				sum += b & 0xff;
+			octal(h, 148, 7, sum);
+			return h;
+		}
+
+		/** writes a zero-padded, NUL-terminated octal number */
+		private static void octal(final byte[] h, final int offset,
+				final int length, final long value) {
+			final String digits = Long.toOctalString(value);
+			final int pad = length - 1 - digits.length();
+			for (int i = 0; i < pad; i++)
+				h[offset + i] = '0';
+			System.arraycopy(digits.getBytes(UTF8), 0, h, offset + pad,
+					digits.length());
+			h[offset + length - 1] = 0;
+		}
+
+		private void pad(final long size) throws IOException {
+			final int rest = (int) (size % BLOCK);
+			if (rest != 0)
+				gz.write(new byte[BLOCK - rest]);
+		}
+
+		@Override
+		public void finish() throws IOException {
+			// end of archive: two empty blocks
+			gz.write(new byte[2 * BLOCK]);
+			gz.finish();
+		}
+	}
+}
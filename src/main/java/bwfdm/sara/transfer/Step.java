@@ -9,6 +9,12 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 
 @JsonInclude(Include.NON_NULL)
 class Step {
+	/**
+	 * minimum time a step has to be running before reporting a rate, in
+	 * milliseconds. the first few updates are much too noisy.
+	 */
+	private static final long MIN_RATE_TIME = 2000;
+
 	@JsonProperty
 	public final String text;
 	@JsonProperty
@@ -17,9 +23,12 @@ class Step {
 	private int totalWork;
 	@JsonIgnore
 	private int currentWork;
+	@JsonIgnore
+	private long startTime;
 
 	public void start(final int totalWork) {
 		this.totalWork = totalWork;
+		startTime = System.currentTimeMillis();
 		status = Status.WORKING;
 	}
 
@@ -54,6 +63,34 @@ class Step {
 		return 1 - 1 / (float) Math.sqrt(currentWork);
 	}
 
+	/**
+	 * @return throughput of the running step, in work units (usually objects)
+	 *         per second, or <code>null</code> if not meaningful
+	 */
+	@JsonProperty
+	public Float getRate() {
+		if (status != Status.WORKING || currentWork == 0)
+			return null;
+		final long elapsed = System.currentTimeMillis() - startTime;
+		if (elapsed < MIN_RATE_TIME)
+			return null;
+		return currentWork * 1000f / elapsed;
+	}
+
+	/**
+	 * @return estimated time until the running step completes, in seconds, or
+	 *         <code>null</code> if it cannot be estimated
+	 */
+	@JsonProperty
+	public Integer getEta() {
+		if (totalWork == ProgressMonitor.UNKNOWN)
+			return null;
+		final Float rate = getRate();
+		if (rate == null)
+			return null;
+		return (int) Math.ceil(Math.max(totalWork - currentWork, 0) / rate);
+	}
+
 	@Override
 	public String toString() {
 		return text + " " + status + " @" + getProgress();
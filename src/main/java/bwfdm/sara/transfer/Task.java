@@ -28,6 +28,12 @@ public abstract class Task implements ProgressMonitor, Runnable {
 	private Exception exception;
 	private Step failedStep;
 	private Thread thread;
+	private TaskScheduler scheduler;
+	/**
+	 * incremented on every change of progress. no need to synchronize; a lost
+	 * increment just delays an update until the next change.
+	 */
+	private volatile long version;
 
 	protected void declareSteps(final List<String> steps) {
 		if (declaredSteps == null)
@@ -50,13 +56,59 @@ public abstract class Task implements ProgressMonitor, Runnable {
 		return exception;
 	}
 
-	public synchronized void start() {
-		// start at most once
-		if (started)
-			return;
-		thread = new Thread(this);
-		thread.start();
-		started = true;
+	/**
+	 * Queues the task for execution. The task starts running once the
+	 * {@link TaskScheduler} has a free worker for it.
+	 *
+	 * @param scheduler
+	 *            the global {@link TaskScheduler}
+	 * @param owner
+	 *            identifies the user who started the task, for limiting the
+	 *            number of tasks per user
+	 */
+	public void start(final TaskScheduler scheduler, final String owner) {
+		synchronized (this) {
+			// start at most once
+			if (started)
+				return;
+			started = true;
+			this.scheduler = scheduler;
+		}
+		scheduler.submit(this, owner);
+	}
+
+	/**
+	 * Determines the order in which queued tasks are started. Tasks with
+	 * higher priority start first. The default is 0.
+	 */
+	protected int getPriority() {
+		return 0;
+	}
+
+	/**
+	 * Checks whether the task is ready to be started. Tasks that aren't ready
+	 * stay in the queue even if there are free workers. The default
+	 * implementation always returns <code>true</code>.
+	 */
+	protected boolean isReady() {
+		return true;
+	}
+
+	/**
+	 * @return <code>true</code> if the task has finished, successfully or
+	 *         not. unlike {@link #isDone()}, this includes failed tasks.
+	 */
+	public synchronized boolean isFinished() {
+		return done;
+	}
+
+	/**
+	 * Waits until the task has finished, successfully or not. Returns
+	 * immediately if the task has never been started.
+	 */
+	public synchronized void waitUntilDone() throws InterruptedException {
+		while (started && !done)
+			wait();
 	}
 
 	@Override
@@ -77,6 +129,7 @@ public abstract class Task implements ProgressMonitor, Runnable {
 		endStep();
 		currentStep = findTask(title, totalWork);
 		currentStep.start(totalWork);
+		version++;
 	}
 
 	private void endStep() {
@@ -101,6 +154,24 @@ public abstract class Task implements ProgressMonitor, Runnable {
 	@Override
 	public void update(final int completed) {
 		currentStep.update(completed);
+		version++;
+	}
+
+	/**
+	 * @return a number that changes whenever the progress of the task
+	 *         changes, so that clients can send a new {@link TaskStatus} only
+	 *         when something has actually changed
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return position of the task in the {@link TaskScheduler}'s queue (1 for
+	 *         the next task to start), or 0 if it isn't waiting to be started
+	 */
+	public int getQueuePosition() {
+		return scheduler != null ? scheduler.getQueuePosition(this) : 0;
 	}
 
 	/** @return <code>true</code> if the task has finished successfully */
@@ -115,10 +186,20 @@ public abstract class Task implements ProgressMonitor, Runnable {
 	}
 
 	public void cancel() {
-		if (thread != null)
-			thread.interrupt();
 		synchronized (this) {
+			if (thread != null)
+				thread.interrupt();
 			cancelled = true;
+			version++;
+		}
+		// a task that is still queued doesn't have a thread that could clean
+		// up, so "run" it here. run() will notice that it has been cancelled
+		// and skip straight to the cleanup.
+		if (scheduler != null && scheduler.withdraw(this)) {
+			run();
+			return;
+		}
+		synchronized (this) {
 			if (!done)
 				return; // thread will do it
 		}
@@ -129,6 +210,11 @@ public abstract class Task implements ProgressMonitor, Runnable {
 	@Override
 	public final void run() {
 		try {
+			synchronized (this) {
+				if (cancelled)
+					return; // cancelled while queued; finally cleans up
+				thread = Thread.currentThread();
+			}
 			execute();
 		} catch (final Exception e) {
 			synchronized (this) {
@@ -136,12 +222,18 @@ public abstract class Task implements ProgressMonitor, Runnable {
 				exception = e;
 				failedStep = currentStep;
 			}
-			logger.debug(e);
+			// log it here, once, instead of every time someone looks at the
+			// status
+			logger.warn("exception in " + getClass().getSimpleName() + ": "
+					+ e.getClass().getSimpleName() + ": " + e.getMessage(), e);
 		} finally {
 			synchronized (this) {
 				// end the last step, finally setting checkmarks on everything
 				endStep();
+				thread = null;
 				done = true;
+				version++;
+				notifyAll();
 				if (!cancelled)
 					return;
 			}
@@ -171,15 +263,13 @@ public abstract class Task implements ProgressMonitor, Runnable {
 		private final List<Step> steps;
 		@JsonProperty
 		private final TaskErrorInfo error;
+		@JsonProperty
+		private final Integer queuePosition;
 
 		private TaskStatus() {
 			if (cancelled) {
 				status = StatusCode.ERROR;
 				if (exception != null) {
-					logger.warn("exception in "
-							+ Task.this.getClass().getSimpleName() + ": "
-							+ exception.getClass().getSimpleName() + ": "
-							+ exception.getMessage(), exception);
 					final String fail = failedStep != null ? failedStep.text
 							: null;
 					error = new TaskErrorInfo(exception, fail);
@@ -190,6 +280,8 @@ public abstract class Task implements ProgressMonitor, Runnable {
 				status = done ? StatusCode.SUCCESS : StatusCode.ACTIVE;
 			}
 			steps = Task.this.steps;
+			final int pos = getQueuePosition();
+			queuePosition = pos > 0 ? pos : null;
 		}
 	}
 
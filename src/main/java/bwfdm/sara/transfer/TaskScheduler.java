@@ -0,0 +1,211 @@
+package bwfdm.sara.transfer;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs {@link Task Tasks} on a bounded set of worker threads. Tasks wait in a
+ * queue until there is a free worker for their type, and until their owner
+ * (usually a user) has less than the maximum number of tasks running. Among
+ * the waiting tasks, those with higher {@link Task#getPriority() priority}
+ * are started first, and tasks of equal priority are started in the order
+ * they were submitted.
+ */
+public class TaskScheduler {
+	private static final Log logger = LogFactory.getLog(TaskScheduler.class);
+
+	private final TreeSet<Entry> queue = new TreeSet<>(new Comparator<Entry>() {
+		@Override
+		public int compare(final Entry a, final Entry b) {
+			if (a.priority != b.priority)
+				return Integer.compare(b.priority, a.priority);
+			return Long.compare(a.seq, b.seq);
+		}
+	});
+	private final Map<Task, Entry> entries = new HashMap<>();
+	private final Map<Class<? extends Task>, Integer> limits = new HashMap<>();
+	private final Map<Class<? extends Task>, Integer> running = new HashMap<>();
+	private final Map<String, Integer> perOwner = new HashMap<>();
+	private final ExecutorService workers;
+	private final int totalLimit;
+	private final int ownerLimit;
+	private int totalRunning;
+	private long seq;
+
+	/**
+	 * @param totalLimit
+	 *            maximum number of tasks running at the same time, across all
+	 *            types
+	 * @param ownerLimit
+	 *            maximum number of tasks that a single owner can have running
+	 *            at the same time
+	 */
+	public TaskScheduler(final int totalLimit, final int ownerLimit) {
+		this.totalLimit = totalLimit;
+		this.ownerLimit = ownerLimit;
+		// the limits above bound the number of threads, so a cached pool
+		// never grows beyond totalLimit
+		workers = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				return new Thread(r, "task worker " + count.incrementAndGet());
+			}
+		});
+	}
+
+	/**
+	 * Sets the maximum number of tasks of a given type that can run at the
+	 * same time. Types without an explicit limit are only bounded by the
+	 * total limit.
+	 */
+	public synchronized void setWorkers(final Class<? extends Task> type,
+			final int workers) {
+		limits.put(type, workers);
+	}
+
+	/**
+	 * Queues a task for execution. Called by
+	 * {@link Task#start(TaskScheduler, String)}; do not call directly.
+	 */
+	void submit(final Task task, final String owner) {
+		synchronized (this) {
+			final Entry entry = new Entry(task, owner, seq++);
+			queue.add(entry);
+			entries.put(task, entry);
+		}
+		dispatch();
+	}
+
+	/**
+	 * Removes a task from the queue, if it hasn't been started yet.
+	 *
+	 * @return <code>true</code> if the task was removed from the queue, ie.
+	 *         will never be run by the scheduler
+	 */
+	synchronized boolean withdraw(final Task task) {
+		final Entry entry = entries.get(task);
+		if (entry == null || !queue.remove(entry))
+			return false;
+		entries.remove(task);
+		return true;
+	}
+
+	/**
+	 * @return the number of tasks that will be started before the given task
+	 *         (plus one, so the next task to start has position 1), or 0 if
+	 *         the task isn't waiting in the queue
+	 */
+	synchronized int getQueuePosition(final Task task) {
+		final Entry entry = entries.get(task);
+		if (entry == null || !queue.contains(entry))
+			return 0;
+		// only count tasks that compete for the same workers
+		int pos = 1;
+		for (final Entry e : queue.headSet(entry))
+			if (e.type == entry.type)
+				pos++;
+		return pos;
+	}
+
+	private void dispatch() {
+		final List<Entry> start = new ArrayList<>();
+		synchronized (this) {
+			for (final Entry e : queue) {
+				if (totalRunning >= totalLimit)
+					break;
+				if (!canStart(e))
+					continue;
+				start.add(e);
+				increment(running, e.type, 1);
+				increment(perOwner, e.owner, 1);
+				totalRunning++;
+			}
+			queue.removeAll(start);
+		}
+
+		for (final Entry e : start)
+			workers.execute(e);
+	}
+
+	private boolean canStart(final Entry e) {
+		final Integer limit = limits.get(e.type);
+		if (limit != null && get(running, e.type) >= limit)
+			return false;
+		if (get(perOwner, e.owner) >= ownerLimit)
+			return false;
+		return e.task.isReady();
+	}
+
+	private synchronized void finished(final Entry e) {
+		entries.remove(e.task);
+		increment(running, e.type, -1);
+		increment(perOwner, e.owner, -1);
+		totalRunning--;
+	}
+
+	private static <K> int get(final Map<K, Integer> map, final K key) {
+		final Integer value = map.get(key);
+		return value != null ? value : 0;
+	}
+
+	private static <K> void increment(final Map<K, Integer> map, final K key,
+			final int delta) {
+		final int value = get(map, key) + delta;
+		if (value != 0)
+			map.put(key, value);
+		else
+			map.remove(key);
+	}
+
+	/** Shuts down all workers, interrupting running tasks. */
+	public void shutdown() {
+		workers.shutdownNow();
+	}
+
+	private class Entry implements Runnable {
+		private final Task task;
+		private final Class<? extends Task> type;
+		private final int priority;
+		private final String owner;
+		private final long seq;
+
+		private Entry(final Task task, final String owner, final long seq) {
+			this.task = task;
+			type = task.getClass();
+			priority = task.getPriority();
+			this.owner = owner;
+			this.seq = seq;
+		}
+
+		@Override
+		public void run() {
+			try {
+				task.run();
+			} catch (final RuntimeException e) {
+				// Task.run() catches everything; this is just to make sure the
+				// worker count stays correct
+				logger.error("uncaught exception in " + task, e);
+			} finally {
+				// clear a late interrupt so it doesn't hit the next task
+				Thread.interrupted();
+				finished(this);
+				// a free worker may allow queued tasks to start, and this task
+				// finishing may make others ready
+				dispatch();
+			}
+		}
+	}
+}
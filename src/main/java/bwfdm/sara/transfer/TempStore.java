@@ -0,0 +1,285 @@
+package bwfdm.sara.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.jgit.lib.Constants;
+
+import bwfdm.sara.Config;
+import bwfdm.sara.transfer.MirrorStore.Mirror;
+
+/**
+ * Manages the directories of all {@link TransferRepo TransferRepos}. Keeps
+ * their total size within a disk quota by evicting the least recently used
+ * ones that aren't in use by a {@link Task}. Evicted {@link TransferRepo
+ * TransferRepos} are marked outdated, so the next access has to clone again.
+ * <p>
+ * {@link TransferRepo TransferRepos} never survive a restart, so any leftover
+ * directories are deleted on startup.
+ */
+public class TempStore {
+	private static final Log logger = LogFactory.getLog(TempStore.class);
+	private static final String PREFIX = "r";
+	private static final Pattern ORPHAN = Pattern.compile(PREFIX
+			+ Config.RANDOM_ID_REGEX);
+	/** amount of data to delete before pausing. */
+	private static final long DELETE_CHUNK = 32 * 1024 * 1024;
+	/** pause after each {@link #DELETE_CHUNK}, in milliseconds. */
+	private static final long DELETE_PAUSE = 250;
+	/**
+	 * minimum cost of deleting a file, so that deleting lots of tiny files
+	 * (ie. loose objects) is throttled as well.
+	 */
+	private static final long MIN_FILE_COST = 64 * 1024;
+	private static final ExecutorService CLEANUP = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread thread = new Thread(r, "temp dir cleanup");
+					// don't block shutdown; leftovers are removed on startup
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final File root;
+	private final long quota;
+	private final MemoryBudget memory;
+	private final Set<TransferRepo> repos = new HashSet<>();
+
+	/**
+	 * @param root
+	 *            directory dedicated to {@link TransferRepo TransferRepos}.
+	 *            directories left there by a previous run are deleted, as
+	 *            long as their name has the form that this class uses.
+	 * @param quota
+	 *            maximum disk space to use for all {@link TransferRepo
+	 *            TransferRepos} together, in bytes. this can be exceeded
+	 *            temporarily if many of them are in use.
+	 * @param memory
+	 *            {@link MemoryBudget} shared by the history rewriting of all
+	 *            {@link TransferRepo TransferRepos}
+	 */
+	public TempStore(final File root, final long quota,
+			final MemoryBudget memory) {
+		this.root = root;
+		this.quota = quota;
+		this.memory = memory;
+
+		final File[] orphans = root.listFiles();
+		if (orphans == null)
+			throw new RuntimeException(
+					"cannot list temp directory " + root.getAbsolutePath());
+		for (final File dir : orphans)
+			if (dir.isDirectory() && ORPHAN.matcher(dir.getName()).matches()) {
+				logger.info("deleting orphaned " + dir);
+				deleteInBackground(dir);
+			}
+	}
+
+	/**
+	 * Deletes the {@link TransferRepo} directories that older versions
+	 * created directly in the temp root, which nothing else ever removes. The
+	 * temp root may be shared with other applications, so besides having the
+	 * exact name format, a directory has to be either empty or a bare git
+	 * repository, as all of them were.
+	 *
+	 * @param temproot
+	 *            the temp root, not the directory of the {@link TempStore}
+	 */
+	public static void deleteLegacyOrphans(final File temproot) {
+		final File[] orphans = temproot.listFiles();
+		if (orphans == null) {
+			logger.warn("cannot list temp directory "
+					+ temproot.getAbsolutePath());
+			return;
+		}
+		for (final File dir : orphans)
+			if (dir.isDirectory() && ORPHAN.matcher(dir.getName()).matches()
+					&& isEmptyOrBareRepo(dir)) {
+				logger.info("deleting orphan of old version " + dir);
+				deleteInBackground(dir);
+			}
+	}
+
+	private static boolean isEmptyOrBareRepo(final File dir) {
+		final String[] files = dir.list();
+		if (files == null)
+			return false;
+		return files.length == 0 || new File(dir, Constants.HEAD).isFile()
+				&& new File(dir, "objects").isDirectory();
+	}
+
+	/**
+	 * Creates a new {@link TransferRepo} in a randomly-named directory. The
+	 * same directory is never used twice.
+	 *
+	 * @param mirror
+	 *            leased {@link Mirror} of the project
+	 * @return a new {@link TransferRepo}, managed by this store
+	 */
+	public TransferRepo createTransferRepo(final Mirror mirror) {
+		// make room first, assuming that the new repo will probably replace
+		// an older one
+		enforceQuota();
+
+		final File dir = new File(root, PREFIX + Config.getRandomID());
+		dir.mkdirs(); // ignore errors; we only need it to exist afterwards
+		if (!dir.isDirectory())
+			throw new RuntimeException(
+					"failed to create directory " + dir.getAbsolutePath());
+		final TransferRepo repo = new TransferRepo(dir, mirror, this);
+		synchronized (this) {
+			repos.add(repo);
+		}
+		return repo;
+	}
+
+	/**
+	 * @return the {@link MemoryBudget} shared by all {@link TransferRepo
+	 *         TransferRepos}
+	 */
+	MemoryBudget getMemoryBudget() {
+		return memory;
+	}
+
+	/** Called by {@link TransferRepo#dispose()} only. */
+	synchronized void remove(final TransferRepo repo) {
+		repos.remove(repo);
+	}
+
+	/**
+	 * Evicts idle {@link TransferRepo TransferRepos}, least recently used
+	 * first, until the total size is within quota again.
+	 */
+	public void enforceQuota() {
+		final List<TransferRepo> candidates;
+		synchronized (this) {
+			candidates = new ArrayList<>(repos);
+		}
+		long total = 0;
+		final List<Long> lastUsed = new ArrayList<>(candidates.size());
+		for (final TransferRepo repo : candidates) {
+			total += repo.getSize();
+			lastUsed.add(repo.getLastUsed());
+		}
+		if (total <= quota)
+			return;
+
+		// sort by snapshot of last use; the live values may change while
+		// sorting
+		final List<Integer> order = new ArrayList<>(candidates.size());
+		for (int i = 0; i < candidates.size(); i++)
+			order.add(i);
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer a, final Integer b) {
+				return Long.compare(lastUsed.get(a), lastUsed.get(b));
+			}
+		});
+		for (final int i : order) {
+			if (total <= quota)
+				break;
+			final TransferRepo repo = candidates.get(i);
+			final long size = repo.getSize();
+			if (repo.evictIfIdle()) {
+				logger.info("evicted " + repo.getRoot() + " (" + size
+						+ " bytes)");
+				total -= size;
+			}
+		}
+		if (total > quota)
+			logger.warn("temp repos use " + total + " bytes but quota is "
+					+ quota + "; all other repos are in use");
+	}
+
+	/**
+	 * Recursively deletes a directory in the background. All deletions share a
+	 * single thread, which pauses regularly so that deletions don't starve
+	 * active clones of disk bandwidth.
+	 */
+	static void deleteInBackground(final File dir) {
+		deleteInBackground(dir, null);
+	}
+
+	/**
+	 * Like {@link #deleteInBackground(File)}, but runs an action afterwards.
+	 *
+	 * @param then
+	 *            action to run once the directory has been deleted, or
+	 *            <code>null</code>
+	 */
+	static void deleteInBackground(final File dir, final Runnable then) {
+		CLEANUP.execute(new Runnable() {
+			@Override
+			public void run() {
+				deleteThrottled(dir);
+				if (then != null)
+					then.run();
+			};
+		});
+	}
+
+	private static void deleteThrottled(final File dir) {
+		final long[] deleted = new long[1];
+		try {
+			Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(final Path file,
+						final BasicFileAttributes attrs) throws IOException {
+					Files.deleteIfExists(file);
+					throttle(Math.max(attrs.size(), MIN_FILE_COST));
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(final Path file,
+						final IOException exc) {
+					// deleted in the meantime, or no permission. neither is
+					// something we can do anything about.
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(final Path dir,
+						final IOException exc) throws IOException {
+					Files.deleteIfExists(dir);
+					throttle(MIN_FILE_COST);
+					return FileVisitResult.CONTINUE;
+				}
+
+				private void throttle(final long cost) {
+					deleted[0] += cost;
+					if (deleted[0] < DELETE_CHUNK)
+						return;
+					deleted[0] = 0;
+					try {
+						Thread.sleep(DELETE_PAUSE);
+					} catch (final InterruptedException e) {
+						// continue without pausing; we're shutting down
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		} catch (final IOException e) {
+			logger.warn("cannot delete " + dir, e);
+		}
+	}
+}
@@ -15,6 +15,7 @@ import org.eclipse.jgit.dircache.DirCacheBuilder;
 import org.eclipse.jgit.dircache.DirCacheEditor;
 import org.eclipse.jgit.dircache.DirCacheEditor.DeletePath;
 import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.CommitBuilder;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.FileMode;
@@ -24,11 +25,12 @@ import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.treewalk.TreeWalk;
-import org.springframework.util.FileSystemUtils;
 
 import bwfdm.sara.project.Ref;
 import bwfdm.sara.project.Ref.RefType;
+import bwfdm.sara.transfer.MirrorStore.Mirror;
 import bwfdm.sara.transfer.RepoFile.FileType;
+import bwfdm.sara.transfer.rewrite.ExcludedFiles;
 
 public class TransferRepo {
 	private static final Log LOGGER = LogFactory.getLog(TransferRepo.class);
@@ -38,12 +40,34 @@ public class TransferRepo {
 	private static final MiniCharDet CHARSET_DETECTOR = new MiniCharDet();
 
 	private final File root;
+	private final Mirror mirror;
+	private final TempStore store;
 	private Repository repo;
-	private boolean upToDate;
-	private boolean disposed;
-
-	public TransferRepo(final File root) {
+	private Map<String, ObjectId> fetchedRefs;
+	private volatile boolean upToDate;
+	private volatile boolean disposed;
+	private volatile long lastUsed;
+	private volatile long size;
+	private volatile ExcludedFiles excluded;
+	private HistoryEstimator estimator;
+	private volatile CommitGraph commitGraph = CommitGraph.EMPTY;
+	private int users;
+
+	/**
+	 * @param root
+	 *            directory for the bare repository
+	 * @param mirror
+	 *            leased {@link Mirror} of the project, whose objects the
+	 *            repository borrows. the lease is released on
+	 *            {@link #dispose()}.
+	 * @param store
+	 *            the {@link TempStore} managing the directory
+	 */
+	TransferRepo(final File root, final Mirror mirror, final TempStore store) {
 		this.root = root;
+		this.mirror = mirror;
+		this.store = store;
+		touch();
 	}
 
 	void setRepo(final Repository repo) {
@@ -59,26 +83,186 @@ public class TransferRepo {
 		return root;
 	}
 
-	public void markOutdated() {
+	Mirror getMirror() {
+		return mirror;
+	}
+
+	/**
+	 * @return the {@link MemoryBudget} for large structures, such as the
+	 *         results of history rewriting. shared with all other
+	 *         {@link TransferRepo TransferRepos}.
+	 */
+	public MemoryBudget getMemoryBudget() {
+		return store.getMemoryBudget();
+	}
+
+	/**
+	 * @return the {@link CommitGraph} of the fetched history. doesn't contain
+	 *         commits created by rewriting.
+	 */
+	public CommitGraph getCommitGraph() {
+		return commitGraph;
+	}
+
+	void setCommitGraph(final CommitGraph commitGraph) {
+		this.commitGraph = commitGraph;
+	}
+
+	/**
+	 * @return <code>true</code> if the history has been fetched with a depth
+	 *         limit, so that it stops at some commits whose parents are
+	 *         missing
+	 */
+	public boolean isShallow() {
+		return getShallowFile().isFile();
+	}
+
+	/**
+	 * Makes the repo complete again after its objects have been fetched into
+	 * the mirror, by deleting the list of commits where history ends.
+	 */
+	void clearShallow() throws IOException {
+		final File shallow = getShallowFile();
+		if (shallow.exists() && !shallow.delete())
+			throw new IOException("cannot delete " + shallow);
+	}
+
+	private File getShallowFile() {
+		return new File(root, "shallow");
+	}
+
+	/**
+	 * @return the {@link HistoryEstimator} for this repo, which caches its
+	 *         results for as long as the repo exists
+	 */
+	public synchronized HistoryEstimator getHistoryEstimator() {
+		if (estimator == null)
+			estimator = new HistoryEstimator(this);
+		return estimator;
+	}
+
+	/**
+	 * @return the files left out of the archive by the last {@link CloneTask},
+	 *         or <code>null</code> if all files are kept
+	 */
+	public ExcludedFiles getExcludedFiles() {
+		return excluded;
+	}
+
+	void setExcludedFiles(final ExcludedFiles excluded) {
+		this.excluded = excluded;
+	}
+
+	/**
+	 * Marks the repo as outdated because the source repository may have
+	 * changed. The next {@link CloneTask} will fetch all refs again.
+	 */
+	public synchronized void markOutdated() {
 		upToDate = false;
+		fetchedRefs = null;
+	}
+
+	/**
+	 * Marks the repo as outdated because the set of selected refs has changed.
+	 * The next {@link CloneTask} will only fetch the refs that weren't
+	 * selected before, reusing the state of all others.
+	 */
+	public void markSelectionOutdated() {
+		upToDate = false;
+	}
+
+	/**
+	 * Records the refs as originally fetched from the source repository, ie.
+	 * before any modifications. Only refs listed here are reused by
+	 * {@link CloneTask} after {@link #markSelectionOutdated()}.
+	 *
+	 * @param refs
+	 *            map of full ref name to object ID, including tags
+	 */
+	synchronized void setFetchedRefs(final Map<String, ObjectId> refs) {
+		fetchedRefs = refs;
+	}
+
+	/**
+	 * @return the refs recorded by {@link #setFetchedRefs(Map)}, or
+	 *         <code>null</code> if everything has to be fetched again
+	 */
+	synchronized Map<String, ObjectId> getFetchedRefs() {
+		return fetchedRefs;
 	}
 
 	public boolean isUpToDate() {
 		return upToDate && !disposed;
 	}
 
-	public void dispose() {
+	/**
+	 * Records that the repo has just been used, for the {@link TempStore
+	 * TempStore's} LRU eviction.
+	 */
+	public void touch() {
+		lastUsed = System.currentTimeMillis();
+	}
+
+	long getLastUsed() {
+		return lastUsed;
+	}
+
+	/** @return the disk usage as of the last {@link #endUse()} */
+	long getSize() {
+		return size;
+	}
+
+	/**
+	 * Marks the repo as being used by a {@link Task}. The {@link TempStore}
+	 * never evicts it while in use. Must be paired with {@link #endUse()}.
+	 */
+	synchronized void beginUse() {
+		users++;
+		touch();
+	}
+
+	/**
+	 * Ends a {@link #beginUse()}, updating the size because the {@link Task}
+	 * has probably changed it.
+	 */
+	void endUse() {
+		synchronized (this) {
+			users--;
+			touch();
+		}
+		if (!disposed)
+			size = MirrorStore.getDiskUsage(root);
+		store.enforceQuota();
+	}
+
+	/**
+	 * Disposes the repo unless it is in use by a {@link Task}. Called by the
+	 * {@link TempStore} to make room.
+	 *
+	 * @return <code>true</code> if the repo has been disposed
+	 */
+	synchronized boolean evictIfIdle() {
+		if (users > 0 || disposed)
+			return false;
+		markOutdated();
+		dispose();
+		return true;
+	}
+
+	public synchronized void dispose() {
 		if (disposed)
 			return;
 
 		disposed = true;
 		repo = null;
-		new Thread("cleanup for " + root.getName()) {
+		store.remove(this);
+		TempStore.deleteInBackground(root, new Runnable() {
 			@Override
 			public void run() {
-				FileSystemUtils.deleteRecursively(root);
+				// only now the mirror's objects are definitely unused
+				mirror.release();
 			};
-		}.start();
+		});
 	}
 
 	public boolean isDisposed() {
@@ -95,6 +279,18 @@ public class TransferRepo {
 		return repo.parseCommit(resolve(repo, Constants.R_REFS + ref.path));
 	}
 
+	/**
+	 * @return commit time of the ref's commit, in seconds since the epoch.
+	 *         taken from the {@link CommitGraph} if possible.
+	 */
+	public int getCommitTime(final Ref ref) throws IOException {
+		final ObjectId commit = resolve(repo, Constants.R_REFS + ref.path);
+		final int pos = commitGraph.find(commit);
+		if (pos >= 0)
+			return commitGraph.getCommitTime(pos);
+		return repo.parseCommit(commit).getCommitTime();
+	}
+
 	public List<Ref> getTags() throws IOException {
 		final List<Ref> tags = new ArrayList<>();
 		for (final String name : repo.getTags().keySet())
@@ -154,10 +350,24 @@ public class TransferRepo {
 	}
 
 	public List<RepoFile> getFiles(final Ref ref) throws IOException {
+		checkInitialized();
+		return getFiles(getCommit(ref).getTree());
+	}
+
+	/**
+	 * Lists the files in a tree, without descending into subdirectories.
+	 * Refs often share the same root tree, so callers which look at many refs
+	 * can list each tree just once.
+	 *
+	 * @param tree
+	 *            ID of the tree, usually the root tree of a commit
+	 * @return files and directories in that tree
+	 */
+	public List<RepoFile> getFiles(final AnyObjectId tree) throws IOException {
 		checkInitialized();
 		final List<RepoFile> files = new ArrayList<>();
 		try (final TreeWalk walk = new TreeWalk(repo)) {
-			walk.addTree(getCommit(ref).getTree());
+			walk.addTree(tree);
 			walk.setRecursive(false);
 			while (walk.next()) {
 				final FileMode mode = walk.getFileMode();
@@ -177,13 +387,21 @@ public class TransferRepo {
 		return files;
 	}
 
-	public ObjectId insertBlob(final String data) throws IOException {
-		try (final ObjectInserter ins = repo.newObjectInserter()) {
-			return ins.insert(Constants.OBJ_BLOB, data.getBytes(UTF8));
-		}
+	/**
+	 * Creates an {@link ObjectInserter} for an operation that inserts several
+	 * objects. All of them go into a single pack, kept in memory until
+	 * {@link ObjectInserter#flush()} is called.
+	 */
+	public ObjectInserter newObjectInserter() {
+		return PackInserter.create(repo, true);
+	}
+
+	public ObjectId insertBlob(final ObjectInserter ins, final String data)
+			throws IOException {
+		return ins.insert(Constants.OBJ_BLOB, data.getBytes(UTF8));
 	}
 
-	public ObjectId updateFiles(final Ref ref,
+	public ObjectId updateFiles(final ObjectInserter ins, final Ref ref,
 			final Map<String, ObjectId> files) throws IOException {
 		// build an initial index in-memory, because bare repos don't have one
 		// on disk
@@ -200,31 +418,27 @@ public class TransferRepo {
 			delete.add(new DeletePath(file));
 		delete.finish();
 
-		try (final ObjectInserter ins = repo.newObjectInserter()) {
-			// create entries for all new files. because we deleted them
-			// beforehand, this won't cause any duplicate paths.
-			final DirCacheBuilder create = index.builder();
-			create.keep(0, index.getEntryCount());
-			for (final String file : files.keySet()) {
-				final ObjectId data = files.get(file);
-				if (data == null)
-					continue;
-				final DirCacheEntry entry = new DirCacheEntry(file);
-				entry.setFileMode(FileMode.REGULAR_FILE);
-				entry.setObjectId(data);
-				create.add(entry);
-			}
-			create.finish();
-
-			return index.writeTree(ins);
+		// create entries for all new files. because we deleted them
+		// beforehand, this won't cause any duplicate paths.
+		final DirCacheBuilder create = index.builder();
+		create.keep(0, index.getEntryCount());
+		for (final String file : files.keySet()) {
+			final ObjectId data = files.get(file);
+			if (data == null)
+				continue;
+			final DirCacheEntry entry = new DirCacheEntry(file);
+			entry.setFileMode(FileMode.REGULAR_FILE);
+			entry.setObjectId(data);
+			create.add(entry);
 		}
+		create.finish();
+
+		return index.writeTree(ins);
 	}
 
-	public ObjectId insertCommit(final CommitBuilder commit)
-			throws IOException {
-		try (final ObjectInserter ins = repo.newObjectInserter()) {
-			return ins.insert(commit);
-		}
+	public ObjectId insertCommit(final ObjectInserter ins,
+			final CommitBuilder commit) throws IOException {
+		return ins.insert(commit);
 	}
 
 	public static ObjectId resolve(final Repository repo, final String refPath)
@@ -0,0 +1,149 @@
+package bwfdm.sara.transfer.rewrite;
+
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decides which files to leave out of the archive: files above a size limit,
+ * and files matching any of a list of glob patterns. As in
+ * {@code .gitignore}, a pattern without a slash matches the file name in any
+ * directory, and a pattern containing a slash matches the whole path, eg.
+ * {@code *.iso} vs. {@code data/**}.
+ */
+public class BlobFilter {
+	/** filter that keeps all files. */
+	public static final BlobFilter NONE = new BlobFilter(0,
+			Collections.<String> emptyList());
+
+	private final long maxSize;
+	private final List<String> patterns;
+	/** patterns without a slash, and their matchers. */
+	private final List<String> namePatterns = new ArrayList<>();
+	private final List<PathMatcher> nameMatchers = new ArrayList<>();
+	/** patterns with a slash, and their matchers. */
+	private final List<String> pathPatterns = new ArrayList<>();
+	private final List<PathMatcher> pathMatchers = new ArrayList<>();
+
+	/**
+	 * @param maxSize
+	 *            largest file size to keep, in bytes, or 0 to keep files of
+	 *            any size
+	 * @param patterns
+	 *            glob patterns, in the syntax of
+	 *            {@link java.nio.file.FileSystem#getPathMatcher(String)}
+	 */
+	public BlobFilter(final long maxSize, final List<String> patterns) {
+		this.maxSize = maxSize;
+		this.patterns = patterns;
+		for (final String pattern : patterns) {
+			final PathMatcher matcher = FileSystems.getDefault()
+					.getPathMatcher("glob:" + pattern);
+			if (pattern.indexOf('/') >= 0) {
+				pathPatterns.add(pattern);
+				pathMatchers.add(matcher);
+			} else {
+				namePatterns.add(pattern);
+				nameMatchers.add(matcher);
+			}
+		}
+	}
+
+	/**
+	 * Parses the filter from its configuration format.
+	 *
+	 * @param maxSize
+	 *            largest file size to keep, in MiB, or 0 to keep files of any
+	 *            size
+	 * @param patterns
+	 *            whitespace-separated glob patterns, possibly empty
+	 */
+	public static BlobFilter parse(final String maxSize, final String patterns) {
+		final List<String> list = new ArrayList<>();
+		for (final String pattern : patterns.trim().split("\\s+"))
+			if (!pattern.isEmpty())
+				list.add(pattern);
+		return new BlobFilter(Long.parseLong(maxSize.trim()) * 1024 * 1024,
+				list);
+	}
+
+	/** @return <code>true</code> if this filter keeps all files */
+	public boolean isEmpty() {
+		return maxSize <= 0 && patterns.isEmpty();
+	}
+
+	/** @return largest file size to keep, or 0 if unlimited */
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public List<String> getPatterns() {
+		return patterns;
+	}
+
+	/**
+	 * @return <code>true</code> if the decision depends on the directory a
+	 *         file is in, <code>false</code> if name and size are enough
+	 */
+	boolean isPathDependent() {
+		return !pathMatchers.isEmpty();
+	}
+
+	/**
+	 * @param dir
+	 *            path of the containing directory, ending in a slash, or the
+	 *            empty string for the root directory
+	 * @param name
+	 *            file name
+	 * @return the matching pattern, or <code>null</code> if the path doesn't
+	 *         match any of them
+	 */
+	String getMatchingPattern(final String dir, final String name) {
+		try {
+			for (int i = 0; i < nameMatchers.size(); i++)
+				if (nameMatchers.get(i).matches(Paths.get(name)))
+					return namePatterns.get(i);
+			for (int i = 0; i < pathMatchers.size(); i++)
+				if (pathMatchers.get(i).matches(Paths.get(dir + name)))
+					return pathPatterns.get(i);
+		} catch (final InvalidPathException e) {
+			// names that the platform cannot represent are never matched
+		}
+		return null;
+	}
+
+	/**
+	 * @param path
+	 *            full path of a file, without leading slash
+	 * @param size
+	 *            size of the file
+	 * @return <code>true</code> if the file is left out of the archive
+	 */
+	public boolean isExcluded(final String path, final long size) {
+		final int slash = path.lastIndexOf('/');
+		return isTooLarge(size)
+				|| getMatchingPattern(path.substring(0, slash + 1),
+						path.substring(slash + 1)) != null;
+	}
+
+	/** @return <code>true</code> if a file of this size is too large to keep */
+	boolean isTooLarge(final long size) {
+		return maxSize > 0 && size > maxSize;
+	}
+
+	/**
+	 * @return a string that differs whenever the filter excludes different
+	 *         files, eg. for the {@link RewriteStore}
+	 */
+	public String getKey() {
+		final StringBuilder buffer = new StringBuilder();
+		buffer.append(maxSize);
+		for (final String pattern : patterns)
+			buffer.append(' ').append(pattern);
+		return buffer.toString();
+	}
+}
@@ -0,0 +1,26 @@
+package bwfdm.sara.transfer.rewrite;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+
+/**
+ * {@link ObjectInserter} that only computes the IDs of the objects it is
+ * given, without storing them anywhere. Rewriting never reads back the
+ * objects it inserts, so this is enough to find out what a rewrite would do.
+ */
+class DryRunInserter extends ObjectInserter.Formatter {
+	@Override
+	public ObjectId insert(final int type, final byte[] data, final int off,
+			final int len) {
+		return idFor(type, data, off, len);
+	}
+
+	@Override
+	public ObjectId insert(final int type, final long len,
+			final InputStream in) throws IOException {
+		return idFor(type, len, in);
+	}
+}
@@ -0,0 +1,37 @@
+package bwfdm.sara.transfer.rewrite;
+
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Summary of the files that a {@link BlobFilter} left out of the archive, so
+ * the user can see how much will be saved before pushing.
+ */
+public class ExcludedFiles {
+	/** number of distinct files excluded. */
+	@JsonProperty("files")
+	public final int files;
+	/** total size of these files, in bytes, counting each one only once. */
+	@JsonProperty("bytes")
+	public final long bytes;
+	/** size limit of the filter, in bytes, or 0 if unlimited. */
+	@JsonProperty("maxSize")
+	public final long maxSize;
+	@JsonProperty("patterns")
+	public final List<String> patterns;
+
+	public ExcludedFiles(final BlobFilter filter,
+			final Map<ObjectId, Long> excluded) {
+		maxSize = filter.getMaxSize();
+		patterns = filter.getPatterns();
+		files = excluded.size();
+		long bytes = 0;
+		for (final long size : excluded.values())
+			bytes += size;
+		this.bytes = bytes;
+	}
+}
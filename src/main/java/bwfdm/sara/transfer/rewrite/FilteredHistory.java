@@ -4,10 +4,10 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.CommitBuilder;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectInserter;
-import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 
 /**
@@ -22,12 +22,10 @@ import org.eclipse.jgit.revwalk.RevCommit;
 public abstract class FilteredHistory extends RewriteStrategy
 		implements AutoCloseable {
 	private final ObjectInserter ins;
-	private final Repository repo;
 
-	public FilteredHistory(final Repository repo, final RewriteCache cache) {
-		super(cache);
-		this.repo = repo;
-		ins = repo.newObjectInserter();
+	public FilteredHistory(final RewriteWalk walk, final RewriteCache cache) {
+		super(walk, cache);
+		ins = walk.getInserter();
 	}
 
 	/**
@@ -45,90 +43,81 @@ public abstract class FilteredHistory extends RewriteStrategy
 	 * }
 	 * </pre>
 	 * 
-	 * The actual implementation isn't recursive, but uses an explicit stack.
-	 * Java's stack just isn't as deep as Git's commit chains are long...
+	 * The actual implementation isn't recursive, but walks the commits in
+	 * topological order, parents first. Java's stack just isn't as deep as
+	 * Git's commit chains are long...
 	 */
 	@Override
-	public void process(final RevCommit root) throws IOException {
+	public void process(final AnyObjectId head) throws IOException {
 		// when branch A is a strict ancestor of B, and B is processed before A,
-		// the root of A has already been processed here. this commonly happens
-		// for old feature branches.
-		// in this situation, just don't re-process A at all, consistently with
-		// what the recursion does.
-		if (cache.contains(root))
-			return;
+		// all of A has already been processed here. this commonly happens for
+		// old feature branches. the walk then simply doesn't return anything,
+		// consistently with what the recursion does.
+		walk.start(head, true);
+		for (RevCommit commit = walk.next(); commit != null; commit = walk
+				.next()) {
+			// topological order guarantees that we already know what all our
+			// parents rewrite to, so we can start rewriting the current commit.
+			final List<ObjectId> parents;
+			if (commit.getParentCount() != 1) {
+				// this is a merge commit, so compute the union of what all our
+				// parents rewrite to. needs to preserve the order of commits.
+				// done the O(n²) way because merges generally have 2 parents
+				// (they can have more, but almost never do), and using a
+				// LinkedHashMaps is more expensive than O(2²).
+				parents = new ArrayList<>();
+				for (final RevCommit p : commit.getParents())
+					for (final ObjectId q : cache.getRewriteResult(p))
+						if (!parents.contains(q))
+							parents.add(q);
+			} else
+				// when there is exactly one parent, we just inherit its
+				// parents. for the common case of a long chain of commits, this
+				// avoids generating an extra list for every single commit.
+				parents = cache.getRewriteResult(commit.getParent(0));
 
-		Stack head = new Stack(null, root);
-		while (head != null) {
-			if (head.nextParent >= head.commit.getParentCount()) {
-				// we now know what all our parents will rewrite to, so we can
-				// start rewriting the current head.
-				final List<ObjectId> parents;
-				if (head.commit.getParentCount() != 1) {
-					// this is a merge commit, so compute the union of what all
-					// our parents rewrite to. needs to preserve the order of
-					// commits.
-					// done the O(n²) way because merges generally have 2
-					// parents (they can have more, but almost never do), and
-					// using a LinkedHashMaps is more expensive than O(2²).
-					parents = new ArrayList<>();
-					for (final RevCommit p : head.commit.getParents())
-						for (final ObjectId q : cache.getRewriteResult(p))
-							if (!parents.contains(q))
-								parents.add(q);
-				} else
-					// when there is exactly one parent, we just inherit its
-					// parents. for the common case of a long chain of commits,
-					// this avoids generating an extra ArrayList instance for
-					// every single commit.
-					parents = cache.getRewriteResult(head.commit.getParent(0));
-
-				if (isSignificant(head.commit, parents)) {
+			if (isSignificant(commit, parents)) {
+				final ObjectId tree = walk.rewriteTree(commit);
+				if (tree.equals(commit.getTree())
+						&& isOriginal(commit, parents))
+					// nothing to rewrite; keeping the original commit also
+					// keeps any signature it might have
+					cache.keep(commit, commit);
+				else {
 					// significant commits rewrite to a single commit with all
-					// rewritten parents
-					final ObjectId rewritten = ins
-							.insert(rewrite(head.commit, parents));
-					cache.keep(head.commit, rewritten);
-				} else
-					// insignificant commits rewrite to the set of their parents
-					cache.omit(head.commit, parents);
-
-				head = head.prev;
-			} else {
-				// recurse into all parents that haven't yet been rewritten
-				final int curParent = head.nextParent++;
-				final RevCommit parent = head.commit.getParent(curParent);
-				if (!cache.contains(parent))
-					head = new Stack(head, repo.parseCommit(parent));
-			}
-		}
-	}
-
-	/** Mini linked-list stack. */
-	private class Stack {
-		private final Stack prev;
-		private final RevCommit commit;
-		private int nextParent;
-
-		public Stack(final Stack prev, final RevCommit commit) {
-			this.prev = prev;
-			this.commit = commit;
-			this.nextParent = 0;
+					// rewritten parents. the walk doesn't keep commit
+					// messages, so parse it just for rewriting.
+					walk.parseBody(commit);
+					final ObjectId rewritten = ins.insert(rewrite(commit,
+							tree, parents));
+					commit.disposeBody();
+					cache.keep(commit, rewritten);
+				}
+			} else
+				// insignificant commits rewrite to the set of their parents
+				cache.omit(commit, parents);
+			walk.markDone(commit);
 		}
 	}
 
-	@Override
-	public void close() {
-		ins.close();
-	}
-
 	protected abstract boolean isSignificant(final RevCommit commit,
 			final List<ObjectId> parents);
 
-	private CommitBuilder rewrite(final RevCommit orig,
+	/** @return <code>true</code> if the parents are the commit's own */
+	private static boolean isOriginal(final RevCommit commit,
+			final List<ObjectId> parents) {
+		if (parents.size() != commit.getParentCount())
+			return false;
+		for (int i = 0; i < parents.size(); i++)
+			if (!parents.get(i).equals(commit.getParent(i)))
+				return false;
+		return true;
+	}
+
+	private CommitBuilder rewrite(final RevCommit orig, final ObjectId tree,
 			final List<ObjectId> parents) throws IOException {
 		final CommitBuilder rewritten = new CommitBuilder();
-		rewritten.setTreeId(orig.getTree());
+		rewritten.setTreeId(tree);
 		rewritten.setParentIds(parents);
 		// this loses the author and committer of the removed commits. so does
 		// squashing history, though.
@@ -1,10 +1,8 @@
 package bwfdm.sara.transfer.rewrite;
 
 import java.io.IOException;
-import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
 
-import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.revwalk.RevCommit;
 
 /**
@@ -13,28 +11,19 @@ import org.eclipse.jgit.revwalk.RevCommit;
  * needed for other rewriters to find them when they hit them.
  */
 public class FullHistory extends RewriteStrategy {
-	private final Repository repo;
-
-	public FullHistory(final Repository repo, final RewriteCache cache) {
-		super(cache);
-		this.repo = repo;
+	public FullHistory(final RewriteWalk walk, final RewriteCache cache) {
+		super(walk, cache);
 	}
 
 	@Override
-	public void process(final RevCommit head) throws IOException {
-		final Queue<RevCommit> queue = new LinkedBlockingQueue<>();
-		queue.add(head);
-		while (!queue.isEmpty()) {
-			final RevCommit commit = repo.parseCommit(queue.remove());
-			// we don't change the commit IDs, so we don't wait for the parents
-			// to be rewritten here.
-			if (!cache.contains(commit))
-				cache.keep(commit, commit);
-
-			// enqueue all parents
-			for (final RevCommit parent : commit.getParents())
-				if (!cache.contains(parent.getId()))
-					queue.add(parent);
+	public void process(final AnyObjectId head) throws IOException {
+		// we don't change the commit IDs, so we don't need to wait for the
+		// parents to be rewritten, and order doesn't matter.
+		walk.start(head, false);
+		for (RevCommit commit = walk.next(); commit != null; commit = walk
+				.next()) {
+			cache.keep(commit, commit);
+			walk.markDone(commit);
 		}
 	}
 }
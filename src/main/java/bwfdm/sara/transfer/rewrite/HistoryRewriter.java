@@ -1,37 +1,97 @@
 package bwfdm.sara.transfer.rewrite;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.springframework.util.DigestUtils;
 
 import bwfdm.sara.project.RefAction.PublicationMethod;
+import bwfdm.sara.transfer.CommitGraph;
+import bwfdm.sara.transfer.MemoryBudget;
 import bwfdm.sara.transfer.TransferRepo;
+import bwfdm.sara.transfer.rewrite.SampledHistory.Interval;
+
+public class HistoryRewriter implements AutoCloseable {
+	private static final Log logger = LogFactory.getLog(HistoryRewriter.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
 
-public class HistoryRewriter {
 	/** Refs whose full history is published. */
 	private final Set<ObjectId> full = new HashSet<>();
+	/** Refs whose history is sampled, by sampling {@link Interval}. */
+	private final Map<Interval, Set<ObjectId>> sampled = new EnumMap<>(
+			Interval.class);
 	/** Refs whose history is published in abbreviated form. */
 	private final Set<ObjectId> abbrev = new HashSet<>();
 	/** Refs whose latest version only is published. */
 	private final Set<ObjectId> latest = new HashSet<>();
 	/**
 	 * All refs that are explicitly marked for publication. Union of
-	 * {@link #full}, {@link #abbrev} and {@link #latest}.
+	 * {@link #full}, {@link #sampled}, {@link #abbrev} and {@link #latest}.
 	 */
 	private final Set<ObjectId> heads = new HashSet<>();
-	private final RewriteCache cache = new RewriteCache();
+	/** commit of each ref, by ref path. */
+	private final Map<String, ObjectId> refs = new HashMap<>();
+	/** {@link PublicationMethod} of each ref, sorted by ref path. */
+	private final Map<String, PublicationMethod> methods = new TreeMap<>();
+	private RewriteCache cache = new RewriteCache();
+	/**
+	 * results of earlier rewrites from the {@link RewriteStore}. the walk
+	 * stops at the first commit found there, so history behind it is only
+	 * recorded here.
+	 */
+	private final List<RewriteCache> previous = new ArrayList<>();
 	private final Repository repo;
+	private final RewriteStore store;
+	private BlobFilter filter = BlobFilter.NONE;
+	private Map<ObjectId, Long> excluded = Collections.emptyMap();
+	private boolean dryRun;
+	private CommitGraph graph;
+	private int threads = 1;
 
 	public HistoryRewriter(Repository repo) {
+		this(repo, null);
+	}
+
+	/**
+	 * @param repo
+	 *            repository to rewrite
+	 * @param store
+	 *            {@link RewriteStore} to reuse the results of earlier rewrites
+	 *            from, or <code>null</code> to always rewrite everything
+	 */
+	public HistoryRewriter(Repository repo, RewriteStore store) {
 		this.repo = repo;
+		this.store = store;
 	}
 
 	/**
@@ -44,13 +104,39 @@ public class HistoryRewriter {
 	 */
 	public void addHead(final String refPath, final PublicationMethod method)
 			throws IOException {
-		final ObjectId commit = TransferRepo.resolve(repo, refPath);
+		addHead(refPath, TransferRepo.resolve(repo, refPath), method);
+	}
+
+	/**
+	 * Marks a commit for rewriting by the defined method, as if a ref pointed
+	 * to it.
+	 * 
+	 * @param refPath
+	 *            full ref path, including {@link Constants#R_REFS} prefix
+	 * @param commit
+	 *            the commit to rewrite instead of the one the ref points to
+	 * @param method
+	 *            {@link PublicationMethod}, must not be <code>null</code>
+	 */
+	public void addHead(final String refPath, final ObjectId commit,
+			final PublicationMethod method) {
 		heads.add(commit);
+		refs.put(refPath, commit);
+		methods.put(refPath, method);
 
 		switch (method) {
 		case FULL:
 			full.add(commit);
 			break;
+		case DAILY:
+			getSampled(Interval.DAY).add(commit);
+			break;
+		case WEEKLY:
+			getSampled(Interval.WEEK).add(commit);
+			break;
+		case MONTHLY:
+			getSampled(Interval.MONTH).add(commit);
+			break;
 		case ABBREV:
 			abbrev.add(commit);
 			break;
@@ -63,6 +149,71 @@ public class HistoryRewriter {
 		}
 	}
 
+	/**
+	 * Excludes files from the trees of all published commits. Without a
+	 * filter, trees are kept as they are.
+	 * 
+	 * @param filter
+	 *            {@link BlobFilter} deciding which files to exclude
+	 */
+	public void setBlobFilter(final BlobFilter filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * Only determines which commits would be published, without writing any
+	 * objects or touching the {@link RewriteStore}. Use
+	 * {@link #isPublished(ObjectId)} to query the result; the rewritten
+	 * commits themselves don't exist.
+	 */
+	public void setDryRun() {
+		dryRun = true;
+	}
+
+	/**
+	 * Limits the heap used by the results of rewriting. Without a budget, they
+	 * are always kept on the heap. Call {@link #close()} to return the memory
+	 * once the results are no longer needed.
+	 * 
+	 * @param budget
+	 *            {@link MemoryBudget} to reserve memory from
+	 * @param spillDir
+	 *            directory for memory-mapped files once the budget is
+	 *            exhausted, or <code>null</code> to exceed the budget instead
+	 */
+	public void setMemoryBudget(final MemoryBudget budget,
+			final File spillDir) {
+		cache.dispose();
+		cache = new RewriteCache(budget, spillDir);
+	}
+
+	/**
+	 * Rewrites the parts of history that only a single head can reach in
+	 * parallel, once the history shared by several heads has been rewritten.
+	 * This pays off when many heads have long histories of their own; for
+	 * heads that are only a few commits apart, everything is shared anyway.
+	 * Sampled histories are always rewritten sequentially.
+	 * 
+	 * @param graph
+	 *            {@link CommitGraph} containing the history of the heads. heads
+	 *            that aren't in it are rewritten sequentially.
+	 * @param threads
+	 *            number of threads to rewrite with; 1 to rewrite sequentially
+	 */
+	public void setParallel(final CommitGraph graph, final int threads) {
+		this.graph = threads > 1 ? graph : null;
+		this.threads = threads;
+	}
+
+	private Set<ObjectId> getSampled(final Interval interval) {
+		Set<ObjectId> set = sampled.get(interval);
+		if (set == null) {
+			set = new HashSet<>();
+			sampled.put(interval, set);
+		}
+		return set;
+	}
+
 	/**
 	 * Performs rewriting.
 	 * 
@@ -70,31 +221,152 @@ public class HistoryRewriter {
 	 *            {@link ProgressMonitor} for user feedback, may be null
 	 */
 	public void execute(final ProgressMonitor progress) throws IOException {
-		rewrite(full, new FullHistory(repo, cache), progress);
-		rewrite(abbrev, new AbbreviatedHistory(repo, cache), progress);
-		rewrite(latest, new LatestVersion(repo, cache), progress);
+		try {
+			execute(true, progress);
+		} catch (final StaleRewriteException e) {
+			logger.info("cannot reuse previous rewrite: " + e.getMessage());
+			dispose();
+			cache = cache.newCache();
+			execute(false, progress);
+		}
 	}
 
-	private void rewrite(final Set<ObjectId> heads,
-			final RewriteStrategy strategy, final ProgressMonitor progress)
+	private void execute(final boolean reuse, final ProgressMonitor progress)
 			throws IOException {
-		try {
-			for (final ObjectId head : heads) {
-				strategy.process(repo.parseCommit(head));
-				if (progress != null)
-					progress.update(1);
+		final Set<ObjectId> important = getImportantCommits();
+		// a single main walk for all strategies, so that each commit is parsed
+		// only once, no matter how many heads it is reachable from. parallel
+		// walks only parse the commits where their history joins it. with a
+		// store, the rewritten commits go where the stored results can find
+		// them.
+		final RewriteStore store = dryRun ? null : this.store;
+		try (final Repository objects = store != null ? store
+				.openObjectStore() : null;
+				final Walks walks = new Walks(objects);
+				final RewriteStore.Session session = store != null ? store
+						.open(repo, refs, getKey(), reuse) : null) {
+			// with filtered trees, full history has to be rewritten as well
+			walks.rewrite(full, new Phase() {
+				@Override
+				RewriteStrategy create(final RewriteWalk walk) {
+					return filter.isEmpty() ? new FullHistory(walk, cache)
+							: new FilteredFullHistory(walk, cache);
+				}
+			}, Collections.<ObjectId> emptySet(), true, session, progress);
+			// finer sampling claims commits first, as with full history.
+			// sampling needs to see the children of every commit, so it cannot
+			// be split.
+			for (final Interval interval : Interval.values())
+				if (sampled.containsKey(interval))
+					walks.rewrite(sampled.get(interval), new Phase() {
+						@Override
+						RewriteStrategy create(final RewriteWalk walk) {
+							return new SampledHistory(walk, cache, interval,
+									important);
+						}
+					}, important, false, session, progress);
+			walks.rewrite(abbrev, new Phase() {
+				@Override
+				RewriteStrategy create(final RewriteWalk walk) {
+					return new AbbreviatedHistory(walk, cache, important);
+				}
+			}, important, true, session, progress);
+			walks.rewrite(latest, new Phase() {
+				@Override
+				RewriteStrategy create(final RewriteWalk walk) {
+					return new LatestVersion(walk, cache);
+				}
+			}, heads, true, session, progress);
+			excluded = walks.flush();
+			if (session != null) {
+				session.mergeExcluded(excluded);
+				session.commit();
 			}
-		} finally {
-			strategy.close();
 		}
 	}
 
+	/**
+	 * Splits the history of the heads into the part that several of them
+	 * share, and the parts that only a single head can reach. The latter are
+	 * independent of each other, so they can be rewritten in parallel once the
+	 * shared part is done.
+	 * 
+	 * @return the tips of the shared part, ie. the commits to rewrite before
+	 *         the parallel part, or <code>null</code> if fewer than two heads
+	 *         have any history of their own, so that there is nothing to gain
+	 */
+	private List<ObjectId> getSharedTips(final Set<ObjectId> heads) {
+		if (graph == null || heads.size() < 2)
+			return null;
+		final BitSet seen = new BitSet();
+		final BitSet shared = new BitSet();
+		final List<BitSet> histories = new ArrayList<>(heads.size());
+		for (final ObjectId head : heads) {
+			final int pos = graph.find(head);
+			if (pos < 0)
+				return null; // not fetched, eg. created locally
+			final BitSet history = graph.getReachable(pos);
+			final BitSet overlap = (BitSet) history.clone();
+			overlap.and(seen);
+			shared.or(overlap);
+			seen.or(history);
+			histories.add(history);
+		}
+		int independent = 0;
+		for (final BitSet history : histories) {
+			history.andNot(shared);
+			if (!history.isEmpty())
+				independent++;
+		}
+		if (independent < 2)
+			return null;
+
+		// history is closed under ancestry, so its tips are the commits that
+		// aren't a parent of any other commit in it
+		final BitSet tips = (BitSet) shared.clone();
+		for (int pos = shared.nextSetBit(0); pos >= 0; pos = shared
+				.nextSetBit(pos + 1))
+			for (int i = 0; i < graph.getParentCount(pos); i++)
+				tips.clear(graph.getParent(pos, i));
+		final List<ObjectId> res = new ArrayList<>(tips.cardinality());
+		for (int pos = tips.nextSetBit(0); pos >= 0; pos = tips
+				.nextSetBit(pos + 1))
+			res.add(graph.getId(pos));
+		return res;
+	}
+
+	/** @return all heads, plus the commits of all tags */
+	private Set<ObjectId> getImportantCommits() throws IOException {
+		final Set<ObjectId> important = new HashSet<>(heads);
+		for (final Ref tag : repo.getTags().values())
+			important.add(TransferRepo.resolve(repo, tag.getName()));
+		return important;
+	}
+
+	/**
+	 * @return a digest identifying the refs and their
+	 *         {@link PublicationMethod}s, and the {@link BlobFilter}, for the
+	 *         {@link RewriteStore}
+	 */
+	private String getKey() {
+		final StringBuilder buffer = new StringBuilder();
+		for (final Entry<String, PublicationMethod> e : methods.entrySet())
+			buffer.append(e.getValue()).append(' ').append(e.getKey())
+					.append('\n');
+		if (!filter.isEmpty())
+			buffer.append("FILTER ").append(filter.getKey()).append('\n');
+		return DigestUtils.md5DigestAsHex(buffer.toString().getBytes(UTF8));
+	}
+
 	/**
 	 * @return total number of update steps reported by
 	 *         {@link #execute(ProgressMonitor)}
 	 */
 	public int getTotalSteps() {
-		return full.size() + abbrev.size() + latest.size();
+		int steps = full.size() + abbrev.size() + latest.size();
+		for (final Set<ObjectId> heads : sampled.values())
+			steps += heads.size();
+		return steps;
 	}
 
 	/**
@@ -108,7 +380,7 @@ public class HistoryRewriter {
 	 */
 	public boolean isUnchanged(final String refPath) throws IOException {
 		final ObjectId orig = TransferRepo.resolve(repo, refPath);
-		return orig.equals(cache.getRewrittenCommit(orig));
+		return orig.equals(getRewrittenCommit(orig));
 	}
 
 	/**
@@ -121,22 +393,272 @@ public class HistoryRewriter {
 	 */
 	public RevCommit getRewrittenCommit(final String refPath)
 			throws IOException {
-		final ObjectId rewritten = cache
-				.getRewrittenCommit(TransferRepo.resolve(repo, refPath));
+		final ObjectId rewritten = getRewrittenCommit(TransferRepo.resolve(
+				repo, refPath));
 		if (rewritten != null)
 			return repo.parseCommit(rewritten);
 		return null;
 	}
 
+	/**
+	 * @param orig
+	 *            an original commit in the history of a head
+	 * @return <code>true</code> if the commit is kept in rewritten history,
+	 *         <code>false</code> if it is omitted
+	 */
+	public boolean isPublished(final ObjectId orig) {
+		if (cache.contains(orig))
+			return cache.isKeep(orig);
+		for (final RewriteCache p : previous)
+			if (p.contains(orig))
+				return p.isKeep(orig);
+		return false;
+	}
+
+	private ObjectId getRewrittenCommit(final ObjectId orig) {
+		if (cache.contains(orig))
+			return cache.getRewrittenCommit(orig);
+		for (final RewriteCache p : previous)
+			if (p.contains(orig))
+				return p.getRewrittenCommit(orig);
+		return null;
+	}
+
+	/**
+	 * @return the files left out by the {@link #setBlobFilter(BlobFilter)
+	 *         filter}, including those left out by earlier rewrites whose
+	 *         results were reused
+	 */
+	public ExcludedFiles getExcludedFiles() {
+		return new ExcludedFiles(filter, excluded);
+	}
+
+	/**
+	 * Discards the results, returning their memory to the
+	 * {@link #setMemoryBudget(MemoryBudget, File) budget}. The rewritten
+	 * commits themselves stay in the repository.
+	 */
+	@Override
+	public void close() {
+		dispose();
+	}
+
+	private void dispose() {
+		cache.dispose();
+		for (final RewriteCache p : previous)
+			p.dispose();
+		previous.clear();
+	}
+
+	/** Creates the {@link RewriteStrategy} of a phase for each walk. */
+	private abstract class Phase {
+		abstract RewriteStrategy create(RewriteWalk walk);
+	}
+
+	/**
+	 * The {@link RewriteWalk RewriteWalks} of a single execution: the main walk
+	 * for everything that has to be done in order, and when rewriting
+	 * {@link #setParallel(CommitGraph, int) in parallel}, one more for each
+	 * thread. All walks share the {@link RewriteCache}, so each walk stops at
+	 * the commits that any of them has already rewritten.
+	 */
+	private class Walks implements AutoCloseable {
+		private final Repository objects;
+		private final RewriteWalk main;
+		/** all walks, starting with {@link #main}. */
+		private final List<RewriteWalk> all = new ArrayList<>();
+		/** walks not currently used by any thread. */
+		private final BlockingQueue<RewriteWalk> idle = new LinkedBlockingQueue<>();
+		private final ForkJoinPool pool;
+
+		private Walks(final Repository objects) throws IOException {
+			this.objects = objects;
+			main = newWalk();
+			if (graph == null) {
+				pool = null;
+				return;
+			}
+			pool = new ForkJoinPool(threads);
+			main.setSharedCache(cache);
+			for (int i = 0; i < threads; i++) {
+				final RewriteWalk walk = newWalk();
+				walk.setSharedCache(cache);
+				idle.add(walk);
+			}
+		}
+
+		private RewriteWalk newWalk() throws IOException {
+			final RewriteWalk walk = dryRun ? new RewriteWalk(repo,
+					new DryRunInserter()) : new RewriteWalk(repo,
+					objects != null ? objects : repo);
+			all.add(walk);
+			CommitGraph.assumeShallow(walk);
+			walk.setBlobFilter(filter);
+			return walk;
+		}
+
+		/**
+		 * Rewrites the heads of a single phase. When rewriting in parallel,
+		 * the history shared by several heads is rewritten first, on the main
+		 * walk, and then each head's own history on the next idle walk.
+		 */
+		private void rewrite(final Set<ObjectId> heads, final Phase phase,
+				final Set<ObjectId> significant, final boolean parallel,
+				final RewriteStore.Session session,
+				final ProgressMonitor progress) throws IOException {
+			final RewriteStrategy strategy = phase.create(main);
+			// full history doesn't depend on significance, and all its
+			// results are identical to the original commits
+			final boolean identity = strategy instanceof FullHistory;
+			if (session != null) {
+				final RewriteCache reused = session.load(significant,
+						identity, cache);
+				previous.add(reused);
+				for (final RewriteWalk walk : all)
+					walk.reuse(reused, cache);
+			}
+			final List<ObjectId> shared = parallel ? getSharedTips(heads)
+					: null;
+			try {
+				strategy.prepare(heads);
+				if (shared != null) {
+					final long start = System.currentTimeMillis();
+					for (final ObjectId tip : shared)
+						strategy.process(tip);
+					logger.debug("rewrote history shared by " + heads.size()
+							+ " heads in "
+							+ (System.currentTimeMillis() - start) + "ms");
+					rewriteParallel(heads, phase, progress);
+				} else
+					for (final ObjectId head : heads) {
+						strategy.process(head);
+						if (progress != null)
+							progress.update(1);
+					}
+			} finally {
+				strategy.close();
+			}
+			if (session != null) {
+				// each walk's commits are in topological order, and their
+				// parents were rewritten by the main walk or the same walk,
+				// so this order is topological as well
+				final List<RevCommit> processed = new ArrayList<>();
+				for (final RewriteWalk walk : all)
+					processed.addAll(walk.takeProcessed());
+				session.save(processed, identity, cache);
+			}
+		}
+
+		private void rewriteParallel(final Set<ObjectId> heads,
+				final Phase phase, final ProgressMonitor progress)
+				throws IOException {
+			final CompletionService<Long> completion = new ExecutorCompletionService<>(
+					pool);
+			final Map<Future<Long>, ObjectId> tasks = new HashMap<>();
+			for (final ObjectId head : heads)
+				tasks.put(completion.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws IOException,
+							InterruptedException {
+						final RewriteWalk walk = idle.take();
+						final long start = System.currentTimeMillis();
+						try (final RewriteStrategy strategy = phase
+								.create(walk)) {
+							strategy.process(head);
+						} finally {
+							idle.add(walk);
+						}
+						return System.currentTimeMillis() - start;
+					}
+				}), head);
+
+			// wait for all of them even after a failure; the others are still
+			// using the walks
+			Throwable failure = null;
+			for (int i = 0; i < tasks.size(); i++) {
+				final Future<Long> task;
+				try {
+					task = completion.take();
+				} catch (final InterruptedException e) {
+					// close() waits for the ones still running
+					throw new InterruptedIOException("rewriting interrupted");
+				}
+				try {
+					final long time = task.get();
+					logger.debug("rewrote " + tasks.get(task).name() + " in "
+							+ time + "ms");
+					if (progress != null)
+						progress.update(1);
+				} catch (final ExecutionException e) {
+					if (failure == null)
+						failure = e.getCause();
+				} catch (final InterruptedException e) {
+					throw new IllegalStateException("completed task blocked", e);
+				}
+			}
+			if (failure instanceof IOException)
+				throw (IOException) failure;
+			if (failure instanceof RuntimeException)
+				throw (RuntimeException) failure;
+			if (failure instanceof Error)
+				throw (Error) failure;
+		}
+
+		/**
+		 * Makes all rewritten commits visible to the repository.
+		 * 
+		 * @return size of every file excluded by any walk, by blob ID
+		 */
+		private Map<ObjectId, Long> flush() throws IOException {
+			final Map<ObjectId, Long> excluded = new HashMap<>();
+			for (final RewriteWalk walk : all) {
+				walk.flush();
+				excluded.putAll(walk.getExcludedFiles());
+			}
+			return excluded;
+		}
+
+		@Override
+		public void close() {
+			if (pool != null) {
+				// interrupting the threads could break the reader's pack
+				// files, so let them finish the head they are working on
+				pool.shutdown();
+				boolean interrupted = false;
+				while (!pool.isTerminated())
+					try {
+						pool.awaitTermination(1, TimeUnit.MINUTES);
+					} catch (final InterruptedException e) {
+						interrupted = true;
+					}
+				if (interrupted)
+					Thread.currentThread().interrupt();
+			}
+			for (final RewriteWalk walk : all)
+				walk.close();
+		}
+	}
+
+	private class FilteredFullHistory extends FilteredHistory {
+		private FilteredFullHistory(final RewriteWalk walk,
+				final RewriteCache cache) {
+			super(walk, cache);
+		}
+
+		@Override
+		protected boolean isSignificant(final RevCommit commit,
+				final List<ObjectId> parents) {
+			return true;
+		}
+	}
+
 	private class AbbreviatedHistory extends FilteredHistory {
 		private final Set<ObjectId> important;
 
-		private AbbreviatedHistory(final Repository repo,
-				final RewriteCache cache) throws IOException {
-			super(repo, cache);
-			important = new HashSet<>(heads);
-			for (final Ref tag : repo.getTags().values())
-				important.add(TransferRepo.resolve(repo, tag.getName()));
+		private AbbreviatedHistory(final RewriteWalk walk,
+				final RewriteCache cache, final Set<ObjectId> important) {
+			super(walk, cache);
+			this.important = important;
 		}
 
 		@Override
@@ -147,8 +669,8 @@ public class HistoryRewriter {
 	}
 
 	private class LatestVersion extends FilteredHistory {
-		private LatestVersion(final Repository repo, final RewriteCache cache) {
-			super(repo, cache);
+		private LatestVersion(final RewriteWalk walk, final RewriteCache cache) {
+			super(walk, cache);
 		}
 
 		@Override
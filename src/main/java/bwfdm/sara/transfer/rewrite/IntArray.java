@@ -0,0 +1,146 @@
+package bwfdm.sara.transfer.rewrite;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel.MapMode;
+
+import bwfdm.sara.transfer.MemoryBudget;
+
+/**
+ * Fixed-size array of {@code int}s for {@link RewriteCache}, either on the
+ * heap or in a memory-mapped file. Mapped arrays keep huge caches out of the
+ * heap; the operating system pages them in and out as needed.
+ * <p>
+ * Not thread-safe.
+ */
+abstract class IntArray {
+	/** size of an {@code int}, in bytes. */
+	static final int BYTES = 4;
+
+	abstract int get(int index);
+
+	abstract void set(int index, int value);
+
+	abstract int length();
+
+	/**
+	 * Returns the memory of the array to the {@link MemoryBudget} it was
+	 * reserved from, if any. Does nothing if called again.
+	 */
+	void release(final MemoryBudget budget) {
+	}
+
+	/**
+	 * Copies the start of another array into this one.
+	 *
+	 * @param other
+	 *            array to copy from
+	 * @param length
+	 *            number of {@code int}s to copy
+	 */
+	void copyFrom(final IntArray other, final int length) {
+		for (int i = 0; i < length; i++)
+			set(i, other.get(i));
+	}
+
+	/**
+	 * @param reserved
+	 *            <code>true</code> if its memory has been reserved from a
+	 *            {@link MemoryBudget}
+	 * @return a new zero-filled array on the heap
+	 */
+	static IntArray onHeap(final int length, final boolean reserved) {
+		return new Heap(length, reserved);
+	}
+
+	/**
+	 * Creates a zero-filled array in a memory-mapped file. The file is
+	 * deleted right away; its space is freed once the array is garbage
+	 * collected.
+	 *
+	 * @param dir
+	 *            directory for the file
+	 * @return a new array in a memory-mapped file
+	 */
+	static IntArray mapped(final File dir, final int length)
+			throws IOException {
+		final File file = File.createTempFile("rewrite", ".spill", dir);
+		try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			// the mapping stays valid after the file is closed
+			return new Mapped(raf.getChannel()
+					.map(MapMode.READ_WRITE, 0, (long) BYTES * length)
+					.asIntBuffer(), length);
+		} finally {
+			// fails on Windows while mapped
+			if (!file.delete())
+				file.deleteOnExit();
+		}
+	}
+
+	private static class Heap extends IntArray {
+		private final int[] array;
+		private boolean reserved;
+
+		private Heap(final int length, final boolean reserved) {
+			array = new int[length];
+			this.reserved = reserved;
+		}
+
+		@Override
+		int get(final int index) {
+			return array[index];
+		}
+
+		@Override
+		void set(final int index, final int value) {
+			array[index] = value;
+		}
+
+		@Override
+		int length() {
+			return array.length;
+		}
+
+		@Override
+		void release(final MemoryBudget budget) {
+			if (reserved)
+				budget.release((long) BYTES * array.length);
+			reserved = false;
+		}
+
+		@Override
+		void copyFrom(final IntArray other, final int length) {
+			if (other instanceof Heap)
+				System.arraycopy(((Heap) other).array, 0, array, 0, length);
+			else
+				super.copyFrom(other, length);
+		}
+	}
+
+	private static class Mapped extends IntArray {
+		private final IntBuffer buffer;
+		private final int length;
+
+		private Mapped(final IntBuffer buffer, final int length) {
+			this.buffer = buffer;
+			this.length = length;
+		}
+
+		@Override
+		int get(final int index) {
+			return buffer.get(index);
+		}
+
+		@Override
+		void set(final int index, final int value) {
+			buffer.put(index, value);
+		}
+
+		@Override
+		int length() {
+			return length;
+		}
+	}
+}
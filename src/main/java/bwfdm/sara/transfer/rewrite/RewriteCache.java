@@ -1,46 +1,405 @@
 package bwfdm.sara.transfer.rewrite;
 
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractList;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 
+import bwfdm.sara.transfer.MemoryBudget;
+
+/**
+ * Records what each original commit rewrites to: either a single new commit
+ * ("keep") or the list of new commits that its children should use as parents
+ * instead ("omit").
+ * <p>
+ * This has to hold an entry for every commit in the history of every
+ * published ref, so it's built to be compact rather than pretty. All object
+ * IDs are stored exactly once, as raw words in a single {@code int[]}, and
+ * looked up through an open-addressing hash table of indices into that array.
+ * Results are {@code int}s, too: a kept commit stores the index of its
+ * rewritten ID directly, and an omitted commit stores the offset of its
+ * parent list in a shared {@code int[]}. Parent lists are shared between
+ * commits whenever the {@link List} passed to
+ * {@link #omit(ObjectId, List)} came from {@link #getRewriteResult(ObjectId)},
+ * which {@link FilteredHistory} does for every commit with exactly one parent.
+ * A long chain of omitted commits thus only stores its parent list once.
+ * <p>
+ * With a {@link MemoryBudget}, the arrays reserve their memory from the
+ * budget. Once it runs out, the cache moves all its arrays into memory-mapped
+ * files, and keeps growing there without touching the heap. Lookups then go to
+ * the page cache instead, which is slower but still doesn't need any I/O for a
+ * cache that fits in memory.
+ * <p>
+ * All accessors are synchronized, so that walks rewriting independent parts of
+ * the history in parallel can share a single cache. Lookups are short, and the
+ * lock is uncontended when rewriting sequentially.
+ */
 public class RewriteCache {
-	private final Map<ObjectId, List<ObjectId>> rewrite = new HashMap<>();
-	private final Set<ObjectId> keep = new HashSet<>();
+	private static final Log logger = LogFactory.getLog(RewriteCache.class);
+	/** number of {@code int}s in an object ID. */
+	private static final int WORDS = Constants.OBJECT_ID_LENGTH / 4;
+	private static final int INITIAL_CAPACITY = 1024;
+	/** marks an ID that is stored, but hasn't been processed itself. */
+	private static final int UNPROCESSED = 0;
+
+	private final MemoryBudget budget;
+	/** directory to spill to, or <code>null</code> to stay on the heap. */
+	private final File spillDir;
+	/** <code>true</code> once the arrays have been moved out of the heap. */
+	private boolean spilled;
+	/** raw words of all IDs, {@link #WORDS} per ID. */
+	private IntArray ids;
+	/**
+	 * result for each ID: {@link #UNPROCESSED}, {@code -(index + 1)} of the
+	 * rewritten commit if kept, or {@code offset + 1} of the parent list in
+	 * {@link #lists} if omitted.
+	 */
+	private IntArray results;
+	private int count;
+	/**
+	 * open-addressing hash table, holding {@code index + 1} for each ID, or 0
+	 * for empty slots. always at most half full.
+	 */
+	private IntArray table;
+	/** parent lists, stored as length followed by that many ID indices. */
+	private IntArray lists;
+	private int listsUsed;
+
+	/** Creates a cache that always stays on the heap. */
+	public RewriteCache() {
+		this(MemoryBudget.UNLIMITED, null);
+	}
+
+	/**
+	 * @param budget
+	 *            {@link MemoryBudget} to reserve heap memory from
+	 * @param spillDir
+	 *            directory for the memory-mapped files once the budget has
+	 *            run out, or <code>null</code> to stay on the heap anyway
+	 */
+	public RewriteCache(final MemoryBudget budget, final File spillDir) {
+		this.budget = budget;
+		this.spillDir = spillDir;
+		ids = allocate(INITIAL_CAPACITY * WORDS);
+		results = allocate(INITIAL_CAPACITY);
+		table = allocate(2 * INITIAL_CAPACITY);
+		lists = allocate(INITIAL_CAPACITY);
+	}
 
-	public void omit(final ObjectId before, final List<ObjectId> after) {
-		if (rewrite.containsKey(before))
+	/**
+	 * @return a new, empty cache using the same {@link MemoryBudget} and
+	 *         spill directory
+	 */
+	public RewriteCache newCache() {
+		return new RewriteCache(budget, spillDir);
+	}
+
+	/**
+	 * Returns all memory reserved by this cache to the {@link MemoryBudget}.
+	 * The cache cannot be used afterwards.
+	 */
+	public synchronized void dispose() {
+		free(ids);
+		free(results);
+		free(table);
+		free(lists);
+		ids = results = table = lists = null;
+	}
+
+	public synchronized void omit(final ObjectId before,
+			final List<ObjectId> after) {
+		final int index = add(before);
+		if (results.get(index) != UNPROCESSED)
 			throw new IllegalArgumentException(before + " processed twice");
-		rewrite.put(before, after);
+
+		final int list;
+		if (after instanceof IdList && ((IdList) after).getCache() == this
+				&& ((IdList) after).list >= 0)
+			// share the existing list instead of storing a copy
+			list = ((IdList) after).list;
+		else {
+			// resolve all IDs first; adding them may reallocate the arrays
+			final int[] parents = new int[after.size()];
+			for (int i = 0; i < parents.length; i++)
+				parents[i] = add(after.get(i));
+			list = listsUsed;
+			ensureListCapacity(parents.length + 1);
+			lists.set(listsUsed++, parents.length);
+			for (final int parent : parents)
+				lists.set(listsUsed++, parent);
+		}
+		results.set(index, list + 1);
 	}
 
-	public void keep(final ObjectId before, final ObjectId after) {
-		if (rewrite.containsKey(before))
+	public synchronized void keep(final ObjectId before,
+			final ObjectId after) {
+		final int index = add(before);
+		if (results.get(index) != UNPROCESSED)
 			throw new IllegalArgumentException(before + " processed twice");
-		rewrite.put(before, Arrays.asList(after));
-		keep.add(before);
+		// for full history, before and after are identical, and then this
+		// stores the ID only once
+		results.set(index, -(add(after) + 1));
+	}
+
+	/**
+	 * Copies the result for a single commit from another cache.
+	 *
+	 * @param other
+	 *            the cache to copy from; must contain <code>before</code>
+	 * @param before
+	 *            the original commit
+	 */
+	synchronized void copy(final RewriteCache other, final ObjectId before) {
+		if (other.isKeep(before))
+			keep(before, other.getRewrittenCommit(before));
+		else
+			omit(before, other.getRewriteResult(before));
+	}
+
+	synchronized List<ObjectId> getRewriteResult(final ObjectId before) {
+		final int index = find(before);
+		if (index < 0)
+			return null;
+		final int result = results.get(index);
+		if (result < 0)
+			return new IdList(-1, -result - 1);
+		if (result > 0)
+			return new IdList(result - 1, -1);
+		return null;
+	}
+
+	synchronized boolean isKeep(final ObjectId before) {
+		final int index = find(before);
+		return index >= 0 && results.get(index) < 0;
+	}
+
+	public synchronized ObjectId getRewrittenCommit(final ObjectId before) {
+		final int index = find(before);
+		if (index < 0 || results.get(index) >= 0)
+			return null;
+		return getId(-results.get(index) - 1);
+	}
+
+	public synchronized boolean contains(final ObjectId before) {
+		final int index = find(before);
+		return index >= 0 && results.get(index) != UNPROCESSED;
+	}
+
+	private ObjectId getId(final int index) {
+		final int[] raw = new int[WORDS];
+		for (int i = 0; i < WORDS; i++)
+			raw[i] = ids.get(index * WORDS + i);
+		return ObjectId.fromRaw(raw);
+	}
+
+	/** @return index of the ID, or -1 if it isn't stored */
+	private int find(final AnyObjectId id) {
+		final int[] raw = new int[WORDS];
+		id.copyRawTo(raw, 0);
+		final int mask = table.length() - 1;
+		for (int slot = raw[1] & mask;; slot = (slot + 1) & mask) {
+			final int entry = table.get(slot);
+			if (entry == 0)
+				return -1;
+			if (equals(entry - 1, raw))
+				return entry - 1;
+		}
+	}
+
+	/** @return index of the ID, which is stored if it wasn't already */
+	private int add(final AnyObjectId id) {
+		final int[] raw = new int[WORDS];
+		id.copyRawTo(raw, 0);
+		final int mask = table.length() - 1;
+		// the second word is what AnyObjectId.hashCode() uses. it is as random
+		// as any other part of a SHA-1.
+		int slot = raw[1] & mask;
+		for (;; slot = (slot + 1) & mask) {
+			final int entry = table.get(slot);
+			if (entry == 0)
+				break;
+			if (equals(entry - 1, raw))
+				return entry - 1;
+		}
+
+		if (count == results.length()) {
+			final int capacity = 2 * count;
+			ids = grow(ids, capacity * WORDS, count * WORDS);
+			results = grow(results, capacity, count);
+		}
+		final int index = count++;
+		for (int i = 0; i < WORDS; i++)
+			ids.set(index * WORDS + i, raw[i]);
+		table.set(slot, index + 1);
+		if (2 * count > table.length())
+			rehash();
+		return index;
+	}
+
+	private boolean equals(final int index, final int[] raw) {
+		final int base = index * WORDS;
+		for (int i = 0; i < WORDS; i++)
+			if (ids.get(base + i) != raw[i])
+				return false;
+		return true;
+	}
+
+	private void rehash() {
+		final int length = 2 * table.length();
+		// free first, so the new table can use the old one's budget. the old
+		// one is useless anyway.
+		free(table);
+		table = null;
+		table = allocate(length);
+		final int mask = length - 1;
+		for (int index = 0; index < count; index++) {
+			int slot = ids.get(index * WORDS + 1) & mask;
+			while (table.get(slot) != 0)
+				slot = (slot + 1) & mask;
+			table.set(slot, index + 1);
+		}
+	}
+
+	private void ensureListCapacity(final int extra) {
+		if (listsUsed + extra > lists.length())
+			lists = grow(lists, Math.max(2 * lists.length(), listsUsed + extra),
+					listsUsed);
 	}
 
-	List<ObjectId> getRewriteResult(final ObjectId before) {
-		return rewrite.get(before);
+	/**
+	 * @param used
+	 *            number of {@code int}s in use, which are copied
+	 * @return a larger copy of the array
+	 */
+	private IntArray grow(final IntArray array, final int length,
+			final int used) {
+		final IntArray grown = allocate(length);
+		grown.copyFrom(array, used);
+		free(array);
+		return grown;
 	}
 
-	boolean isKeep(final ObjectId before) {
-		return keep.contains(before);
+	/**
+	 * Allocates an array on the heap if the {@link MemoryBudget} allows it.
+	 * Otherwise, moves the whole cache out of the heap, and then allocates
+	 * the new array in a memory-mapped file as well.
+	 */
+	private IntArray allocate(final int length) {
+		if (!spilled) {
+			if (budget.reserve((long) IntArray.BYTES * length))
+				return IntArray.onHeap(length, true);
+			if (spillDir == null || !spill())
+				// cannot spill; exceeding the budget is all we can do
+				return IntArray.onHeap(length, false);
+		}
+		try {
+			return IntArray.mapped(spillDir, length);
+		} catch (final IOException e) {
+			logger.warn("cannot spill rewrite cache to " + spillDir
+					+ ", keeping it in memory", e);
+			return IntArray.onHeap(length, false);
+		}
 	}
 
-	public ObjectId getRewrittenCommit(final ObjectId before) {
-		if (!keep.contains(before))
+	/**
+	 * Moves all arrays into memory-mapped files, returning their memory to
+	 * the {@link MemoryBudget}.
+	 *
+	 * @return <code>true</code> if successful, <code>false</code> if the
+	 *         arrays are still on the heap
+	 */
+	private boolean spill() {
+		final IntArray[] spilled = new IntArray[4];
+		try {
+			// all or nothing, so a failure doesn't leave a mix behind
+			spilled[0] = copyToFile(ids, count * WORDS);
+			spilled[1] = copyToFile(results, count);
+			spilled[2] = copyToFile(table, table != null ? table.length() : 0);
+			spilled[3] = copyToFile(lists, listsUsed);
+		} catch (final IOException e) {
+			logger.warn("cannot spill rewrite cache to " + spillDir
+					+ ", keeping it in memory", e);
+			return false;
+		}
+		logger.info("rewrite cache with " + count
+				+ " commits exceeds memory budget, spilling to " + spillDir);
+		free(ids);
+		free(results);
+		free(table);
+		free(lists);
+		ids = spilled[0];
+		results = spilled[1];
+		table = spilled[2];
+		lists = spilled[3];
+		this.spilled = true;
+		return true;
+	}
+
+	/**
+	 * @return a copy of the array in a memory-mapped file, or
+	 *         <code>null</code> if the array doesn't exist (yet)
+	 */
+	private IntArray copyToFile(final IntArray array, final int used)
+			throws IOException {
+		if (array == null)
 			return null;
-		return rewrite.get(before).get(0);
+		final IntArray mapped = IntArray.mapped(spillDir, array.length());
+		mapped.copyFrom(array, used);
+		return mapped;
 	}
 
-	public boolean contains(final ObjectId before) {
-		return rewrite.containsKey(before);
+	/**
+	 * Returns the memory of an array to the {@link MemoryBudget}. Harmless if
+	 * the array has been freed already, eg. by spilling while it was being
+	 * {@link #grow(IntArray, int, int) grown}.
+	 */
+	private void free(final IntArray array) {
+		if (array != null)
+			array.release(budget);
+	}
+
+	/**
+	 * Read-only view of a rewrite result: either a parent list, or the single
+	 * rewritten commit of a kept commit.
+	 */
+	private class IdList extends AbstractList<ObjectId> {
+		/** offset of the parent list in {@link #lists}, or -1 */
+		private final int list;
+		/** index of the single rewritten commit, or -1 */
+		private final int single;
+
+		private IdList(final int list, final int single) {
+			this.list = list;
+			this.single = single;
+		}
+
+		private RewriteCache getCache() {
+			return RewriteCache.this;
+		}
+
+		@Override
+		public ObjectId get(final int i) {
+			// the arrays are reallocated as the cache grows
+			synchronized (RewriteCache.this) {
+				if (i < 0 || i >= size())
+					throw new IndexOutOfBoundsException(Integer.toString(i));
+				if (list < 0)
+					return getId(single);
+				return getId(lists.get(list + 1 + i));
+			}
+		}
+
+		@Override
+		public int size() {
+			synchronized (RewriteCache.this) {
+				return list < 0 ? 1 : lists.get(list);
+			}
+		}
 	}
 }
@@ -0,0 +1,469 @@
+package bwfdm.sara.transfer.rewrite;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+
+import bwfdm.sara.transfer.CommitGraph;
+
+/**
+ * Keeps the results of {@link HistoryRewriter} across clones, so that
+ * rewriting the same refs again only has to process the commits that are new
+ * since last time. Lives in the project's mirror; the rewritten commits are
+ * written into the mirror's object database as well, because the results are
+ * useless without them, and every transfer repo borrows the mirror's objects
+ * anyway.
+ * <p>
+ * Results are stored per combination of refs and {@link RewriteStrategy}, in
+ * one section per strategy. Whether a commit is significant depends on the
+ * other refs, so each section also records the significant commits it was
+ * computed with; when that set changes, the affected commits and everything
+ * built on top of them are rewritten again. Previous results are only used at
+ * all if every ref has moved forward since, because otherwise commits could
+ * have moved from one strategy to another.
+ * <p>
+ * The sizes of the files excluded by the {@link BlobFilter} are kept as well,
+ * so that the total stays complete even though only the new trees are
+ * rewritten.
+ * <p>
+ * Concurrent rewrites of the same mirror are harmless: each writes a complete
+ * new file and the last one wins.
+ */
+public class RewriteStore {
+	private static final Log logger = LogFactory.getLog(RewriteStore.class);
+	private static final int MAGIC = 0x53524357; // "SRCW"
+	private static final int VERSION = 2;
+	private static final String SUFFIX = ".rewrite";
+	private static final String TEMP_PREFIX = "tmp_";
+	/** number of ref combinations to keep results for. */
+	private static final int MAX_FILES = 5;
+	private static final byte RECORD = 1;
+	private static final byte END = 0;
+	private static final byte KEEP = 1;
+	private static final byte OMIT = 2;
+
+	private final File gitDir;
+	private final File dir;
+	private final CommitGraph graph;
+
+	/**
+	 * @param gitDir
+	 *            the mirror's git directory
+	 */
+	public RewriteStore(final File gitDir) {
+		this(gitDir, CommitGraph.EMPTY);
+	}
+
+	/**
+	 * @param gitDir
+	 *            the mirror's git directory
+	 * @param graph
+	 *            {@link CommitGraph} of the mirror, for checking whether the
+	 *            refs have moved forward without parsing their history
+	 */
+	public RewriteStore(final File gitDir, final CommitGraph graph) {
+		this.gitDir = gitDir;
+		this.graph = graph;
+		dir = new File(gitDir, "sara-rewrite");
+	}
+
+	/**
+	 * Opens the mirror for inserting the rewritten commits. This never touches
+	 * any refs, so it doesn't need the mirror's lock.
+	 *
+	 * @return the mirror {@link Repository}; caller must close it
+	 */
+	Repository openObjectStore() throws IOException {
+		return new FileRepositoryBuilder().setGitDir(gitDir).setBare()
+				.build();
+	}
+
+	/**
+	 * Starts a rewrite, reading the results of the previous rewrite of the
+	 * same refs if they are still usable.
+	 *
+	 * @param repo
+	 *            repository containing the refs
+	 * @param refs
+	 *            map from each ref path to the commit it currently points to
+	 * @param key
+	 *            identifies the combination of refs and strategies, eg. a
+	 *            digest of all ref paths and their publication methods
+	 * @param reuse
+	 *            <code>false</code> to ignore the previous results and just
+	 *            replace them
+	 * @return a {@link Session} to read and write the results of each
+	 *         strategy, in order
+	 */
+	Session open(final Repository repo, final Map<String, ObjectId> refs,
+			final String key, final boolean reuse) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("cannot create " + dir);
+		final File file = new File(dir, key + SUFFIX);
+		final DataInputStream in = reuse ? openPrevious(repo, refs, file)
+				: null;
+		final File temp = File.createTempFile(TEMP_PREFIX, SUFFIX, dir);
+		try {
+			return new Session(file, temp, in, refs);
+		} catch (final IOException e) {
+			temp.delete();
+			throw e;
+		}
+	}
+
+	private DataInputStream openPrevious(final Repository repo,
+			final Map<String, ObjectId> refs, final File file)
+			throws IOException {
+		final DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+		} catch (final FileNotFoundException e) {
+			return null; // first rewrite of these refs
+		}
+		boolean usable = false;
+		try {
+			usable = in.readInt() == MAGIC && in.readInt() == VERSION
+					&& isFastForward(repo, readRefs(in), refs);
+		} catch (final IOException e) {
+			logger.warn("cannot read " + file + ", ignoring it", e);
+		} finally {
+			if (!usable)
+				in.close();
+		}
+		return usable ? in : null;
+	}
+
+	private boolean isFastForward(final Repository repo,
+			final Map<String, ObjectId> before, final Map<String, ObjectId> now)
+			throws IOException {
+		if (!before.keySet().equals(now.keySet()))
+			return false;
+		try (final RevWalk rw = new RevWalk(repo)) {
+			rw.setRetainBody(false);
+			for (final Entry<String, ObjectId> ref : now.entrySet()) {
+				final ObjectId old = before.get(ref.getKey());
+				if (old.equals(ref.getValue()))
+					continue;
+				// the graph has all fetched history, but not commits that
+				// were created locally
+				final int oldPos = graph.find(old);
+				final int newPos = graph.find(ref.getValue());
+				if (oldPos >= 0 && newPos >= 0) {
+					if (!graph.isAncestor(oldPos, newPos))
+						return false;
+					continue;
+				}
+				if (!rw.isMergedInto(rw.parseCommit(old),
+						rw.parseCommit(ref.getValue())))
+					return false;
+			}
+		} catch (final MissingObjectException e) {
+			return false; // old commit gone from the mirror
+		}
+		return true;
+	}
+
+	private static Map<String, ObjectId> readRefs(final DataInputStream in)
+			throws IOException {
+		final int n = in.readInt();
+		final Map<String, ObjectId> refs = new HashMap<>();
+		for (int i = 0; i < n; i++) {
+			final String path = in.readUTF();
+			refs.put(path, readId(in));
+		}
+		return refs;
+	}
+
+	private static Set<ObjectId> readIds(final DataInputStream in)
+			throws IOException {
+		final int n = in.readInt();
+		final Set<ObjectId> ids = new HashSet<>();
+		for (int i = 0; i < n; i++)
+			ids.add(readId(in));
+		return ids;
+	}
+
+	private static ObjectId readId(final DataInputStream in)
+			throws IOException {
+		final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		in.readFully(raw);
+		return ObjectId.fromRaw(raw);
+	}
+
+	private static void writeIds(final DataOutputStream out,
+			final Iterable<? extends AnyObjectId> ids, final int n)
+			throws IOException {
+		out.writeInt(n);
+		for (final AnyObjectId id : ids)
+			writeId(out, id);
+	}
+
+	private static void writeId(final DataOutputStream out,
+			final AnyObjectId id) throws IOException {
+		final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		id.copyRawTo(raw, 0);
+		out.write(raw);
+	}
+
+	/** Deletes the least recently used files beyond {@link #MAX_FILES}. */
+	private void prune() {
+		// temp files might belong to a concurrent rewrite
+		final File[] files = dir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(final File file) {
+				return !file.getName().startsWith(TEMP_PREFIX);
+			}
+		});
+		if (files == null || files.length <= MAX_FILES)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(final File a, final File b) {
+				return Long.compare(b.lastModified(), a.lastModified());
+			}
+		});
+		for (int i = MAX_FILES; i < files.length; i++)
+			files[i].delete(); // failure harmless; it just takes up space
+	}
+
+	/**
+	 * A single rewrite. For each strategy, in the same order every time, call
+	 * {@link #load(Set, boolean, RewriteCache)} before and
+	 * {@link #save(List, boolean, RewriteCache)} after running it, then
+	 * {@link #mergeExcluded(Map)} and finally {@link #commit()} once all
+	 * rewritten commits have been flushed.
+	 */
+	class Session implements AutoCloseable {
+		private final File file;
+		private final File temp;
+		private final DataOutputStream out;
+		private DataInputStream in;
+		/** commits whose previous results must not be used. */
+		private final Set<ObjectId> invalid = new HashSet<>();
+		private boolean committed;
+
+		private Session(final File file, final File temp,
+				final DataInputStream in, final Map<String, ObjectId> refs)
+				throws IOException {
+			this.file = file;
+			this.temp = temp;
+			this.in = in;
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(temp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(refs.size());
+			for (final Entry<String, ObjectId> ref : refs.entrySet()) {
+				out.writeUTF(ref.getKey());
+				writeId(out, ref.getValue());
+			}
+		}
+
+		/**
+		 * Reads the previous results of the next strategy. Results are dropped
+		 * for commits whose significance has changed, for commits that an
+		 * earlier strategy has processed in this rewrite, and for all commits
+		 * that have such a commit as an ancestor.
+		 *
+		 * @param significant
+		 *            the commits the strategy considers significant this time
+		 * @param identity
+		 *            <code>true</code> if the strategy rewrites every commit to
+		 *            itself. it then doesn't depend on significance at all,
+		 *            so only the commit IDs are stored.
+		 * @param current
+		 *            results of this rewrite so far
+		 * @return the usable previous results, possibly empty
+		 */
+		RewriteCache load(final Set<ObjectId> significant,
+				final boolean identity, final RewriteCache current)
+				throws IOException {
+			out.writeBoolean(identity);
+			writeIds(out, significant, significant.size());
+
+			final RewriteCache previous = current.newCache();
+			if (in == null)
+				return previous;
+			try {
+				if (in.readBoolean() != identity)
+					throw new IOException("strategies out of order");
+				final Set<ObjectId> changed = readIds(in);
+				// symmetric difference: commits that were significant, or
+				// weren't, but now are
+				for (final ObjectId id : significant)
+					if (!changed.remove(id))
+						changed.add(id);
+				while (in.readByte() == RECORD)
+					if (identity)
+						loadIdentity(previous);
+					else
+						loadRecord(previous, changed, current);
+			} catch (final IOException e) {
+				// results read so far are still fine; everything else will
+				// just be rewritten again
+				logger.warn("cannot read " + file + ", ignoring the rest", e);
+				in.close();
+				in = null;
+			}
+			return previous;
+		}
+
+		private void loadIdentity(final RewriteCache previous)
+				throws IOException {
+			final ObjectId id = readId(in);
+			previous.keep(id, id);
+			out.writeByte(RECORD);
+			writeId(out, id);
+		}
+
+		private void loadRecord(final RewriteCache previous,
+				final Set<ObjectId> changed, final RewriteCache current)
+				throws IOException {
+			final ObjectId id = readId(in);
+			final ObjectId[] parents = new ObjectId[in.readInt()];
+			boolean valid = !changed.contains(id) && !current.contains(id);
+			for (int i = 0; i < parents.length; i++) {
+				parents[i] = readId(in);
+				// records are in topological order, so all ancestors have
+				// already been checked
+				if (invalid.contains(parents[i]))
+					valid = false;
+			}
+			final byte kind = in.readByte();
+			final ObjectId[] result = new ObjectId[kind == KEEP ? 1
+					: in.readInt()];
+			for (int i = 0; i < result.length; i++)
+				result[i] = readId(in);
+			if (!valid) {
+				invalid.add(id);
+				return;
+			}
+
+			if (kind == KEEP)
+				previous.keep(id, result[0]);
+			else
+				previous.omit(id, Arrays.asList(result));
+			writeRecord(id, Arrays.asList(parents), kind == KEEP,
+					Arrays.asList(result));
+		}
+
+		/**
+		 * Appends the commits processed by the strategy in this rewrite to its
+		 * results.
+		 *
+		 * @param processed
+		 *            the commits, in the order they were processed. must be
+		 *            topological unless <code>identity</code> is set.
+		 * @param identity
+		 *            as passed to {@link #load(Set, boolean, RewriteCache)}
+		 * @param cache
+		 *            results of this rewrite
+		 */
+		void save(final List<RevCommit> processed, final boolean identity,
+				final RewriteCache cache) throws IOException {
+			for (final RevCommit commit : processed)
+				if (identity) {
+					out.writeByte(RECORD);
+					writeId(out, commit);
+				} else
+					writeRecord(commit, Arrays.asList(commit.getParents()),
+							cache.isKeep(commit),
+							cache.getRewriteResult(commit));
+			out.writeByte(END);
+		}
+
+		private void writeRecord(final AnyObjectId id,
+				final List<? extends AnyObjectId> parents, final boolean keep,
+				final List<ObjectId> result) throws IOException {
+			out.writeByte(RECORD);
+			writeId(out, id);
+			writeIds(out, parents, parents.size());
+			out.writeByte(keep ? KEEP : OMIT);
+			if (keep)
+				writeId(out, result.get(0));
+			else
+				writeIds(out, result, result.size());
+		}
+
+		/**
+		 * Adds the files excluded by the previous rewrite to those excluded in
+		 * this one, and stores them all.
+		 *
+		 * @param excluded
+		 *            size of each file excluded in this rewrite, by blob ID;
+		 *            updated in place
+		 */
+		void mergeExcluded(final Map<ObjectId, Long> excluded)
+				throws IOException {
+			if (in != null)
+				try {
+					final int n = in.readInt();
+					for (int i = 0; i < n; i++) {
+						final ObjectId id = readId(in);
+						final long size = in.readLong();
+						if (!excluded.containsKey(id))
+							excluded.put(id, size);
+					}
+				} catch (final IOException e) {
+					// only costs accuracy of the reported total
+					logger.warn("cannot read " + file + ", ignoring the rest",
+							e);
+				}
+
+			out.writeInt(excluded.size());
+			for (final Entry<ObjectId, Long> e : excluded.entrySet()) {
+				writeId(out, e.getKey());
+				out.writeLong(e.getValue());
+			}
+		}
+
+		/**
+		 * Replaces the previous results with the ones from this rewrite. Only
+		 * call this once the rewritten commits are in the mirror.
+		 */
+		void commit() throws IOException {
+			out.close();
+			if (!temp.renameTo(file))
+				throw new IOException("cannot rename " + temp);
+			committed = true;
+			prune();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (in != null)
+				in.close();
+			if (!committed) {
+				out.close();
+				temp.delete();
+			}
+		}
+	}
+}
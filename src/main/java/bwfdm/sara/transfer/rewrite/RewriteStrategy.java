@@ -1,17 +1,28 @@
 package bwfdm.sara.transfer.rewrite;
 
 import java.io.IOException;
+import java.util.Collection;
 
-import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
 
 public abstract class RewriteStrategy implements AutoCloseable {
+	protected final RewriteWalk walk;
 	protected final RewriteCache cache;
 
-	public RewriteStrategy(final RewriteCache cache) {
+	public RewriteStrategy(final RewriteWalk walk, final RewriteCache cache) {
+		this.walk = walk;
 		this.cache = cache;
 	}
 
-	public abstract void process(final RevCommit head) throws IOException;
+	/**
+	 * Called once with all heads, before any of them is
+	 * {@link #process(AnyObjectId) processed}. Does nothing by default.
+	 */
+	public void prepare(final Collection<ObjectId> heads) throws IOException {
+	}
+
+	public abstract void process(final AnyObjectId head) throws IOException;
 
 	@Override
 	public void close() {
@@ -0,0 +1,271 @@
+package bwfdm.sara.transfer.rewrite;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
+import org.eclipse.jgit.revwalk.RevFlagSet;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+
+import bwfdm.sara.transfer.PackInserter;
+
+/**
+ * {@link RevWalk} shared by all {@link RewriteStrategy RewriteStrategies} of a
+ * single {@link HistoryRewriter}, so that every commit is parsed exactly once.
+ * Commits that have already been rewritten are marked with a {@link RevFlag},
+ * which is much cheaper than looking them up in the {@link RewriteCache}, and
+ * the walk stops at such commits.
+ */
+public class RewriteWalk extends RevWalk {
+	private final ObjectInserter inserter;
+	private final RevFlag done;
+	/** flags that survive {@link #start(Collection, boolean) restarting}. */
+	private final RevFlagSet retained = new RevFlagSet();
+	private List<RevCommit> processed = new ArrayList<>();
+	private RewriteCache previous;
+	private RewriteCache cache;
+	/** results of other walks rewriting the same history, or null. */
+	private RewriteCache shared;
+	private TreeRewriter trees;
+
+	public RewriteWalk(final Repository repo) {
+		this(repo, repo);
+	}
+
+	/**
+	 * @param repo
+	 *            repository to walk
+	 * @param objects
+	 *            repository to insert the rewritten commits into. must be
+	 *            visible to <code>repo</code>, eg. as an alternate.
+	 */
+	public RewriteWalk(final Repository repo, final Repository objects) {
+		// rewriting can create lots of commits; don't keep them in memory
+		this(repo, PackInserter.create(objects, false));
+	}
+
+	/**
+	 * @param repo
+	 *            repository to walk
+	 * @param inserter
+	 *            {@link ObjectInserter} for the rewritten commits; closed
+	 *            along with the walk
+	 */
+	public RewriteWalk(final Repository repo, final ObjectInserter inserter) {
+		super(repo);
+		this.inserter = inserter;
+		done = newRetainedFlag("rewritten");
+		// commit messages are only needed for the commits that are actually
+		// rewritten. parsing them on demand saves lots of memory.
+		setRetainBody(false);
+		setRevFilter(new SkipDone());
+	}
+
+	/**
+	 * @return the {@link ObjectInserter} for all rewritten commits. it writes
+	 *         them into a single pack, which becomes visible to the repository
+	 *         on {@link #flush()}.
+	 */
+	public ObjectInserter getInserter() {
+		return inserter;
+	}
+
+	/**
+	 * Filters the trees of all commits rewritten from now on. Commits keep
+	 * their original trees by default.
+	 *
+	 * @param filter
+	 *            the {@link BlobFilter} deciding which files to exclude
+	 */
+	public void setBlobFilter(final BlobFilter filter) {
+		trees = filter.isEmpty() ? null : new TreeRewriter(filter,
+				getObjectReader(), inserter);
+	}
+
+	/**
+	 * @return the tree the rewritten commit should have, after excluding the
+	 *         files dropped by the {@link #setBlobFilter(BlobFilter) filter}
+	 */
+	public ObjectId rewriteTree(final RevCommit commit) throws IOException {
+		if (trees == null)
+			return commit.getTree();
+		return trees.rewrite(commit.getTree());
+	}
+
+	/**
+	 * @return size of every file excluded by {@link #rewriteTree(RevCommit)},
+	 *         by blob ID
+	 */
+	public Map<ObjectId, Long> getExcludedFiles() {
+		if (trees == null)
+			return Collections.emptyMap();
+		return trees.getExcludedFiles();
+	}
+
+	/** Makes all rewritten commits visible to the repository. */
+	public void flush() throws IOException {
+		inserter.flush();
+	}
+
+	@Override
+	public void close() {
+		inserter.close();
+		super.close();
+	}
+
+	/**
+	 * Starts walking the history of a head. The walk stops at commits that
+	 * are already {@link #isDone(RevCommit) done}, so it only returns the
+	 * commits that still need rewriting.
+	 *
+	 * @param head
+	 *            the commit to start from
+	 * @param topo
+	 *            <code>true</code> to return every commit after all its parents,
+	 *            <code>false</code> if order doesn't matter
+	 * @return the head commit, parsed by this walk
+	 */
+	public RevCommit start(final AnyObjectId head, final boolean topo)
+			throws IOException {
+		start(Collections.singleton(head), topo);
+		return lookupCommit(head);
+	}
+
+	/**
+	 * Starts walking the history of several heads at once, returning every
+	 * commit only once.
+	 *
+	 * @see #start(AnyObjectId, boolean)
+	 */
+	public void start(final Collection<? extends AnyObjectId> heads,
+			final boolean topo) throws IOException {
+		resetRetain(retained);
+		for (final AnyObjectId head : heads)
+			markStart(parseCommit(head));
+
+		if (topo) {
+			sort(RevSort.TOPO);
+			sort(RevSort.REVERSE, true);
+		} else
+			sort(RevSort.NONE);
+	}
+
+	/**
+	 * Allocates a flag that, like the one marking commits
+	 * {@link #markDone(RevCommit) done}, is kept when the walk is
+	 * {@link #start(Collection, boolean) restarted}.
+	 */
+	public RevFlag newRetainedFlag(final String name) {
+		final RevFlag flag = newFlag(name);
+		retained.add(flag);
+		return flag;
+	}
+
+	/**
+	 * Reuses the results of a previous rewrite. Commits found there are copied
+	 * into the {@link RewriteCache} and then treated as done, so the walk
+	 * stops at them as well.
+	 *
+	 * @param previous
+	 *            results of the previous rewrite, or <code>null</code>
+	 * @param cache
+	 *            the {@link RewriteCache} of this rewrite
+	 */
+	public void reuse(final RewriteCache previous, final RewriteCache cache) {
+		this.previous = previous;
+		this.cache = cache;
+	}
+
+	/**
+	 * Treats every commit in the {@link RewriteCache} as done, not just those
+	 * {@link #markDone(RevCommit) marked} by this walk. Needed when several
+	 * walks rewrite parts of the same history, each in its own thread.
+	 *
+	 * @param shared
+	 *            the {@link RewriteCache} shared by all walks
+	 */
+	public void setSharedCache(final RewriteCache shared) {
+		this.shared = shared;
+	}
+
+	/**
+	 * @return <code>true</code> if the commit has been
+	 *         {@link #markDone(RevCommit) marked as rewritten}
+	 */
+	public boolean isDone(final RevCommit commit) {
+		return commit.has(done);
+	}
+
+	/**
+	 * @return <code>true</code> if the commit's result was taken from the
+	 *         previous rewrite instead of being computed in this one
+	 */
+	public boolean isReused(final RevCommit commit) {
+		return previous != null && previous.contains(commit);
+	}
+
+	/**
+	 * Marks a commit as rewritten, after it has been recorded in the
+	 * {@link RewriteCache}.
+	 */
+	public void markDone(final RevCommit commit) {
+		commit.add(done);
+		if (previous != null)
+			processed.add(commit);
+	}
+
+	/**
+	 * @return all commits {@link #markDone(RevCommit) marked as rewritten}
+	 *         since the last call, in the order they were marked. only
+	 *         recorded while {@link #reuse(RewriteCache, RewriteCache)
+	 *         reusing} previous results.
+	 */
+	public List<RevCommit> takeProcessed() {
+		final List<RevCommit> list = processed;
+		processed = new ArrayList<>();
+		return list;
+	}
+
+	/**
+	 * Prunes the walk at commits that are done, either here or in another walk
+	 * sharing the same {@link RewriteCache}, or that the previous rewrite
+	 * already handled. Marking them uninteresting makes the walk carry that
+	 * mark to their parents, so it never even looks at the (potentially huge)
+	 * history behind them.
+	 */
+	private class SkipDone extends RevFilter {
+		@Override
+		public boolean include(final RevWalk walker, final RevCommit commit) {
+			if (!isDone(commit)
+					&& (shared == null || !shared.contains(commit))) {
+				if (previous == null || !previous.contains(commit))
+					return true;
+				cache.copy(previous, commit);
+				commit.add(done);
+			}
+			commit.add(RevFlag.UNINTERESTING);
+			return false;
+		}
+
+		@Override
+		public RevFilter clone() {
+			return this; // stateless
+		}
+
+		@Override
+		public boolean requiresCommitBody() {
+			return false;
+		}
+	}
+}
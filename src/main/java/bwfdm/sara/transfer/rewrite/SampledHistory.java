@@ -0,0 +1,115 @@
+package bwfdm.sara.transfer.rewrite;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
+
+/**
+ * Samples the history at regular intervals: keeps the last commit of each
+ * day, week or month, plus all important commits (heads and tags). This keeps
+ * long histories without tags at a size somewhere between full and abbreviated
+ * history.
+ * <p>
+ * A commit is the last of its interval if one of its children is in a
+ * different interval. Children are only known once all of history has been
+ * seen, so {@link #prepare(Collection)} walks it once to flag these commits
+ * before it is rewritten. Intervals use the commit time in UTC, so that they
+ * are the same for all committers; weeks start on Monday.
+ */
+public class SampledHistory extends FilteredHistory {
+	public enum Interval {
+		DAY, WEEK, MONTH
+	}
+
+	private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+	private final Interval interval;
+	private final Set<ObjectId> important;
+	private final RevFlag last;
+	private final Calendar calendar = new GregorianCalendar(
+			TimeZone.getTimeZone("UTC"));
+	/** last day looked up in {@link #calendar}, and its month. */
+	private long cachedDay = -1, cachedMonth;
+
+	/**
+	 * @param interval
+	 *            keep the last commit of each of these {@link Interval}s
+	 * @param important
+	 *            commits to keep in any case, ie. heads and tags
+	 */
+	public SampledHistory(final RewriteWalk walk, final RewriteCache cache,
+			final Interval interval, final Set<ObjectId> important) {
+		super(walk, cache);
+		this.interval = interval;
+		this.important = important;
+		last = walk.newRetainedFlag("last in " + interval);
+	}
+
+	@Override
+	public void prepare(final Collection<ObjectId> heads) throws IOException {
+		if (heads.isEmpty())
+			return;
+		// all heads at once, because a commit's children can come from the
+		// history of any of them
+		final List<RevCommit> flagged = new ArrayList<>();
+		walk.start(heads, false);
+		for (RevCommit commit = walk.next(); commit != null; commit = walk
+				.next()) {
+			final long current = getInterval(commit);
+			for (final RevCommit parent : commit.getParents())
+				if (!parent.has(last) && getInterval(parent) != current) {
+					parent.add(last);
+					flagged.add(parent);
+				}
+		}
+
+		// a commit from a previous rewrite can only have gained children
+		// since, making it the last of its interval. if it was omitted then,
+		// its stored descendants are now wrong as well.
+		for (final RevCommit commit : flagged)
+			if (walk.isReused(commit) && !cache.isKeep(commit))
+				throw new StaleRewriteException(commit.name()
+						+ " is now the last commit of its "
+						+ interval.name().toLowerCase());
+	}
+
+	/** @return sequence number of the interval containing the commit */
+	private long getInterval(final RevCommit commit) {
+		// commit times before the epoch cannot even be represented in git
+		final long day = commit.getCommitTime() / SECONDS_PER_DAY;
+		switch (interval) {
+		case DAY:
+			return day;
+		case WEEK:
+			// the epoch was on a Thursday; shift to make weeks start on Monday
+			return (day + 3) / 7;
+		case MONTH:
+			// the walk returns commits roughly by date, so most lookups hit
+			// the same day as the previous one
+			if (day != cachedDay) {
+				calendar.setTimeInMillis(day * SECONDS_PER_DAY * 1000);
+				cachedMonth = 12L * calendar.get(Calendar.YEAR)
+						+ calendar.get(Calendar.MONTH);
+				cachedDay = day;
+			}
+			return cachedMonth;
+		default:
+			throw new UnsupportedOperationException("Interval." + interval);
+		}
+	}
+
+	@Override
+	protected boolean isSignificant(final RevCommit commit,
+			final List<ObjectId> parents) {
+		return important.contains(commit) || commit.has(last);
+	}
+}
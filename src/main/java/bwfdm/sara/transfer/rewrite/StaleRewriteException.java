@@ -0,0 +1,14 @@
+package bwfdm.sara.transfer.rewrite;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a {@link RewriteStrategy} when results reused from a
+ * {@link RewriteStore} turn out to be wrong for the current history.
+ * {@link HistoryRewriter} then rewrites everything again from scratch.
+ */
+class StaleRewriteException extends IOException {
+	StaleRewriteException(final String message) {
+		super(message);
+	}
+}
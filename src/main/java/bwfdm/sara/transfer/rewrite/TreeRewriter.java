@@ -0,0 +1,160 @@
+package bwfdm.sara.transfer.rewrite;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.util.RawParseUtils;
+
+/**
+ * Rewrites trees according to a {@link BlobFilter}, replacing each excluded
+ * file by a small pointer file of the same name. The pointer names the
+ * original blob, so it can still be found in the source repository.
+ * <p>
+ * Consecutive commits usually share most of their directories, so rewritten
+ * trees are memoized by tree ID, and unchanged directories are only rewritten
+ * once. If the filter has patterns that match whole paths, the same tree can
+ * rewrite differently depending on where it is, so trees are then memoized per
+ * directory instead.
+ * <p>
+ * Not thread-safe.
+ */
+public class TreeRewriter {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final BlobFilter filter;
+	private final ObjectReader reader;
+	private final ObjectInserter ins;
+	/**
+	 * rewritten trees, by directory path if the filter depends on it, else
+	 * all of them under the empty string. {@link RewriteCache} works for any
+	 * kind of object.
+	 */
+	private final Map<String, RewriteCache> trees = new HashMap<>();
+	/**
+	 * blobs whose size has been checked. small ones rewrite to themselves,
+	 * large ones to {@link ObjectId#zeroId()}.
+	 */
+	private final RewriteCache sizes = new RewriteCache();
+	/** pointer file replacing each excluded blob. */
+	private final RewriteCache pointers = new RewriteCache();
+	/** size of each excluded blob. */
+	private final Map<ObjectId, Long> excluded = new HashMap<>();
+
+	/**
+	 * @param filter
+	 *            decides which files to exclude
+	 * @param reader
+	 *            {@link ObjectReader} for the original trees
+	 * @param ins
+	 *            {@link ObjectInserter} for rewritten trees and pointer files
+	 */
+	public TreeRewriter(final BlobFilter filter, final ObjectReader reader,
+			final ObjectInserter ins) {
+		this.filter = filter;
+		this.reader = reader;
+		this.ins = ins;
+	}
+
+	/**
+	 * @param tree
+	 *            root tree of a commit
+	 * @return the rewritten tree; identical to the original if no file was
+	 *         excluded
+	 */
+	public ObjectId rewrite(final ObjectId tree) throws IOException {
+		return rewrite(tree, "");
+	}
+
+	private ObjectId rewrite(final ObjectId tree, final String dir)
+			throws IOException {
+		RewriteCache memo = trees.get(dir);
+		if (memo == null) {
+			memo = new RewriteCache();
+			trees.put(dir, memo);
+		}
+		final ObjectId known = memo.getRewrittenCommit(tree);
+		if (known != null)
+			return known;
+
+		final TreeFormatter rewritten = new TreeFormatter();
+		boolean changed = false;
+		for (final CanonicalTreeParser parser = new CanonicalTreeParser(null,
+				reader, tree); !parser.eof(); parser.next()) {
+			final ObjectId id = parser.getEntryObjectId();
+			final byte[] name = new byte[parser.getNameLength()];
+			parser.getName(name, 0);
+			FileMode mode = parser.getEntryFileMode();
+			ObjectId result = id;
+			if (FileMode.TREE.equals(mode))
+				result = rewrite(id, filter.isPathDependent() ? dir
+						+ RawParseUtils.decode(name) + "/" : "");
+			else if (FileMode.REGULAR_FILE.equals(mode)
+					|| FileMode.EXECUTABLE_FILE.equals(mode)) {
+				if (isExcluded(id, dir, name)) {
+					result = getPointer(id);
+					mode = FileMode.REGULAR_FILE;
+				}
+			}
+			// symlinks and submodules are tiny, and never excluded
+			if (!result.equals(id))
+				changed = true;
+			rewritten.append(name, mode, result);
+		}
+
+		// unchanged trees don't need to be written again
+		final ObjectId result = changed ? ins.insert(rewritten) : tree;
+		memo.keep(tree, result);
+		return result;
+	}
+
+	private boolean isExcluded(final ObjectId blob, final String dir,
+			final byte[] name) throws IOException {
+		if (!filter.getPatterns().isEmpty()
+				&& filter.getMatchingPattern(dir,
+						RawParseUtils.decode(name)) != null)
+			return true;
+		if (filter.getMaxSize() <= 0)
+			return false;
+		ObjectId checked = sizes.getRewrittenCommit(blob);
+		if (checked == null) {
+			checked = filter.isTooLarge(reader.getObjectSize(blob,
+					Constants.OBJ_BLOB)) ? ObjectId.zeroId() : blob;
+			sizes.keep(blob, checked);
+		}
+		return !checked.equals(blob);
+	}
+
+	private ObjectId getPointer(final ObjectId blob) throws IOException {
+		final ObjectId known = pointers.getRewrittenCommit(blob);
+		if (known != null)
+			return known;
+
+		final long size = reader.getObjectSize(blob, Constants.OBJ_BLOB);
+		final String text = "This file has been left out of the archive because"
+				+ " of its size or name.\nThe original is still in the source"
+				+ " repository.\n\nsize " + size + "\nblob " + blob.name()
+				+ "\n";
+		final ObjectId pointer = ins.insert(Constants.OBJ_BLOB,
+				text.getBytes(UTF8));
+		pointers.keep(blob, pointer);
+		excluded.put(blob, size);
+		return pointer;
+	}
+
+	/**
+	 * @return size of every excluded file, by blob ID. each file is counted
+	 *         only once, no matter how many commits contain it.
+	 */
+	public Map<ObjectId, Long> getExcludedFiles() {
+		return excluded;
+	}
+}
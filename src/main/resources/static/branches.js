@@ -99,6 +99,37 @@ function addBranch(branch) {
 		});
 }
 
+function formatEstimate(estimate) {
+	return estimate.commits + (estimate.commits == 1 ? " commit, " : " commits, ")
+		+ (estimate.bytes / 1048576).toFixed(1) + " MiB";
+}
+
+function loadEstimates() {
+	API.get("estimate archive size", "/api/repo/estimate", {},
+		function(status) {
+			if (status.pending)
+				// computed in the background; ask again later. uses
+				// setTimeout so two requests can never be active at the
+				// same time.
+				setTimeout(loadEstimates, 2000);
+			else
+				addEstimates(status.refs);
+		});
+}
+
+function addEstimates(estimates) {
+	$.each(estimates, function(_, estimate) {
+		var form = forms[estimate.ref.path];
+		if (!form)
+			return;
+		$("option", form.action).each(function() {
+			var method = estimate.methods[$(this).val()];
+			if (method)
+				$(this).text($(this).text() + " – " + formatEstimate(method));
+		});
+	});
+}
+
 function addBranches(branches) {
 	// update list of branches
 	var select = $("#add_branch");
@@ -148,6 +179,10 @@ function addBranches(branches) {
 	});
 	$("#next_button").removeClass("disabled");
 	$("#loading").remove();
+
+	// sizes are only known for refs that have already been cloned. they can
+	// take a while to compute, so they're added whenever they arrive.
+	loadEstimates();
 }
 
 $(function() {
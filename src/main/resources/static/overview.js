@@ -10,6 +10,15 @@ var publish = {
 	LATEST: {
 		sara: "sara-red",
 		text: "latest version of" },
+	DAILY: {
+		sara: "sara-cyan",
+		text: "daily snapshots of" },
+	WEEKLY: {
+		sara: "sara-cyan",
+		text: "weekly snapshots of" },
+	MONTHLY: {
+		sara: "sara-cyan",
+		text: "monthly snapshots of" },
 };
 
 function initBranches(info) {
@@ -26,6 +35,14 @@ function initBranches(info) {
 	});
 }
 
+function initExcluded(info) {
+	if (info == null || info.files == 0)
+		return;
+	$("#excluded_files").text(info.files);
+	$("#excluded_size").text((info.bytes / 1048576).toFixed(1) + " MiB");
+	$("#excluded").removeClass("hidden");
+}
+
 function initLicenses(info) {
 	$.each(info, function(_, branch) {
 		var line = template("template_licenses");
@@ -64,6 +81,7 @@ function initMeta(info) {
 function init(info) {
 	$("#project").text(info.sourceProject);
 	initBranches(info.actions);
+	initExcluded(info.excluded);
 	initMeta(info.meta);
 	initLicenses(info.licenses);
 	$("#" + info.access).removeClass("hidden");
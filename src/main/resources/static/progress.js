@@ -1,9 +1,22 @@
 "use strict";
 
+function formatDuration(seconds) {
+	if (seconds < 60)
+		return seconds + " s";
+	if (seconds < 3600)
+		return Math.round(seconds / 60) + " min";
+	return Math.round(seconds / 360) / 10 + " h";
+}
+
 function updateStatusItem(id, step) {
 	var line = template("template");
 	line.text.text(step.text);
-	line.status.text("(" + step.status + ")");
+	var status = step.status;
+	if (step.rate)
+		status += ", " + Math.round(step.rate) + "/s";
+	if (step.eta)
+		status += ", " + formatDuration(step.eta) + " left";
+	line.status.text("(" + status + ")");
 
 	// set icon and color
 	if (step.status == "done") {
@@ -30,23 +43,39 @@ function updateStatusItem(id, step) {
 
 var _success, _error, _endpoint;
 
+// returns true once the task has finished
+function showStatus(status) {
+	$("#steps > li").not("#template").remove();
+	if (status.queuePosition)
+		updateStatusItem(null, {
+			text: "Waiting for other transfers to finish (position "
+				+ status.queuePosition + " in queue)",
+			status: "working",
+			progress: 0
+		});
+	$.each(status.steps, updateStatusItem);
+
+	// if task finished or failed, redirect to appropriate page
+	if (status.status == "error") {
+		if (status.error) {
+			var operation = status.error.step ? status.error.step : "operation";
+			window.alert(operation + " failed!\n\n" +
+				status.error.exception + ": " + status.error.message);
+		}
+		location.replace(_error);
+		return true;
+	}
+	if (status.status == "success") {
+		location.replace(_success);
+		return true;
+	}
+	return false;
+}
+
 function updateStatus(timeout) {
 	API.get("check progress", _endpoint, {},
 		function(status) {
-			$("#steps > li").not("#template").remove();
-			$.each(status.steps, updateStatusItem);
-
-			// if task finished or failed, redirect to appropriate page
-			if (status.status == "error") {
-				if (status.error) {
-					var operation = status.error.step ? status.error.step : "operation";
-					window.alert(operation + " failed!\n\n" +
-						status.error.exception + ": " + status.error.message);
-				}
-				location.replace(_error);
-			} else if (status.status == "success")
-				location.replace(_success);
-			else
+			if (!showStatus(status))
 				// schedule next status update. uses setTimeout instead
 				// of setInterval so two requests can never be active at
 				// the same time.
@@ -54,20 +83,46 @@ function updateStatus(timeout) {
 		});
 }
 
+// the server pushes a new status whenever the task makes progress. returns
+// false if the browser doesn't support that, and falls back to polling if the
+// server doesn't.
+function listenStatus(events) {
+	if (!window.EventSource)
+		return false;
+
+	var source = new EventSource(events);
+	var received = false;
+	source.onmessage = function(msg) {
+		received = true;
+		if (showStatus(JSON.parse(msg.data)))
+			source.close();
+	};
+	source.onerror = function() {
+		// once the stream has worked, the browser just reconnects. if it
+		// never worked, it probably never will.
+		if (!received) {
+			source.close();
+			updateStatus(1000);
+		}
+	};
+	return true;
+}
+
 function update() {
 	// long timeout for later updates because the user is already
 	// waiting anyway
 	updateStatus(2000);
 }
 
-function initStatus(endpoint, cancel, success, error) {
+function initStatus(endpoint, events, cancel, success, error) {
 	_endpoint = endpoint;
 	_success = success;
 	_error = error;
 
-	// short timeout for first update so the user doesn't have to wait
-	// excessively if the operations finish quickly
-	updateStatus(1000);
+	if (!listenStatus(events))
+		// short timeout for first update so the user doesn't have to wait
+		// excessively if the operations finish quickly
+		updateStatus(1000);
 
 	$("#cancel").click(function() {
 		location.replace(cancel);
@@ -1,6 +1,6 @@
 "use strict";
 
 $(function() {
-	initStatus("/api/push/status", "/api/push/cancel", "/api/push/redirect",
-		"/overview.html");
+	initStatus("/api/push/status", "/api/push/events", "/api/push/cancel",
+		"/api/push/redirect", "/overview.html");
 });
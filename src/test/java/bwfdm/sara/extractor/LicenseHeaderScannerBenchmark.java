@@ -0,0 +1,133 @@
+package bwfdm.sara.extractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.springframework.util.FileSystemUtils;
+
+import bwfdm.sara.UnitTestConfig;
+import bwfdm.sara.transfer.PackInserter;
+
+/**
+ * Measures how long the {@link LicenseHeaderScanner} takes for a large
+ * repository, and for a second ref which changes a single directory. Not a
+ * unit test; run {@link #main(String[])} manually with the test classpath,
+ * optionally passing the number of files (default 100000) and the number of
+ * large files (default 20).
+ * <p>
+ * Every file is different and about 8 KB long, with an SPDX tag in every
+ * tenth one and the Apache notice in every hundredth. The large files are
+ * 16 MB of text each, in a directory of their own. That's below JGit's
+ * streaming threshold, so opening them inflates them completely. All objects
+ * are in a single pack, as they are after a clone.
+ */
+public class LicenseHeaderScannerBenchmark {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int FILES_PER_DIR = 100;
+	private static final int LARGE_FILE_SIZE = 16 * 1024 * 1024;
+
+	public static void main(final String... args) throws IOException,
+			GitAPIException {
+		final int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		final int large = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		final File dir = UnitTestConfig.createTempDirectory();
+		try (final Repository repo = Git.init().setBare(true)
+				.setGitDir(dir).call().getRepository()) {
+			long start = System.currentTimeMillis();
+			// the last directory holds the large files
+			final ObjectId[] dirs = new ObjectId[(n + FILES_PER_DIR - 1)
+					/ FILES_PER_DIR + 1];
+			final ObjectId root, changed;
+			try (final ObjectInserter ins = PackInserter.create(repo, true)) {
+				for (int d = 0; d < dirs.length - 1; d++)
+					dirs[d] = createDir(ins, d, 0);
+				dirs[dirs.length - 1] = createLargeDir(ins, large);
+				root = createRoot(ins, dirs);
+				dirs[dirs.length / 2] = createDir(ins, dirs.length / 2, 1);
+				changed = createRoot(ins, dirs);
+				ins.flush();
+			}
+			System.out.println("created " + n + " files and " + large
+					+ " large files in "
+					+ (System.currentTimeMillis() - start) + " ms");
+
+			final LicenseHeaderScanner scanner = new LicenseHeaderScanner();
+			final Map<String, ObjectId> roots = new HashMap<>();
+			roots.put("master", root);
+			start = System.currentTimeMillis();
+			System.out.println(scanner.scan(repo, roots));
+			System.out.println("first ref: "
+					+ (System.currentTimeMillis() - start) + " ms");
+
+			roots.put("tag", changed);
+			start = System.currentTimeMillis();
+			System.out.println(scanner.scan(repo, roots));
+			System.out.println("second ref: "
+					+ (System.currentTimeMillis() - start) + " ms");
+		} finally {
+			FileSystemUtils.deleteRecursively(dir);
+		}
+	}
+
+	private static ObjectId createDir(final ObjectInserter ins, final int dir,
+			final int version) throws IOException {
+		final TreeFormatter tree = new TreeFormatter();
+		for (int i = 0; i < FILES_PER_DIR; i++) {
+			final int file = dir * FILES_PER_DIR + i;
+			final StringBuilder data = new StringBuilder();
+			if (file % 10 == 0)
+				data.append("// SPDX-License-Identifier: MIT\n");
+			else if (file % 100 == 1)
+				data.append("/*\n * Licensed under the Apache License, "
+						+ "Version 2.0 (the \"License\");\n */\n");
+			data.append("// file ").append(file).append(" version ")
+					.append(version).append('\n');
+			while (data.length() < 8192)
+				data.append("\tpublic void method").append(data.length())
+						.append("() { return; }\n");
+			tree.append(String.format("File%03d.java", i),
+					FileMode.REGULAR_FILE, ins.insert(Constants.OBJ_BLOB,
+							data.toString().getBytes(UTF8)));
+		}
+		return ins.insert(tree);
+	}
+
+	private static ObjectId createLargeDir(final ObjectInserter ins,
+			final int count) throws IOException {
+		final byte[] data = new byte[LARGE_FILE_SIZE];
+		// random digits don't compress much, as in real data files
+		final Random random = new Random(42);
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (i % 64 == 63 ? '\n' : '0' + random.nextInt(10));
+		final TreeFormatter tree = new TreeFormatter();
+		for (int i = 0; i < count; i++) {
+			final byte[] header = String.format(
+					"# SPDX-License-Identifier: CC0-1.0\n# version %03d\n", i)
+					.getBytes(UTF8);
+			System.arraycopy(header, 0, data, 0, header.length);
+			tree.append(String.format("data%03d.csv", i),
+					FileMode.REGULAR_FILE, ins.insert(Constants.OBJ_BLOB, data));
+		}
+		return ins.insert(tree);
+	}
+
+	private static ObjectId createRoot(final ObjectInserter ins,
+			final ObjectId[] dirs) throws IOException {
+		final TreeFormatter tree = new TreeFormatter();
+		for (int d = 0; d < dirs.length; d++)
+			tree.append(String.format("dir%05d", d), FileMode.TREE, dirs[d]);
+		return ins.insert(tree);
+	}
+}
@@ -0,0 +1,157 @@
+package bwfdm.sara.extractor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.junit.Test;
+
+public class LicenseHeaderScannerTest {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String SPDX_C = "// SPDX-License-Identifier: MIT\n"
+			+ "#include <stdio.h>\n";
+	private static final String SPDX_BLOCK = "/*\n"
+			+ " * SPDX-License-Identifier: (GPL-2.0+ OR BSD-3-Clause) */\n"
+			+ "int x;\n";
+	private static final String APACHE = "/*\n"
+			+ " * Copyright 2017 Jane Q. Hacker\n *\n"
+			+ " * Licensed under the Apache License, Version 2.0 (the \"License\");\n"
+			+ " * you may not use this file except in compliance with the License.\n"
+			+ " */\npackage foo;\n";
+	private static final String GPL_2_OR_LATER = "# This program is free "
+			+ "software; you can redistribute it and/or modify\n"
+			+ "# it under the terms of the GNU General Public License as "
+			+ "published by\n# the Free Software Foundation; either version 2 "
+			+ "of the License, or\n# (at your option) any later version.\n";
+	private static final String LGPL_2_1 = "-- This library is free software; "
+			+ "you can redistribute it and/or\n-- modify it under the terms of "
+			+ "the GNU Lesser General Public\n-- License as published by the "
+			+ "Free Software Foundation, version 2.1.\n";
+	private static final String BSD_3 = "# Redistribution and use in source "
+			+ "and binary forms, with or without\n# modification, are "
+			+ "permitted provided that the following conditions are met:\n"
+			+ "# ...\n# * Neither the name of the copyright holder nor the "
+			+ "names of its\n#   contributors may be used to endorse\n";
+
+	@Test
+	public void testSpdxTags() {
+		assertLicenses(SPDX_C, "MIT");
+		assertLicenses(SPDX_BLOCK, "(GPL-2.0+ OR BSD-3-Clause)");
+		assertLicenses("<!-- SPDX-License-Identifier: CC-BY-4.0 -->\n"
+				+ "# spdx-license-identifier: Apache-2.0\n", "CC-BY-4.0",
+				"Apache-2.0");
+		// the tag takes precedence over notices
+		assertLicenses(SPDX_C + APACHE, "MIT");
+		// no expression after the tag
+		assertLicenses("// SPDX-License-Identifier:\n");
+	}
+
+	@Test
+	public void testNotices() {
+		assertLicenses(APACHE, "Apache-2.0");
+		assertLicenses(GPL_2_OR_LATER, "GPL-2.0+");
+		assertLicenses(LGPL_2_1, "LGPL-2.1");
+		assertLicenses(BSD_3, "BSD-3-Clause");
+		assertLicenses("/* This Source Code Form is subject to the terms of "
+				+ "the Mozilla Public\n * License, v. 2.0. */\n", "MPL-2.0");
+		assertLicenses("# Licensed under the terms of the license in the "
+				+ "LICENSE file.\n");
+		assertLicenses("int main() { return 0; }\n");
+	}
+
+	@Test
+	public void testScan() throws IOException {
+		final Repository repo = new InMemoryRepository(
+				new DfsRepositoryDescription("test"));
+		final ObjectId master, tag, branch;
+		try (final ObjectInserter ins = repo.newObjectInserter()) {
+			final ObjectId vendor = tree(ins, "apache.java",
+					blob(ins, APACHE), "gpl.sh", blob(ins, GPL_2_OR_LATER));
+			final ObjectId main = blob(ins, SPDX_C);
+			final ObjectId binary = ins.insert(Constants.OBJ_BLOB, new byte[] {
+					0, 1, 2, 'M', 'I', 'T' });
+			// too large to be scanned, despite the tag
+			final StringBuilder data = new StringBuilder(SPDX_C);
+			while (data.length() <= LicenseHeaderScanner.MAX_FILE_SIZE)
+				data.append("1,2,3\n");
+			final ObjectId large = blob(ins, data.toString());
+			master = tree(ins, "a.c", main, "b.c", main, "binary", binary,
+					"data.csv", large, "vendor/", vendor);
+			// shares the vendor directory and adds another copy in a
+			// different directory
+			tag = tree(ins, "a.c", main, "lib/", vendor, "vendor/", vendor);
+			// only changes a file in the vendor directory
+			branch = tree(ins, "a.c", main, "vendor/", tree(ins,
+					"apache.java", blob(ins, APACHE), "gpl.sh",
+					blob(ins, LGPL_2_1)));
+			ins.flush();
+		}
+
+		final LicenseHeaderScanner scanner = new LicenseHeaderScanner();
+		final Map<String, ObjectId> roots = new HashMap<>();
+		roots.put("master", master);
+		roots.put("tag", tag);
+		final Map<String, Map<String, Integer>> inventory = scanner.scan(repo,
+				roots);
+		assertEquals(counts("Apache-2.0", 1, "GPL-2.0+", 1, "MIT", 2),
+				inventory.get("master"));
+		assertEquals(counts("Apache-2.0", 2, "GPL-2.0+", 2, "MIT", 1),
+				inventory.get("tag"));
+
+		// reuses the results for the unchanged files
+		roots.put("branch", branch);
+		final Map<String, Map<String, Integer>> again = scanner.scan(repo,
+				roots);
+		assertEquals(inventory.get("master"), again.get("master"));
+		assertEquals(counts("Apache-2.0", 1, "LGPL-2.1", 1, "MIT", 1),
+				again.get("branch"));
+	}
+
+	private static void assertLicenses(final String header,
+			final String... expected) {
+		assertEquals(new LinkedHashSet<>(Arrays.asList(expected)),
+				LicenseHeaderScanner.detectLicenses(header));
+	}
+
+	private static Map<String, Integer> counts(final Object... pairs) {
+		final Map<String, Integer> counts = new HashMap<>();
+		for (int i = 0; i < pairs.length; i += 2)
+			counts.put((String) pairs[i], (Integer) pairs[i + 1]);
+		return counts;
+	}
+
+	private static ObjectId blob(final ObjectInserter ins, final String data)
+			throws IOException {
+		return ins.insert(Constants.OBJ_BLOB, data.getBytes(UTF8));
+	}
+
+	/** entries must be sorted by name; names ending in / are trees. */
+	private static ObjectId tree(final ObjectInserter ins,
+			final Object... entries) throws IOException {
+		final TreeFormatter tree = new TreeFormatter();
+		for (int i = 0; i < entries.length; i += 2) {
+			final String name = (String) entries[i];
+			final ObjectId id = (ObjectId) entries[i + 1];
+			if (name.endsWith("/"))
+				tree.append(name.substring(0, name.length() - 1),
+						FileMode.TREE, id);
+			else
+				tree.append(name, FileMode.REGULAR_FILE, id);
+		}
+		return ins.insert(tree);
+	}
+}
@@ -0,0 +1,204 @@
+package bwfdm.sara.extractor.dice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+import bwfdm.sara.extractor.LicenseFile;
+
+public class DiceExtractorTest {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** dump of the supported_licenses table, with the full texts. */
+	private static final String LICENSES_SQL = "saradb/licenses.sql";
+
+	private static final String MIT = "MIT License\n\n"
+			+ "Copyright (c) [year] [fullname]\n\n"
+			+ "Permission is hereby granted, free of charge, to any person obtaining a copy\n"
+			+ "of this software and associated documentation files (the \"Software\"), to deal\n"
+			+ "in the Software without restriction, including without limitation the rights\n"
+			+ "to use, copy, modify, merge, publish, distribute, sublicense, and/or sell\n"
+			+ "copies of the Software, and to permit persons to whom the Software is\n"
+			+ "furnished to do so, subject to the following conditions:\n\n"
+			+ "The above copyright notice and this permission notice shall be included in all\n"
+			+ "copies or substantial portions of the Software.\n\n"
+			+ "THE SOFTWARE IS PROVIDED \"AS IS\", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR\n"
+			+ "IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,\n"
+			+ "FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE\n"
+			+ "AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER\n"
+			+ "LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,\n"
+			+ "OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE\n"
+			+ "SOFTWARE.\n";
+	private static final String ISC = "ISC License\n\n"
+			+ "Copyright (c) [year], [fullname]\n\n"
+			+ "Permission to use, copy, modify, and/or distribute this software for any\n"
+			+ "purpose with or without fee is hereby granted, provided that the above\n"
+			+ "copyright notice and this permission notice appear in all copies.\n\n"
+			+ "THE SOFTWARE IS PROVIDED \"AS IS\" AND THE AUTHOR DISCLAIMS ALL WARRANTIES\n"
+			+ "WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF\n"
+			+ "MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR\n"
+			+ "ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES\n"
+			+ "WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN\n"
+			+ "ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF\n"
+			+ "OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.\n";
+	private static final String BSD_2 = "BSD 2-Clause License\n\n"
+			+ "Copyright (c) [year], [fullname]\n"
+			+ "All rights reserved.\n\n"
+			+ "Redistribution and use in source and binary forms, with or without\n"
+			+ "modification, are permitted provided that the following conditions are met:\n\n"
+			+ "1. Redistributions of source code must retain the above copyright notice, this\n"
+			+ "   list of conditions and the following disclaimer.\n\n"
+			+ "2. Redistributions in binary form must reproduce the above copyright notice,\n"
+			+ "   this list of conditions and the following disclaimer in the documentation\n"
+			+ "   and/or other materials provided with the distribution.\n\n"
+			+ "THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS \"AS IS\"\n"
+			+ "AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE\n"
+			+ "IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE\n"
+			+ "DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE\n"
+			+ "FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL\n"
+			+ "DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR\n"
+			+ "SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER\n"
+			+ "CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,\n"
+			+ "OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE\n"
+			+ "OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.\n";
+
+	private static Map<String, String> builtin() {
+		final Map<String, String> texts = new HashMap<>();
+		texts.put("MIT", MIT);
+		texts.put("ISC", ISC);
+		texts.put("BSD-2-Clause", BSD_2);
+		return texts;
+	}
+
+	private static LicenseFile detect(final DiceExtractor extractor,
+			final String content) {
+		return extractor.detectLicense("LICENSE", ObjectId.zeroId(), content);
+	}
+
+	/** the templates themselves must match exactly. */
+	@Test
+	public void testTemplates() {
+		final DiceExtractor extractor = new DiceExtractor(builtin());
+		for (final Map.Entry<String, String> e : builtin().entrySet()) {
+			final LicenseFile license = detect(extractor, e.getValue());
+			assertEquals(e.getKey(), license.licenseID);
+			assertEquals(1, license.score, 0);
+		}
+	}
+
+	/**
+	 * filled-in fields, Markdown, different line wrapping and typographic
+	 * quotes must not matter.
+	 */
+	@Test
+	public void testVariants() {
+		final DiceExtractor extractor = new DiceExtractor(builtin());
+		for (final Map.Entry<String, String> e : builtin().entrySet()) {
+			final String text = "# The " + e.getValue()
+					.replace("[year]", "2017")
+					.replace("[fullname]", "Jane Q. Hacker")
+					.replace("\"", "\u201c").replace("\n", " ")
+					.replace("  ", "\n\n");
+			final LicenseFile license = detect(extractor, text);
+			assertEquals(e.getKey(), license.licenseID);
+			assertTrue(license.score >= DiceExtractor.THRESHOLD);
+		}
+		// choosealicense.com has the MIT license without a title
+		assertEquals("MIT", detect(extractor,
+				MIT.substring(MIT.indexOf("Copyright"))).licenseID);
+	}
+
+	@Test
+	public void testNoMatch() {
+		final DiceExtractor extractor = new DiceExtractor(builtin());
+		// license buried in a lot of other text
+		final StringBuilder readme = new StringBuilder(
+				"This is a project that does lots of interesting stuff.\n");
+		for (int i = 0; i < 20; i++)
+			readme.append("Step ").append(i)
+					.append(": run the installer, then restart.\n");
+		readme.append(MIT);
+		assertNull(detect(extractor, readme.toString()).licenseID);
+		// modified license, which isn't the same license anymore
+		assertNull(detect(extractor, MIT.replace("free of charge",
+				"for a fee of 100 EUR per copy, payable in advance"))
+				.licenseID);
+		// not a license at all
+		assertNull(detect(extractor, "just some text\n").licenseID);
+		assertNull(detect(extractor, "").licenseID);
+	}
+
+	@Test
+	public void testVersion() {
+		final Map<String, String> texts = builtin();
+		final String version = new DiceExtractor(texts).getVersion();
+		assertEquals(version, new DiceExtractor(builtin()).getVersion());
+		texts.remove("ISC");
+		assertTrue(!version.equals(new DiceExtractor(texts).getVersion()));
+	}
+
+	/**
+	 * Licensee's results for a fixed set of license files, recorded by
+	 * {@link LicenseeFixtures}. Using the templates from the database, as in
+	 * production, Dice has to detect exactly the same licenses.
+	 */
+	@Test
+	public void testLicenseeAgreement() throws IOException {
+		final DiceExtractor extractor = new DiceExtractor(
+				readLicenses(new File(LICENSES_SQL)));
+		final Properties expected = LicenseeFixtures.readExpected();
+		assertTrue(!expected.isEmpty());
+		for (final String name : new TreeSet<>(expected.stringPropertyNames())) {
+			final String id = expected.getProperty(name);
+			assertEquals(name, id.isEmpty() ? null : id, detect(extractor,
+					LicenseeFixtures.readFixture(name)).licenseID);
+		}
+	}
+
+	/**
+	 * reads the full texts from the {@code COPY} statement of a dump of the
+	 * supported_licenses table.
+	 */
+	private static Map<String, String> readLicenses(final File file)
+			throws IOException {
+		final Map<String, String> texts = new HashMap<>();
+		for (final String line : Files.readAllLines(file.toPath(), UTF8)) {
+			final String[] fields = line.split("\t", -1);
+			if (fields.length == 6)
+				texts.put(fields[0], unescape(fields[5]));
+		}
+		return texts;
+	}
+
+	private static String unescape(final String field) {
+		final StringBuilder text = new StringBuilder(field.length());
+		for (int i = 0; i < field.length(); i++) {
+			final char ch = field.charAt(i);
+			if (ch != '\\' || i + 1 >= field.length()) {
+				text.append(ch);
+				continue;
+			}
+			final char escaped = field.charAt(++i);
+			if (escaped == 'n')
+				text.append('\n');
+			else if (escaped == 't')
+				text.append('\t');
+			else if (escaped == 'r')
+				text.append('\r');
+			else
+				text.append(escaped);
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,93 @@
+package bwfdm.sara.extractor.dice;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import org.jruby.embed.LocalContextScope;
+import org.jruby.embed.ScriptingContainer;
+
+import bwfdm.sara.extractor.licensee.LicenseeExtractor;
+
+/**
+ * Records which license Licensee detects in each of the license files in
+ * {@value #DIR}, so that {@link DiceExtractorTest} can check that the
+ * {@link DiceExtractor} detects the same ones. Not a unit test; run
+ * {@link #main(String[])} manually with the test classpath, in a build where
+ * the Licensee gem is installed for the {@link LicenseeExtractor}, whenever
+ * the files change or Licensee is upgraded.
+ * <p>
+ * The results go to {@value #EXPECTED} in the same directory: the SPDX
+ * license ID for each file name, or nothing if Licensee doesn't recognize the
+ * license.
+ */
+public class LicenseeFixtures {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	static final String DIR = "src/test/resources/"
+			+ "bwfdm/sara/extractor/dice/licensee";
+	static final String EXPECTED = "expected.properties";
+
+	/**
+	 * treats the content as a file called LICENSE, like
+	 * {@code license_extractor.rb} does.
+	 */
+	private static final String DETECT = "lambda do |content|\n"
+			+ "  license = Licensee::ProjectFiles::LicenseFile"
+			+ ".new(content, 'LICENSE').license\n"
+			+ "  license && license.meta['spdx-id']\n" + "end";
+
+	public static void main(final String... args) throws IOException {
+		final ScriptingContainer ruby = new ScriptingContainer(
+				LocalContextScope.SINGLETHREAD);
+		ruby.setLoadPaths(Arrays.asList(
+				"uri:classloader:/bwfdm/sara/extractor/licensee/ruby/lib"));
+		ruby.runScriptlet("require 'licensee'");
+		final String version = ruby.runScriptlet("Licensee::VERSION")
+				.toString();
+		final Object detect = ruby.runScriptlet(DETECT);
+
+		final File dir = new File(DIR);
+		final StringBuilder expected = new StringBuilder();
+		expected.append("# license that Licensee ").append(version)
+				.append(" detects in each file, empty if none.\n")
+				.append("# regenerate with LicenseeFixtures after changing ")
+				.append("the files.\n");
+		for (final String name : new TreeSet<>(Arrays.asList(dir.list()))) {
+			if (name.equals(EXPECTED))
+				continue;
+			final String id = ruby.callMethod(detect, "call",
+					readFixture(name), String.class);
+			expected.append(name).append('=').append(id != null ? id : "")
+					.append('\n');
+		}
+		try (final Writer out = Files.newBufferedWriter(
+				new File(dir, EXPECTED).toPath(), UTF8)) {
+			out.write(expected.toString());
+		}
+		System.out.print(expected);
+	}
+
+	/** @return the contents of a license file */
+	static String readFixture(final String name) throws IOException {
+		return new String(Files.readAllBytes(new File(DIR, name).toPath()),
+				UTF8);
+	}
+
+	/** @return the license ID for each file, empty if none */
+	static Properties readExpected() throws IOException {
+		final Properties expected = new Properties();
+		try (final Reader in = new InputStreamReader(new FileInputStream(
+				new File(DIR, EXPECTED)), UTF8)) {
+			expected.load(in);
+		}
+		return expected;
+	}
+}
@@ -0,0 +1,134 @@
+package bwfdm.sara.transfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.FileSystemUtils;
+
+import bwfdm.sara.UnitTestConfig;
+
+public class CommitGraphTest {
+	private Repository repo;
+	private final List<ObjectId> commits = new ArrayList<>();
+
+	/**
+	 * random history with merges of earlier commits, and of short side
+	 * branches that aren't in {@link #commits}.
+	 */
+	@Before
+	public void createTestRepo() throws IOException {
+		repo = new InMemoryRepository(new DfsRepositoryDescription("test"));
+		final Random random = new Random(0);
+		try (final ObjectInserter ins = repo.newObjectInserter()) {
+			final ObjectId tree = ins.insert(new TreeFormatter());
+			for (int i = 0; i < 200; i++) {
+				final List<ObjectId> parents = new ArrayList<>();
+				if (i > 0)
+					parents.add(commits.get(i - 1));
+				// side branches are just commits that aren't anybody's first
+				// parent
+				if (i > 10 && random.nextInt(5) == 0)
+					parents.add(commits.get(random.nextInt(i - 1)));
+				if (i > 10 && random.nextInt(5) == 0)
+					parents.add(0, commit(ins, tree, i, parents));
+				commits.add(commit(ins, tree, i, parents));
+			}
+			ins.flush();
+		}
+	}
+
+	private static ObjectId commit(final ObjectInserter ins,
+			final ObjectId tree, final int time, final List<ObjectId> parents)
+			throws IOException {
+		final PersonIdent ident = new PersonIdent("Test User",
+				"test@example.org", 1000000000000L + time * 1000L, 0);
+		final CommitBuilder commit = new CommitBuilder();
+		commit.setTreeId(tree);
+		commit.setAuthor(ident);
+		commit.setCommitter(ident);
+		commit.setMessage("commit " + time);
+		commit.setParentIds(parents);
+		return ins.insert(Constants.OBJ_COMMIT, commit.build());
+	}
+
+	@Test
+	public void testAncestry() throws IOException {
+		final CommitGraph graph = CommitGraph.EMPTY.extend(repo,
+				Collections.singleton(commits.get(commits.size() - 1)));
+		try (final RevWalk walk = new RevWalk(repo)) {
+			for (int i = 0; i < commits.size(); i += 3)
+				for (int j = 0; j < commits.size(); j += 7) {
+					final boolean expected = walk.isMergedInto(
+							walk.parseCommit(commits.get(i)),
+							walk.parseCommit(commits.get(j)));
+					assertEquals(commits.get(i).name() + " in "
+							+ commits.get(j).name(), expected,
+							graph.isAncestor(commits.get(i), commits.get(j)));
+				}
+		}
+	}
+
+	@Test
+	public void testExtendAndReload() throws IOException {
+		final CommitGraph first = CommitGraph.EMPTY.extend(repo,
+				Collections.singleton(commits.get(99)));
+		assertFalse(first.contains(commits.get(150)));
+		assertSame(first, first.extend(repo,
+				Collections.singleton(commits.get(50))));
+
+		final CommitGraph second = first.extend(repo,
+				Arrays.asList(commits.get(199), commits.get(99)));
+		assertTrue(second.isAncestor(commits.get(99), commits.get(199)));
+		assertFalse(second.isAncestor(commits.get(199), commits.get(99)));
+		final int head = second.find(commits.get(199));
+		assertEquals(1000000199, second.getCommitTime(head));
+		final BitSet history = second.getReachable(head);
+		assertTrue(history.get(second.find(commits.get(0))));
+
+		final File dir = UnitTestConfig.createTempDirectory();
+		try {
+			final File file = new File(dir, "graph");
+			second.save(file);
+			final CommitGraph loaded = CommitGraph.load(file);
+			assertEquals(second.size(), loaded.size());
+			for (final ObjectId commit : commits) {
+				final int pos = loaded.find(commit);
+				assertEquals(second.find(commit), pos);
+				if (pos >= 0)
+					assertEquals(second.getGeneration(pos),
+							loaded.getGeneration(pos));
+			}
+		} finally {
+			FileSystemUtils.deleteRecursively(dir);
+		}
+	}
+
+	@After
+	public void dispose() {
+		repo.close();
+	}
+}
@@ -0,0 +1,103 @@
+package bwfdm.sara.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.internal.storage.file.RefDirectory;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.springframework.util.FileSystemUtils;
+
+import bwfdm.sara.UnitTestConfig;
+
+/**
+ * Measures how long it takes to delete all tags of a repository, which
+ * {@link CloneTask} does before every fetch, both with one {@link RefUpdate}
+ * per tag and with a {@link RefBatch}. Not a unit test; run
+ * {@link #main(String[])} manually with the test classpath, optionally passing
+ * the number of tags (default 20000).
+ * <p>
+ * All tags are packed, as they are in a mirror after {@code git gc}. Deleting
+ * packed refs one at a time locks and rewrites packed-refs for each of them,
+ * so be patient with the default number of tags: that takes minutes.
+ */
+public class RefBatchBenchmark {
+	public static void main(final String... args)
+			throws IOException, GitAPIException {
+		final int n = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		final File dir = UnitTestConfig.createTempDirectory();
+		try (final Repository repo = Git.init().setBare(true)
+				.setGitDir(dir).call().getRepository()) {
+			final ObjectId commit = createCommit(repo);
+
+			createTags(repo, commit, n);
+			long start = System.currentTimeMillis();
+			for (final org.eclipse.jgit.lib.Ref tag : repo.getTags()
+					.values()) {
+				final RefUpdate update = repo.updateRef(tag.getName());
+				update.setCheckConflicting(false);
+				update.setForceUpdate(true);
+				update.delete();
+			}
+			report("one RefUpdate per tag", n, start, repo);
+
+			createTags(repo, commit, n);
+			start = System.currentTimeMillis();
+			final RefBatch batch = new RefBatch(repo, "benchmark");
+			for (final org.eclipse.jgit.lib.Ref tag : repo.getTags()
+					.values())
+				batch.delete(tag.getName());
+			batch.execute();
+			report("RefBatch", n, start, repo);
+		} finally {
+			FileSystemUtils.deleteRecursively(dir);
+		}
+	}
+
+	private static ObjectId createCommit(final Repository repo)
+			throws IOException {
+		final PersonIdent ident = new PersonIdent("Test User",
+				"test@example.org");
+		try (final ObjectInserter ins = repo.newObjectInserter()) {
+			final CommitBuilder commit = new CommitBuilder();
+			commit.setTreeId(ins.insert(new TreeFormatter()));
+			commit.setAuthor(ident);
+			commit.setCommitter(ident);
+			commit.setMessage("tagged commit");
+			final ObjectId id = ins.insert(commit);
+			ins.flush();
+			return id;
+		}
+	}
+
+	private static void createTags(final Repository repo, final ObjectId id,
+			final int n) throws IOException {
+		final List<String> names = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			final String name = Constants.R_TAGS + "v" + i;
+			final RefUpdate update = repo.updateRef(name);
+			update.setCheckConflicting(false);
+			update.setNewObjectId(id);
+			update.forceUpdate();
+			names.add(name);
+		}
+		((RefDirectory) repo.getRefDatabase()).pack(names);
+	}
+
+	private static void report(final String label, final int n,
+			final long start, final Repository repo) throws IOException {
+		final long time = System.currentTimeMillis() - start;
+		System.out.printf("%-24s %6d tags deleted in %6d ms, %d left%n",
+				label, n, time, repo.getTags().size());
+	}
+}
@@ -0,0 +1,164 @@
+package bwfdm.sara.transfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.RefDirectory;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TagBuilder;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.FileSystemUtils;
+
+import bwfdm.sara.UnitTestConfig;
+
+public class RefBatchTest {
+	private static final PersonIdent IDENT = new PersonIdent("Test User",
+			"test@example.org", 1000000000000L, 0);
+
+	private File dir;
+	private ObjectId first, second, tag;
+
+	@Before
+	public void createTempDir() throws IOException {
+		dir = UnitTestConfig.createTempDirectory();
+	}
+
+	@After
+	public void deleteTempDir() {
+		FileSystemUtils.deleteRecursively(dir);
+	}
+
+	/**
+	 * deletes a mix of packed, loose and annotated tags, and updates and
+	 * creates branches, in a plain ref directory.
+	 */
+	@Test
+	public void testRefDirectory() throws IOException, GitAPIException {
+		try (final Repository repo = Git.init().setBare(true).setGitDir(dir)
+				.call().getRepository()) {
+			createObjects(repo);
+			final List<String> packed = new ArrayList<>();
+			for (int i = 0; i < 10; i++) {
+				set(repo, Constants.R_TAGS + "t" + i, first);
+				packed.add(Constants.R_TAGS + "t" + i);
+			}
+			set(repo, Constants.R_TAGS + "annotated", tag);
+			set(repo, Constants.R_HEADS + "master", first);
+			packed.add(Constants.R_TAGS + "annotated");
+			packed.add(Constants.R_HEADS + "master");
+			((RefDirectory) repo.getRefDatabase()).pack(packed);
+			// loose ref shadowing a packed one, and a loose ref only
+			set(repo, Constants.R_TAGS + "t1", second);
+			set(repo, Constants.R_TAGS + "sub/loose", second);
+
+			modify(repo);
+			checkResult(repo);
+			// also check what actually ended up on disk
+			try (final Repository reopened = new FileRepository(dir)) {
+				checkResult(reopened);
+			}
+			// empty directories of deleted loose refs are cleaned up
+			assertFalse(new File(dir, Constants.R_TAGS + "sub").exists());
+		}
+	}
+
+	/** same thing in a repository that doesn't use files. */
+	@Test
+	public void testInMemory() throws IOException {
+		final Repository repo = new InMemoryRepository(
+				new DfsRepositoryDescription("test"));
+		createObjects(repo);
+		for (int i = 0; i < 10; i++)
+			set(repo, Constants.R_TAGS + "t" + i, first);
+		set(repo, Constants.R_TAGS + "annotated", tag);
+		set(repo, Constants.R_TAGS + "sub/loose", second);
+		set(repo, Constants.R_HEADS + "master", first);
+		modify(repo);
+		checkResult(repo);
+	}
+
+	private void createObjects(final Repository repo) throws IOException {
+		try (final ObjectInserter ins = repo.newObjectInserter()) {
+			final ObjectId tree = ins.insert(new TreeFormatter());
+			first = commit(ins, tree);
+			second = commit(ins, tree, first);
+			final TagBuilder tb = new TagBuilder();
+			tb.setObjectId(first, Constants.OBJ_COMMIT);
+			tb.setTag("annotated");
+			tb.setTagger(IDENT);
+			tb.setMessage("annotated tag");
+			tag = ins.insert(tb);
+			ins.flush();
+		}
+	}
+
+	private static ObjectId commit(final ObjectInserter ins,
+			final ObjectId tree, final ObjectId... parents)
+			throws IOException {
+		final CommitBuilder commit = new CommitBuilder();
+		commit.setTreeId(tree);
+		commit.setAuthor(IDENT);
+		commit.setCommitter(IDENT);
+		commit.setMessage("commit");
+		commit.setParentIds(parents);
+		return ins.insert(commit);
+	}
+
+	private static void set(final Repository repo, final String path,
+			final ObjectId id) throws IOException {
+		final RefUpdate update = repo.updateRef(path);
+		update.setNewObjectId(id);
+		update.forceUpdate();
+	}
+
+	private void modify(final Repository repo) throws IOException {
+		final RefBatch batch = new RefBatch(repo, "test");
+		batch.delete(Constants.R_TAGS + "t1");
+		batch.delete(Constants.R_TAGS + "t2");
+		batch.delete(Constants.R_TAGS + "annotated");
+		batch.delete(Constants.R_TAGS + "sub/loose");
+		batch.delete(Constants.R_TAGS + "nonexistent");
+		batch.update(Constants.R_HEADS + "master", second);
+		batch.update(Constants.R_HEADS + "new", second);
+		// replaces a deleted ref by one below it
+		batch.update(Constants.R_TAGS + "t2/below", first);
+		batch.execute();
+	}
+
+	private void checkResult(final Repository repo) throws IOException {
+		final Set<String> tags = new HashSet<>(Arrays.asList("t0", "t3",
+				"t4", "t5", "t6", "t7", "t8", "t9", "t2/below"));
+		assertEquals(tags, repo.getTags().keySet());
+		for (final org.eclipse.jgit.lib.Ref ref : repo.getTags().values())
+			assertEquals(first, ref.getObjectId());
+		assertEquals(second, repo.exactRef(Constants.R_HEADS + "master")
+				.getObjectId());
+		assertEquals(second, repo.exactRef(Constants.R_HEADS + "new")
+				.getObjectId());
+		assertNull(repo.exactRef(Constants.R_TAGS + "t1"));
+		assertNull(repo.exactRef(Constants.R_TAGS + "annotated"));
+	}
+}
@@ -0,0 +1,130 @@
+package bwfdm.sara.transfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.transport.RefSpec;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.FileSystemUtils;
+
+import bwfdm.sara.UnitTestConfig;
+
+public class ShallowFetchCommandTest {
+	private static final PersonIdent IDENT = new PersonIdent("Test User",
+			"test@example.org", 1000000000000L, 0);
+
+	private File dir;
+
+	@Before
+	public void createTempDir() throws IOException {
+		dir = UnitTestConfig.createTempDirectory();
+	}
+
+	@After
+	public void deleteTempDir() {
+		FileSystemUtils.deleteRecursively(dir);
+	}
+
+	@Test
+	public void testIsSupported() {
+		assertTrue(ShallowFetchCommand
+				.isSupported("https://gitlab.example.org/group/project.git"));
+		assertTrue(ShallowFetchCommand.isSupported("file:///srv/git/project"));
+		assertFalse(ShallowFetchCommand
+				.isSupported("git@gitlab.example.org:group/project.git"));
+		assertFalse(ShallowFetchCommand
+				.isSupported("ssh://git@gitlab.example.org/group/project"));
+	}
+
+	/** fetches only the head, and tags pointing to it, but no others. */
+	@Test
+	public void testFetch() throws IOException, GitAPIException {
+		Assume.assumeTrue(haveGit());
+		final File source = new File(dir, "source");
+		final File target = new File(dir, "target");
+		final ObjectId first, head;
+		try (final Repository repo = Git.init().setBare(true)
+				.setGitDir(source).call().getRepository()) {
+			try (final ObjectInserter ins = repo.newObjectInserter()) {
+				first = commit(ins, "first");
+				head = commit(ins, "second", commit(ins, "between", first));
+				ins.flush();
+			}
+			update(repo, Constants.R_HEADS + "master", head);
+			update(repo, Constants.R_TAGS + "v1.0", first);
+			update(repo, Constants.R_TAGS + "v2.0", head);
+		}
+
+		try (final Repository repo = Git.init().setBare(true)
+				.setGitDir(target).call().getRepository()) {
+			final String master = Constants.R_HEADS + "master";
+			new ShallowFetchCommand(repo)
+					// git ignores the depth for plain local paths
+					.setRemote("file://" + source.getAbsolutePath())
+					.setRefSpecs(Arrays.asList(new RefSpec()
+							.setSourceDestination(master, master)
+							.setForceUpdate(true))).call();
+
+			assertEquals(head, repo.exactRef(master).getObjectId());
+			assertNotNull(repo.exactRef(Constants.R_TAGS + "v2.0"));
+			assertNull(repo.exactRef(Constants.R_TAGS + "v1.0"));
+			assertTrue(new File(target, "shallow").isFile());
+			// walks stop at the shallow commit instead of failing on its
+			// missing parent
+			final CommitGraph graph = CommitGraph.EMPTY.extend(repo,
+					Arrays.asList(head));
+			assertEquals(1, graph.size());
+			assertEquals(0, graph.getParentCount(graph.find(head)));
+		}
+	}
+
+	private static boolean haveGit() {
+		try {
+			return new ProcessBuilder("git", "--version").start()
+					.waitFor() == 0;
+		} catch (final IOException | InterruptedException e) {
+			return false;
+		}
+	}
+
+	private static ObjectId commit(final ObjectInserter ins,
+			final String file, final ObjectId... parents) throws IOException {
+		final TreeFormatter tree = new TreeFormatter();
+		tree.append(file, FileMode.REGULAR_FILE,
+				ins.insert(Constants.OBJ_BLOB, Constants.encode(file)));
+		final CommitBuilder commit = new CommitBuilder();
+		commit.setTreeId(ins.insert(tree));
+		commit.setParentIds(parents);
+		commit.setAuthor(IDENT);
+		commit.setCommitter(IDENT);
+		commit.setMessage(file);
+		return ins.insert(commit);
+	}
+
+	private static void update(final Repository repo, final String ref,
+			final ObjectId id) throws IOException {
+		final RefBatch batch = new RefBatch(repo, "test");
+		batch.update(ref, id);
+		batch.execute();
+	}
+}
@@ -0,0 +1,132 @@
+package bwfdm.sara.transfer.rewrite;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+
+import bwfdm.sara.project.RefAction.PublicationMethod;
+
+/**
+ * Measures time and heap allocation of {@link HistoryRewriter} on a large
+ * synthetic repository. Not a unit test; run {@link #main(String[])} manually
+ * with the test classpath, optionally passing the number of commits (default
+ * 500000), with a heap of about 2 GB.
+ * <p>
+ * The repository is held in memory so that the benchmark measures the
+ * rewriting rather than the disk. It has a main branch with a two-commit side
+ * branch merged in every {@value #MERGE_INTERVAL} commits, a tag every
+ * {@value #TAG_INTERVAL} commits and a few feature branches forking off along
+ * the way.
+ */
+public class HistoryRewriterBenchmark {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MERGE_INTERVAL = 100;
+	private static final int TAG_INTERVAL = 1000;
+	private static final int BRANCHES = 10;
+
+	public static void main(final String... args) throws IOException {
+		final int n = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+		try (final Repository repo = createRepo(n)) {
+			// first round warms up the JIT; only the second one is reported
+			for (int round = 0; round < 2; round++) {
+				run(repo, round > 0, PublicationMethod.FULL);
+				run(repo, round > 0, PublicationMethod.ABBREV);
+				run(repo, round > 0, PublicationMethod.LATEST);
+			}
+		}
+	}
+
+	private static void run(final Repository repo, final boolean report,
+			final PublicationMethod method) throws IOException {
+		final HistoryRewriter rewriter = new HistoryRewriter(repo);
+		rewriter.addHead(Constants.R_HEADS + "master", method);
+		for (int i = 0; i < BRANCHES; i++)
+			rewriter.addHead(Constants.R_HEADS + "feature" + i, method);
+
+		System.gc();
+		final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		final long thread = Thread.currentThread().getId();
+		final long alloc = threads.getThreadAllocatedBytes(thread);
+		final long start = System.nanoTime();
+		rewriter.execute(null);
+		final long time = System.nanoTime() - start;
+		final long allocated = threads.getThreadAllocatedBytes(thread) - alloc;
+		if (report)
+			System.out.printf("%-8s %6d ms %8d MiB allocated%n", method,
+					time / 1000000, allocated >> 20);
+	}
+
+	private static Repository createRepo(final int n) throws IOException {
+		final Repository repo = new InMemoryRepository(
+				new DfsRepositoryDescription("benchmark"));
+		// refs can only be created once the objects have been flushed
+		final Map<String, ObjectId> refs = new HashMap<>();
+		try (final ObjectInserter ins = repo.newObjectInserter()) {
+			final TreeFormatter tree = new TreeFormatter(1);
+			tree.append("README", FileMode.REGULAR_FILE,
+					ins.insert(Constants.OBJ_BLOB, "test".getBytes(UTF8)));
+			final ObjectId treeId = ins.insert(tree);
+
+			ObjectId head = null;
+			for (int i = 0; i < n; i++) {
+				if (i > 0 && i % MERGE_INTERVAL == 0) {
+					final ObjectId side1 = commit(ins, treeId, "side" + i,
+							head);
+					final ObjectId side2 = commit(ins, treeId, "side" + i + "b",
+							side1);
+					head = commit(ins, treeId, "merge" + i, head, side2);
+				} else if (head == null)
+					head = commit(ins, treeId, "commit" + i);
+				else
+					head = commit(ins, treeId, "commit" + i, head);
+
+				if (i % TAG_INTERVAL == 0)
+					refs.put(Constants.R_TAGS + "t" + i, head);
+				if (i % (n / BRANCHES) == 0 && i / (n / BRANCHES) < BRANCHES) {
+					final ObjectId feature = commit(ins, treeId, "feature" + i,
+							head);
+					refs.put(Constants.R_HEADS + "feature" + i / (n / BRANCHES),
+							feature);
+				}
+			}
+			refs.put(Constants.R_HEADS + "master", head);
+			ins.flush();
+		}
+		for (final Entry<String, ObjectId> ref : refs.entrySet()) {
+			final RefUpdate ru = repo.updateRef(ref.getKey());
+			ru.setNewObjectId(ref.getValue());
+			ru.forceUpdate();
+		}
+		return repo;
+	}
+
+	private static ObjectId commit(final ObjectInserter ins,
+			final ObjectId tree, final String message,
+			final ObjectId... parents) throws IOException {
+		final PersonIdent ident = new PersonIdent("Test User",
+				"test@example.org");
+		final CommitBuilder commit = new CommitBuilder();
+		commit.setTreeId(tree);
+		commit.setAuthor(ident);
+		commit.setCommitter(ident);
+		commit.setMessage(message);
+		commit.setParentIds(parents);
+		return ins.insert(commit);
+	}
+}
@@ -0,0 +1,163 @@
+package bwfdm.sara.transfer.rewrite;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Measures the heap used by {@link RewriteCache} per commit, compared to the
+ * {@link HashMap}-based implementation it replaced. Not a unit test; run
+ * {@link #main(String[])} manually with the test classpath, optionally passing
+ * the number of commits (default 1000000). Use a heap big enough for the old
+ * implementation, eg. {@code -Xmx2g}.
+ * <p>
+ * Both implementations are fed synthetic commit IDs in the two patterns that
+ * matter: full history, where every commit is kept as itself, and abbreviated
+ * history, where long chains of commits are omitted and only every 1000th
+ * commit is kept. Note that in real use, the old implementation was even
+ * worse because its keys were {@code RevCommit}s, which it kept alive
+ * including their raw headers and messages.
+ */
+public class RewriteBenchmark {
+	private static final int KEEP_INTERVAL = 1000;
+
+	public static void main(final String... args) {
+		final int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		final ObjectId[] commits = new ObjectId[n];
+		final ObjectId[] rewritten = new ObjectId[n / KEEP_INTERVAL + 1];
+		final Random random = new Random(0);
+		for (int i = 0; i < n; i++)
+			commits[i] = randomId(random);
+		for (int i = 0; i < rewritten.length; i++)
+			rewritten[i] = randomId(random);
+
+		// baseline excludes the input IDs; both caches have to store copies
+		// anyway because the inputs are normally garbage after processing
+		final long base = usedMemory();
+		report("old, full history", n, base,
+				fullHistory(new OldCache(), commits));
+		report("new, full history", n, base,
+				fullHistory(new NewCache(), commits));
+		report("old, abbreviated", n, base,
+				abbreviated(new OldCache(), commits, rewritten));
+		report("new, abbreviated", n, base,
+				abbreviated(new NewCache(), commits, rewritten));
+	}
+
+	private static ObjectId randomId(final Random random) {
+		final int[] raw = new int[5];
+		for (int i = 0; i < raw.length; i++)
+			raw[i] = random.nextInt();
+		return ObjectId.fromRaw(raw);
+	}
+
+	/**
+	 * {@link ObjectId#copy()} just returns the same instance, but parsing
+	 * really does give a new instance for each commit.
+	 */
+	private static ObjectId copy(final ObjectId id) {
+		final int[] raw = new int[5];
+		id.copyRawTo(raw, 0);
+		return ObjectId.fromRaw(raw);
+	}
+
+	private static Cache fullHistory(final Cache cache,
+			final ObjectId[] commits) {
+		for (final ObjectId commit : commits) {
+			// FullHistory keeps every commit as itself
+			final ObjectId copy = copy(commit);
+			cache.keep(copy, copy);
+		}
+		return cache;
+	}
+
+	private static Cache abbreviated(final Cache cache,
+			final ObjectId[] commits, final ObjectId[] rewritten) {
+		// single chain of commits, oldest first, as FilteredHistory processes
+		// it
+		for (int i = 0; i < commits.length; i++) {
+			final ObjectId commit = copy(commits[i]);
+			if (i % KEEP_INTERVAL == 0)
+				cache.keep(commit, copy(rewritten[i / KEEP_INTERVAL]));
+			else
+				cache.omit(commit, cache.getRewriteResult(commits[i - 1]));
+		}
+		return cache;
+	}
+
+	private static void report(final String name, final int n,
+			final long base, final Cache cache) {
+		final long used = usedMemory() - base;
+		System.out.printf("%-20s %6d bytes/commit%n", name, used / n);
+		// keep the cache reachable until it has been measured
+		cache.keep(ObjectId.zeroId(), ObjectId.zeroId());
+	}
+
+	private static long usedMemory() {
+		final Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			try {
+				Thread.sleep(100);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	private interface Cache {
+		void omit(ObjectId before, List<ObjectId> after);
+
+		void keep(ObjectId before, ObjectId after);
+
+		List<ObjectId> getRewriteResult(ObjectId before);
+	}
+
+	private static class NewCache implements Cache {
+		private final RewriteCache cache = new RewriteCache();
+
+		@Override
+		public void omit(final ObjectId before, final List<ObjectId> after) {
+			cache.omit(before, after);
+		}
+
+		@Override
+		public void keep(final ObjectId before, final ObjectId after) {
+			cache.keep(before, after);
+		}
+
+		@Override
+		public List<ObjectId> getRewriteResult(final ObjectId before) {
+			return cache.getRewriteResult(before);
+		}
+	}
+
+	/** The previous {@link RewriteCache} implementation. */
+	private static class OldCache implements Cache {
+		private final Map<ObjectId, List<ObjectId>> rewrite = new HashMap<>();
+		private final Set<ObjectId> keep = new HashSet<>();
+
+		@Override
+		public void omit(final ObjectId before, final List<ObjectId> after) {
+			rewrite.put(before, after);
+		}
+
+		@Override
+		public void keep(final ObjectId before, final ObjectId after) {
+			rewrite.put(before, Arrays.asList(after));
+			keep.add(before);
+		}
+
+		@Override
+		public List<ObjectId> getRewriteResult(final ObjectId before) {
+			return rewrite.get(before);
+		}
+	}
+}
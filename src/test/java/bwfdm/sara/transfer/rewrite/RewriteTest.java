@@ -2,6 +2,7 @@ package bwfdm.sara.transfer.rewrite;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -9,6 +10,7 @@ import static org.junit.Assert.assertTrue;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -28,6 +30,7 @@ import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.TreeFormatter;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.treewalk.TreeWalk;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -35,6 +38,8 @@ import org.springframework.util.FileSystemUtils;
 
 import bwfdm.sara.UnitTestConfig;
 import bwfdm.sara.project.RefAction.PublicationMethod;
+import bwfdm.sara.transfer.CommitGraph;
+import bwfdm.sara.transfer.MemoryBudget;
 
 public class RewriteTest {
 	private static final Charset UTF8 = Charset.forName("UTF-8");
@@ -105,16 +110,24 @@ public class RewriteTest {
 
 	private RevCommit commit(final String id, final ObjectId... parents)
 			throws IOException {
-		try (final ObjectInserter ins = repo.newObjectInserter()) {
-			final ObjectId file = ins.insert(Constants.OBJ_BLOB,
-					id.getBytes(UTF8));
-			final TreeFormatter tree = new TreeFormatter(1);
-			tree.append("id.txt", FileMode.REGULAR_FILE, file);
+		return commit(id, System.currentTimeMillis(), parents);
+	}
+
+	private RevCommit commit(final String id, final long time,
+			final ObjectId... parents) throws IOException {
+		final TreeFormatter tree = new TreeFormatter(1);
+		tree.append("id.txt", FileMode.REGULAR_FILE, blob(id));
+		return commit(id, tree, time, parents);
+	}
 
+	private RevCommit commit(final String id, final TreeFormatter tree,
+			final long time, final ObjectId... parents) throws IOException {
+		try (final ObjectInserter ins = repo.newObjectInserter()) {
 			final CommitBuilder commit = new CommitBuilder();
 			commit.setTreeId(ins.insert(tree));
-			commit.setAuthor(new PersonIdent(id, id + "@example.org"));
-			commit.setCommitter(new PersonIdent(id, id + "@example.com"));
+			commit.setAuthor(new PersonIdent(id, id + "@example.org", time, 0));
+			commit.setCommitter(new PersonIdent(id, id + "@example.com", time,
+					0));
 			commit.setMessage(id);
 			commit.setParentIds(parents);
 
@@ -124,6 +137,15 @@ public class RewriteTest {
 		}
 	}
 
+	private ObjectId blob(final String content) throws IOException {
+		try (final ObjectInserter ins = repo.newObjectInserter()) {
+			final ObjectId blob = ins.insert(Constants.OBJ_BLOB,
+					content.getBytes(UTF8));
+			ins.flush();
+			return blob;
+		}
+	}
+
 	private Ref tag(final String id, final AnyObjectId commit,
 			final boolean annotated) throws IOException, GitAPIException {
 		final TagCommand tagger = git.tag().setName(id)
@@ -148,7 +170,8 @@ public class RewriteTest {
 	 */
 	@Test
 	public void testIdentityRewrite() throws IOException {
-		try (RewriteStrategy filterAll = new FilteredHistory(repo, cache) {
+		try (RewriteWalk walk = new RewriteWalk(repo);
+				RewriteStrategy filterAll = new FilteredHistory(walk, cache) {
 			@Override
 			protected boolean isSignificant(RevCommit commit,
 					List<ObjectId> parents) {
@@ -321,6 +344,194 @@ public class RewriteTest {
 		assertDeleted(rewrite, tb3);
 	}
 
+	@Test
+	public void testSampledHistory() throws IOException, GitAPIException {
+		final long day = 24 * 60 * 60 * 1000;
+		final long hour = 60 * 60 * 1000;
+		final RevCommit s1 = commit("s1", 9 * hour);
+		final RevCommit s2 = commit("s2", 17 * hour, s1);
+		final RevCommit s3 = commit("s3", day + 10 * hour, s2);
+		final RevCommit s4 = commit("s4", 2 * day + 8 * hour, s3);
+		final RevCommit s5 = commit("s5", 2 * day + 12 * hour, s4);
+		final Ref s = branch("s", s5);
+
+		final HistoryRewriter rewrite = new HistoryRewriter(repo);
+		rewrite.addHead(s.getName(), PublicationMethod.DAILY);
+		rewrite.execute(null);
+		assertFalse(rewrite.isUnchanged(s.getName()));
+
+		// last commit of every day, plus the head. s4 is omitted.
+		final RevCommit newS5 = checkMetadata(rewrite, s);
+		assertEquals(1, newS5.getParentCount());
+		final RevCommit newS3 = repo.parseCommit(newS5.getParent(0));
+		assertSameMetadata(s3, newS3);
+		assertEquals(1, newS3.getParentCount());
+		final RevCommit newS2 = repo.parseCommit(newS3.getParent(0));
+		assertSameMetadata(s2, newS2);
+		assertParents(newS2);
+	}
+
+	/**
+	 * Excluded files must be replaced by pointers, leaving all other files and
+	 * unchanged directories as they are.
+	 */
+	@Test
+	public void testBlobFilter() throws IOException, GitAPIException {
+		final ObjectId big = blob(new String(new char[2000]).replace('\0',
+				'x'));
+		final ObjectId notes = blob("notes");
+		final ObjectId iso = blob("not really an ISO image");
+		final TreeFormatter data = new TreeFormatter();
+		data.append("big.bin", FileMode.REGULAR_FILE, big);
+		data.append("notes.txt", FileMode.REGULAR_FILE, notes);
+		final ObjectId dataTree;
+		try (final ObjectInserter ins = repo.newObjectInserter()) {
+			dataTree = ins.insert(data);
+			ins.flush();
+		}
+		final RevCommit f1 = commit("f1", tree(dataTree, iso, "f1"), 1000);
+		final RevCommit f2 = commit("f2", tree(dataTree, iso, "f2"), 2000, f1);
+		final Ref f = branch("f", f2);
+
+		final HistoryRewriter rewrite = new HistoryRewriter(repo);
+		rewrite.addHead(f.getName(), PublicationMethod.FULL);
+		rewrite.setBlobFilter(new BlobFilter(1000, Arrays.asList("*.iso")));
+		rewrite.execute(null);
+		assertFalse(rewrite.isUnchanged(f.getName()));
+
+		final RevCommit newF2 = rewrite.getRewrittenCommit(f.getName());
+		assertEquals(f2.getFullMessage(), newF2.getFullMessage());
+		final RevCommit newF1 = repo.parseCommit(newF2.getParent(0));
+		assertEquals(f1.getFullMessage(), newF1.getFullMessage());
+		assertParents(newF1);
+
+		assertEquals(blob("f2"), getFile(newF2, "README"));
+		assertEquals(notes, getFile(newF2, "data/notes.txt"));
+		final ObjectId pointer = getFile(newF2, "data/big.bin");
+		assertNotEquals(big, pointer);
+		assertTrue(new String(repo.open(pointer).getBytes(), UTF8)
+				.contains(big.name()));
+		assertNotEquals(iso, getFile(newF2, "image.iso"));
+		// the unchanged directory is rewritten only once
+		assertEquals(getFile(newF1, "data"), getFile(newF2, "data"));
+
+		final ExcludedFiles excluded = rewrite.getExcludedFiles();
+		assertEquals(2, excluded.files);
+		assertEquals(2000 + "not really an ISO image".length(),
+				excluded.bytes);
+	}
+
+	private TreeFormatter tree(final ObjectId data, final ObjectId iso,
+			final String readme) throws IOException {
+		final TreeFormatter tree = new TreeFormatter();
+		tree.append("README", FileMode.REGULAR_FILE, blob(readme));
+		tree.append("data", FileMode.TREE, data);
+		tree.append("image.iso", FileMode.REGULAR_FILE, iso);
+		return tree;
+	}
+
+	private ObjectId getFile(final RevCommit commit, final String path)
+			throws IOException {
+		try (final TreeWalk walk = TreeWalk.forPath(repo, path,
+				commit.getTree())) {
+			return walk.getObjectId(0);
+		}
+	}
+
+	/**
+	 * Rewriting again with a {@link RewriteStore} must give the same result as
+	 * rewriting from scratch, both with unchanged refs and when a ref has moved
+	 * on, making its previous head insignificant.
+	 */
+	@Test
+	public void testStoredRewrite() throws IOException, GitAPIException {
+		final RewriteStore store = new RewriteStore(root);
+		final HistoryRewriter first = storedRewrite(store);
+		final HistoryRewriter again = storedRewrite(store);
+		assertSameResult(first, again, a, b, ta4, tb3, tb5);
+
+		final RevCommit b9 = commit("b9", b8);
+		b = git.branchCreate().setName("b").setForce(true).setStartPoint(b9)
+				.call();
+		final HistoryRewriter updated = storedRewrite(store);
+		final HistoryRewriter scratch = new HistoryRewriter(repo);
+		scratch.addHead(a.getName(), PublicationMethod.FULL);
+		scratch.addHead(b.getName(), PublicationMethod.ABBREV);
+		scratch.execute(null);
+		assertSameResult(scratch, updated, a, b, ta4, tb3, tb5);
+		assertParents(updated.getRewrittenCommit(b.getName()),
+				checkMetadata(updated, tb5), a8);
+	}
+
+	/**
+	 * Rewriting in parallel must give the same result as rewriting
+	 * sequentially, both from scratch and when reusing stored results. a and
+	 * b share most of their history, while c and d are disjoint from them.
+	 */
+	@Test
+	public void testParallelRewrite() throws IOException {
+		final CommitGraph graph = CommitGraph.EMPTY.extend(repo,
+				Arrays.<ObjectId> asList(a10, b8, c9));
+		final HistoryRewriter sequential = parallelRewrite(null, null);
+		final HistoryRewriter parallel = parallelRewrite(graph, null);
+		assertSameResult(sequential, parallel, a, b, c, d, ta4, tb3, tb5,
+				tc3, tc6);
+
+		final RewriteStore store = new RewriteStore(root, graph);
+		parallelRewrite(graph, store);
+		assertSameResult(sequential, parallelRewrite(graph, store), a, b, c,
+				d, ta4, tb3, tb5, tc3, tc6);
+	}
+
+	private HistoryRewriter parallelRewrite(final CommitGraph graph,
+			final RewriteStore store) throws IOException {
+		final HistoryRewriter rewrite = new HistoryRewriter(repo, store);
+		rewrite.addHead(a.getName(), PublicationMethod.ABBREV);
+		rewrite.addHead(b.getName(), PublicationMethod.ABBREV);
+		rewrite.addHead(c.getName(), PublicationMethod.LATEST);
+		rewrite.addHead(d.getName(), PublicationMethod.ABBREV);
+		rewrite.setParallel(graph, 4);
+		rewrite.execute(null);
+		return rewrite;
+	}
+
+	/**
+	 * Results spilled to memory-mapped files must be the same as on the heap,
+	 * and closing the rewrite must return all memory to the budget.
+	 */
+	@Test
+	public void testSpilledRewrite() throws IOException {
+		final HistoryRewriter heap = parallelRewrite(null, null);
+		final MemoryBudget budget = new MemoryBudget(16 * 1024);
+		final HistoryRewriter spilled = new HistoryRewriter(repo);
+		spilled.setMemoryBudget(budget, root);
+		spilled.addHead(a.getName(), PublicationMethod.ABBREV);
+		spilled.addHead(b.getName(), PublicationMethod.ABBREV);
+		spilled.addHead(c.getName(), PublicationMethod.LATEST);
+		spilled.addHead(d.getName(), PublicationMethod.ABBREV);
+		spilled.execute(null);
+		assertSameResult(heap, spilled, a, b, c, d, ta4, tb3, tb5, tc3, tc6);
+		spilled.close();
+		assertEquals(0, budget.getUsed());
+	}
+
+	private HistoryRewriter storedRewrite(final RewriteStore store)
+			throws IOException {
+		final HistoryRewriter rewrite = new HistoryRewriter(repo, store);
+		rewrite.addHead(a.getName(), PublicationMethod.FULL);
+		rewrite.addHead(b.getName(), PublicationMethod.ABBREV);
+		rewrite.execute(null);
+		return rewrite;
+	}
+
+	private void assertSameResult(final HistoryRewriter expected,
+			final HistoryRewriter actual, final Ref... refs)
+			throws IOException {
+		for (final Ref ref : refs)
+			assertEquals(expected.getRewrittenCommit(ref.getName()),
+					actual.getRewrittenCommit(ref.getName()));
+	}
+
 	private void assertDeleted(HistoryRewriter rewrite, Ref ref)
 			throws IOException {
 		assertNull(rewrite.getRewrittenCommit(ref.getName()));
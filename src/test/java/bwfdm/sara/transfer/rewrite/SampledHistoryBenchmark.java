@@ -0,0 +1,159 @@
+package bwfdm.sara.transfer.rewrite;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.ObjectWalk;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+
+import bwfdm.sara.project.RefAction.PublicationMethod;
+
+/**
+ * Compares archive size and rewrite time of the sampling
+ * {@link PublicationMethod}s to {@link PublicationMethod#FULL} and
+ * {@link PublicationMethod#LATEST}, on a large synthetic repository without
+ * any tags. Not a unit test; run {@link #main(String[])} manually with the
+ * test classpath, optionally passing the number of commits (default 100000).
+ * <p>
+ * Commits are about {@value #INTERVAL} seconds apart, with some jitter, and
+ * each changes one of {@value #FILES} files. Every {@value #MERGE_INTERVAL}
+ * commits, a short side branch is merged. Archive size is the number and
+ * total (uncompressed) size of all objects reachable from the rewritten head.
+ */
+public class SampledHistoryBenchmark {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String MASTER = Constants.R_HEADS + "master";
+	private static final int INTERVAL = 1200;
+	private static final int FILES = 100;
+	private static final int MERGE_INTERVAL = 50;
+	private static final PublicationMethod[] METHODS = {
+			PublicationMethod.FULL, PublicationMethod.DAILY,
+			PublicationMethod.WEEKLY, PublicationMethod.MONTHLY,
+			PublicationMethod.LATEST };
+
+	public static void main(final String... args) throws IOException {
+		final int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		try (final Repository repo = createRepo(n)) {
+			System.out.printf("%-8s %8s %8s %8s %8s %8s%n", "method", "ms",
+					"commits", "objects", "MiB", "% size");
+			long full = 0;
+			// first round warms up the JIT; only the second one is reported
+			for (int round = 0; round < 2; round++)
+				for (final PublicationMethod method : METHODS) {
+					final long start = System.nanoTime();
+					final HistoryRewriter rewriter = new HistoryRewriter(repo);
+					rewriter.addHead(MASTER, method);
+					rewriter.execute(null);
+					final long time = System.nanoTime() - start;
+
+					final long[] size = measure(repo,
+							rewriter.getRewrittenCommit(MASTER));
+					if (method == PublicationMethod.FULL)
+						full = size[2];
+					if (round > 0)
+						System.out.printf("%-8s %8d %8d %8d %8d %7.1f%%%n",
+								method, time / 1000000, size[0], size[1],
+								size[2] >> 20, 100.0 * size[2] / full);
+				}
+		}
+	}
+
+	/** @return number of commits, number of objects, total size */
+	private static long[] measure(final Repository repo, final ObjectId head)
+			throws IOException {
+		final long[] size = new long[3];
+		try (final ObjectWalk walk = new ObjectWalk(repo);
+				final ObjectReader reader = repo.newObjectReader()) {
+			walk.markStart(walk.parseCommit(head));
+			for (RevCommit commit = walk.next(); commit != null; commit = walk
+					.next()) {
+				size[0]++;
+				size[1]++;
+				size[2] += reader.getObjectSize(commit, Constants.OBJ_COMMIT);
+			}
+			for (RevObject obj = walk.nextObject(); obj != null; obj = walk
+					.nextObject()) {
+				size[1]++;
+				size[2] += reader.getObjectSize(obj, obj.getType());
+			}
+		}
+		return size;
+	}
+
+	private static Repository createRepo(final int n) throws IOException {
+		final Repository repo = new InMemoryRepository(
+				new DfsRepositoryDescription("benchmark"));
+		final Random random = new Random(0);
+		final ObjectId[] files = new ObjectId[FILES];
+		ObjectId head;
+		try (final ObjectInserter ins = repo.newObjectInserter()) {
+			for (int i = 0; i < FILES; i++)
+				files[i] = blob(ins, "file " + i);
+			long time = 1000000000L;
+			head = commit(ins, tree(ins, files), time, "initial");
+			for (int i = 1; i < n; i++) {
+				time += INTERVAL / 2 + random.nextInt(INTERVAL);
+				files[i % FILES] = blob(ins, "changed in commit " + i);
+				if (i % MERGE_INTERVAL == 0) {
+					// the side branch changes a file of its own
+					final ObjectId[] side = files.clone();
+					side[(i + 1) % FILES] = blob(ins, "side " + i);
+					final ObjectId sideCommit = commit(ins, tree(ins, side),
+							time - INTERVAL / 2, "side " + i, head);
+					files[(i + 1) % FILES] = side[(i + 1) % FILES];
+					head = commit(ins, tree(ins, files), time, "merge " + i,
+							head, sideCommit);
+				} else
+					head = commit(ins, tree(ins, files), time, "commit " + i,
+							head);
+			}
+			ins.flush();
+		}
+		final RefUpdate ru = repo.updateRef(MASTER);
+		ru.setNewObjectId(head);
+		ru.forceUpdate();
+		return repo;
+	}
+
+	private static ObjectId blob(final ObjectInserter ins,
+			final String content) throws IOException {
+		return ins.insert(Constants.OBJ_BLOB, content.getBytes(UTF8));
+	}
+
+	private static ObjectId tree(final ObjectInserter ins,
+			final ObjectId[] files) throws IOException {
+		final TreeFormatter tree = new TreeFormatter(files.length);
+		for (int i = 0; i < files.length; i++)
+			tree.append(String.format("file%03d", i), FileMode.REGULAR_FILE,
+					files[i]);
+		return ins.insert(tree);
+	}
+
+	private static ObjectId commit(final ObjectInserter ins,
+			final ObjectId tree, final long time, final String message,
+			final ObjectId... parents) throws IOException {
+		final PersonIdent ident = new PersonIdent("Test User",
+				"test@example.org", time * 1000, 0);
+		final CommitBuilder commit = new CommitBuilder();
+		commit.setTreeId(tree);
+		commit.setAuthor(ident);
+		commit.setCommitter(ident);
+		commit.setMessage(message);
+		commit.setParentIds(parents);
+		return ins.insert(commit);
+	}
+}